@@ -0,0 +1,40 @@
+package rrampage.wasp.bench;
+
+import rrampage.wasp.data.Module;
+import rrampage.wasp.parser.WasmParser;
+import rrampage.wasp.vm.MachineConfig;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class BenchUtils {
+    // Benchmarks are run from the wasp-bench directory by default. Override with -Dwasp.examples=<dir>
+    private static final Path EXAMPLES = Path.of(System.getProperty("wasp.examples", "../examples"));
+
+    public static byte[] readExample(String fileName) {
+        try {
+            return Files.readAllBytes(EXAMPLES.resolve(fileName));
+        } catch (IOException e) {
+            throw new UncheckedIOException(STR."Unable to read example \{fileName} from \{EXAMPLES.toAbsolutePath()}", e);
+        }
+    }
+
+    public static Module parseExample(String fileName) {
+        return new WasmParser(readExample(fileName)).parseModule();
+    }
+
+    public static MachineConfig config(String engine) {
+        return switch (engine) {
+            case "TREE" -> MachineConfig.ConfigBuilder.of().interpreter(MachineConfig.Interpreter.TREE).build();
+            case "FLAT" -> MachineConfig.ConfigBuilder.of().interpreter(MachineConfig.Interpreter.FLAT).build();
+            case "STACKLESS" -> MachineConfig.ConfigBuilder.of().interpreter(MachineConfig.Interpreter.STACKLESS).build();
+            case "CLOSURE" -> MachineConfig.ConfigBuilder.of().interpreter(MachineConfig.Interpreter.CLOSURE).build();
+            case "REGISTER" -> MachineConfig.ConfigBuilder.of().interpreter(MachineConfig.Interpreter.REGISTER).build();
+            case "JIT" -> MachineConfig.ConfigBuilder.of().jit(true).build();
+            case "TIERED" -> MachineConfig.ConfigBuilder.of().tiered(true).build();
+            default -> throw new IllegalArgumentException(STR."Unknown engine: \{engine}");
+        };
+    }
+}
@@ -0,0 +1,46 @@
+package rrampage.wasp.bench;
+
+import org.openjdk.jmh.annotations.*;
+import rrampage.wasp.vm.Machine;
+import rrampage.wasp.vm.MachineVisitors;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static rrampage.wasp.utils.ConversionUtils.constOf;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class GameOfLifeBenchmark {
+    private static final int WIDTH = 100, HEIGHT = 100;
+
+    @Param({"gol/game_of_life.wasm", "gol/game_of_life_unopt.wasm"})
+    public String file;
+
+    @Param({"FLAT", "CLOSURE", "REGISTER", "JIT", "TIERED"})
+    public String engine;
+
+    private Machine machine;
+
+    @Setup
+    public void setup() {
+        machine = BenchUtils.parseExample(file).instantiate(null, MachineVisitors.NULL_VISITOR, BenchUtils.config(engine));
+        machine.invoke("initializeBoard", constOf(WIDTH), constOf(HEIGHT));
+        // Fixed seed so that every run ticks the same board
+        Random random = new Random(42);
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int column = 0; column < WIDTH; column++) {
+                machine.invoke("setValueAtPosition", constOf(row), constOf(column), constOf(random.nextFloat() < 0.4f ? 1 : 0));
+            }
+        }
+    }
+
+    @Benchmark
+    public void tick() {
+        machine.invoke("tick");
+    }
+}
@@ -0,0 +1,50 @@
+package rrampage.wasp.bench;
+
+import org.openjdk.jmh.annotations.*;
+import rrampage.wasp.instructions.ConstInstruction;
+import rrampage.wasp.vm.Machine;
+import rrampage.wasp.vm.MachineVisitors;
+
+import java.util.concurrent.TimeUnit;
+
+import static rrampage.wasp.utils.ConversionUtils.constOf;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "-Xss8m"})
+public class InvokeBenchmark {
+    @Param({"TREE", "FLAT", "STACKLESS", "CLOSURE", "REGISTER", "JIT", "TIERED"})
+    public String engine;
+
+    private Machine fac;
+    private Machine fib;
+    private final ConstInstruction[] facArgs = ConstInstruction.of(constOf(25L));
+    private final ConstInstruction[] fibArgs = ConstInstruction.of(constOf(15L));
+
+    @Setup
+    public void setup() {
+        fac = BenchUtils.parseExample("testsuite/fac.0.wasm").instantiate(null, MachineVisitors.NULL_VISITOR, BenchUtils.config(engine));
+        fib = BenchUtils.parseExample("testsuite/call.0.wasm").instantiate(null, MachineVisitors.NULL_VISITOR, BenchUtils.config(engine));
+    }
+
+    @Benchmark
+    public long facRec() {
+        fac.invoke("fac-rec", facArgs);
+        return fac.pop();
+    }
+
+    @Benchmark
+    public long facIter() {
+        fac.invoke("fac-iter", facArgs);
+        return fac.pop();
+    }
+
+    @Benchmark
+    public long fibRec() {
+        fib.invoke("fib", fibArgs);
+        return fib.pop();
+    }
+}
@@ -0,0 +1,65 @@
+package rrampage.wasp.bench;
+
+import org.openjdk.jmh.annotations.*;
+import rrampage.wasp.vm.MachineStack;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class MachineStackBenchmark {
+    // Stays below the initial capacity so that growing the stack is not measured
+    private static final int DEPTH = 1024;
+    private MachineStack stack;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        stack = new MachineStack();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DEPTH)
+    public long pushPop() {
+        for (int i = 0; i < DEPTH; i++) {
+            stack.push(i);
+        }
+        long sum = 0;
+        for (int i = 0; i < DEPTH; i++) {
+            sum += stack.pop();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DEPTH)
+    public long binaryOp() {
+        // Stack traffic of an add: two pops and a push per operation
+        stack.push(1);
+        for (int i = 0; i < DEPTH; i++) {
+            stack.push(i);
+            long r = stack.pop();
+            long l = stack.pop();
+            stack.push(l + r);
+        }
+        return stack.pop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DEPTH)
+    public int dropKeep() {
+        for (int i = 0; i < DEPTH; i++) {
+            stack.push(i);
+            stack.push(i);
+            stack.push(i);
+            stack.dropKeep(2, 1);
+        }
+        for (int i = 0; i < DEPTH; i++) {
+            stack.pop();
+        }
+        return stack.stackPointer();
+    }
+}
@@ -0,0 +1,103 @@
+package rrampage.wasp.bench;
+
+import org.openjdk.jmh.annotations.*;
+import rrampage.wasp.data.Memory;
+import rrampage.wasp.data.MemorySnapshot;
+import rrampage.wasp.data.SegmentMemory;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class MemoryBenchmark {
+    // Touch one page per operation batch so that accesses stay in cache and only accessor cost is measured
+    private static final int BYTES = 1 << 16;
+    @Param({"HEAP", "SEGMENT", "COPY_ON_WRITE"})
+    public String kind;
+    private Memory memory;
+    private Memory other;
+
+    @Setup
+    public void setup() {
+        memory = create();
+        other = create();
+    }
+
+    private Memory create() {
+        return switch (kind) {
+            case "HEAP" -> new Memory(1);
+            case "SEGMENT" -> new SegmentMemory(1);
+            case "COPY_ON_WRITE" -> MemorySnapshot.of(new Memory(1)).fork();
+            default -> throw new IllegalArgumentException(STR."Unknown memory: \{kind}");
+        };
+    }
+
+    // memory.copy with overlapping ranges
+    @Benchmark
+    public void copyWithin() {
+        memory.copyWithin(16, 0, BYTES / 2);
+    }
+
+    @Benchmark
+    public void copyTo() {
+        memory.copyTo(0, other, 0, BYTES / 2);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BYTES / 4)
+    public int loadInt() {
+        int sum = 0;
+        for (int addr = 0; addr < BYTES; addr += 4) {
+            sum += memory.loadInt(addr);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BYTES / 4)
+    public void storeInt() {
+        for (int addr = 0; addr < BYTES; addr += 4) {
+            memory.store(addr, addr);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BYTES / 8)
+    public long loadLong() {
+        long sum = 0;
+        for (int addr = 0; addr < BYTES; addr += 8) {
+            sum += memory.loadLong(addr);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BYTES / 8)
+    public void storeLong() {
+        for (int addr = 0; addr < BYTES; addr += 8) {
+            memory.store(addr, (long) addr);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BYTES)
+    public int loadByte() {
+        int sum = 0;
+        for (int addr = 0; addr < BYTES; addr++) {
+            sum += memory.loadByte(addr);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BYTES)
+    public void storeByte() {
+        for (int addr = 0; addr < BYTES; addr++) {
+            memory.store(addr, (byte) addr);
+        }
+    }
+}
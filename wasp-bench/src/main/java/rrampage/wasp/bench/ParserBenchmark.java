@@ -0,0 +1,39 @@
+package rrampage.wasp.bench;
+
+import org.openjdk.jmh.annotations.*;
+import rrampage.wasp.data.Module;
+import rrampage.wasp.parser.WasmParser;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class ParserBenchmark {
+    @Param({
+            "add_two.wasm", "call_indirect_example.wasm", "data_segment_example.wasm", "fizzbuzz_manual.wasm",
+            "gol/game_of_life.wasm", "gol/game_of_life_unopt.wasm", "olive/teapot3d.wasm", "pong.wasm",
+            "rocket.wasm", "waforth/waforth.wasm", "walloc.wasm", "wasm-bindgen/riscv-emu/riscv-emu.wasm",
+            "wasmtoy/raymarcher.wasm",
+    })
+    public String file;
+
+    // EAGER decodes every body like the parser did before lazy decoding, so its results stay comparable
+    @Param({"EAGER", "LAZY", "PARALLEL"})
+    public WasmParser.CodeParsing codeParsing;
+
+    private byte[] data;
+
+    @Setup
+    public void setup() {
+        data = BenchUtils.readExample(file);
+    }
+
+    @Benchmark
+    public Module parseModule() {
+        return new WasmParser(data, codeParsing).parseModule();
+    }
+}
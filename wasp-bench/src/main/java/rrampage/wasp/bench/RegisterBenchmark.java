@@ -0,0 +1,63 @@
+package rrampage.wasp.bench;
+
+import org.openjdk.jmh.annotations.*;
+import rrampage.wasp.vm.ExportedFunction;
+import rrampage.wasp.vm.Machine;
+import rrampage.wasp.vm.MachineVisitors;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static rrampage.wasp.utils.ConversionUtils.constOf;
+
+/**
+ * Compares register code against the stack interpreters on a loop, a call heavy function and memory heavy code.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "-Xss8m"})
+public class RegisterBenchmark {
+    private static final int WIDTH = 100, HEIGHT = 100;
+
+    @Param({"TREE", "FLAT", "REGISTER"})
+    public String engine;
+
+    private ExportedFunction facIter;
+    private ExportedFunction fib;
+    private Machine gol;
+
+    @Setup
+    public void setup() {
+        Machine fac = BenchUtils.parseExample("testsuite/fac.0.wasm").instantiate(null, MachineVisitors.NULL_VISITOR, BenchUtils.config(engine));
+        facIter = fac.exportedFunction("fac-iter");
+        fib = BenchUtils.parseExample("testsuite/call.0.wasm").instantiate(null, MachineVisitors.NULL_VISITOR, BenchUtils.config(engine))
+                .exportedFunction("fib");
+        gol = BenchUtils.parseExample("gol/game_of_life_unopt.wasm").instantiate(null, MachineVisitors.NULL_VISITOR, BenchUtils.config(engine));
+        gol.invoke("initializeBoard", constOf(WIDTH), constOf(HEIGHT));
+        // Fixed seed so that every run ticks the same board
+        Random random = new Random(42);
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int column = 0; column < WIDTH; column++) {
+                gol.invoke("setValueAtPosition", constOf(row), constOf(column), constOf(random.nextFloat() < 0.4f ? 1 : 0));
+            }
+        }
+    }
+
+    @Benchmark
+    public long facIter() {
+        return facIter.invoke(25L);
+    }
+
+    @Benchmark
+    public long fibRec() {
+        return fib.invoke(15L);
+    }
+
+    @Benchmark
+    public void golTick() {
+        gol.invoke("tick");
+    }
+}
@@ -0,0 +1,353 @@
+package rrampage.wasp.data;
+
+import rrampage.wasp.instructions.ConstExpression;
+import rrampage.wasp.instructions.ConstInstruction;
+import rrampage.wasp.instructions.GlobalInstruction;
+import rrampage.wasp.instructions.RefTypeInstruction;
+import rrampage.wasp.optimizer.InstructionFuser;
+import rrampage.wasp.optimizer.ModuleOptimizer;
+import rrampage.wasp.optimizer.OptimizerReport;
+import rrampage.wasp.parser.types.*;
+import rrampage.wasp.validator.Validator;
+import rrampage.wasp.vm.Machine;
+import rrampage.wasp.vm.MachineConfig;
+import rrampage.wasp.vm.MachineVisitor;
+import rrampage.wasp.vm.MachineVisitors;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static rrampage.wasp.utils.ConversionUtils.doubleToLong;
+import static rrampage.wasp.utils.ConversionUtils.floatToLong;
+
+/**
+ * Immutable form of a parsed {@link Module}. It holds types, function code and templates for tables, memories,
+ * globals and segments. Each call to {@link #instantiate} creates fresh tables, memories and globals,
+ * so one compiled module can back any number of Machines, including Machines running on different threads.
+ * <pre>
+ *     CompiledModule compiled = parser.parseModule().compile();
+ *     Machine machine = compiled.instantiate(importMap);
+ * </pre>
+ * Code derived from functions (flat code, JIT compiled code) is cached in each function and shared by every instance.
+ * Optimized and fused copies of the functions are created once and shared in the same way.
+ */
+public final class CompiledModule {
+    private record MemoryType(int pages, int maxPages, boolean isShared) {}
+
+    private final FunctionType[] types;
+    private final Function[] functions;
+    private final Table[] tables;
+    private final MemoryType[] memories;
+    private final Variable[] globals;
+    private final ExportMetadata[] exports;
+    private final ImportMetadata[] imports;
+    private final DataSegment[] dataSegments;
+    private final ElementSegment[] elementSegments;
+    private final long startIdx;
+    // Optimized and fused functions are created on first instantiation which enables them. Indexed by variant()
+    private final Function[][] variants = new Function[4][];
+    private volatile OptimizerReport optimizerReport;
+
+    private CompiledModule(Module module) {
+        this.types = module.types().clone();
+        this.functions = module.functions().clone();
+        this.tables = new Table[module.tables().length];
+        for (int i = 0; i < tables.length; i++) {
+            Table t = module.tables()[i];
+            tables[i] = t == null ? null : t.copy();
+        }
+        this.memories = new MemoryType[module.memories().length];
+        for (int i = 0; i < memories.length; i++) {
+            Memory m = module.memories()[i];
+            memories[i] = m == null ? null : new MemoryType(m.getMemorySize(), m.maxPages(), m.isShared());
+        }
+        this.globals = module.globals().clone();
+        this.exports = module.exports() == null ? new ExportMetadata[0] : module.exports().clone();
+        this.imports = module.imports() == null ? null : module.imports().clone();
+        this.dataSegments = module.dataSegments() == null ? new DataSegment[0] : module.dataSegments().clone();
+        this.elementSegments = module.elementSegments() == null ? new ElementSegment[0] : module.elementSegments().clone();
+        this.startIdx = module.startIdx();
+    }
+
+    public static CompiledModule of(Module module) {
+        return new CompiledModule(module);
+    }
+
+    public FunctionType[] types() {
+        return types.clone();
+    }
+
+    public Machine instantiate(Map<String, Map<String, Object>> importMap) {
+        return instantiate(importMap, MachineVisitors.NULL_VISITOR);
+    }
+
+    public Machine instantiate(Map<String, Map<String, Object>> importMap, MachineVisitor visitor) {
+        return instantiate(importMap, visitor, MachineConfig.DEFAULT);
+    }
+
+    public Machine instantiate(Map<String, Map<String, Object>> importMap, MachineVisitor visitor, MachineConfig config) {
+        /*
+            https://www.w3.org/TR/wasm-core-2/exec/modules.html#exec-instantiation
+            TODO:
+            4. Tables - Element segments
+         */
+        Instance instance = new Instance(config);
+        instance.processImports(importMap);
+        instance.processGlobals();
+        instance.processDataSegments();
+        instance.processActiveElementSegments();
+        var exportMap = instance.processExports();
+        return new Machine(instance.functions, instance.tables, instance.globals, instance.memories, dataSegments.clone(), elementSegments.clone(),
+                exportMap, startIdx, visitor, config);
+    }
+
+    /**
+     * Changes made by the optimizer, which runs on first instantiation with optimization enabled. Runs it if needed.
+     */
+    public OptimizerReport optimizerReport() {
+        functions(2);
+        return optimizerReport;
+    }
+
+    private static int variant(MachineConfig config) {
+        return (config.isOptimizationEnabled() ? 2 : 0) | (config.isFusionEnabled() ? 1 : 0);
+    }
+
+    private Function[] functions(int variant) {
+        if (variant == 0) {
+            return functions;
+        }
+        synchronized (variants) {
+            if (variants[variant] == null) {
+                if (variant != 3) {
+                    validateLazyFunctions();
+                }
+                // Fusion runs on the optimized functions, as the optimizer does not know fused instructions
+                Function[] copy = (variant == 3) ? functions(2).clone() : functions.clone();
+                if (variant == 2) {
+                    optimizerReport = ModuleOptimizer.optimize(copy, imports, exports, elementSegments, globals, startIdx);
+                }
+                if ((variant & 1) != 0) {
+                    InstructionFuser.fuse(copy);
+                }
+                variants[variant] = copy;
+            }
+            return variants[variant];
+        }
+    }
+
+    // Optimized and fused copies are not lazy, so the Machine would run them even if their bodies are invalid
+    private void validateLazyFunctions() {
+        Validator validator = Validator.of(functions, globals);
+        for (Function f : functions) {
+            if (f != null && f.cache().isLazy()) {
+                validator.validate(f);
+                if (f.cache().hasValidationError()) {
+                    throw new RuntimeException(f.cache().validationError());
+                }
+            }
+        }
+    }
+
+    /**
+     * State of a single instantiation. Only this state is written to, the compiled module is only read.
+     */
+    private final class Instance {
+        private final Function[] functions;
+        private final Table[] tables;
+        private final Memory[] memories;
+        private final Variable[] globals;
+
+        private Instance(MachineConfig config) {
+            this.functions = CompiledModule.this.functions(variant(config)).clone();
+            this.tables = new Table[CompiledModule.this.tables.length];
+            for (int i = 0; i < tables.length; i++) {
+                Table t = CompiledModule.this.tables[i];
+                tables[i] = t == null ? null : t.copy();
+            }
+            this.memories = new Memory[CompiledModule.this.memories.length];
+            for (int i = 0; i < memories.length; i++) {
+                MemoryType m = CompiledModule.this.memories[i];
+                if (m != null) {
+                    memories[i] = (config.isOffHeapMemoryEnabled() || m.isShared()) ? new SegmentMemory(m.pages(), m.maxPages(), m.isShared())
+                            : new Memory(m.pages(), m.maxPages());
+                }
+            }
+            this.globals = CompiledModule.this.globals.clone();
+        }
+
+        private void processImports(Map<String, Map<String, Object>> importMap) {
+            /*
+            From JS API, import object looks like:
+                const importObject = {
+                  imports: { // module name
+                    imported_func(arg) { // import name
+                      console.log(arg);
+                    },
+                    mem: new WebAssembly.Memory({ initial: 10, maximum: 100 }),
+                    globalVar: new WebAssembly.Global({ value: "i32", mutable: true }, 0),
+                    table: new WebAssembly.Table({ initial: 1, element: "funcref" }),
+                  },
+                };
+             */
+            var icount = imports == null ? 0 : imports.length;
+            if (importMap == null) {
+                if (icount == 0) {
+                    return;
+                }
+                throw new RuntimeException("INIT_ERROR: All imports not supplied. Missing " + icount + " imports");
+            }
+            var funcIdx = 0;
+            var varIdx = 0;
+            var memIdx = 0;
+            var tblIdx = 0;
+            for (var id : imports) {
+                if (!importMap.containsKey(id.module())) {
+                    throw new RuntimeException(String.format("INIT_ERROR: Unable to find module %s in supplied import", id.module()));
+                }
+                var map = importMap.get(id.module());
+                if (!map.containsKey(id.name())) {
+                    throw new RuntimeException(String.format("INIT_ERROR: Unable to find import %s in module %s in supplied import", id.name(), id.module()));
+                }
+                Object o =  map.get(id.name());
+                switch (id.importDescriptor()) {
+                    case ImportDescriptor.FunctionDescriptor d -> functions[funcIdx++] = switch (o) {
+                        case MethodHandle mh -> Function.createImportFunction(id.name(), types[d.idx()], mh);
+                        case Function f -> f;
+                        default -> throw new RuntimeException(String.format("INIT_ERROR: Unable to find import name of %s of type %s in module %s in supplied import", id.name(), d, id.module()));
+                    };
+                    case ImportDescriptor.GlobalDescriptor d -> {
+                        if (!(o instanceof Variable v) || !v.matchesDescriptor(d)) {
+                            throw new RuntimeException(String.format("INIT_ERROR: Unable to find import name of %s of type %s in module %s in supplied import", id.name(), d, id.module()));
+                        }
+                        globals[varIdx++] = v;
+                    }
+                    case ImportDescriptor.MemoryDescriptor d -> {
+                        if (!(o instanceof Memory m) || !m.matchesDescriptor(d)) {
+                            throw new RuntimeException(String.format("INIT_ERROR: Unable to find import name of %s of type %s in module %s in supplied import", id.name(), d, id.module()));
+                        }
+                        memories[memIdx++] = m;
+                    }
+                    case ImportDescriptor.TableDescriptor d -> {
+                        if (!(o instanceof Table t) || !t.matchesDescriptor(d)) {
+                            throw new RuntimeException(String.format("INIT_ERROR: Unable to find import name of %s of type %s in module %s in supplied import", id.name(), d, id.module()));
+                        }
+                        tables[tblIdx++] = t;
+                    }
+                }
+                icount--;
+            }
+            if (icount > 0) {
+                throw new RuntimeException("INIT_ERROR: All imports not supplied. Missing " + icount + " imports");
+            }
+        }
+
+        private void processGlobals() {
+            for (int  i =0; i < globals.length; i++) {
+                var v = globals[i];
+                switch (v.expr()) {
+                    case ConstInstruction.IntConst e -> globals[i] = Variable.newVariable(v.type(), e.val(), v.isMutable());
+                    case ConstInstruction.LongConst e -> globals[i] = Variable.newVariable(v.type(), e.val(), v.isMutable());
+                    case ConstInstruction.FloatConst e -> globals[i] = Variable.newVariable(v.type(), floatToLong(e.val()), v.isMutable());
+                    case ConstInstruction.DoubleConst e -> globals[i] = Variable.newVariable(v.type(), doubleToLong(e.val()), v.isMutable());
+                    case GlobalInstruction.GlobalGet e -> {
+                        var src = globals[e.val()];
+                        if (!src.type().equals(v.type())) {
+                            throw new RuntimeException(String.format("INIT_ERROR: Type %s of Global at %d does not match expected type %s", src.type(), e.val(), v.type()));
+                        }
+                        globals[i] = Variable.newVariable(v.type(), src.getValAsLong(), v.isMutable());
+                    }
+                    case RefTypeInstruction.RefFunc e -> globals[i] = Variable.newVariable(v.type(), e.functionIndex(), v.isMutable());
+                    case RefTypeInstruction.RefNull e -> globals[i] = Variable.newVariable(v.type(), Variable.REF_NULL, v.isMutable());
+                    case null -> throw new RuntimeException(String.format("INIT_ERROR: Null global found at index %d", i));
+                }
+            }
+        }
+
+        private int getOffsetFromConstExpr(ConstExpression expr) {
+            return switch (expr) {
+                case ConstInstruction.IntConst e -> e.val();
+                case GlobalInstruction.GlobalGet e -> {
+                    var src = globals[e.val()];
+                    if (src.type() != Variable.I32Variable.type) {
+                        throw new RuntimeException(String.format("INIT_ERROR: Type %s of offset Constant expression does not match expected i32", src.type()));
+                    }
+                    yield (int) src.getValAsLong();
+                }
+                case RefTypeInstruction.RefFunc e -> throw new RuntimeException(String.format("INIT_ERROR: Type %s of offset Constant expression does not match expected i32", e));
+                case RefTypeInstruction.RefNull e -> throw new RuntimeException(String.format("INIT_ERROR: Type %s of offset Constant expression does not match expected i32", e));
+                default -> throw new IllegalStateException("Unexpected value: " + expr);
+            };
+        }
+
+        private void processActiveElementSegments() {
+            for (var ds : elementSegments) {
+                if (!(ds instanceof ElementSegment.ActiveElementSegment aes)) {
+                    continue;
+                }
+                Table t = tables[aes.tableIndex()];
+                if (t.type() != aes.type()) {
+                    throw new RuntimeException(String.format("INIT_ERROR: Table type %s does not match element type %s", t.type(), aes.type()));
+                }
+                int offset = getOffsetFromConstExpr(aes.initExpr());
+                int n = (aes.isExpression()) ? aes.expressionVector().length : aes.functionIndexVector().length;
+                if (aes.isExpression()) {
+                    // TODO resolve expression vectors
+                    for (var e : aes.expressionVector()) {
+                        System.out.println(e.opCode());
+                        switch (e) {
+                            case ConstInstruction.IntConst intConst -> {
+                            }
+                            case GlobalInstruction.GlobalGet globalGet -> {
+                            }
+                            case RefTypeInstruction.RefFunc refFunc -> {
+                            }
+                            case RefTypeInstruction.RefNull refNull -> {
+                            }
+                            case ConstInstruction.DoubleConst doubleConst -> {
+                            }
+                            case ConstInstruction.FloatConst floatConst -> {
+                            }
+                            case ConstInstruction.LongConst longConst -> {
+                            }
+                        }
+                    }
+                } else {
+                    for (int i = 0; i < n; i++) {
+                        t.set(offset+i, functions[aes.functionIndexVector()[i]]);
+                    }
+                }
+                // TODO: drop element after copy
+            }
+        }
+
+        private void processDataSegments() {
+            for (var ds : dataSegments) {
+                if (!(ds instanceof DataSegment.ActiveDataSegment ads)) {
+                    continue;
+                }
+                Memory m = memories[ads.memoryIndex()];
+                int offset = getOffsetFromConstExpr(ads.offset());
+                m.store(offset, ads.data(), 0, ads.data().length);
+            }
+        }
+
+        private Map<String, Object> processExports() {
+            Map<String, Object> exportMap = new HashMap<>();
+            for (var e : exports) {
+                switch (e.descriptor()) {
+                    case ExportDescriptor.FunctionDescriptor(int idx) -> {
+                        functions[idx] = Function.rename(e.name(), functions[idx]);
+                        exportMap.put(e.name(), functions[idx]);
+                    }
+                    case ExportDescriptor.GlobalDescriptor(int idx) -> exportMap.put(e.name(), globals[idx]);
+                    case ExportDescriptor.MemoryDescriptor(int idx) -> exportMap.put(e.name(), memories[idx]);
+                    case ExportDescriptor.TableDescriptor(int idx) -> exportMap.put(e.name(), tables[idx]);
+                }
+            }
+            return Collections.unmodifiableMap(exportMap);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package rrampage.wasp.data;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Paged memory which shares pages with a {@link MemorySnapshot} and copies a page on its first write.
+ * Pages are allocated on write, so it can address the full 32-bit index space.
+ */
+public final class CopyOnWriteMemory extends Memory {
+    private static final int PAGE_SHIFT = 16;
+    private static final int PAGE_MASK = MEM_PAGE_SIZE - 1;
+    private static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private byte[][] pages;
+    private boolean[] owned; // pages which are not shared and can be written in place
+
+    CopyOnWriteMemory(MemorySnapshot snapshot) {
+        super(snapshot.maxPages(), false);
+        this.pages = snapshot.pages().clone();
+        this.owned = new boolean[pages.length];
+    }
+
+    // Marks every page as shared so that later writes go to a copy
+    MemorySnapshot snapshot() {
+        owned = new boolean[pages.length];
+        return new MemorySnapshot(pages.clone(), maxPages());
+    }
+
+    private byte[] writablePage(int page) {
+        if (!owned[page]) {
+            pages[page] = pages[page].clone();
+            owned[page] = true;
+        }
+        return pages[page];
+    }
+
+    // Accesses which cross a page boundary are done a byte at a time
+    private long loadSlow(int addr, int numBytes) {
+        checkAccess(addr, numBytes);
+        long val = 0;
+        for (int i = 0; i < numBytes; i++) {
+            val |= (loadByte(addr + i) & 0xFFL) << (8 * i);
+        }
+        return val;
+    }
+
+    private void storeSlow(int addr, long val, int numBytes) {
+        checkAccess(addr, numBytes);
+        for (int i = 0; i < numBytes; i++) {
+            store(addr + i, (byte) (val >>> (8 * i)));
+        }
+    }
+
+    @Override
+    public int getMemorySize() {
+        return pages.length;
+    }
+
+    @Override
+    public int grow(int numPages) {
+        int currPages = getMemorySize();
+        if (numPages < 0 || currPages + numPages > maxPages()) {
+            System.out.println(STR."MEM_GROW_LIMIT numPages \{numPages} currPages \{currPages} maxPages \{maxPages()}");
+            return -1;
+        }
+        byte[][] newPages = new byte[currPages + numPages][];
+        System.arraycopy(pages, 0, newPages, 0, currPages);
+        Arrays.fill(newPages, currPages, newPages.length, MemorySnapshot.ZERO_PAGE);
+        boolean[] newOwned = new boolean[newPages.length];
+        System.arraycopy(owned, 0, newOwned, 0, currPages);
+        pages = newPages;
+        owned = newOwned;
+        return currPages;
+    }
+
+    @Override
+    public byte loadByte(int addr) {
+        return pages[addr >>> PAGE_SHIFT][addr & PAGE_MASK];
+    }
+    @Override
+    public short loadShort(int addr) {
+        int off = addr & PAGE_MASK;
+        if (off <= MEM_PAGE_SIZE - 2) {
+            return (short) SHORT.get(pages[addr >>> PAGE_SHIFT], off);
+        }
+        return (short) loadSlow(addr, 2);
+    }
+    @Override
+    public int loadInt(int addr) {
+        int off = addr & PAGE_MASK;
+        if (off <= MEM_PAGE_SIZE - 4) {
+            return (int) INT.get(pages[addr >>> PAGE_SHIFT], off);
+        }
+        return (int) loadSlow(addr, 4);
+    }
+    @Override
+    public long loadLong(int addr) {
+        int off = addr & PAGE_MASK;
+        if (off <= MEM_PAGE_SIZE - 8) {
+            return (long) LONG.get(pages[addr >>> PAGE_SHIFT], off);
+        }
+        return loadSlow(addr, 8);
+    }
+
+    // Aligned atomic accesses never cross a page. Forks are never shared, so only one thread copies their pages
+    @Override
+    int getIntVolatile(int addr) {
+        return (int) INT.getVolatile(pages[addr >>> PAGE_SHIFT], addr & PAGE_MASK);
+    }
+    @Override
+    void setIntVolatile(int addr, int val) {
+        INT.setVolatile(writablePage(addr >>> PAGE_SHIFT), addr & PAGE_MASK, val);
+    }
+    @Override
+    int compareAndExchangeInt(int addr, int expected, int val) {
+        return (int) INT.compareAndExchange(writablePage(addr >>> PAGE_SHIFT), addr & PAGE_MASK, expected, val);
+    }
+    @Override
+    int getAndAddInt(int addr, int delta) {
+        return (int) INT.getAndAdd(writablePage(addr >>> PAGE_SHIFT), addr & PAGE_MASK, delta);
+    }
+    @Override
+    long getLongVolatile(int addr) {
+        return (long) LONG.getVolatile(pages[addr >>> PAGE_SHIFT], addr & PAGE_MASK);
+    }
+    @Override
+    void setLongVolatile(int addr, long val) {
+        LONG.setVolatile(writablePage(addr >>> PAGE_SHIFT), addr & PAGE_MASK, val);
+    }
+    @Override
+    long compareAndExchangeLong(int addr, long expected, long val) {
+        return (long) LONG.compareAndExchange(writablePage(addr >>> PAGE_SHIFT), addr & PAGE_MASK, expected, val);
+    }
+    @Override
+    long getAndAddLong(int addr, long delta) {
+        return (long) LONG.getAndAdd(writablePage(addr >>> PAGE_SHIFT), addr & PAGE_MASK, delta);
+    }
+
+    @Override
+    public float loadFloat(int addr) {
+        return Float.intBitsToFloat(loadInt(addr));
+    }
+    @Override
+    public double loadDouble(int addr) {
+        return Double.longBitsToDouble(loadLong(addr));
+    }
+
+    @Override
+    public byte[] load(int addr, int offset) {
+        checkAccess(addr, offset);
+        byte[] data = new byte[offset];
+        for (int i = 0; i < offset; ) {
+            int a = addr + i;
+            int n = Math.min(offset - i, MEM_PAGE_SIZE - (a & PAGE_MASK));
+            System.arraycopy(pages[a >>> PAGE_SHIFT], a & PAGE_MASK, data, i, n);
+            i += n;
+        }
+        return data;
+    }
+
+    @Override
+    public void store(int addr, long data) {
+        int off = addr & PAGE_MASK;
+        if (off <= MEM_PAGE_SIZE - 8) {
+            LONG.set(writablePage(addr >>> PAGE_SHIFT), off, data);
+        } else {
+            storeSlow(addr, data, 8);
+        }
+    }
+    @Override
+    public void store(int addr, int data) {
+        int off = addr & PAGE_MASK;
+        if (off <= MEM_PAGE_SIZE - 4) {
+            INT.set(writablePage(addr >>> PAGE_SHIFT), off, data);
+        } else {
+            storeSlow(addr, data, 4);
+        }
+    }
+    @Override
+    public void store(int addr, float data) {
+        store(addr, Float.floatToRawIntBits(data));
+    }
+    @Override
+    public void store(int addr, double data) {
+        store(addr, Double.doubleToRawLongBits(data));
+    }
+    @Override
+    public void store(int addr, byte data) {
+        writablePage(addr >>> PAGE_SHIFT)[addr & PAGE_MASK] = data;
+    }
+    @Override
+    public void store(int addr, short data) {
+        int off = addr & PAGE_MASK;
+        if (off <= MEM_PAGE_SIZE - 2) {
+            SHORT.set(writablePage(addr >>> PAGE_SHIFT), off, data);
+        } else {
+            storeSlow(addr, data, 2);
+        }
+    }
+
+    @Override
+    public void store(int addr, byte[] data) {
+        store(addr, data, 0, data.length);
+    }
+
+    @Override
+    public void store(int addr, byte[] data, int srcOffset, int numBytes) {
+        if (Integer.toUnsignedLong(addr) + numBytes > (long) pages.length * MEM_PAGE_SIZE) {
+            throw new RuntimeException("Invalid address passed to memory: " + addr);
+        }
+        if (srcOffset + numBytes > data.length) {
+            throw new RuntimeException("Can not copy more than source byte array size");
+        }
+        for (int i = 0; i < numBytes; ) {
+            int a = addr + i;
+            int n = Math.min(numBytes - i, MEM_PAGE_SIZE - (a & PAGE_MASK));
+            System.arraycopy(data, srcOffset + i, writablePage(a >>> PAGE_SHIFT), a & PAGE_MASK, n);
+            i += n;
+        }
+    }
+
+    @Override
+    public void fill(int addr, byte data, int numBytes) {
+        if (Integer.toUnsignedLong(addr) + numBytes > (long) pages.length * MEM_PAGE_SIZE) {
+            throw new RuntimeException("the destination offset plus size is greater than the length of the target memory");
+        }
+        for (int i = 0; i < numBytes; ) {
+            int a = addr + i;
+            int n = Math.min(numBytes - i, MEM_PAGE_SIZE - (a & PAGE_MASK));
+            Arrays.fill(writablePage(a >>> PAGE_SHIFT), a & PAGE_MASK, (a & PAGE_MASK) + n, data);
+            i += n;
+        }
+    }
+
+    @Override
+    public void copyWithin(int dstAddr, int srcAddr, int numBytes) {
+        checkAccess(srcAddr, numBytes);
+        checkAccess(dstAddr, numBytes);
+        // Copy backwards when the destination overlaps the end of the source
+        boolean backwards = Integer.compareUnsigned(dstAddr, srcAddr) > 0;
+        for (int done = 0; done < numBytes; ) {
+            int n = numBytes - done;
+            int src = backwards ? srcAddr + n - 1 : srcAddr + done;
+            int dst = backwards ? dstAddr + n - 1 : dstAddr + done;
+            // Largest chunk which stays within one source page and one destination page
+            int chunk = backwards ? Math.min(n, Math.min((src & PAGE_MASK) + 1, (dst & PAGE_MASK) + 1))
+                    : Math.min(n, Math.min(MEM_PAGE_SIZE - (src & PAGE_MASK), MEM_PAGE_SIZE - (dst & PAGE_MASK)));
+            if (backwards) {
+                src -= chunk - 1;
+                dst -= chunk - 1;
+            }
+            // Get the destination first as it may replace a page shared with the source
+            byte[] dstPage = writablePage(dst >>> PAGE_SHIFT);
+            System.arraycopy(pages[src >>> PAGE_SHIFT], src & PAGE_MASK, dstPage, dst & PAGE_MASK, chunk);
+            done += chunk;
+        }
+    }
+
+    @Override
+    public void copyTo(int srcAddr, Memory dst, int dstAddr, int numBytes) {
+        if (dst == this) {
+            copyWithin(dstAddr, srcAddr, numBytes);
+            return;
+        }
+        checkAccess(srcAddr, numBytes);
+        dst.checkAccess(dstAddr, numBytes);
+        for (int i = 0; i < numBytes; ) {
+            int a = srcAddr + i;
+            int n = Math.min(numBytes - i, MEM_PAGE_SIZE - (a & PAGE_MASK));
+            dst.store(dstAddr + i, pages[a >>> PAGE_SHIFT], a & PAGE_MASK, n);
+            i += n;
+        }
+    }
+
+    @Override
+    void store(int addr, MemorySegment src, long srcOffset, int numBytes) {
+        checkAccess(addr, numBytes);
+        for (int i = 0; i < numBytes; ) {
+            int a = addr + i;
+            int n = Math.min(numBytes - i, MEM_PAGE_SIZE - (a & PAGE_MASK));
+            MemorySegment.copy(src, ValueLayout.JAVA_BYTE, srcOffset + i, writablePage(a >>> PAGE_SHIFT), a & PAGE_MASK, n);
+            i += n;
+        }
+    }
+
+    @Override
+    public ByteBuffer buffer() {
+        // Pages are not contiguous and are copied on write, so there is no buffer which sees writes in both directions
+        throw new UnsupportedOperationException("COW_MEMORY: Forked memory has no buffer. Use load and store instead");
+    }
+}
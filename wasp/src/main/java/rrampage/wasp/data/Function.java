@@ -6,8 +6,21 @@ import rrampage.wasp.instructions.FunctionInstruction;
 
 import java.lang.invoke.MethodHandle;
 import java.util.Arrays;
+import java.util.function.Supplier;
+
+public record Function(String name, FunctionType type, ValueType[] locals, Instruction[] code, FunctionCache cache) {
+    public Function(String name, FunctionType type, ValueType[] locals, Instruction[] code) {
+        this(name, type, locals, code, new FunctionCache());
+    }
+
+    /**
+     * Code of functions created with {@link #createLazyFunction} is decoded on the first call to this method
+     */
+    @Override
+    public Instruction[] code() {
+        return code != null ? code : cache.code();
+    }
 
-public record Function(String name, FunctionType type, ValueType[] locals, Instruction[] code) {
     public boolean isVoidReturn() {
         return type().isVoidReturn();
     }
@@ -35,11 +48,15 @@ public record Function(String name, FunctionType type, ValueType[] locals, Instr
         return new Function(name, type, null, new Instruction[]{new FunctionInstruction.CallJava(type, func)});
     }
 
+    public static Function createLazyFunction(String name, FunctionType type, ValueType[] locals, Supplier<Instruction[]> codeSource) {
+        return new Function(name, type, locals, null, new FunctionCache(codeSource));
+    }
+
     public static Function createStartFunction(String name, Instruction[] code) {
         return new Function(name, new FunctionType(null, null), null, code);
     }
 
     public static Function rename(String name, Function f) {
-        return new Function(name, f.type, f.locals, f.code);
+        return new Function(name, f.type, f.locals, f.code, f.cache);
     }
 }
@@ -0,0 +1,281 @@
+package rrampage.wasp.data;
+
+import rrampage.wasp.instructions.Instruction;
+import rrampage.wasp.vm.ClosureCode;
+import rrampage.wasp.vm.CompiledFunction;
+import rrampage.wasp.vm.FlatCode;
+import rrampage.wasp.vm.RegisterCode;
+
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * Holds execution artifacts derived from a {@link Function}'s code, e.g. JIT compiled code, flat code, closure code or
+ * register code. These only depend on the function body, so they are shared by every renamed copy of a function
+ * and by every Machine running it.
+ * Also holds the body of functions whose code is decoded on first use and the results of validating it.
+ */
+public final class FunctionCache {
+    private Supplier<Instruction[]> codeSource;
+    // Bodies decoded on first use were not validated by the parser, so they must be valid before they run
+    private final boolean lazy;
+    private volatile Instruction[] code;
+    private volatile CompiledFunction compiled;
+    private volatile String compileError;
+    private volatile FlatCode flatCode;
+    private volatile String flatCodeError;
+    private volatile ClosureCode closureCode;
+    private volatile String closureCodeError;
+    private volatile RegisterCode registerCode;
+    private volatile String registerCodeError;
+    private volatile int maxStackHeight = -1;
+    private volatile String validationError;
+    private volatile ValueType[] localTypes;
+    // Hotness counters of tiered machines. Updates from several machines may be lost, which only delays tiering up
+    private int calls;
+    private int loopIterations;
+    private volatile boolean tierUpRequested;
+    // Compiled code entered at the start of a running loop, indexed by the loop's ref in the flat code.
+    // Arrays are replaced on update under osrLock, so lookups from interpreter loops do not lock
+    private static final CompiledFunction[] NO_OSR_CODE = new CompiledFunction[0];
+    private final Object osrLock = new Object();
+    private volatile CompiledFunction[] osrCode = NO_OSR_CODE;
+    private volatile boolean[] osrRequested = new boolean[0];
+    private volatile String[] osrErrors = new String[0];
+
+    public FunctionCache() {
+        this.lazy = false;
+    }
+
+    FunctionCache(Supplier<Instruction[]> codeSource) {
+        this.codeSource = codeSource;
+        this.lazy = true;
+    }
+
+    Instruction[] code() {
+        Instruction[] c = code;
+        if (c == null) {
+            synchronized (this) {
+                if (code == null && codeSource != null) {
+                    code = codeSource.get();
+                    codeSource = null;
+                }
+                c = code;
+            }
+        }
+        return c;
+    }
+
+    public boolean isCodeDecoded() {
+        return code != null;
+    }
+
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    public CompiledFunction compiled() {
+        return compiled;
+    }
+
+    public boolean isCompiled() {
+        return compiled != null;
+    }
+
+    public boolean hasCompileError() {
+        return compileError != null;
+    }
+
+    public String compileError() {
+        return compileError;
+    }
+
+    public void setCompiled(CompiledFunction compiled) {
+        this.compiled = compiled;
+    }
+
+    public void setCompileError(String compileError) {
+        this.compileError = compileError;
+    }
+
+    public int countCall() {
+        return ++calls;
+    }
+
+    public int countLoopIteration() {
+        return ++loopIterations;
+    }
+
+    public int calls() {
+        return calls;
+    }
+
+    public int loopIterations() {
+        return loopIterations;
+    }
+
+    /**
+     * Returns true for the first request to compile this function in the background and false afterwards
+     */
+    public boolean requestTierUp() {
+        if (tierUpRequested) {
+            return false;
+        }
+        tierUpRequested = true;
+        return true;
+    }
+
+    public CompiledFunction osrCode(int loop) {
+        CompiledFunction[] code = osrCode;
+        return (loop < code.length) ? code[loop] : null;
+    }
+
+    public void setOsrCode(int loop, CompiledFunction code) {
+        synchronized (osrLock) {
+            CompiledFunction[] updated = Arrays.copyOf(osrCode, Math.max(osrCode.length, loop + 1));
+            updated[loop] = code;
+            osrCode = updated;
+        }
+    }
+
+    public String osrError(int loop) {
+        String[] errors = osrErrors;
+        return (loop < errors.length) ? errors[loop] : null;
+    }
+
+    public void setOsrError(int loop, String error) {
+        synchronized (osrLock) {
+            String[] updated = Arrays.copyOf(osrErrors, Math.max(osrErrors.length, loop + 1));
+            updated[loop] = error;
+            osrErrors = updated;
+        }
+    }
+
+    /**
+     * Returns true for the first request to compile an entry into the loop and false afterwards
+     */
+    public boolean requestOsr(int loop) {
+        if (loop < osrRequested.length && osrRequested[loop]) {
+            return false;
+        }
+        synchronized (osrLock) {
+            if (loop < osrRequested.length && osrRequested[loop]) {
+                return false;
+            }
+            boolean[] updated = Arrays.copyOf(osrRequested, Math.max(osrRequested.length, loop + 1));
+            updated[loop] = true;
+            osrRequested = updated;
+            return true;
+        }
+    }
+
+    public FlatCode flatCode() {
+        return flatCode;
+    }
+
+    public boolean hasFlatCode() {
+        return flatCode != null;
+    }
+
+    public boolean hasFlatCodeError() {
+        return flatCodeError != null;
+    }
+
+    public String flatCodeError() {
+        return flatCodeError;
+    }
+
+    public void setFlatCode(FlatCode flatCode) {
+        this.flatCode = flatCode;
+    }
+
+    public void setFlatCodeError(String flatCodeError) {
+        this.flatCodeError = flatCodeError;
+    }
+
+    public ClosureCode closureCode() {
+        return closureCode;
+    }
+
+    public boolean hasClosureCode() {
+        return closureCode != null;
+    }
+
+    public boolean hasClosureCodeError() {
+        return closureCodeError != null;
+    }
+
+    public String closureCodeError() {
+        return closureCodeError;
+    }
+
+    public void setClosureCode(ClosureCode closureCode) {
+        this.closureCode = closureCode;
+    }
+
+    public void setClosureCodeError(String closureCodeError) {
+        this.closureCodeError = closureCodeError;
+    }
+
+    public RegisterCode registerCode() {
+        return registerCode;
+    }
+
+    public boolean hasRegisterCode() {
+        return registerCode != null;
+    }
+
+    public boolean hasRegisterCodeError() {
+        return registerCodeError != null;
+    }
+
+    public String registerCodeError() {
+        return registerCodeError;
+    }
+
+    public void setRegisterCode(RegisterCode registerCode) {
+        this.registerCode = registerCode;
+    }
+
+    public void setRegisterCodeError(String registerCodeError) {
+        this.registerCodeError = registerCodeError;
+    }
+
+    public boolean isValidated() {
+        return maxStackHeight >= 0;
+    }
+
+    /**
+     * Maximum height of the operand stack found by {@link rrampage.wasp.validator.Validator} or -1 if not validated
+     */
+    public int maxStackHeight() {
+        return maxStackHeight;
+    }
+
+    public boolean hasValidationError() {
+        return validationError != null;
+    }
+
+    public String validationError() {
+        return validationError;
+    }
+
+    public void setMaxStackHeight(int maxStackHeight) {
+        this.maxStackHeight = maxStackHeight;
+    }
+
+    public void setValidationError(String validationError) {
+        this.validationError = validationError;
+    }
+
+    /**
+     * Types of the params followed by the declared locals, recorded by {@link rrampage.wasp.validator.Validator} or null
+     */
+    public ValueType[] localTypes() {
+        return localTypes;
+    }
+
+    public void setLocalTypes(ValueType[] localTypes) {
+        this.localTypes = localTypes;
+    }
+}
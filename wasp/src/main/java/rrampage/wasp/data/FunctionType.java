@@ -2,6 +2,8 @@ package rrampage.wasp.data;
 
 import java.lang.invoke.MethodType;
 import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static rrampage.wasp.data.ValueType.*;
 import static rrampage.wasp.data.ValueType.NumType.*;
@@ -10,6 +12,24 @@ public record FunctionType(ValueType[] paramTypes, ValueType[] returnTypes) {
     public boolean isVoidReturn() {return returnTypes == null || returnTypes.length == 0;}
     public int numParams() {return paramTypes == null ? 0 : paramTypes.length;}
     public int numReturns() {return returnTypes == null ? 0 : returnTypes.length;}
+    // Stack slots taken by params and returns. A v128 value takes two slots
+    public int paramSlots() {return numParams() + count(paramTypes, VecType.VEC_TYPE);}
+    public int returnSlots() {return numReturns() + count(returnTypes, VecType.VEC_TYPE);}
+    public boolean hasVectorTypes() {return numParams() != paramSlots() || numReturns() != returnSlots();}
+    public static int slots(ValueType t) {return t == VecType.VEC_TYPE ? 2 : 1;}
+
+    private static int count(ValueType[] types, ValueType t) {
+        if (types == null) {
+            return 0;
+        }
+        int n = 0;
+        for (ValueType v : types) {
+            if (v == t) {
+                n++;
+            }
+        }
+        return n;
+    }
     public String toString() {
         return String.format("%s -> %s",
                 (numParams() == 0) ? "[]" : Arrays.toString(paramTypes),
@@ -17,6 +37,7 @@ public record FunctionType(ValueType[] paramTypes, ValueType[] returnTypes) {
         );
     }
 
+    // Missing and empty type arrays are the same, so both are compared as empty
     @Override
     public boolean equals(Object obj) {
         if (this == obj) {
@@ -25,10 +46,25 @@ public record FunctionType(ValueType[] paramTypes, ValueType[] returnTypes) {
         if (!(obj instanceof FunctionType ft)) {
             return false;
         }
-        if (this.isVoidReturn() != ft.isVoidReturn() || this.numParams() != ft.numParams()) {
-            return false;
-        }
-        return Arrays.equals(this.paramTypes, ft.paramTypes) && Arrays.equals(this.returnTypes, ft.returnTypes);
+        return Arrays.equals(orEmpty(this.paramTypes), orEmpty(ft.paramTypes)) &&
+                Arrays.equals(orEmpty(this.returnTypes), orEmpty(ft.returnTypes));
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(orEmpty(paramTypes)) + Arrays.hashCode(orEmpty(returnTypes));
+    }
+
+    private static ValueType[] orEmpty(ValueType[] types) {
+        return (types == null) ? NO_TYPES : types;
+    }
+
+    /**
+     * Canonical id of this signature. Structurally equal types get the same id in every module, so call_indirect
+     * checks the type of a table entry with a single int compare.
+     */
+    public int id() {
+        return IDS.computeIfAbsent(this, _ -> NEXT_ID.getAndIncrement());
     }
 
     public MethodType getMethodType() {
@@ -80,15 +116,21 @@ public record FunctionType(ValueType[] paramTypes, ValueType[] returnTypes) {
             case -2 -> I64_RETURN;
             case -3 -> F32_RETURN;
             case -4 -> F64_RETURN;
+            case -5 -> V128_RETURN;
             default -> throw new IllegalArgumentException("Invalid negative blocktype found: " + blockType);
         };
     }
 
+    private static final ValueType[] NO_TYPES = new ValueType[0];
+    private static final ConcurrentHashMap<FunctionType, Integer> IDS = new ConcurrentHashMap<>();
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
     public static final FunctionType VOID = new FunctionType(null, null);
     public static final FunctionType I32_RETURN = new FunctionType(null, new NumType[]{I32});
     public static final FunctionType I64_RETURN = new FunctionType(null, new NumType[]{I64});
     public static final FunctionType F32_RETURN = new FunctionType(null, new NumType[]{F32});
     public static final FunctionType F64_RETURN = new FunctionType(null, new NumType[]{F64});
+    public static final FunctionType V128_RETURN = new FunctionType(null, new ValueType[]{VecType.VEC_TYPE});
 
     public static final FunctionType I32_CONSUME = new FunctionType(new NumType[]{I32}, null);
     public static final FunctionType I64_CONSUME = new FunctionType(new NumType[]{I64}, null);
@@ -1,22 +1,44 @@
 package rrampage.wasp.data;
 
+import rrampage.wasp.instructions.AtomicInstruction;
 import rrampage.wasp.parser.types.ImportDescriptor;
 
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Memory - Supports size, grow, load and store
- * This implementation has max limit of 4096 pages i.e 4096 * 64 KiB = 256 MiB
+ * This implementation is backed by a heap byte array and can hold at most 8192 pages i.e 8192 * 64 KiB = 512 MiB.
+ * A larger declared maximum is accepted but growing past MAX_PAGES fails.
+ * See {@link SegmentMemory} for an off-heap implementation which can use the full 32-bit address space.
+ * <p>
+ * Atomic accesses are sequentially consistent. Only a shared memory can be waited on, and it can be used by
+ * machines on different threads. Shared memories must be a {@link SegmentMemory}, as growing a heap memory
+ * replaces the backing array under the other threads.
  */
 public class Memory {
-    private static final int MEM_PAGE_SIZE = 65536;
+    static final int MEM_PAGE_SIZE = 65536;
     public static final int MAX_PAGES = 8192;
+    // Max pages addressable with a 32-bit index i.e 4 GiB
+    public static final int MAX_WASM_PAGES = 65536;
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
     private byte[] memory;
     private final int maxPages;
-    private final boolean isShared; // For later work on WASM threads and atomics
+    private final boolean isShared;
     private ByteBuffer buffer;
+    // Threads blocked in memory.atomic.wait by address. Guarded by waitLock
+    private final ReentrantLock waitLock = new ReentrantLock();
+    private final HashMap<Integer, ArrayDeque<Waiter>> waiters = new HashMap<>();
     public Memory(int pages) {
         this(pages, MAX_PAGES);
     }
@@ -25,22 +47,42 @@ public class Memory {
     }
 
     public Memory(int pages, int maxPages, boolean isShared) {
-        if (pages > MAX_PAGES || maxPages > MAX_PAGES) {
+        if (isShared) {
+            throw new RuntimeException("Shared memory can not be a heap memory. Use SegmentMemory instead");
+        }
+        if (pages > MAX_PAGES) {
             throw new RuntimeException(String.format("Can not allocate more than %d pages of memory", MAX_PAGES));
         }
+        if (maxPages > MAX_WASM_PAGES) {
+            throw new RuntimeException(String.format("Can not address more than %d pages of memory", MAX_WASM_PAGES));
+        }
         this.maxPages = maxPages;
         this.memory = new byte[pages * MEM_PAGE_SIZE];
-        this.isShared = isShared;
+        this.isShared = false;
         this.buffer = ByteBuffer.wrap(memory).order(ByteOrder.LITTLE_ENDIAN);
     }
 
+    // For implementations which manage their own storage
+    Memory(int maxPages, boolean isShared) {
+        this.maxPages = maxPages;
+        this.isShared = isShared;
+    }
+
+    public int maxPages() {
+        return maxPages;
+    }
+
+    public boolean isShared() {
+        return isShared;
+    }
+
     public int getMemorySize() {
         return memory.length/MEM_PAGE_SIZE;
     }
 
     public int grow(int numPages) {
         int currPages = getMemorySize();
-        if (numPages < 0 || currPages + numPages > maxPages) {
+        if (numPages < 0 || currPages + numPages > Math.min(maxPages, MAX_PAGES)) {
             System.out.println(STR."MEM_GROW_LIMIT numPages \{numPages} currPages \{currPages} maxPages \{maxPages}");
             return -1;
         }
@@ -117,17 +159,273 @@ public class Memory {
         Arrays.fill(memory, addr, addr + numBytes, data);
     }
 
+    /**
+     * Copies numBytes from srcAddr to dstAddr of this memory. Overlapping ranges are copied as if through a temporary buffer.
+     */
+    public void copyWithin(int dstAddr, int srcAddr, int numBytes) {
+        // arraycopy checks all bounds before copying anything
+        System.arraycopy(memory, srcAddr, memory, dstAddr, numBytes);
+    }
+
+    /**
+     * Copies numBytes from srcAddr of this memory to dstAddr of dst without an intermediate buffer.
+     */
+    public void copyTo(int srcAddr, Memory dst, int dstAddr, int numBytes) {
+        if (dst == this) {
+            copyWithin(dstAddr, srcAddr, numBytes);
+            return;
+        }
+        checkAccess(srcAddr, numBytes);
+        dst.store(dstAddr, memory, srcAddr, numBytes);
+    }
+
+    // Target of copyTo for memories which are not backed by a byte array
+    void store(int addr, MemorySegment src, long srcOffset, int numBytes) {
+        checkAccess(addr, numBytes);
+        MemorySegment.copy(src, ValueLayout.JAVA_BYTE, srcOffset, memory, addr, numBytes);
+    }
+
+    void checkAccess(int addr, int numBytes) {
+        if (numBytes < 0 || Integer.toUnsignedLong(addr) + numBytes > (long) getMemorySize() * MEM_PAGE_SIZE) {
+            throw new IndexOutOfBoundsException(STR."Out of bounds memory access at \{Integer.toUnsignedString(addr)} size \{numBytes}");
+        }
+    }
+
+    // Aligned accessors for atomics. Implementations must make these sequentially consistent
+    int getIntVolatile(int addr) {
+        return (int) INT.getVolatile(memory, addr);
+    }
+    void setIntVolatile(int addr, int val) {
+        INT.setVolatile(memory, addr, val);
+    }
+    int compareAndExchangeInt(int addr, int expected, int val) {
+        return (int) INT.compareAndExchange(memory, addr, expected, val);
+    }
+    int getAndAddInt(int addr, int delta) {
+        return (int) INT.getAndAdd(memory, addr, delta);
+    }
+    long getLongVolatile(int addr) {
+        return (long) LONG.getVolatile(memory, addr);
+    }
+    void setLongVolatile(int addr, long val) {
+        LONG.setVolatile(memory, addr, val);
+    }
+    long compareAndExchangeLong(int addr, long expected, long val) {
+        return (long) LONG.compareAndExchange(memory, addr, expected, val);
+    }
+    long getAndAddLong(int addr, long delta) {
+        return (long) LONG.getAndAdd(memory, addr, delta);
+    }
+
+    private static void checkAligned(int addr, int width) {
+        if ((addr & (width - 1)) != 0) {
+            throw new RuntimeException(STR."ATOMIC: Unaligned atomic access at \{Integer.toUnsignedString(addr)} width \{width}");
+        }
+    }
+
+    // Mask and shift of a 1 or 2 byte value within its containing aligned int
+    private static int narrowMask(int width) {
+        return (width == 1) ? 0xFF : 0xFFFF;
+    }
+    private static int narrowShift(int addr) {
+        return (addr & 3) * 8;
+    }
+
+    /**
+     * Atomically loads width (1, 2, 4 or 8) bytes at addr. The value is zero-extended.
+     */
+    public long atomicLoad(int addr, int width) {
+        checkAligned(addr, width);
+        return switch (width) {
+            case 8 -> getLongVolatile(addr);
+            case 4 -> Integer.toUnsignedLong(getIntVolatile(addr));
+            default -> (getIntVolatile(addr & ~3) >>> narrowShift(addr)) & narrowMask(width);
+        };
+    }
+
+    /**
+     * Atomically stores the low width (1, 2, 4 or 8) bytes of val at addr.
+     */
+    public void atomicStore(int addr, int width, long val) {
+        checkAligned(addr, width);
+        switch (width) {
+            case 8 -> setLongVolatile(addr, val);
+            case 4 -> setIntVolatile(addr, (int) val);
+            default -> atomicRmw(AtomicInstruction.RmwOp.XCHG, addr, width, val);
+        }
+    }
+
+    /**
+     * Atomically applies op to the width bytes at addr and val. Returns the old value zero-extended.
+     */
+    public long atomicRmw(AtomicInstruction.RmwOp op, int addr, int width, long val) {
+        checkAligned(addr, width);
+        if (width == 8) {
+            if (op == AtomicInstruction.RmwOp.ADD || op == AtomicInstruction.RmwOp.SUB) {
+                return getAndAddLong(addr, op == AtomicInstruction.RmwOp.ADD ? val : -val);
+            }
+            long old = getLongVolatile(addr), witness;
+            while ((witness = compareAndExchangeLong(addr, old, op.apply(old, val))) != old) {
+                old = witness;
+            }
+            return old;
+        }
+        if (width == 4) {
+            if (op == AtomicInstruction.RmwOp.ADD || op == AtomicInstruction.RmwOp.SUB) {
+                return Integer.toUnsignedLong(getAndAddInt(addr, (int) (op == AtomicInstruction.RmwOp.ADD ? val : -val)));
+            }
+            int old = getIntVolatile(addr), witness;
+            while ((witness = compareAndExchangeInt(addr, old, (int) op.apply(old, val))) != old) {
+                old = witness;
+            }
+            return Integer.toUnsignedLong(old);
+        }
+        // Narrow values are updated with a CAS on the containing int
+        int base = addr & ~3, shift = narrowShift(addr), mask = narrowMask(width);
+        int old = getIntVolatile(base), witness;
+        while (true) {
+            int oldVal = (old >>> shift) & mask;
+            int newVal = (int) op.apply(oldVal, val) & mask;
+            if ((witness = compareAndExchangeInt(base, old, (old & ~(mask << shift)) | (newVal << shift))) == old) {
+                return oldVal;
+            }
+            old = witness;
+        }
+    }
+
+    /**
+     * Atomically replaces the width bytes at addr with replacement if they equal expected wrapped to width.
+     * Returns the old value zero-extended.
+     */
+    public long atomicCompareExchange(int addr, int width, long expected, long replacement) {
+        checkAligned(addr, width);
+        if (width == 8) {
+            return compareAndExchangeLong(addr, expected, replacement);
+        }
+        if (width == 4) {
+            return Integer.toUnsignedLong(compareAndExchangeInt(addr, (int) expected, (int) replacement));
+        }
+        int base = addr & ~3, shift = narrowShift(addr), mask = narrowMask(width);
+        int old = getIntVolatile(base), witness;
+        while (true) {
+            int oldVal = (old >>> shift) & mask;
+            if (oldVal != ((int) expected & mask)) {
+                return oldVal;
+            }
+            int newVal = (int) replacement & mask;
+            if ((witness = compareAndExchangeInt(base, old, (old & ~(mask << shift)) | (newVal << shift))) == old) {
+                return oldVal;
+            }
+            old = witness;
+        }
+    }
+
+    private static final class Waiter {
+        final Thread thread = Thread.currentThread();
+        volatile boolean notified;
+    }
+
+    /**
+     * Blocks the current thread until notified if the width (4 or 8) bytes at addr equal expected.
+     * A negative timeout waits forever. Returns 0 when woken, 1 if the value did not match and 2 on timeout.
+     * Parks with {@link LockSupport} so that a waiting virtual thread does not hold on to its carrier.
+     */
+    public int atomicWait(int addr, int width, long expected, long timeoutNanos) {
+        checkAligned(addr, width);
+        if (!isShared) {
+            throw new RuntimeException("ATOMIC_WAIT: Can not wait on unshared memory");
+        }
+        long wrapped = (width == 4) ? Integer.toUnsignedLong((int) expected) : expected;
+        Waiter waiter = new Waiter();
+        waitLock.lock();
+        try {
+            // Checked under the lock so that a notify after the store can not be missed
+            if (atomicLoad(addr, width) != wrapped) {
+                return 1;
+            }
+            waiters.computeIfAbsent(addr, _ -> new ArrayDeque<>()).add(waiter);
+        } finally {
+            waitLock.unlock();
+        }
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (!waiter.notified) {
+            if (timeoutNanos < 0) {
+                LockSupport.park(this);
+            } else {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+        }
+        waitLock.lock();
+        try {
+            if (waiter.notified) {
+                return 0;
+            }
+            ArrayDeque<Waiter> queue = waiters.get(addr);
+            queue.remove(waiter);
+            if (queue.isEmpty()) {
+                waiters.remove(addr);
+            }
+        } finally {
+            waitLock.unlock();
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            throw new RuntimeException("ATOMIC_WAIT: Interrupted while waiting");
+        }
+        return 2;
+    }
+
+    /**
+     * Wakes up to count (unsigned) threads waiting on addr in the order they started waiting. Returns the number woken.
+     */
+    public int atomicNotify(int addr, int count) {
+        checkAligned(addr, 4);
+        checkAccess(addr, 4);
+        if (!isShared) {
+            return 0;
+        }
+        waitLock.lock();
+        try {
+            ArrayDeque<Waiter> queue = waiters.get(addr);
+            if (queue == null) {
+                return 0;
+            }
+            int woken = 0;
+            while (Integer.compareUnsigned(woken, count) < 0 && !queue.isEmpty()) {
+                Waiter waiter = queue.poll();
+                waiter.notified = true;
+                LockSupport.unpark(waiter.thread);
+                woken++;
+            }
+            if (queue.isEmpty()) {
+                waiters.remove(addr);
+            }
+            return woken;
+        } finally {
+            waitLock.unlock();
+        }
+    }
+
     public String toString() {
-        return String.format("Memory: size %d pages, max size: %d pages, shared: %b", getMemorySize(), maxPages, isShared);
+        return String.format("%s: size %d pages, max size: %d pages, shared: %b", getClass().getSimpleName(), getMemorySize(), maxPages, isShared);
     }
 
+    /**
+     * Little endian view of the memory. Writes through it are visible to the machine and the other way around.
+     * Memories which can not provide such a view throw {@link UnsupportedOperationException}
+     */
     public ByteBuffer buffer() {
         // TODO: Can we make this work even if memory is resized?
         return buffer;
     }
 
     public boolean matchesDescriptor(ImportDescriptor.MemoryDescriptor m) {
-        // TODO : Add check for isShared here as well
-        return m.minPages() <= getMemorySize() && m.maxPages() >= maxPages;
+        return m.isShared() == isShared && m.minPages() <= getMemorySize() && m.maxPages() >= maxPages;
     }
 }
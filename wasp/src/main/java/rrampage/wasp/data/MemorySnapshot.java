@@ -0,0 +1,34 @@
+package rrampage.wasp.data;
+
+import java.util.Arrays;
+
+/**
+ * Contents of a {@link Memory} split into pages. Pages of a snapshot are never modified, so any number of
+ * {@link CopyOnWriteMemory} forks can share them. All-zero pages share a single array.
+ * Shared memories are used by several threads at once, so they can not be snapshotted and are shared by reference instead.
+ */
+public record MemorySnapshot(byte[][] pages, int maxPages) {
+    static final byte[] ZERO_PAGE = new byte[Memory.MEM_PAGE_SIZE];
+
+    public static MemorySnapshot of(Memory m) {
+        if (m.isShared()) {
+            throw new RuntimeException("MEMORY_SNAPSHOT: Can not snapshot a shared memory");
+        }
+        if (m instanceof CopyOnWriteMemory c) {
+            return c.snapshot();
+        }
+        byte[][] pages = new byte[m.getMemorySize()][];
+        for (int i = 0; i < pages.length; i++) {
+            byte[] page = m.load(i * Memory.MEM_PAGE_SIZE, Memory.MEM_PAGE_SIZE);
+            pages[i] = Arrays.equals(page, ZERO_PAGE) ? ZERO_PAGE : page;
+        }
+        return new MemorySnapshot(pages, m.maxPages());
+    }
+
+    /**
+     * Creates a new memory with the contents of this snapshot. Pages are only copied when they are first written to.
+     */
+    public Memory fork() {
+        return new CopyOnWriteMemory(this);
+    }
+}
@@ -0,0 +1,260 @@
+package rrampage.wasp.data;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Off-heap memory backed by a {@link MemorySegment}. The whole max size is reserved up front as a private mapping of
+ * a sparse file, so pages are only backed by RAM once they are written and grow never copies.
+ * Can address the full 32-bit index space i.e 65536 pages = 4 GiB. Addresses are treated as unsigned.
+ * Accesses are bounds checked against the current size by the segment accessors.
+ * <p>
+ * A shared memory can grow while other threads use it: the new view is published with release semantics and atomic
+ * accesses read it with acquire semantics, so plain accesses see the new size once the threads have synchronized.
+ */
+public final class SegmentMemory extends Memory {
+    private static final ValueLayout.OfShort SHORT = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfFloat FLOAT = ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfDouble DOUBLE = ValueLayout.JAVA_DOUBLE_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle ATOMIC_INT = MethodHandles.memorySegmentViewVarHandle(ValueLayout.JAVA_INT.withOrder(ByteOrder.LITTLE_ENDIAN));
+    private static final VarHandle ATOMIC_LONG = MethodHandles.memorySegmentViewVarHandle(ValueLayout.JAVA_LONG.withOrder(ByteOrder.LITTLE_ENDIAN));
+    // Largest range copied at once by copyOf
+    private static final int COPY_CHUNK = 1 << 30;
+    private static final VarHandle MEMORY;
+    static {
+        try {
+            MEMORY = MethodHandles.lookup().findVarHandle(SegmentMemory.class, "memory", MemorySegment.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final MemorySegment reserved;
+    // View of the first getMemorySize() pages of the reservation
+    private MemorySegment memory;
+
+    public SegmentMemory(int pages) {
+        this(pages, MAX_WASM_PAGES);
+    }
+
+    public SegmentMemory(int pages, int maxPages) {
+        this(pages, maxPages, false);
+    }
+
+    public SegmentMemory(int pages, int maxPages, boolean isShared) {
+        super(maxPages, isShared);
+        if (pages < 0 || pages > maxPages || maxPages > MAX_WASM_PAGES) {
+            throw new RuntimeException(String.format("Can not allocate %d pages of memory with max %d pages", pages, maxPages));
+        }
+        this.reserved = reserve((long) maxPages * MEM_PAGE_SIZE);
+        this.memory = reserved.asSlice(0, (long) pages * MEM_PAGE_SIZE);
+    }
+
+    /**
+     * Creates a segment backed copy of memory with the same limits and contents.
+     */
+    public static SegmentMemory copyOf(Memory m) {
+        var copy = new SegmentMemory(m.getMemorySize(), m.maxPages(), m.isShared());
+        // Copied in chunks as the size in bytes of 32768 pages or more does not fit in an int
+        long size = (long) m.getMemorySize() * MEM_PAGE_SIZE;
+        for (long addr = 0; addr < size; addr += COPY_CHUNK) {
+            m.copyTo((int) addr, copy, (int) addr, (int) Math.min(COPY_CHUNK, size - addr));
+        }
+        return copy;
+    }
+
+    private static MemorySegment reserve(long size) {
+        if (size == 0) {
+            return MemorySegment.NULL;
+        }
+        try {
+            Path file = Files.createTempFile("wasp-memory", ".bin");
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE)) {
+                // Extend the file without writing any data so that it stays sparse
+                channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+                // Writes to a private mapping never go back to the file. The mapping outlives the channel
+                return channel.map(FileChannel.MapMode.PRIVATE, 0, size, Arena.ofAuto());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to reserve memory", e);
+        }
+    }
+
+    private static long offset(int addr) {
+        return Integer.toUnsignedLong(addr);
+    }
+
+    @Override
+    public int getMemorySize() {
+        return (int) (memory.byteSize() / MEM_PAGE_SIZE);
+    }
+
+    @Override
+    public int grow(int numPages) {
+        int currPages = getMemorySize();
+        if (numPages < 0 || currPages + numPages > maxPages()) {
+            System.out.println(STR."MEM_GROW_LIMIT numPages \{numPages} currPages \{currPages} maxPages \{maxPages()}");
+            return -1;
+        }
+        MEMORY.setRelease(this, reserved.asSlice(0, (long) (currPages + numPages) * MEM_PAGE_SIZE));
+        return currPages;
+    }
+
+    private MemorySegment acquireMemory() {
+        return (MemorySegment) MEMORY.getAcquire(this);
+    }
+
+    @Override
+    int getIntVolatile(int addr) {
+        return (int) ATOMIC_INT.getVolatile(acquireMemory(), offset(addr));
+    }
+    @Override
+    void setIntVolatile(int addr, int val) {
+        ATOMIC_INT.setVolatile(acquireMemory(), offset(addr), val);
+    }
+    @Override
+    int compareAndExchangeInt(int addr, int expected, int val) {
+        return (int) ATOMIC_INT.compareAndExchange(acquireMemory(), offset(addr), expected, val);
+    }
+    @Override
+    int getAndAddInt(int addr, int delta) {
+        return (int) ATOMIC_INT.getAndAdd(acquireMemory(), offset(addr), delta);
+    }
+    @Override
+    long getLongVolatile(int addr) {
+        return (long) ATOMIC_LONG.getVolatile(acquireMemory(), offset(addr));
+    }
+    @Override
+    void setLongVolatile(int addr, long val) {
+        ATOMIC_LONG.setVolatile(acquireMemory(), offset(addr), val);
+    }
+    @Override
+    long compareAndExchangeLong(int addr, long expected, long val) {
+        return (long) ATOMIC_LONG.compareAndExchange(acquireMemory(), offset(addr), expected, val);
+    }
+    @Override
+    long getAndAddLong(int addr, long delta) {
+        return (long) ATOMIC_LONG.getAndAdd(acquireMemory(), offset(addr), delta);
+    }
+
+    @Override
+    public byte loadByte(int addr) {
+        return memory.get(ValueLayout.JAVA_BYTE, offset(addr));
+    }
+    @Override
+    public short loadShort(int addr) {
+        return memory.get(SHORT, offset(addr));
+    }
+    @Override
+    public int loadInt(int addr) {
+        return memory.get(INT, offset(addr));
+    }
+    @Override
+    public long loadLong(int addr) {
+        return memory.get(LONG, offset(addr));
+    }
+    @Override
+    public float loadFloat(int addr) {
+        return memory.get(FLOAT, offset(addr));
+    }
+    @Override
+    public double loadDouble(int addr) {
+        return memory.get(DOUBLE, offset(addr));
+    }
+
+    @Override
+    public byte[] load(int addr, int offset) {
+        return memory.asSlice(offset(addr), offset).toArray(ValueLayout.JAVA_BYTE);
+    }
+
+    @Override
+    public void store(int addr, long data) {
+        memory.set(LONG, offset(addr), data);
+    }
+    @Override
+    public void store(int addr, int data) {
+        memory.set(INT, offset(addr), data);
+    }
+    @Override
+    public void store(int addr, float data) {
+        memory.set(FLOAT, offset(addr), data);
+    }
+    @Override
+    public void store(int addr, double data) {
+        memory.set(DOUBLE, offset(addr), data);
+    }
+    @Override
+    public void store(int addr, byte data) {
+        memory.set(ValueLayout.JAVA_BYTE, offset(addr), data);
+    }
+    @Override
+    public void store(int addr, short data) {
+        memory.set(SHORT, offset(addr), data);
+    }
+
+    @Override
+    public void store(int addr, byte[] data) {
+        MemorySegment.copy(data, 0, memory, ValueLayout.JAVA_BYTE, offset(addr), data.length);
+    }
+
+    @Override
+    public void store(int addr, byte[] data, int srcOffset, int numBytes) {
+        if (offset(addr) + numBytes > memory.byteSize()) {
+            throw new RuntimeException("Invalid address passed to memory: " + addr);
+        }
+        if (srcOffset + numBytes > data.length) {
+            throw new RuntimeException("Can not copy more than source byte array size");
+        }
+        MemorySegment.copy(data, srcOffset, memory, ValueLayout.JAVA_BYTE, offset(addr), numBytes);
+    }
+
+    @Override
+    public void fill(int addr, byte data, int numBytes) {
+        if (offset(addr) + numBytes > memory.byteSize()) {
+            throw new RuntimeException("the destination offset plus size is greater than the length of the target memory");
+        }
+        memory.asSlice(offset(addr), numBytes).fill(data);
+    }
+
+    @Override
+    public void copyWithin(int dstAddr, int srcAddr, int numBytes) {
+        checkAccess(srcAddr, numBytes);
+        checkAccess(dstAddr, numBytes);
+        MemorySegment.copy(memory, offset(srcAddr), memory, offset(dstAddr), numBytes);
+    }
+
+    @Override
+    public void copyTo(int srcAddr, Memory dst, int dstAddr, int numBytes) {
+        if (dst == this) {
+            copyWithin(dstAddr, srcAddr, numBytes);
+            return;
+        }
+        checkAccess(srcAddr, numBytes);
+        dst.store(dstAddr, memory, offset(srcAddr), numBytes);
+    }
+
+    @Override
+    void store(int addr, MemorySegment src, long srcOffset, int numBytes) {
+        checkAccess(addr, numBytes);
+        MemorySegment.copy(src, srcOffset, memory, offset(addr), numBytes);
+    }
+
+    @Override
+    public ByteBuffer buffer() {
+        // Only possible while the memory is smaller than 2 GiB
+        return memory.asByteBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -19,6 +19,8 @@ public class Table {
     private int size;
     private final int max;
     private Function[] data;
+    // Interned type id of each entry, so call_indirect checks signatures without comparing types. -1 for empty entries
+    private int[] typeIds;
     private final ValueType.RefType type;
     public Table(int initialSize, int maxSize, ValueType.RefType type) {
         /*if (!type.equals(ValueType.RefType.FUNCREF) || initialSize > maxSize) {
@@ -27,6 +29,8 @@ public class Table {
         this.size = initialSize;
         this.max = maxSize;
         this.data = new Function[this.size];
+        this.typeIds = new int[this.size];
+        Arrays.fill(this.typeIds, -1);
         this.type = type;
     }
 
@@ -34,6 +38,21 @@ public class Table {
         this(size, MAX_TABLE_SIZE, ValueType.RefType.FUNCREF);
     }
 
+    private Table(Table t) {
+        this.size = t.size;
+        this.max = t.max;
+        this.data = t.data.clone();
+        this.typeIds = t.typeIds.clone();
+        this.type = t.type;
+    }
+
+    /**
+     * Returns an independent table with the same entries
+     */
+    public Table copy() {
+        return new Table(this);
+    }
+
     public int size() {
         return this.size;
     }
@@ -46,14 +65,22 @@ public class Table {
         return this.data[i];
     }
 
+    public int typeId(int i) {
+        return this.typeIds[i];
+    }
+
     public void set(int i, Function f) {
         if (i >= data.length && i < max) {
             Function[] newData = new Function[max];
             System.arraycopy(data, 0, newData, 0, data.length);
             data = newData;
+            int[] newTypeIds = Arrays.copyOf(typeIds, max);
+            Arrays.fill(newTypeIds, typeIds.length, max, -1);
+            typeIds = newTypeIds;
             size = max;
         }
         this.data[i] = f;
+        this.typeIds[i] = (f == null || f == NULL_FUNC) ? -1 : f.type().id();
     }
 
     public int grow(int delta, int funcIdx) {
@@ -18,6 +18,7 @@ public sealed interface Variable {
             case F64Variable v -> v.val = longToDouble(val);
             case I64Variable v -> v.val = val;
             case FuncrefVariable v -> v.val = val;
+            case V128Variable v -> v.low = val;
         }
     }
 
@@ -28,6 +29,7 @@ public sealed interface Variable {
             case F64Variable v -> doubleToLong(v.getVal());
             case I64Variable v -> v.getVal();
             case FuncrefVariable v -> v.getVal();
+            case V128Variable v -> v.low();
         };
     }
     boolean isMutable();
@@ -40,6 +42,7 @@ public sealed interface Variable {
             case I32Variable v -> I32Variable.type;
             case I64Variable v -> I64Variable.type;
             case FuncrefVariable v -> FuncrefVariable.type;
+            case V128Variable v -> V128Variable.type;
         };
     }
 
@@ -133,6 +136,30 @@ public sealed interface Variable {
         public ConstExpression expr() {return expr;}
     }
 
+    // Holds both halves of a v128 value. getValAsLong and setVal only see the low half
+    final class V128Variable implements Variable {
+        public static final ValueType type = ValueType.VecType.VEC_TYPE;
+        private long low;
+        private long high;
+        private final boolean isMutable;
+        V128Variable(long low, long high, boolean isMutable) {
+            this.low = low;
+            this.high = high;
+            this.isMutable = isMutable;
+        }
+        public long low() {return low;}
+        public long high() {return high;}
+        public void setVal(long low, long high) {
+            if (!isMutable()) {
+                throw new IllegalStateException("Can not set immutable variable");
+            }
+            this.low = low;
+            this.high = high;
+        }
+        public boolean isMutable() { return this.isMutable; }
+        public ConstExpression expr() {return null;}
+    }
+
     static Variable newMutableVariable(ValueType type, long val) {
         return newVariable(type, val, true);
     }
@@ -144,10 +171,19 @@ public sealed interface Variable {
             case ValueType.NumType.F32 -> new F32Variable(longToFloat(val), isMutable);
             case ValueType.NumType.F64 -> new F64Variable(longToDouble(val), isMutable);
             case ValueType.RefType.FUNCREF -> new FuncrefVariable(val, isMutable);
+            case ValueType.VecType.VEC_TYPE -> new V128Variable(val, 0, isMutable);
             default -> throw new IllegalStateException("Unexpected value: " + type);
         };
     }
 
+    // Copies the value and mutability. Both halves of a v128 value are copied
+    static Variable copyOf(Variable v) {
+        if (v instanceof V128Variable vec) {
+            return new V128Variable(vec.low(), vec.high(), vec.isMutable());
+        }
+        return newVariable(v.type(), v.getValAsLong(), v.isMutable());
+    }
+
     static Variable newVariable(ValueType type, ConstExpression expr, boolean isMutable) {
         return switch (type) {
             case ValueType.NumType.I32 -> new I32Variable(expr, isMutable);
@@ -166,6 +202,7 @@ public sealed interface Variable {
             case I32Variable v -> variable.type() + " " + v.getVal();
             case I64Variable v -> variable.type() + " " + v.getVal();
             case FuncrefVariable v -> variable.type() + " " + v.getVal();
+            case V128Variable v -> String.format("%s 0x%016x%016x", variable.type(), v.high(), v.low());
         };
     }
 
@@ -55,7 +55,7 @@ public class RiscVEmulator {
         machine.invoke("__wbindgen_malloc", constOf(arr.length));
         var ptr = machine.popInt();
         System.out.println(STR."MALLOC: ptr:\{ptr} Arr:\{arr.length} bytes");
-        memory.buffer().put(ptr, arr);
+        memory.store(ptr, arr);
         WASM_VECTOR_LEN = arr.length;
         byte[] memData = memory.load(ptr, arr.length);
         System.out.println(STR."MALLOC_CHECK: \{Arrays.equals(arr, memData)}");
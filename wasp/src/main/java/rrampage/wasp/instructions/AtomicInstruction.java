@@ -0,0 +1,56 @@
+package rrampage.wasp.instructions;
+
+import rrampage.wasp.data.ValueType;
+
+/*
+    Atomic memory instructions from the threads proposal (0xFE prefix). width is the number of bytes accessed.
+    Narrow accesses are zero-extended to type on load and wrapped on store. The effective address must be a multiple
+    of width, otherwise the instruction traps.
+ */
+public sealed interface AtomicInstruction extends Instruction {
+    enum RmwOp {
+        ADD, SUB, AND, OR, XOR, XCHG;
+        public long apply(long old, long val) {
+            return switch (this) {
+                case ADD -> old + val;
+                case SUB -> old - val;
+                case AND -> old & val;
+                case OR -> old | val;
+                case XOR -> old ^ val;
+                case XCHG -> val;
+            };
+        }
+        public String toString() {return name().toLowerCase();}
+    }
+
+    private static String suffix(ValueType.NumType type, int width) {
+        return (width == fullWidth(type)) ? "" : STR."\{width * 8}";
+    }
+
+    private static String unsigned(ValueType.NumType type, int width) {
+        return (width == fullWidth(type)) ? "" : "_u";
+    }
+
+    static int fullWidth(ValueType.NumType type) {
+        return (type == ValueType.NumType.I64) ? 8 : 4;
+    }
+
+    record AtomicNotify(int align, int offset) implements AtomicInstruction {public String opCode() {return "memory.atomic.notify";}}
+    // memory.atomic.wait32 and memory.atomic.wait64
+    record AtomicWait(int width, int align, int offset) implements AtomicInstruction {
+        public String opCode() {return STR."memory.atomic.wait\{width * 8}";}
+    }
+    record AtomicFence() implements AtomicInstruction {public String opCode() {return "atomic.fence";}}
+    record AtomicLoad(ValueType.NumType type, int width, int align, int offset) implements AtomicInstruction {
+        public String opCode() {return STR."\{type}.atomic.load\{suffix(type, width)}\{unsigned(type, width)}";}
+    }
+    record AtomicStore(ValueType.NumType type, int width, int align, int offset) implements AtomicInstruction {
+        public String opCode() {return STR."\{type}.atomic.store\{suffix(type, width)}";}
+    }
+    record AtomicRmw(RmwOp op, ValueType.NumType type, int width, int align, int offset) implements AtomicInstruction {
+        public String opCode() {return STR."\{type}.atomic.rmw\{suffix(type, width)}.\{op}\{unsigned(type, width)}";}
+    }
+    record AtomicCmpxchg(ValueType.NumType type, int width, int align, int offset) implements AtomicInstruction {
+        public String opCode() {return STR."\{type}.atomic.rmw\{suffix(type, width)}.cmpxchg\{unsigned(type, width)}";}
+    }
+}
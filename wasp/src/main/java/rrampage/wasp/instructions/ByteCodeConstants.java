@@ -44,6 +44,24 @@ public class ByteCodeConstants {
     FC_I64_TRUNC_SAT_F32_S = 0x04, FC_I64_TRUNC_SAT_F32_U = 0x05, FC_I64_TRUNC_SAT_F64_S = 0x06, FC_I64_TRUNC_SAT_F64_U = 0x07,
     FC_MEM_INIT = 0x08, FC_DATA_DROP = 0x09, FC_MEM_COPY = 0x0a, FC_MEM_FILL = 0x0b, FC_TABLE_INIT = 0x0c, FC_ELEM_DROP = 0x0d,
     FC_TABLE_COPY = 0x0e, FC_TABLE_GROW = 0x0f, FC_TABLE_SIZE = 0x10, FC_TABLE_FILL = 0x11,
+    // FD_PREFIX and byte codes for SIMD. Lane-wise operations are looked up in VectorInstruction.VectorOp
+    FD_PREFIX = 0xfd,
+    FD_V128_LOAD = 0x00, FD_V128_LOAD8X8_S = 0x01, FD_V128_LOAD8X8_U = 0x02, FD_V128_LOAD16X4_S = 0x03, FD_V128_LOAD16X4_U = 0x04,
+    FD_V128_LOAD32X2_S = 0x05, FD_V128_LOAD32X2_U = 0x06, FD_V128_LOAD8_SPLAT = 0x07, FD_V128_LOAD16_SPLAT = 0x08, FD_V128_LOAD32_SPLAT = 0x09, FD_V128_LOAD64_SPLAT = 0x0a,
+    FD_V128_STORE = 0x0b, FD_V128_CONST = 0x0c, FD_I8X16_SHUFFLE = 0x0d,
+    FD_I8X16_SPLAT = 0x0f, FD_I16X8_SPLAT = 0x10, FD_I32X4_SPLAT = 0x11, FD_I64X2_SPLAT = 0x12, FD_F32X4_SPLAT = 0x13, FD_F64X2_SPLAT = 0x14,
+    FD_I8X16_EXTRACT_LANE_S = 0x15, FD_I8X16_EXTRACT_LANE_U = 0x16, FD_I8X16_REPLACE_LANE = 0x17,
+    FD_I16X8_EXTRACT_LANE_S = 0x18, FD_I16X8_EXTRACT_LANE_U = 0x19, FD_I16X8_REPLACE_LANE = 0x1a,
+    FD_I32X4_EXTRACT_LANE = 0x1b, FD_I32X4_REPLACE_LANE = 0x1c, FD_I64X2_EXTRACT_LANE = 0x1d, FD_I64X2_REPLACE_LANE = 0x1e,
+    FD_F32X4_EXTRACT_LANE = 0x1f, FD_F32X4_REPLACE_LANE = 0x20, FD_F64X2_EXTRACT_LANE = 0x21, FD_F64X2_REPLACE_LANE = 0x22,
+    FD_V128_LOAD8_LANE = 0x54, FD_V128_LOAD16_LANE = 0x55, FD_V128_LOAD32_LANE = 0x56, FD_V128_LOAD64_LANE = 0x57,
+    FD_V128_STORE8_LANE = 0x58, FD_V128_STORE16_LANE = 0x59, FD_V128_STORE32_LANE = 0x5a, FD_V128_STORE64_LANE = 0x5b,
+    FD_V128_LOAD32_ZERO = 0x5c, FD_V128_LOAD64_ZERO = 0x5d,
+    // FE_PREFIX and byte codes for atomics. Each group of loads, stores and read-modify-write ops has 7 entries:
+    // i32, i64, i32 8 bit, i32 16 bit, i64 8 bit, i64 16 bit, i64 32 bit
+    FE_PREFIX = 0xfe,
+    FE_MEMORY_ATOMIC_NOTIFY = 0x00, FE_MEMORY_ATOMIC_WAIT32 = 0x01, FE_MEMORY_ATOMIC_WAIT64 = 0x02, FE_ATOMIC_FENCE = 0x03,
+    FE_ATOMIC_LOAD = 0x10, FE_ATOMIC_STORE = 0x17, FE_ATOMIC_RMW_ADD = 0x1e, FE_ATOMIC_RMW_CMPXCHG = 0x48, FE_ATOMIC_END = 0x4f,
     DUMMY = -1
     ;
 }
@@ -1,14 +1,28 @@
 package rrampage.wasp.instructions;
 
 import rrampage.wasp.data.FunctionType;
+import rrampage.wasp.vm.HostCallAdapter;
 
 import java.lang.invoke.MethodHandle;
 
 public sealed interface FunctionInstruction extends Instruction {
     record Call(int val) implements FunctionInstruction { public String opCode() {return "call";}}
     // Currently, tableIdx is a zero byte which is ignored, which may be used to specify which table to use
-    record CallIndirect(int typeIdx, int tableIdx) implements FunctionInstruction {public String opCode() {return "call_indirect";}}
-    record CallJava(FunctionType type, MethodHandle function) implements FunctionInstruction { public String opCode() {return "java_mh";}}
+    // type is resolved from typeIdx by the parser. It can be null when the instruction is created without module types.
+    // typeId is the interned id of type which table entries are checked against, or -1 when the type is unknown
+    record CallIndirect(int typeIdx, int tableIdx, FunctionType type, int typeId) implements FunctionInstruction {
+        public CallIndirect(int typeIdx, int tableIdx, FunctionType type) {this(typeIdx, tableIdx, type, (type == null) ? -1 : type.id());}
+        public CallIndirect(int typeIdx, int tableIdx) {this(typeIdx, tableIdx, null);}
+        public String opCode() {return "call_indirect";}
+    }
+    // adapter is the function adapted to read its arguments from and push its results to the machine stack. See HostCallAdapter.
+    // It is null for signatures with reference or vector types, which are called with boxed arguments instead
+    record CallJava(FunctionType type, MethodHandle function, MethodHandle adapter) implements FunctionInstruction {
+        public CallJava(FunctionType type, MethodHandle function) {
+            this(type, function, HostCallAdapter.canAdapt(type) ? HostCallAdapter.adapt(type, function) : null);
+        }
+        public String opCode() {return "java_mh";}
+    }
     record Return() implements FunctionInstruction {public String opCode() {return "return";}}
     record LocalGet(int val) implements FunctionInstruction { public String opCode() {return "local.get";}}
     record LocalSet(int val) implements FunctionInstruction { public String opCode() {return "local.set";}}
@@ -0,0 +1,39 @@
+package rrampage.wasp.instructions;
+
+/**
+ * Superinstructions created by {@link rrampage.wasp.optimizer.InstructionFuser} from common instruction sequences.
+ * Each one behaves exactly like the sequence returned by {@link #expand()}.
+ */
+public sealed interface FusedInstruction extends Instruction {
+    Instruction[] expand();
+
+    // local.get left; local.get right; i32 op
+    record LocalLocalI32(int left, int right, IntBinaryInstruction op) implements FusedInstruction {
+        public String opCode() {return "local.get+local.get+" + op.opCode();}
+        public Instruction[] expand() {
+            return Instruction.of(new FunctionInstruction.LocalGet(left), new FunctionInstruction.LocalGet(right), op);
+        }
+    }
+    // local.get local; i32.const val; i32 op
+    record LocalConstI32(int local, int val, IntBinaryInstruction op) implements FusedInstruction {
+        public String opCode() {return "local.get+i32.const+" + op.opCode();}
+        public Instruction[] expand() {
+            return Instruction.of(new FunctionInstruction.LocalGet(local), new ConstInstruction.IntConst(val), op);
+        }
+    }
+    // local.get local; i32.const val; i32 op; local.set dst
+    record LocalConstI32Set(int local, int val, IntBinaryInstruction op, int dst) implements FusedInstruction {
+        public String opCode() {return "local.get+i32.const+" + op.opCode() + "+local.set";}
+        public Instruction[] expand() {
+            return Instruction.of(new FunctionInstruction.LocalGet(local), new ConstInstruction.IntConst(val), op,
+                    new FunctionInstruction.LocalSet(dst));
+        }
+    }
+    // i32.const val; i32 op; br_if label
+    record ConstI32BrIf(int val, IntBinaryInstruction op, int label) implements FusedInstruction {
+        public String opCode() {return "i32.const+" + op.opCode() + "+br_if";}
+        public Instruction[] expand() {
+            return Instruction.of(new ConstInstruction.IntConst(val), op, new ControlFlowInstruction.BranchIf(label));
+        }
+    }
+}
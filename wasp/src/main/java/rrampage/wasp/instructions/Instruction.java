@@ -1,10 +1,10 @@
 package rrampage.wasp.instructions;
 
 public sealed interface Instruction permits
-        ConstExpression, ConstInstruction, ControlFlowInstruction, DoubleBinaryInstruction,
-        FloatBinaryInstruction, FunctionInstruction, GlobalInstruction, IntBinaryInstruction,
+        AtomicInstruction, ConstExpression, ConstInstruction, ControlFlowInstruction, DoubleBinaryInstruction,
+        FloatBinaryInstruction, FunctionInstruction, FusedInstruction, GlobalInstruction, IntBinaryInstruction,
         LoadInstruction, LongBinaryInstruction, NullaryInstruction, RefTypeInstruction,
-        SegmentInstruction, Select, StoreInstruction, UnaryInstruction {
+        SegmentInstruction, Select, StoreInstruction, UnaryInstruction, VectorInstruction {
     String opCode();
     static Instruction[] of(Instruction ... args) {return args;}
 }
@@ -0,0 +1,302 @@
+package rrampage.wasp.instructions;
+
+import rrampage.wasp.data.ValueType;
+import rrampage.wasp.utils.ConversionUtils;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static rrampage.wasp.instructions.VectorInstruction.Kind.*;
+import static rrampage.wasp.instructions.VectorInstruction.Shape.*;
+
+/*
+    Fixed-width SIMD instructions (0xFD prefix). A v128 value takes two stack slots: the low 64 bits are pushed first,
+    then the high 64 bits. Lanes are numbered from the least significant bits, matching little-endian memory order
+ */
+public sealed interface VectorInstruction extends Instruction {
+    enum Shape {
+        I8X16(8, ValueType.NumType.I32),
+        I16X8(16, ValueType.NumType.I32),
+        I32X4(32, ValueType.NumType.I32),
+        I64X2(64, ValueType.NumType.I64),
+        F32X4(32, ValueType.NumType.F32),
+        F64X2(64, ValueType.NumType.F64);
+        private final int laneBits;
+        private final ValueType laneType;
+        Shape(int laneBits, ValueType laneType) {
+            this.laneBits = laneBits;
+            this.laneType = laneType;
+        }
+        public int laneBits() {return laneBits;}
+        public int lanes() {return 128 / laneBits;}
+        public ValueType laneType() {return laneType;}
+        public String toString() {return name().toLowerCase();}
+    }
+
+    // Operand shapes of the lane-wise operations
+    enum Kind {
+        UNARY, // v128 -> v128
+        BINARY, // v128 v128 -> v128
+        TERNARY, // v128 v128 v128 -> v128
+        SHIFT, // v128 i32 -> v128
+        TEST, // v128 -> i32
+    }
+
+    record V128Const(long low, long high) implements VectorInstruction {public String opCode() {return "v128.const";}}
+    record V128Load(int align, int offset) implements VectorInstruction {public String opCode() {return "v128.load";}}
+    record V128Store(int align, int offset) implements VectorInstruction {public String opCode() {return "v128.store";}}
+    // v128.load{8,16,32,64}_splat
+    record V128LoadSplat(Shape shape, int align, int offset) implements VectorInstruction {
+        public String opCode() {return STR."v128.load\{shape.laneBits()}_splat";}
+    }
+    // v128.load{32,64}_zero
+    record V128LoadZero(Shape shape, int align, int offset) implements VectorInstruction {
+        public String opCode() {return STR."v128.load\{shape.laneBits()}_zero";}
+    }
+    // v128.load{8x8,16x4,32x2}_{s,u} loads 64 bits and extends each lane of the given shape to twice its width
+    record V128LoadExtend(Shape shape, boolean signed, int align, int offset) implements VectorInstruction {
+        public String opCode() {return STR."v128.load\{shape.laneBits()}x\{64 / shape.laneBits()}_\{signed ? "s" : "u"}";}
+    }
+    // v128.load{8,16,32,64}_lane
+    record V128LoadLane(Shape shape, int align, int offset, int lane) implements VectorInstruction {
+        public String opCode() {return STR."v128.load\{shape.laneBits()}_lane";}
+    }
+    // v128.store{8,16,32,64}_lane
+    record V128StoreLane(Shape shape, int align, int offset, int lane) implements VectorInstruction {
+        public String opCode() {return STR."v128.store\{shape.laneBits()}_lane";}
+    }
+    record Shuffle(byte[] lanes) implements VectorInstruction {
+        public String opCode() {return "i8x16.shuffle";}
+        public String toString() {return STR."Shuffle[lanes=\{Arrays.toString(lanes)}]";}
+    }
+    record Splat(Shape shape) implements VectorInstruction {public String opCode() {return STR."\{shape}.splat";}}
+    record ExtractLane(Shape shape, int lane, boolean signed) implements VectorInstruction {
+        public String opCode() {
+            return STR."\{shape}.extract_lane\{shape.laneBits() < 32 ? (signed ? "_s" : "_u") : ""}";
+        }
+    }
+    record ReplaceLane(Shape shape, int lane) implements VectorInstruction {public String opCode() {return STR."\{shape}.replace_lane";}}
+
+    enum VectorOp implements VectorInstruction {
+        I8X16_SWIZZLE("i8x16.swizzle", 0x0e, I8X16, BINARY),
+        I8X16_EQ("i8x16.eq", 0x23, I8X16, BINARY),
+        I8X16_NE("i8x16.ne", 0x24, I8X16, BINARY),
+        I8X16_LT_S("i8x16.lt_s", 0x25, I8X16, BINARY),
+        I8X16_LT_U("i8x16.lt_u", 0x26, I8X16, BINARY),
+        I8X16_GT_S("i8x16.gt_s", 0x27, I8X16, BINARY),
+        I8X16_GT_U("i8x16.gt_u", 0x28, I8X16, BINARY),
+        I8X16_LE_S("i8x16.le_s", 0x29, I8X16, BINARY),
+        I8X16_LE_U("i8x16.le_u", 0x2a, I8X16, BINARY),
+        I8X16_GE_S("i8x16.ge_s", 0x2b, I8X16, BINARY),
+        I8X16_GE_U("i8x16.ge_u", 0x2c, I8X16, BINARY),
+        I16X8_EQ("i16x8.eq", 0x2d, I16X8, BINARY),
+        I16X8_NE("i16x8.ne", 0x2e, I16X8, BINARY),
+        I16X8_LT_S("i16x8.lt_s", 0x2f, I16X8, BINARY),
+        I16X8_LT_U("i16x8.lt_u", 0x30, I16X8, BINARY),
+        I16X8_GT_S("i16x8.gt_s", 0x31, I16X8, BINARY),
+        I16X8_GT_U("i16x8.gt_u", 0x32, I16X8, BINARY),
+        I16X8_LE_S("i16x8.le_s", 0x33, I16X8, BINARY),
+        I16X8_LE_U("i16x8.le_u", 0x34, I16X8, BINARY),
+        I16X8_GE_S("i16x8.ge_s", 0x35, I16X8, BINARY),
+        I16X8_GE_U("i16x8.ge_u", 0x36, I16X8, BINARY),
+        I32X4_EQ("i32x4.eq", 0x37, I32X4, BINARY),
+        I32X4_NE("i32x4.ne", 0x38, I32X4, BINARY),
+        I32X4_LT_S("i32x4.lt_s", 0x39, I32X4, BINARY),
+        I32X4_LT_U("i32x4.lt_u", 0x3a, I32X4, BINARY),
+        I32X4_GT_S("i32x4.gt_s", 0x3b, I32X4, BINARY),
+        I32X4_GT_U("i32x4.gt_u", 0x3c, I32X4, BINARY),
+        I32X4_LE_S("i32x4.le_s", 0x3d, I32X4, BINARY),
+        I32X4_LE_U("i32x4.le_u", 0x3e, I32X4, BINARY),
+        I32X4_GE_S("i32x4.ge_s", 0x3f, I32X4, BINARY),
+        I32X4_GE_U("i32x4.ge_u", 0x40, I32X4, BINARY),
+        F32X4_EQ("f32x4.eq", 0x41, F32X4, BINARY),
+        F32X4_NE("f32x4.ne", 0x42, F32X4, BINARY),
+        F32X4_LT("f32x4.lt", 0x43, F32X4, BINARY),
+        F32X4_GT("f32x4.gt", 0x44, F32X4, BINARY),
+        F32X4_LE("f32x4.le", 0x45, F32X4, BINARY),
+        F32X4_GE("f32x4.ge", 0x46, F32X4, BINARY),
+        F64X2_EQ("f64x2.eq", 0x47, F64X2, BINARY),
+        F64X2_NE("f64x2.ne", 0x48, F64X2, BINARY),
+        F64X2_LT("f64x2.lt", 0x49, F64X2, BINARY),
+        F64X2_GT("f64x2.gt", 0x4a, F64X2, BINARY),
+        F64X2_LE("f64x2.le", 0x4b, F64X2, BINARY),
+        F64X2_GE("f64x2.ge", 0x4c, F64X2, BINARY),
+        V128_NOT("v128.not", 0x4d, I64X2, UNARY),
+        V128_AND("v128.and", 0x4e, I64X2, BINARY),
+        V128_ANDNOT("v128.andnot", 0x4f, I64X2, BINARY),
+        V128_OR("v128.or", 0x50, I64X2, BINARY),
+        V128_XOR("v128.xor", 0x51, I64X2, BINARY),
+        V128_BITSELECT("v128.bitselect", 0x52, I64X2, TERNARY),
+        V128_ANY_TRUE("v128.any_true", 0x53, I64X2, TEST),
+        F32X4_DEMOTE_F64X2_ZERO("f32x4.demote_f64x2_zero", 0x5e, F64X2, UNARY),
+        F64X2_PROMOTE_LOW_F32X4("f64x2.promote_low_f32x4", 0x5f, F32X4, UNARY),
+        I8X16_ABS("i8x16.abs", 0x60, I8X16, UNARY),
+        I8X16_NEG("i8x16.neg", 0x61, I8X16, UNARY),
+        I8X16_POPCNT("i8x16.popcnt", 0x62, I8X16, UNARY),
+        I8X16_ALL_TRUE("i8x16.all_true", 0x63, I8X16, TEST),
+        I8X16_BITMASK("i8x16.bitmask", 0x64, I8X16, TEST),
+        I8X16_NARROW_I16X8_S("i8x16.narrow_i16x8_s", 0x65, I16X8, BINARY),
+        I8X16_NARROW_I16X8_U("i8x16.narrow_i16x8_u", 0x66, I16X8, BINARY),
+        F32X4_CEIL("f32x4.ceil", 0x67, F32X4, UNARY),
+        F32X4_FLOOR("f32x4.floor", 0x68, F32X4, UNARY),
+        F32X4_TRUNC("f32x4.trunc", 0x69, F32X4, UNARY),
+        F32X4_NEAREST("f32x4.nearest", 0x6a, F32X4, UNARY),
+        I8X16_SHL("i8x16.shl", 0x6b, I8X16, SHIFT),
+        I8X16_SHR_S("i8x16.shr_s", 0x6c, I8X16, SHIFT),
+        I8X16_SHR_U("i8x16.shr_u", 0x6d, I8X16, SHIFT),
+        I8X16_ADD("i8x16.add", 0x6e, I8X16, BINARY),
+        I8X16_ADD_SAT_S("i8x16.add_sat_s", 0x6f, I8X16, BINARY),
+        I8X16_ADD_SAT_U("i8x16.add_sat_u", 0x70, I8X16, BINARY),
+        I8X16_SUB("i8x16.sub", 0x71, I8X16, BINARY),
+        I8X16_SUB_SAT_S("i8x16.sub_sat_s", 0x72, I8X16, BINARY),
+        I8X16_SUB_SAT_U("i8x16.sub_sat_u", 0x73, I8X16, BINARY),
+        F64X2_CEIL("f64x2.ceil", 0x74, F64X2, UNARY),
+        F64X2_FLOOR("f64x2.floor", 0x75, F64X2, UNARY),
+        I8X16_MIN_S("i8x16.min_s", 0x76, I8X16, BINARY),
+        I8X16_MIN_U("i8x16.min_u", 0x77, I8X16, BINARY),
+        I8X16_MAX_S("i8x16.max_s", 0x78, I8X16, BINARY),
+        I8X16_MAX_U("i8x16.max_u", 0x79, I8X16, BINARY),
+        F64X2_TRUNC("f64x2.trunc", 0x7a, F64X2, UNARY),
+        I8X16_AVGR_U("i8x16.avgr_u", 0x7b, I8X16, BINARY),
+        I16X8_EXTADD_PAIRWISE_I8X16_S("i16x8.extadd_pairwise_i8x16_s", 0x7c, I8X16, UNARY),
+        I16X8_EXTADD_PAIRWISE_I8X16_U("i16x8.extadd_pairwise_i8x16_u", 0x7d, I8X16, UNARY),
+        I32X4_EXTADD_PAIRWISE_I16X8_S("i32x4.extadd_pairwise_i16x8_s", 0x7e, I16X8, UNARY),
+        I32X4_EXTADD_PAIRWISE_I16X8_U("i32x4.extadd_pairwise_i16x8_u", 0x7f, I16X8, UNARY),
+        I16X8_ABS("i16x8.abs", 0x80, I16X8, UNARY),
+        I16X8_NEG("i16x8.neg", 0x81, I16X8, UNARY),
+        I16X8_Q15MULR_SAT_S("i16x8.q15mulr_sat_s", 0x82, I16X8, BINARY),
+        I16X8_ALL_TRUE("i16x8.all_true", 0x83, I16X8, TEST),
+        I16X8_BITMASK("i16x8.bitmask", 0x84, I16X8, TEST),
+        I16X8_NARROW_I32X4_S("i16x8.narrow_i32x4_s", 0x85, I32X4, BINARY),
+        I16X8_NARROW_I32X4_U("i16x8.narrow_i32x4_u", 0x86, I32X4, BINARY),
+        I16X8_EXTEND_LOW_I8X16_S("i16x8.extend_low_i8x16_s", 0x87, I8X16, UNARY),
+        I16X8_EXTEND_HIGH_I8X16_S("i16x8.extend_high_i8x16_s", 0x88, I8X16, UNARY),
+        I16X8_EXTEND_LOW_I8X16_U("i16x8.extend_low_i8x16_u", 0x89, I8X16, UNARY),
+        I16X8_EXTEND_HIGH_I8X16_U("i16x8.extend_high_i8x16_u", 0x8a, I8X16, UNARY),
+        I16X8_SHL("i16x8.shl", 0x8b, I16X8, SHIFT),
+        I16X8_SHR_S("i16x8.shr_s", 0x8c, I16X8, SHIFT),
+        I16X8_SHR_U("i16x8.shr_u", 0x8d, I16X8, SHIFT),
+        I16X8_ADD("i16x8.add", 0x8e, I16X8, BINARY),
+        I16X8_ADD_SAT_S("i16x8.add_sat_s", 0x8f, I16X8, BINARY),
+        I16X8_ADD_SAT_U("i16x8.add_sat_u", 0x90, I16X8, BINARY),
+        I16X8_SUB("i16x8.sub", 0x91, I16X8, BINARY),
+        I16X8_SUB_SAT_S("i16x8.sub_sat_s", 0x92, I16X8, BINARY),
+        I16X8_SUB_SAT_U("i16x8.sub_sat_u", 0x93, I16X8, BINARY),
+        F64X2_NEAREST("f64x2.nearest", 0x94, F64X2, UNARY),
+        I16X8_MUL("i16x8.mul", 0x95, I16X8, BINARY),
+        I16X8_MIN_S("i16x8.min_s", 0x96, I16X8, BINARY),
+        I16X8_MIN_U("i16x8.min_u", 0x97, I16X8, BINARY),
+        I16X8_MAX_S("i16x8.max_s", 0x98, I16X8, BINARY),
+        I16X8_MAX_U("i16x8.max_u", 0x99, I16X8, BINARY),
+        I16X8_AVGR_U("i16x8.avgr_u", 0x9b, I16X8, BINARY),
+        I16X8_EXTMUL_LOW_I8X16_S("i16x8.extmul_low_i8x16_s", 0x9c, I8X16, BINARY),
+        I16X8_EXTMUL_HIGH_I8X16_S("i16x8.extmul_high_i8x16_s", 0x9d, I8X16, BINARY),
+        I16X8_EXTMUL_LOW_I8X16_U("i16x8.extmul_low_i8x16_u", 0x9e, I8X16, BINARY),
+        I16X8_EXTMUL_HIGH_I8X16_U("i16x8.extmul_high_i8x16_u", 0x9f, I8X16, BINARY),
+        I32X4_ABS("i32x4.abs", 0xa0, I32X4, UNARY),
+        I32X4_NEG("i32x4.neg", 0xa1, I32X4, UNARY),
+        I32X4_ALL_TRUE("i32x4.all_true", 0xa3, I32X4, TEST),
+        I32X4_BITMASK("i32x4.bitmask", 0xa4, I32X4, TEST),
+        I32X4_EXTEND_LOW_I16X8_S("i32x4.extend_low_i16x8_s", 0xa7, I16X8, UNARY),
+        I32X4_EXTEND_HIGH_I16X8_S("i32x4.extend_high_i16x8_s", 0xa8, I16X8, UNARY),
+        I32X4_EXTEND_LOW_I16X8_U("i32x4.extend_low_i16x8_u", 0xa9, I16X8, UNARY),
+        I32X4_EXTEND_HIGH_I16X8_U("i32x4.extend_high_i16x8_u", 0xaa, I16X8, UNARY),
+        I32X4_SHL("i32x4.shl", 0xab, I32X4, SHIFT),
+        I32X4_SHR_S("i32x4.shr_s", 0xac, I32X4, SHIFT),
+        I32X4_SHR_U("i32x4.shr_u", 0xad, I32X4, SHIFT),
+        I32X4_ADD("i32x4.add", 0xae, I32X4, BINARY),
+        I32X4_SUB("i32x4.sub", 0xb1, I32X4, BINARY),
+        I32X4_MUL("i32x4.mul", 0xb5, I32X4, BINARY),
+        I32X4_MIN_S("i32x4.min_s", 0xb6, I32X4, BINARY),
+        I32X4_MIN_U("i32x4.min_u", 0xb7, I32X4, BINARY),
+        I32X4_MAX_S("i32x4.max_s", 0xb8, I32X4, BINARY),
+        I32X4_MAX_U("i32x4.max_u", 0xb9, I32X4, BINARY),
+        I32X4_DOT_I16X8_S("i32x4.dot_i16x8_s", 0xba, I16X8, BINARY),
+        I32X4_EXTMUL_LOW_I16X8_S("i32x4.extmul_low_i16x8_s", 0xbc, I16X8, BINARY),
+        I32X4_EXTMUL_HIGH_I16X8_S("i32x4.extmul_high_i16x8_s", 0xbd, I16X8, BINARY),
+        I32X4_EXTMUL_LOW_I16X8_U("i32x4.extmul_low_i16x8_u", 0xbe, I16X8, BINARY),
+        I32X4_EXTMUL_HIGH_I16X8_U("i32x4.extmul_high_i16x8_u", 0xbf, I16X8, BINARY),
+        I64X2_ABS("i64x2.abs", 0xc0, I64X2, UNARY),
+        I64X2_NEG("i64x2.neg", 0xc1, I64X2, UNARY),
+        I64X2_ALL_TRUE("i64x2.all_true", 0xc3, I64X2, TEST),
+        I64X2_BITMASK("i64x2.bitmask", 0xc4, I64X2, TEST),
+        I64X2_EXTEND_LOW_I32X4_S("i64x2.extend_low_i32x4_s", 0xc7, I32X4, UNARY),
+        I64X2_EXTEND_HIGH_I32X4_S("i64x2.extend_high_i32x4_s", 0xc8, I32X4, UNARY),
+        I64X2_EXTEND_LOW_I32X4_U("i64x2.extend_low_i32x4_u", 0xc9, I32X4, UNARY),
+        I64X2_EXTEND_HIGH_I32X4_U("i64x2.extend_high_i32x4_u", 0xca, I32X4, UNARY),
+        I64X2_SHL("i64x2.shl", 0xcb, I64X2, SHIFT),
+        I64X2_SHR_S("i64x2.shr_s", 0xcc, I64X2, SHIFT),
+        I64X2_SHR_U("i64x2.shr_u", 0xcd, I64X2, SHIFT),
+        I64X2_ADD("i64x2.add", 0xce, I64X2, BINARY),
+        I64X2_SUB("i64x2.sub", 0xd1, I64X2, BINARY),
+        I64X2_MUL("i64x2.mul", 0xd5, I64X2, BINARY),
+        I64X2_EQ("i64x2.eq", 0xd6, I64X2, BINARY),
+        I64X2_NE("i64x2.ne", 0xd7, I64X2, BINARY),
+        I64X2_LT_S("i64x2.lt_s", 0xd8, I64X2, BINARY),
+        I64X2_GT_S("i64x2.gt_s", 0xd9, I64X2, BINARY),
+        I64X2_LE_S("i64x2.le_s", 0xda, I64X2, BINARY),
+        I64X2_GE_S("i64x2.ge_s", 0xdb, I64X2, BINARY),
+        I64X2_EXTMUL_LOW_I32X4_S("i64x2.extmul_low_i32x4_s", 0xdc, I32X4, BINARY),
+        I64X2_EXTMUL_HIGH_I32X4_S("i64x2.extmul_high_i32x4_s", 0xdd, I32X4, BINARY),
+        I64X2_EXTMUL_LOW_I32X4_U("i64x2.extmul_low_i32x4_u", 0xde, I32X4, BINARY),
+        I64X2_EXTMUL_HIGH_I32X4_U("i64x2.extmul_high_i32x4_u", 0xdf, I32X4, BINARY),
+        F32X4_ABS("f32x4.abs", 0xe0, F32X4, UNARY),
+        F32X4_NEG("f32x4.neg", 0xe1, F32X4, UNARY),
+        F32X4_SQRT("f32x4.sqrt", 0xe3, F32X4, UNARY),
+        F32X4_ADD("f32x4.add", 0xe4, F32X4, BINARY),
+        F32X4_SUB("f32x4.sub", 0xe5, F32X4, BINARY),
+        F32X4_MUL("f32x4.mul", 0xe6, F32X4, BINARY),
+        F32X4_DIV("f32x4.div", 0xe7, F32X4, BINARY),
+        F32X4_MIN("f32x4.min", 0xe8, F32X4, BINARY),
+        F32X4_MAX("f32x4.max", 0xe9, F32X4, BINARY),
+        F32X4_PMIN("f32x4.pmin", 0xea, F32X4, BINARY),
+        F32X4_PMAX("f32x4.pmax", 0xeb, F32X4, BINARY),
+        F64X2_ABS("f64x2.abs", 0xec, F64X2, UNARY),
+        F64X2_NEG("f64x2.neg", 0xed, F64X2, UNARY),
+        F64X2_SQRT("f64x2.sqrt", 0xef, F64X2, UNARY),
+        F64X2_ADD("f64x2.add", 0xf0, F64X2, BINARY),
+        F64X2_SUB("f64x2.sub", 0xf1, F64X2, BINARY),
+        F64X2_MUL("f64x2.mul", 0xf2, F64X2, BINARY),
+        F64X2_DIV("f64x2.div", 0xf3, F64X2, BINARY),
+        F64X2_MIN("f64x2.min", 0xf4, F64X2, BINARY),
+        F64X2_MAX("f64x2.max", 0xf5, F64X2, BINARY),
+        F64X2_PMIN("f64x2.pmin", 0xf6, F64X2, BINARY),
+        F64X2_PMAX("f64x2.pmax", 0xf7, F64X2, BINARY),
+        I32X4_TRUNC_SAT_F32X4_S("i32x4.trunc_sat_f32x4_s", 0xf8, F32X4, UNARY),
+        I32X4_TRUNC_SAT_F32X4_U("i32x4.trunc_sat_f32x4_u", 0xf9, F32X4, UNARY),
+        F32X4_CONVERT_I32X4_S("f32x4.convert_i32x4_s", 0xfa, I32X4, UNARY),
+        F32X4_CONVERT_I32X4_U("f32x4.convert_i32x4_u", 0xfb, I32X4, UNARY),
+        I32X4_TRUNC_SAT_F64X2_S_ZERO("i32x4.trunc_sat_f64x2_s_zero", 0xfc, F64X2, UNARY),
+        I32X4_TRUNC_SAT_F64X2_U_ZERO("i32x4.trunc_sat_f64x2_u_zero", 0xfd, F64X2, UNARY),
+        F64X2_CONVERT_LOW_I32X4_S("f64x2.convert_low_i32x4_s", 0xfe, I32X4, UNARY),
+        F64X2_CONVERT_LOW_I32X4_U("f64x2.convert_low_i32x4_u", 0xff, I32X4, UNARY),
+        ;
+        private final String opCode;
+        private final int byteCode;
+        private final Shape shape;
+        private final Kind kind;
+
+        VectorOp(String opCode, int byteCode, Shape shape, Kind kind) {
+            this.opCode = opCode;
+            this.byteCode = byteCode;
+            this.shape = shape;
+            this.kind = kind;
+        }
+
+        public String opCode() {return opCode;}
+        public int byteCode() {return byteCode;}
+        // Shape of the input lanes
+        public Shape shape() {return shape;}
+        public Kind kind() {return kind;}
+
+        private static final Map<Integer, VectorOp> byteCodeMap = ConversionUtils.convertArrayToImmutableMap(values(), VectorOp::byteCode);
+
+        public static VectorOp from(int byteCode) {
+            VectorOp op = byteCodeMap.get(byteCode);
+            if (op == null) {
+                throw new RuntimeException(String.format("Unsupported SIMD instruction: 0xfd 0x%x", byteCode));
+            }
+            return op;
+        }
+    }
+}
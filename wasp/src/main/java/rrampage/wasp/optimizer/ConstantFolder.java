@@ -0,0 +1,275 @@
+package rrampage.wasp.optimizer;
+
+import rrampage.wasp.instructions.*;
+import rrampage.wasp.instructions.ConstInstruction.*;
+import rrampage.wasp.instructions.ControlFlowInstruction.*;
+
+import java.util.ArrayList;
+
+import static rrampage.wasp.utils.ConversionUtils.wrapBoolean;
+
+/**
+ * Folds constant expressions and removes dead code in one walk over a function body. Ops which trap on their
+ * constant operands (e.g. division by zero) are left in place, so the trap still happens at run time. Float ops
+ * with NaN operands or results are not folded either, as the bits of NaNs may differ from those computed at run time.
+ */
+final class ConstantFolder {
+    private final OptimizerReport report;
+
+    ConstantFolder(OptimizerReport report) {
+        this.report = report;
+    }
+
+    Instruction[] fold(Instruction[] code) {
+        ArrayList<Instruction> out = new ArrayList<>(code.length);
+        boolean reachable = true;
+        for (Instruction ins : code) {
+            if (!reachable) {
+                report.add(OptimizerReport.Pass.DEAD_CODE, 1);
+                continue;
+            }
+            switch (ins) {
+                case NullaryInstruction.NOP -> report.add(OptimizerReport.Pass.DEAD_CODE, 1);
+                case Block b -> out.add(new Block(b.label(), b.type(), fold(b.code())));
+                case Loop b -> out.add(new Loop(b.label(), b.type(), fold(b.code())));
+                case If b -> {
+                    if (last(out) instanceof IntConst(int cond)) {
+                        out.removeLast();
+                        report.add(OptimizerReport.Pass.CONSTANT_FOLDING, 1);
+                        // An if without else passes its params through when the condition is false
+                        if (cond != 0) {
+                            out.add(new Block(b.label(), b.type(), fold(b.ifBlock())));
+                        }
+                    } else {
+                        out.add(new If(b.label(), b.type(), fold(b.ifBlock())));
+                    }
+                }
+                case IfElse b -> {
+                    if (last(out) instanceof IntConst(int cond)) {
+                        out.removeLast();
+                        report.add(OptimizerReport.Pass.CONSTANT_FOLDING, 1);
+                        out.add(new Block(b.label(), b.type(), fold((cond != 0) ? b.ifBlock() : b.elseBlock())));
+                    } else {
+                        out.add(new IfElse(b.label(), b.type(), fold(b.ifBlock()), fold(b.elseBlock())));
+                    }
+                }
+                case BranchIf b -> {
+                    if (last(out) instanceof IntConst(int cond)) {
+                        out.removeLast();
+                        report.add(OptimizerReport.Pass.CONSTANT_FOLDING, 1);
+                        if (cond != 0) {
+                            out.add(new Branch(b.label()));
+                            reachable = false;
+                        }
+                    } else {
+                        out.add(b);
+                    }
+                }
+                case UnaryInstruction.DROP -> {
+                    if (last(out) instanceof ConstInstruction) {
+                        out.removeLast();
+                        report.add(OptimizerReport.Pass.CONSTANT_FOLDING, 1);
+                    } else {
+                        out.add(ins);
+                    }
+                }
+                default -> {
+                    ConstInstruction folded = (out.size() >= 2) ? foldBinary(ins, out.get(out.size() - 2), out.getLast()) : null;
+                    if (folded != null) {
+                        out.removeLast();
+                        out.removeLast();
+                    } else if ((folded = foldUnary(ins, last(out))) != null) {
+                        out.removeLast();
+                    }
+                    if (folded != null) {
+                        report.add(OptimizerReport.Pass.CONSTANT_FOLDING, 1);
+                        out.add(folded);
+                    } else {
+                        out.add(ins);
+                        reachable = !(ins == NullaryInstruction.UNREACHABLE || ins instanceof Branch
+                                || ins instanceof BranchTable || ins instanceof FunctionInstruction.Return);
+                    }
+                }
+            }
+        }
+        return out.toArray(Instruction[]::new);
+    }
+
+    private static Instruction last(ArrayList<Instruction> out) {
+        return out.isEmpty() ? null : out.getLast();
+    }
+
+    private static ConstInstruction foldBinary(Instruction op, Instruction left, Instruction right) {
+        return switch (op) {
+            case IntBinaryInstruction i when left instanceof IntConst(int l) && right instanceof IntConst(int r) -> foldI32(i, l, r);
+            case LongBinaryInstruction i when left instanceof LongConst(long l) && right instanceof LongConst(long r) -> foldI64(i, l, r);
+            case FloatBinaryInstruction i when left instanceof FloatConst(float l) && right instanceof FloatConst(float r)
+                    && !Float.isNaN(l) && !Float.isNaN(r) -> foldF32(i, l, r);
+            case DoubleBinaryInstruction i when left instanceof DoubleConst(double l) && right instanceof DoubleConst(double r)
+                    && !Double.isNaN(l) && !Double.isNaN(r) -> foldF64(i, l, r);
+            default -> null;
+        };
+    }
+
+    private static ConstInstruction foldI32(IntBinaryInstruction op, int l, int r) {
+        boolean traps = switch (op) {
+            case I32_DIV_U, I32_REM_U, I32_REM_S -> r == 0;
+            case I32_DIV_S -> r == 0 || (l == Integer.MIN_VALUE && r == -1);
+            default -> false;
+        };
+        if (traps) {
+            return null;
+        }
+        return new IntConst(switch (op) {
+            case I32_ADD -> l + r;
+            case I32_SUB -> l - r;
+            case I32_MUL -> l * r;
+            case I32_DIV_S -> l / r;
+            case I32_DIV_U -> Integer.divideUnsigned(l, r);
+            case I32_REM_S -> l % r;
+            case I32_REM_U -> Integer.remainderUnsigned(l, r);
+            case I32_AND -> l & r;
+            case I32_OR -> l | r;
+            case I32_XOR -> l ^ r;
+            case I32_SHL -> l << r;
+            case I32_SHR_S -> l >> r;
+            case I32_SHR_U -> l >>> r;
+            case I32_ROTL -> Integer.rotateLeft(l, r);
+            case I32_ROTR -> Integer.rotateRight(l, r);
+            case I32_EQ -> wrapBoolean(l == r);
+            case I32_NE -> wrapBoolean(l != r);
+            case I32_LT_S -> wrapBoolean(l < r);
+            case I32_LT_U -> wrapBoolean(Integer.compareUnsigned(l, r) < 0);
+            case I32_GT_S -> wrapBoolean(l > r);
+            case I32_GT_U -> wrapBoolean(Integer.compareUnsigned(l, r) > 0);
+            case I32_LE_S -> wrapBoolean(l <= r);
+            case I32_LE_U -> wrapBoolean(Integer.compareUnsigned(l, r) <= 0);
+            case I32_GE_S -> wrapBoolean(l >= r);
+            case I32_GE_U -> wrapBoolean(Integer.compareUnsigned(l, r) >= 0);
+        });
+    }
+
+    private static ConstInstruction foldI64(LongBinaryInstruction op, long l, long r) {
+        return switch (op) {
+            case I64_DIV_U, I64_REM_U, I64_REM_S -> (r == 0) ? null : new LongConst(switch (op) {
+                case I64_DIV_U -> Long.divideUnsigned(l, r);
+                case I64_REM_U -> Long.remainderUnsigned(l, r);
+                default -> l % r;
+            });
+            case I64_DIV_S -> (r == 0 || (l == Long.MIN_VALUE && r == -1)) ? null : new LongConst(l / r);
+            case I64_ADD -> new LongConst(l + r);
+            case I64_SUB -> new LongConst(l - r);
+            case I64_MUL -> new LongConst(l * r);
+            case I64_AND -> new LongConst(l & r);
+            case I64_OR -> new LongConst(l | r);
+            case I64_XOR -> new LongConst(l ^ r);
+            case I64_SHL -> new LongConst(l << r);
+            case I64_SHR_S -> new LongConst(l >> r);
+            case I64_SHR_U -> new LongConst(l >>> r);
+            case I64_ROTL -> new LongConst(Long.rotateLeft(l, (int) r));
+            case I64_ROTR -> new LongConst(Long.rotateRight(l, (int) r));
+            case I64_EQ -> new IntConst(wrapBoolean(l == r));
+            case I64_NE -> new IntConst(wrapBoolean(l != r));
+            case I64_LT_S -> new IntConst(wrapBoolean(l < r));
+            case I64_LT_U -> new IntConst(wrapBoolean(Long.compareUnsigned(l, r) < 0));
+            case I64_GT_S -> new IntConst(wrapBoolean(l > r));
+            case I64_GT_U -> new IntConst(wrapBoolean(Long.compareUnsigned(l, r) > 0));
+            case I64_LE_S -> new IntConst(wrapBoolean(l <= r));
+            case I64_LE_U -> new IntConst(wrapBoolean(Long.compareUnsigned(l, r) <= 0));
+            case I64_GE_S -> new IntConst(wrapBoolean(l >= r));
+            case I64_GE_U -> new IntConst(wrapBoolean(Long.compareUnsigned(l, r) >= 0));
+        };
+    }
+
+    private static ConstInstruction foldF32(FloatBinaryInstruction op, float l, float r) {
+        return switch (op) {
+            case F32_ADD -> floatConst(l + r);
+            case F32_SUB -> floatConst(l - r);
+            case F32_MUL -> floatConst(l * r);
+            case F32_DIV -> floatConst(l / r);
+            case F32_MIN -> floatConst(Float.min(l, r));
+            case F32_MAX -> floatConst(Float.max(l, r));
+            case F32_COPY_SIGN -> floatConst(Math.copySign(l, r));
+            case F32_EQ -> new IntConst(wrapBoolean(l == r));
+            case F32_NE -> new IntConst(wrapBoolean(l != r));
+            case F32_LT -> new IntConst(wrapBoolean(l < r));
+            case F32_GT -> new IntConst(wrapBoolean(l > r));
+            case F32_LE -> new IntConst(wrapBoolean(l <= r));
+            case F32_GE -> new IntConst(wrapBoolean(l >= r));
+        };
+    }
+
+    private static ConstInstruction foldF64(DoubleBinaryInstruction op, double l, double r) {
+        return switch (op) {
+            case F64_ADD -> doubleConst(l + r);
+            case F64_SUB -> doubleConst(l - r);
+            case F64_MUL -> doubleConst(l * r);
+            case F64_DIV -> doubleConst(l / r);
+            case F64_MIN -> doubleConst(Double.min(l, r));
+            case F64_MAX -> doubleConst(Double.max(l, r));
+            case F64_COPY_SIGN -> doubleConst(Math.copySign(l, r));
+            case F64_EQ -> new IntConst(wrapBoolean(l == r));
+            case F64_NE -> new IntConst(wrapBoolean(l != r));
+            case F64_LT -> new IntConst(wrapBoolean(l < r));
+            case F64_GT -> new IntConst(wrapBoolean(l > r));
+            case F64_LE -> new IntConst(wrapBoolean(l <= r));
+            case F64_GE -> new IntConst(wrapBoolean(l >= r));
+        };
+    }
+
+    // Only conversions which can not trap and keep NaN bits out of the picture
+    private static ConstInstruction foldUnary(Instruction op, Instruction operand) {
+        if (!(op instanceof UnaryInstruction u)) {
+            return null;
+        }
+        return switch (operand) {
+            case IntConst(int v) -> switch (u) {
+                case I32_EQZ -> new IntConst(wrapBoolean(v == 0));
+                case I32_CLZ -> new IntConst(Integer.numberOfLeadingZeros(v));
+                case I32_CTZ -> new IntConst(Integer.numberOfTrailingZeros(v));
+                case I32_POPCNT -> new IntConst(Integer.bitCount(v));
+                case I32_EXTEND8_S -> new IntConst((byte) v);
+                case I32_EXTEND16_S -> new IntConst((short) v);
+                case I64_EXTEND_I32_S -> new LongConst(v);
+                case I64_EXTEND_I32_U -> new LongConst(Integer.toUnsignedLong(v));
+                case F32_CONVERT_I32_S -> new FloatConst(v);
+                case F64_CONVERT_I32_S -> new DoubleConst(v);
+                default -> null;
+            };
+            case LongConst(long v) -> switch (u) {
+                case I64_EQZ -> new IntConst(wrapBoolean(v == 0));
+                case I64_CLZ -> new LongConst(Long.numberOfLeadingZeros(v));
+                case I64_CTZ -> new LongConst(Long.numberOfTrailingZeros(v));
+                case I64_POPCNT -> new LongConst(Long.bitCount(v));
+                case I64_EXTEND8_S -> new LongConst((byte) v);
+                case I64_EXTEND16_S -> new LongConst((short) v);
+                case I64_EXTEND32_S -> new LongConst((int) v);
+                case I32_WRAP_I64 -> new IntConst((int) v);
+                case F32_CONVERT_I64_S -> new FloatConst(v);
+                case F64_CONVERT_I64_S -> new DoubleConst(v);
+                default -> null;
+            };
+            case FloatConst(float v) when !Float.isNaN(v) -> switch (u) {
+                case F32_NEG -> new FloatConst(-v);
+                case F32_ABS -> new FloatConst(Math.abs(v));
+                case F64_PROMOTE_F32 -> new DoubleConst(v);
+                default -> null;
+            };
+            case DoubleConst(double v) when !Double.isNaN(v) -> switch (u) {
+                case F64_NEG -> new DoubleConst(-v);
+                case F64_ABS -> new DoubleConst(Math.abs(v));
+                case F32_DEMOTE_F64 -> new FloatConst((float) v);
+                default -> null;
+            };
+            case null, default -> null;
+        };
+    }
+
+    private static FloatConst floatConst(float v) {
+        return Float.isNaN(v) ? null : new FloatConst(v);
+    }
+
+    private static DoubleConst doubleConst(double v) {
+        return Double.isNaN(v) ? null : new DoubleConst(v);
+    }
+}
@@ -0,0 +1,27 @@
+package rrampage.wasp.optimizer;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Number of superinstructions created by {@link InstructionFuser}, keyed by the op code of the fused instruction.
+ */
+public record FusionReport(Map<String, Integer> fusions) {
+    public FusionReport() {
+        this(new TreeMap<>());
+    }
+
+    void add(String opCode) {
+        fusions.merge(opCode, 1, Integer::sum);
+    }
+
+    public int total() {
+        return fusions.values().stream().mapToInt(Integer::intValue).sum();
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder(STR."Fusions: \{total()}\n");
+        fusions.forEach((k, v) -> sb.append(STR."    \{k}: \{v}\n"));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,96 @@
+package rrampage.wasp.optimizer;
+
+import rrampage.wasp.data.Function;
+import rrampage.wasp.data.Module;
+import rrampage.wasp.instructions.*;
+import rrampage.wasp.instructions.ConstInstruction.IntConst;
+import rrampage.wasp.instructions.ControlFlowInstruction.*;
+import rrampage.wasp.instructions.FunctionInstruction.LocalGet;
+import rrampage.wasp.instructions.FunctionInstruction.LocalSet;
+
+import java.util.ArrayList;
+
+/**
+ * Peephole pass replacing common instruction sequences with {@link FusedInstruction}s, so that the interpreter does
+ * fewer stack round trips for them. Run it on a parsed module before instantiating it:
+ * <pre>
+ *     Module module = parser.parseModule();
+ *     FusionReport report = InstructionFuser.fuse(module);
+ * </pre>
+ */
+public class InstructionFuser {
+    private final FusionReport report = new FusionReport();
+
+    private InstructionFuser() {}
+
+    /**
+     * Fuses the code of every function in the module in place. Functions without any fusion are left untouched.
+     */
+    public static FusionReport fuse(Module module) {
+        return fuse(module.functions());
+    }
+
+    /**
+     * Replaces functions in the array with fused copies. Function objects themselves are not modified.
+     */
+    public static FusionReport fuse(Function[] functions) {
+        InstructionFuser fuser = new InstructionFuser();
+        if (functions == null) {
+            return fuser.report;
+        }
+        for (int i = 0; i < functions.length; i++) {
+            Function f = functions[i];
+            if (f.code() == null || f.code().length == 0) {
+                continue;
+            }
+            int before = fuser.report.total();
+            Instruction[] code = fuser.fuse(f.code());
+            if (fuser.report.total() != before) {
+                functions[i] = new Function(f.name(), f.type(), f.locals(), code);
+            }
+        }
+        return fuser.report;
+    }
+
+    private Instruction[] fuse(Instruction[] code) {
+        ArrayList<Instruction> out = new ArrayList<>(code.length);
+        int i = 0;
+        while (i < code.length) {
+            Instruction ins = code[i];
+            Instruction fused = null;
+            int len = 0;
+            if (i + 3 < code.length && code[i] instanceof LocalGet(int local) && code[i+1] instanceof IntConst(int val)
+                    && code[i+2] instanceof IntBinaryInstruction op && code[i+3] instanceof LocalSet(int dst)) {
+                fused = new FusedInstruction.LocalConstI32Set(local, val, op, dst);
+                len = 4;
+            } else if (i + 2 < code.length && code[i] instanceof LocalGet(int local) && code[i+1] instanceof IntConst(int val)
+                    && code[i+2] instanceof IntBinaryInstruction op) {
+                fused = new FusedInstruction.LocalConstI32(local, val, op);
+                len = 3;
+            } else if (i + 2 < code.length && code[i] instanceof LocalGet(int left) && code[i+1] instanceof LocalGet(int right)
+                    && code[i+2] instanceof IntBinaryInstruction op) {
+                fused = new FusedInstruction.LocalLocalI32(left, right, op);
+                len = 3;
+            } else if (i + 2 < code.length && code[i] instanceof IntConst(int val) && code[i+1] instanceof IntBinaryInstruction op
+                    && code[i+2] instanceof BranchIf(int label)) {
+                fused = new FusedInstruction.ConstI32BrIf(val, op, label);
+                len = 3;
+            }
+            if (fused != null) {
+                report.add(fused.opCode());
+                out.add(fused);
+                i += len;
+                continue;
+            }
+            out.add(switch (ins) {
+                case Block b -> new Block(b.label(), b.type(), fuse(b.code()));
+                case Loop b -> new Loop(b.label(), b.type(), fuse(b.code()));
+                case If b -> new If(b.label(), b.type(), fuse(b.ifBlock()));
+                case IfElse b -> new IfElse(b.label(), b.type(), fuse(b.ifBlock()), fuse(b.elseBlock()));
+                default -> ins;
+            });
+            i++;
+        }
+        return out.toArray(Instruction[]::new);
+    }
+}
@@ -0,0 +1,302 @@
+package rrampage.wasp.optimizer;
+
+import rrampage.wasp.data.ElementSegment;
+import rrampage.wasp.data.Function;
+import rrampage.wasp.data.FunctionType;
+import rrampage.wasp.data.Module;
+import rrampage.wasp.data.ValueType;
+import rrampage.wasp.data.Variable;
+import rrampage.wasp.instructions.*;
+import rrampage.wasp.instructions.ControlFlowInstruction.*;
+import rrampage.wasp.instructions.FunctionInstruction.*;
+import rrampage.wasp.parser.types.ExportDescriptor;
+import rrampage.wasp.parser.types.ExportMetadata;
+import rrampage.wasp.parser.types.ImportDescriptor;
+import rrampage.wasp.parser.types.ImportMetadata;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.Consumer;
+
+/**
+ * Optimization pipeline over function bodies. It removes functions which can not be reached, folds constant
+ * expressions, removes dead code and inlines small leaf functions at their call sites. Run it on a parsed module before
+ * instantiating it, or enable it with {@link rrampage.wasp.vm.MachineConfig.ConfigBuilder#optimize(boolean)}:
+ * <pre>
+ *     Module module = parser.parseModule();
+ *     OptimizerReport report = ModuleOptimizer.optimize(module);
+ * </pre>
+ * Fuel is charged by the size of the code which runs, so optimized modules use less fuel than the original.
+ */
+public class ModuleOptimizer {
+    // Callees with at most this many instructions, counting those in nested blocks, are inlined
+    static final int INLINE_LIMIT = 12;
+
+    private final Function[] functions;
+    private final int numImports;
+    private final OptimizerReport report = new OptimizerReport();
+
+    private ModuleOptimizer(Function[] functions, int numImports) {
+        this.functions = functions;
+        this.numImports = numImports;
+    }
+
+    /**
+     * Optimizes the functions of the module in place.
+     */
+    public static OptimizerReport optimize(Module module) {
+        return optimize(module.functions(), module.imports(), module.exports(), module.elementSegments(),
+                module.globals(), module.startIdx());
+    }
+
+    /**
+     * Replaces functions in the array with optimized copies. Function objects themselves are not modified.
+     * Exports, the start function, element segments and globals decide which functions are reachable.
+     */
+    public static OptimizerReport optimize(Function[] functions, ImportMetadata[] imports, ExportMetadata[] exports,
+                                           ElementSegment[] elementSegments, Variable[] globals, long startIdx) {
+        int numImports = (imports == null) ? 0 : (int) Arrays.stream(imports)
+                .filter(i -> i.importDescriptor() instanceof ImportDescriptor.FunctionDescriptor).count();
+        ModuleOptimizer optimizer = new ModuleOptimizer(functions, numImports);
+        if (functions == null) {
+            return optimizer.report;
+        }
+        optimizer.removeDeadFunctions(exports, elementSegments, globals, startIdx);
+        ConstantFolder folder = new ConstantFolder(optimizer.report);
+        for (int i = numImports; i < functions.length; i++) {
+            Function f = functions[i];
+            int before = optimizer.report.total();
+            Instruction[] code = folder.fold(f.code());
+            if (optimizer.report.total() != before) {
+                functions[i] = new Function(f.name(), f.type(), f.locals(), code);
+            }
+        }
+        optimizer.inline();
+        return optimizer.report;
+    }
+
+    private void removeDeadFunctions(ExportMetadata[] exports, ElementSegment[] elementSegments, Variable[] globals, long startIdx) {
+        boolean[] live = new boolean[functions.length];
+        ArrayDeque<Integer> pending = new ArrayDeque<>();
+        Consumer<Integer> mark = idx -> {
+            if (idx >= 0 && idx < live.length && !live[idx]) {
+                live[idx] = true;
+                pending.add(idx);
+            }
+        };
+        if (exports != null) {
+            for (ExportMetadata e : exports) {
+                if (e.descriptor() instanceof ExportDescriptor.FunctionDescriptor(int idx)) {
+                    mark.accept(idx);
+                }
+            }
+        }
+        mark.accept((int) startIdx);
+        if (elementSegments != null) {
+            for (ElementSegment segment : elementSegments) {
+                switch (segment) {
+                    case ElementSegment.ActiveElementSegment s -> markElements(s.functionIndexVector(), s.expressionVector(), mark);
+                    case ElementSegment.PassiveElementSegment s -> markElements(s.functionIndexVector(), s.expressionVector(), mark);
+                    case ElementSegment.DeclarativeElementSegment s -> markElements(s.functionIndexVector(), s.expressionVector(), mark);
+                }
+            }
+        }
+        if (globals != null) {
+            for (Variable v : globals) {
+                if (v != null && v.expr() instanceof RefTypeInstruction.RefFunc(int idx)) {
+                    mark.accept(idx);
+                }
+            }
+        }
+        while (!pending.isEmpty()) {
+            int idx = pending.poll();
+            if (idx < numImports) {
+                continue;
+            }
+            forEach(functions[idx].code(), ins -> {
+                switch (ins) {
+                    case Call c -> mark.accept(c.val());
+                    case RefTypeInstruction.RefFunc r -> mark.accept(r.functionIndex());
+                    default -> {}
+                }
+            });
+        }
+        int removed = 0;
+        for (int i = numImports; i < functions.length; i++) {
+            if (!live[i]) {
+                Function f = functions[i];
+                functions[i] = new Function(f.name(), f.type(), null, new Instruction[]{NullaryInstruction.UNREACHABLE});
+                removed++;
+            }
+        }
+        report.add(OptimizerReport.Pass.DEAD_FUNCTIONS, removed);
+    }
+
+    private static void markElements(int[] indices, ConstExpression[] expressions, Consumer<Integer> mark) {
+        if (indices != null) {
+            for (int idx : indices) {
+                mark.accept(idx);
+            }
+        }
+        if (expressions != null) {
+            for (ConstExpression e : expressions) {
+                if (e instanceof RefTypeInstruction.RefFunc(int idx)) {
+                    mark.accept(idx);
+                }
+            }
+        }
+    }
+
+    private static void forEach(Instruction[] code, Consumer<Instruction> action) {
+        for (Instruction ins : code) {
+            action.accept(ins);
+            switch (ins) {
+                case Block b -> forEach(b.code(), action);
+                case Loop b -> forEach(b.code(), action);
+                case If b -> forEach(b.ifBlock(), action);
+                case IfElse b -> {
+                    forEach(b.ifBlock(), action);
+                    forEach(b.elseBlock(), action);
+                }
+                default -> {}
+            }
+        }
+    }
+
+    // Inlining
+
+    private void inline() {
+        boolean[] inlinable = new boolean[functions.length];
+        for (int i = numImports; i < functions.length; i++) {
+            inlinable[i] = isInlinable(functions[i]);
+        }
+        // Leaf functions make no calls, so inlining never changes the bodies of other candidates
+        for (int i = numImports; i < functions.length; i++) {
+            Function f = functions[i];
+            Inliner inliner = new Inliner(f, inlinable);
+            Instruction[] code = inliner.inline(f.code(), -1);
+            if (inliner.inlined > 0) {
+                functions[i] = new Function(f.name(), f.type(), inliner.locals.toArray(ValueType[]::new), code);
+                report.add(OptimizerReport.Pass.INLINING, inliner.inlined);
+            }
+        }
+    }
+
+    private static boolean isInlinable(Function f) {
+        if (f.type().hasVectorTypes()) {
+            return false;
+        }
+        if (f.locals() != null) {
+            for (ValueType t : f.locals()) {
+                // Locals are cleared on every inlined call, which needs a constant of their type
+                if (!(t instanceof ValueType.NumType)) {
+                    return false;
+                }
+            }
+        }
+        int[] size = {0};
+        boolean[] leaf = {true};
+        forEach(f.code(), ins -> {
+            size[0]++;
+            if (ins instanceof Call || ins instanceof CallIndirect || ins instanceof CallJava) {
+                leaf[0] = false;
+            }
+        });
+        return leaf[0] && size[0] <= INLINE_LIMIT;
+    }
+
+    /*
+        Rewrites the calls of one function. The args are stored in fresh locals of the caller and the callee body runs
+        in a block returning its results. Labels are nesting depths, so the callee's labels move down below the block
+        and returns become branches to it.
+     */
+    private final class Inliner {
+        final ArrayList<ValueType> locals;
+        final boolean[] inlinable;
+        // First local of the caller holding the params and locals of each inlined callee
+        final HashMap<Integer, Integer> localBase = new HashMap<>();
+        final int numParams;
+        int inlined = 0;
+
+        Inliner(Function caller, boolean[] inlinable) {
+            this.locals = new ArrayList<>((caller.locals() == null) ? Arrays.asList() : Arrays.asList(caller.locals()));
+            this.inlinable = inlinable;
+            this.numParams = caller.numParams();
+        }
+
+        Instruction[] inline(Instruction[] code, int level) {
+            ArrayList<Instruction> out = new ArrayList<>(code.length);
+            for (Instruction ins : code) {
+                switch (ins) {
+                    case Call c when c.val() < inlinable.length && inlinable[c.val()] -> {
+                        inlineCall(functions[c.val()], c.val(), level + 1, out);
+                        inlined++;
+                    }
+                    case Block b -> out.add(new Block(b.label(), b.type(), inline(b.code(), b.label())));
+                    case Loop b -> out.add(new Loop(b.label(), b.type(), inline(b.code(), b.label())));
+                    case If b -> out.add(new If(b.label(), b.type(), inline(b.ifBlock(), b.label())));
+                    case IfElse b -> out.add(new IfElse(b.label(), b.type(), inline(b.ifBlock(), b.label()), inline(b.elseBlock(), b.label())));
+                    default -> out.add(ins);
+                }
+            }
+            return out.toArray(Instruction[]::new);
+        }
+
+        private void inlineCall(Function callee, int idx, int label, ArrayList<Instruction> out) {
+            int base = localBase.computeIfAbsent(idx, _ -> {
+                int first = numParams + locals.size();
+                if (callee.type().paramTypes() != null) {
+                    locals.addAll(Arrays.asList(callee.type().paramTypes()));
+                }
+                if (callee.locals() != null) {
+                    locals.addAll(Arrays.asList(callee.locals()));
+                }
+                return first;
+            });
+            for (int i = callee.numParams() - 1; i >= 0; i--) {
+                out.add(new LocalSet(base + i));
+            }
+            for (int i = 0; i < callee.numLocals(); i++) {
+                out.add(zero(callee.locals()[i]));
+                out.add(new LocalSet(base + callee.numParams() + i));
+            }
+            FunctionType type = new FunctionType(null, callee.type().returnTypes());
+            out.add(new Block(label, type, relocate(callee.code(), base, label)));
+        }
+
+        // The callee's function level -1 becomes the label of the block around the body
+        private Instruction[] relocate(Instruction[] code, int base, int label) {
+            Instruction[] out = new Instruction[code.length];
+            for (int i = 0; i < code.length; i++) {
+                out[i] = switch (code[i]) {
+                    case LocalGet l -> new LocalGet(base + l.val());
+                    case LocalSet l -> new LocalSet(base + l.val());
+                    case LocalTee l -> new LocalTee(base + l.val());
+                    case Return _ -> new Branch(label);
+                    case Branch b -> new Branch(b.label() + label + 1);
+                    case BranchIf b -> new BranchIf(b.label() + label + 1);
+                    case BranchTable b -> new BranchTable(Arrays.stream(b.labels()).map(l -> l + label + 1).toArray(),
+                            b.defaultLabel() + label + 1);
+                    case Block b -> new Block(b.label() + label + 1, b.type(), relocate(b.code(), base, label));
+                    case Loop b -> new Loop(b.label() + label + 1, b.type(), relocate(b.code(), base, label));
+                    case If b -> new If(b.label() + label + 1, b.type(), relocate(b.ifBlock(), base, label));
+                    case IfElse b -> new IfElse(b.label() + label + 1, b.type(), relocate(b.ifBlock(), base, label),
+                            relocate(b.elseBlock(), base, label));
+                    default -> code[i];
+                };
+            }
+            return out;
+        }
+
+        private static Instruction zero(ValueType type) {
+            return switch ((ValueType.NumType) type) {
+                case I32 -> new ConstInstruction.IntConst(0);
+                case I64 -> new ConstInstruction.LongConst(0);
+                case F32 -> new ConstInstruction.FloatConst(0);
+                case F64 -> new ConstInstruction.DoubleConst(0);
+            };
+        }
+    }
+}
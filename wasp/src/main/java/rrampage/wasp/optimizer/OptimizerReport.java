@@ -0,0 +1,47 @@
+package rrampage.wasp.optimizer;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Number of changes made by each pass of {@link ModuleOptimizer}.
+ */
+public record OptimizerReport(Map<OptimizerReport.Pass, Integer> changes) {
+    public enum Pass {
+        // Constant expressions replaced by their value, including branches on constant conditions
+        CONSTANT_FOLDING,
+        // Instructions removed after unreachable, br, br_table and return and nops
+        DEAD_CODE,
+        // Functions which can not be reached from exports, start or element segments. Their bodies are replaced by
+        // unreachable, so that function indices stay the same
+        DEAD_FUNCTIONS,
+        // Call sites of small leaf functions replaced by the body of the callee
+        INLINING,
+    }
+
+    public OptimizerReport() {
+        this(new EnumMap<>(Pass.class));
+    }
+
+    void add(Pass pass, int n) {
+        if (n > 0) {
+            changes.merge(pass, n, Integer::sum);
+        }
+    }
+
+    public int get(Pass pass) {
+        return changes.getOrDefault(pass, 0);
+    }
+
+    public int total() {
+        return changes.values().stream().mapToInt(Integer::intValue).sum();
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder(STR."Optimizations: \{total()}\n");
+        for (Pass pass : Pass.values()) {
+            sb.append(STR."    \{pass}: \{get(pass)}\n");
+        }
+        return sb.toString();
+    }
+}
@@ -7,6 +7,7 @@ import rrampage.wasp.utils.Leb128;
 import static rrampage.wasp.instructions.ByteCodeConstants.*;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -41,7 +42,7 @@ public class InstructionParser {
             case CF_BLOCK, CF_LOOP, CF_IF, CF_ELSE, CF_END, CF_BR, CF_BR_IF, CF_BR_TABLE -> parseControlFlowInstruction(b, in, types, startPos, bytesToParse, labelMarker);
             case CONST_INT, CONST_LONG, CONST_FLOAT, CONST_DOUBLE -> parseConstantInstruction(b, in);
             case GLOBAL_GET, GLOBAL_SET -> parseGlobalInstruction(b, in);
-            case LOCAL_GET, LOCAL_SET, LOCAL_TEE, FUNC_CALL, FUNC_CALL_INDIRECT, FUNC_RETURN -> parseFunctionInstruction(b, in);
+            case LOCAL_GET, LOCAL_SET, LOCAL_TEE, FUNC_CALL, FUNC_CALL_INDIRECT, FUNC_RETURN -> parseFunctionInstruction(b, in, types);
             case LOAD_I32, LOAD8_I32_S, LOAD8_I32_U, LOAD16_I32_S, LOAD16_I32_U, LOAD_F32, LOAD_F64,
                     LOAD_I64, LOAD8_I64_S, LOAD8_I64_U, LOAD16_I64_S,
                     LOAD16_I64_U, LOAD32_I64_S, LOAD32_I64_U -> parseLoadInstruction(b, in);
@@ -85,6 +86,8 @@ public class InstructionParser {
             // other table instructions will be called using bytecode read by parseFCPrefixInstruction
             case TABLE_GET, TABLE_SET, REF_NULL, REF_IS_NULL, REF_FUNC -> parseRefTypeInstruction(b, in);
             case FC_PREFIX -> parseFCPrefixInstruction(in);
+            case FD_PREFIX -> parseFDPrefixInstruction(in);
+            case FE_PREFIX -> parseFEPrefixInstruction(in);
             default -> throw new RuntimeException(String.format("Invalid bytecode for instruction: 0x%x", b));
         };
     }
@@ -225,7 +228,7 @@ public class InstructionParser {
         };
     }
 
-    private static FunctionInstruction parseFunctionInstruction(int byteCode, ByteBuffer in) {
+    private static FunctionInstruction parseFunctionInstruction(int byteCode, ByteBuffer in, FunctionType[] types) {
         // System.out.printf("Parsing Function instruction with bytecode 0x%X\n", byteCode);
         return switch (byteCode) {
             case LOCAL_GET -> new FunctionInstruction.LocalGet((int) Leb128.readUnsigned(in));
@@ -233,7 +236,12 @@ public class InstructionParser {
             case LOCAL_TEE -> new FunctionInstruction.LocalTee((int) Leb128.readUnsigned(in));
             case FUNC_RETURN -> new FunctionInstruction.Return();
             case FUNC_CALL -> new FunctionInstruction.Call((int) Leb128.readUnsigned(in));
-            case FUNC_CALL_INDIRECT -> new FunctionInstruction.CallIndirect((int) Leb128.readUnsigned(in), (int) Leb128.readUnsigned(in));
+            case FUNC_CALL_INDIRECT -> {
+                int typeIdx = (int) Leb128.readUnsigned(in);
+                int tableIdx = (int) Leb128.readUnsigned(in);
+                FunctionType type = (types != null && typeIdx < types.length) ? types[typeIdx] : null;
+                yield new FunctionInstruction.CallIndirect(typeIdx, tableIdx, type);
+            }
             default -> throw new RuntimeException("Unexpected bytecode for global instruction: " + byteCode);
         };
     }
@@ -435,6 +443,131 @@ public class InstructionParser {
         };
     }
 
+    private static VectorInstruction parseFDPrefixInstruction(ByteBuffer in) {
+        int byteCode = (int) Leb128.readUnsigned(in);
+        return switch (byteCode) {
+            case FD_V128_LOAD -> new VectorInstruction.V128Load((int) Leb128.readUnsigned(in), (int) Leb128.readUnsigned(in));
+            case FD_V128_STORE -> new VectorInstruction.V128Store((int) Leb128.readUnsigned(in), (int) Leb128.readUnsigned(in));
+            case FD_V128_LOAD8_SPLAT, FD_V128_LOAD16_SPLAT, FD_V128_LOAD32_SPLAT, FD_V128_LOAD64_SPLAT -> {
+                VectorInstruction.Shape shape = VectorInstruction.Shape.values()[byteCode - FD_V128_LOAD8_SPLAT];
+                yield new VectorInstruction.V128LoadSplat(shape, (int) Leb128.readUnsigned(in), (int) Leb128.readUnsigned(in));
+            }
+            case FD_V128_LOAD8X8_S, FD_V128_LOAD8X8_U, FD_V128_LOAD16X4_S, FD_V128_LOAD16X4_U, FD_V128_LOAD32X2_S, FD_V128_LOAD32X2_U -> {
+                VectorInstruction.Shape shape = VectorInstruction.Shape.values()[(byteCode - FD_V128_LOAD8X8_S) / 2];
+                boolean signed = (byteCode - FD_V128_LOAD8X8_S) % 2 == 0;
+                yield new VectorInstruction.V128LoadExtend(shape, signed, (int) Leb128.readUnsigned(in), (int) Leb128.readUnsigned(in));
+            }
+            case FD_V128_LOAD8_LANE, FD_V128_LOAD16_LANE, FD_V128_LOAD32_LANE, FD_V128_LOAD64_LANE -> {
+                VectorInstruction.Shape shape = VectorInstruction.Shape.values()[byteCode - FD_V128_LOAD8_LANE];
+                int align = (int) Leb128.readUnsigned(in);
+                int offset = (int) Leb128.readUnsigned(in);
+                yield new VectorInstruction.V128LoadLane(shape, align, offset, laneIndex(shape, in));
+            }
+            case FD_V128_STORE8_LANE, FD_V128_STORE16_LANE, FD_V128_STORE32_LANE, FD_V128_STORE64_LANE -> {
+                VectorInstruction.Shape shape = VectorInstruction.Shape.values()[byteCode - FD_V128_STORE8_LANE];
+                int align = (int) Leb128.readUnsigned(in);
+                int offset = (int) Leb128.readUnsigned(in);
+                yield new VectorInstruction.V128StoreLane(shape, align, offset, laneIndex(shape, in));
+            }
+            case FD_V128_LOAD32_ZERO, FD_V128_LOAD64_ZERO -> {
+                VectorInstruction.Shape shape = (byteCode == FD_V128_LOAD32_ZERO) ? VectorInstruction.Shape.I32X4 : VectorInstruction.Shape.I64X2;
+                yield new VectorInstruction.V128LoadZero(shape, (int) Leb128.readUnsigned(in), (int) Leb128.readUnsigned(in));
+            }
+            case FD_V128_CONST -> {
+                // Immediate is 16 bytes in little-endian order
+                ByteOrder order = in.order();
+                in.order(ByteOrder.LITTLE_ENDIAN);
+                long low = in.getLong();
+                long high = in.getLong();
+                in.order(order);
+                yield new VectorInstruction.V128Const(low, high);
+            }
+            case FD_I8X16_SHUFFLE -> {
+                byte[] lanes = new byte[16];
+                in.get(lanes);
+                for (byte lane : lanes) {
+                    if (lane < 0 || lane >= 32) {
+                        throw new RuntimeException("Invalid lane index for i8x16.shuffle: " + lane);
+                    }
+                }
+                yield new VectorInstruction.Shuffle(lanes);
+            }
+            case FD_I8X16_SPLAT, FD_I16X8_SPLAT, FD_I32X4_SPLAT, FD_I64X2_SPLAT, FD_F32X4_SPLAT, FD_F64X2_SPLAT ->
+                    new VectorInstruction.Splat(VectorInstruction.Shape.values()[byteCode - FD_I8X16_SPLAT]);
+            case FD_I8X16_EXTRACT_LANE_S -> extractLane(VectorInstruction.Shape.I8X16, true, in);
+            case FD_I8X16_EXTRACT_LANE_U -> extractLane(VectorInstruction.Shape.I8X16, false, in);
+            case FD_I16X8_EXTRACT_LANE_S -> extractLane(VectorInstruction.Shape.I16X8, true, in);
+            case FD_I16X8_EXTRACT_LANE_U -> extractLane(VectorInstruction.Shape.I16X8, false, in);
+            case FD_I32X4_EXTRACT_LANE -> extractLane(VectorInstruction.Shape.I32X4, false, in);
+            case FD_I64X2_EXTRACT_LANE -> extractLane(VectorInstruction.Shape.I64X2, false, in);
+            case FD_F32X4_EXTRACT_LANE -> extractLane(VectorInstruction.Shape.F32X4, false, in);
+            case FD_F64X2_EXTRACT_LANE -> extractLane(VectorInstruction.Shape.F64X2, false, in);
+            case FD_I8X16_REPLACE_LANE -> replaceLane(VectorInstruction.Shape.I8X16, in);
+            case FD_I16X8_REPLACE_LANE -> replaceLane(VectorInstruction.Shape.I16X8, in);
+            case FD_I32X4_REPLACE_LANE -> replaceLane(VectorInstruction.Shape.I32X4, in);
+            case FD_I64X2_REPLACE_LANE -> replaceLane(VectorInstruction.Shape.I64X2, in);
+            case FD_F32X4_REPLACE_LANE -> replaceLane(VectorInstruction.Shape.F32X4, in);
+            case FD_F64X2_REPLACE_LANE -> replaceLane(VectorInstruction.Shape.F64X2, in);
+            default -> VectorInstruction.VectorOp.from(byteCode);
+        };
+    }
+
+    private static int laneIndex(VectorInstruction.Shape shape, ByteBuffer in) {
+        int lane = Byte.toUnsignedInt(in.get());
+        if (lane >= shape.lanes()) {
+            throw new RuntimeException(STR."Invalid lane index \{lane} for \{shape}");
+        }
+        return lane;
+    }
+
+    private static VectorInstruction.ExtractLane extractLane(VectorInstruction.Shape shape, boolean signed, ByteBuffer in) {
+        return new VectorInstruction.ExtractLane(shape, laneIndex(shape, in), signed);
+    }
+
+    private static VectorInstruction.ReplaceLane replaceLane(VectorInstruction.Shape shape, ByteBuffer in) {
+        return new VectorInstruction.ReplaceLane(shape, laneIndex(shape, in));
+    }
+
+    // (type, width) of each entry in a group of atomic loads, stores or read-modify-write ops
+    private static final ValueType.NumType[] ATOMIC_TYPES = {ValueType.NumType.I32, ValueType.NumType.I64, ValueType.NumType.I32,
+            ValueType.NumType.I32, ValueType.NumType.I64, ValueType.NumType.I64, ValueType.NumType.I64};
+    private static final int[] ATOMIC_WIDTHS = {4, 8, 1, 2, 1, 2, 4};
+
+    private static AtomicInstruction parseFEPrefixInstruction(ByteBuffer in) {
+        int byteCode = (int) Leb128.readUnsigned(in);
+        if (byteCode == FE_ATOMIC_FENCE) {
+            if (in.get() != 0) {
+                throw new RuntimeException("Expected zero byte after atomic.fence");
+            }
+            return new AtomicInstruction.AtomicFence();
+        }
+        if (byteCode > FE_MEMORY_ATOMIC_WAIT64 && byteCode < FE_ATOMIC_LOAD || byteCode >= FE_ATOMIC_END) {
+            throw new RuntimeException("Unexpected bytecode for FE Prefix instruction: " + byteCode);
+        }
+        int align = (int) Leb128.readUnsigned(in);
+        int offset = (int) Leb128.readUnsigned(in);
+        if (byteCode < FE_ATOMIC_LOAD) {
+            return switch (byteCode) {
+                case FE_MEMORY_ATOMIC_NOTIFY -> new AtomicInstruction.AtomicNotify(align, offset);
+                case FE_MEMORY_ATOMIC_WAIT32 -> new AtomicInstruction.AtomicWait(4, align, offset);
+                default -> new AtomicInstruction.AtomicWait(8, align, offset);
+            };
+        }
+        int group = (byteCode - FE_ATOMIC_LOAD) / 7;
+        ValueType.NumType type = ATOMIC_TYPES[(byteCode - FE_ATOMIC_LOAD) % 7];
+        int width = ATOMIC_WIDTHS[(byteCode - FE_ATOMIC_LOAD) % 7];
+        if (byteCode < FE_ATOMIC_STORE) {
+            return new AtomicInstruction.AtomicLoad(type, width, align, offset);
+        }
+        if (byteCode < FE_ATOMIC_RMW_ADD) {
+            return new AtomicInstruction.AtomicStore(type, width, align, offset);
+        }
+        if (byteCode >= FE_ATOMIC_RMW_CMPXCHG) {
+            return new AtomicInstruction.AtomicCmpxchg(type, width, align, offset);
+        }
+        return new AtomicInstruction.AtomicRmw(AtomicInstruction.RmwOp.values()[group - 2], type, width, align, offset);
+    }
+
     private static RefTypeInstruction parseRefTypeInstruction(int byteCode, ByteBuffer in) {
         return switch (byteCode) {
             case REF_NULL -> new RefTypeInstruction.RefNull(ValueType.RefType.from(in.get()));
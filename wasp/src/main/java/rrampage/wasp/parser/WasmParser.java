@@ -6,6 +6,7 @@ import rrampage.wasp.instructions.*;
 import rrampage.wasp.parser.types.*;
 import rrampage.wasp.utils.FileUtils;
 import rrampage.wasp.utils.Leb128;
+import rrampage.wasp.validator.Validator;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -24,10 +25,29 @@ public class WasmParser implements Parser {
 
     private static final byte FUNCTYPE_TAG = 0x60;
 
+    /**
+     * When function bodies in the code section are decoded. Locals are always decoded while parsing.
+     */
+    public enum CodeParsing {
+        // Decode and validate every body while parsing
+        EAGER,
+        // Decode and validate every body while parsing, in parallel on the common ForkJoinPool
+        PARALLEL,
+        // Only record where each body is and decode it on first use. Functions which are never called are never decoded.
+        // Bodies are validated by the Machine when first called
+        LAZY,
+    }
+
     private final byte[] data;
+    private final CodeParsing codeParsing;
     private ByteBuffer bb;
     public WasmParser(byte[] data) {
+        this(data, CodeParsing.LAZY);
+    }
+
+    public WasmParser(byte[] data, CodeParsing codeParsing) {
         this.data = data; // Keep the reference to the data in case we need to recreate byte buffer later
+        this.codeParsing = codeParsing;
         this.bb = bytesToBuffer(data);
     }
 
@@ -112,8 +132,9 @@ public class WasmParser implements Parser {
                 // Memory
                 byte fb = bb.get();
                 int min = (int) Leb128.readUnsigned(bb);
-                int max = (fb == 1) ? (int) Leb128.readUnsigned(bb) : Memory.MAX_PAGES;
-                desc = new ImportDescriptor.MemoryDescriptor(min, max);
+                // No declared max is unbounded, as for memories declared in the module, so any memory matches it
+                int max = ((fb & 1) == 1) ? (int) Leb128.readUnsigned(bb) : Memory.MAX_WASM_PAGES;
+                desc = new ImportDescriptor.MemoryDescriptor(min, max, isSharedMemory(fb));
             }
             case 3 -> {
                 // Global
@@ -181,14 +202,22 @@ public class WasmParser implements Parser {
         return startIdx;
     }
 
+    // Limits flag: bit 0 is set when a max is present and bit 1 when the memory is shared
+    private static boolean isSharedMemory(byte fb) {
+        if (fb == 2) {
+            throw new RuntimeException("Shared memory must have a maximum size");
+        }
+        return (fb & 2) == 2;
+    }
+
     private Memory parseMemory() {
         byte fb = bb.get();
         int min = (int) Leb128.readUnsigned(bb);
         if (fb == 0) {
-            return new Memory(min);
+            return new Memory(min, Memory.MAX_WASM_PAGES);
         }
         int max = (int) Leb128.readUnsigned(bb);
-        return new Memory(min, max);
+        return isSharedMemory(fb) ? new SegmentMemory(min, max, true) : new Memory(min, max);
     }
 
     private Memory[] parseMemorySection(ImportMetadata[] imports) {
@@ -344,14 +373,27 @@ public class WasmParser implements Parser {
             }
         }
         int bytesToParse = funPos + funSize - bb.position();
-        Instruction[] code = InstructionParser.parse(bb, bytesToParse, types);
-        // System.out.println("Code : " + Arrays.toString(code));
         String fname = "Function_" + funcIdx;
-        Function f = new Function(fname, types[functions[funcIdx - numImports]], locals.toArray(ValueType[]::new), code);
-        byte endByte = bb.get();
-        assert endByte == 0xb;
-        assertBufferPosition(funPos + funSize);
-        return f;
+        FunctionType type = types[functions[funcIdx - numImports]];
+        if (codeParsing != CodeParsing.EAGER) {
+            // The body is length prefixed, so it can be decoded from its own view of the buffer later
+            ByteBuffer body = bb.slice(bb.position(), bytesToParse).order(bb.order());
+            bb.position(funPos + funSize);
+            return Function.createLazyFunction(fname, type, locals.toArray(ValueType[]::new), () -> parseBody(body, bytesToParse, types, fname));
+        }
+        Instruction[] code = parseBody(bb, bytesToParse, types, fname);
+        // System.out.println("Code : " + Arrays.toString(code));
+        return new Function(fname, type, locals.toArray(ValueType[]::new), code);
+    }
+
+    // Decodes the instructions of a body of numBytes which must end with the end byte 0x0b, for eager and lazy decoding
+    private static Instruction[] parseBody(ByteBuffer in, int numBytes, FunctionType[] types, String fname) {
+        int start = in.position();
+        Instruction[] code = InstructionParser.parse(in, numBytes, types);
+        if (in.position() != start + numBytes - 1 || in.get() != 0xb) {
+            throw new RuntimeException(STR."PARSE_FUNCTION: Body of \{fname} with \{numBytes} bytes does not end with 0x0b");
+        }
+        return code;
     }
 
     private Function[] parseCodeSection(FunctionType[] types, ImportMetadata[] imports, int[] functions) {
@@ -363,6 +405,9 @@ public class WasmParser implements Parser {
             Function f = parseFunctionCode(i + numImports, types, numImports, functions);
             allFuncs[i + numImports] = f;
         }
+        if (codeParsing == CodeParsing.PARALLEL) {
+            Arrays.stream(allFuncs, numImports, numImports + n).parallel().forEach(Function::code);
+        }
         // create stub functions for import
         int i = 0;
         for (ImportMetadata im : imports) {
@@ -481,7 +526,15 @@ public class WasmParser implements Parser {
             assertBufferPosition(sectionStart + sectionLength);
         }
         assert dataCount.isEmpty() || dataSegments.length == dataCount.get();
-        return new Module(1, types, allFuncs, tables, exports, imports, memories, dataSegments, elementSegments, globals, startIdx);
+        Module module = new Module(1, types, allFuncs, tables, exports, imports, memories, dataSegments, elementSegments, globals, startIdx);
+        if (codeParsing == CodeParsing.PARALLEL) {
+            Validator validator = Validator.of(module);
+            Arrays.stream(allFuncs).parallel().forEach(validator::validate);
+        }
+        if (codeParsing != CodeParsing.LAZY) {
+            Validator.validate(module);
+        }
+        return module;
     }
 
     public static WasmParser fromFile(String path) throws IOException {
@@ -0,0 +1,633 @@
+package rrampage.wasp.validator;
+
+import rrampage.wasp.data.*;
+import rrampage.wasp.data.Module;
+import rrampage.wasp.instructions.*;
+import rrampage.wasp.parser.types.ImportDescriptor;
+import rrampage.wasp.parser.types.ImportMetadata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+
+import static rrampage.wasp.data.ValueType.NumType.*;
+import static rrampage.wasp.data.ValueType.VecType.VEC_TYPE;
+
+/**
+ * Type checks function bodies following the
+ * <a href="https://webassembly.github.io/spec/core/appendix/algorithm.html">validation algorithm</a> of the spec.
+ * Every operand and block type is checked and the maximum height of the operand stack of each function is computed.
+ * Heights are counted in stack slots, so a v128 operand counts twice. The types of the locals are recorded as well.
+ * Results are stored in the {@link FunctionCache} of the function, so that each function is validated at most once:
+ * <pre>
+ *     Module module = parser.parseModule();
+ *     Validator.validate(module);
+ *     int maxStackHeight = module.functions()[i].cache().maxStackHeight();
+ * </pre>
+ * Memory, table and segment indices are not checked here as the interpreter checks them when running.
+ */
+public final class Validator {
+    private static final int FUNC_LEVEL = -1;
+    private static final ValueType[] EMPTY = new ValueType[0];
+    private static final Select.SelectTyped VECTOR_SELECT = new Select.SelectTyped(new ValueType[]{VEC_TYPE});
+    private static final Set<String> COMPARISONS = Set.of("EQ", "NE", "LT", "GT", "LE", "GE");
+    // Types of unary and binary instructions derived from their names e.g. I32_TRUNC_F64_S: [f64] -> [i32]
+    private static final Map<UnaryInstruction, FunctionType> UNARY_TYPES = new EnumMap<>(UnaryInstruction.class);
+    private static final Map<IntBinaryInstruction, FunctionType> I32_TYPES = binaryTypes(IntBinaryInstruction.class);
+    private static final Map<LongBinaryInstruction, FunctionType> I64_TYPES = binaryTypes(LongBinaryInstruction.class);
+    private static final Map<FloatBinaryInstruction, FunctionType> F32_TYPES = binaryTypes(FloatBinaryInstruction.class);
+    private static final Map<DoubleBinaryInstruction, FunctionType> F64_TYPES = binaryTypes(DoubleBinaryInstruction.class);
+
+    static {
+        for (UnaryInstruction u : UnaryInstruction.values()) {
+            String[] parts = u.name().split("_");
+            ValueType result = numType(parts[0]);
+            ValueType operand = result;
+            for (int i = 2; i < parts.length; i++) {
+                if (numType(parts[i]) != null) {
+                    operand = numType(parts[i]);
+                }
+            }
+            if (parts.length > 1 && parts[1].equals("EQZ")) {
+                result = I32;
+            }
+            if (result != null) {
+                UNARY_TYPES.put(u, new FunctionType(new ValueType[]{operand}, new ValueType[]{result}));
+            }
+        }
+    }
+
+    private final FunctionType[] functionTypes;
+    private final ValueType[] globalTypes;
+    private final boolean[] mutableGlobals;
+
+    private Validator(FunctionType[] functionTypes, ValueType[] globalTypes, boolean[] mutableGlobals) {
+        this.functionTypes = functionTypes;
+        this.globalTypes = globalTypes;
+        this.mutableGlobals = mutableGlobals;
+    }
+
+    /**
+     * Creates a validator for functions of a parsed module. Imported globals are typed by their import descriptors.
+     */
+    public static Validator of(Module module) {
+        Variable[] globals = module.globals() == null ? new Variable[0] : module.globals();
+        ImportDescriptor.GlobalDescriptor[] imported = module.imports() == null ? new ImportDescriptor.GlobalDescriptor[0] :
+                Arrays.stream(module.imports()).map(ImportMetadata::importDescriptor)
+                        .filter(d -> d instanceof ImportDescriptor.GlobalDescriptor)
+                        .toArray(ImportDescriptor.GlobalDescriptor[]::new);
+        // Without a global section, the parser does not reserve slots for imported globals
+        ValueType[] types = new ValueType[Math.max(globals.length, imported.length)];
+        boolean[] mutable = new boolean[types.length];
+        for (int i = 0; i < imported.length; i++) {
+            types[i] = imported[i].valueType();
+            mutable[i] = imported[i].mutable();
+        }
+        for (int i = imported.length; i < globals.length; i++) {
+            types[i] = globals[i].type();
+            mutable[i] = globals[i].isMutable();
+        }
+        return new Validator(functionTypes(module.functions()), types, mutable);
+    }
+
+    /**
+     * Creates a validator for functions of an instantiated module
+     */
+    public static Validator of(Function[] functions, Variable[] globals) {
+        ValueType[] types = new ValueType[globals.length];
+        boolean[] mutable = new boolean[globals.length];
+        for (int i = 0; i < globals.length; i++) {
+            types[i] = globals[i].type();
+            mutable[i] = globals[i].isMutable();
+        }
+        return new Validator(functionTypes(functions), types, mutable);
+    }
+
+    /**
+     * Validates every function of the module and throws on the first invalid function
+     */
+    public static void validate(Module module) {
+        if (module.functions() == null) {
+            return;
+        }
+        Validator validator = of(module);
+        for (Function f : module.functions()) {
+            validator.validate(f);
+            if (f.cache().hasValidationError()) {
+                throw new RuntimeException(f.cache().validationError());
+            }
+        }
+    }
+
+    /**
+     * Validates the function if it has not been validated yet and returns its maximum operand stack height or -1 if it is invalid.
+     * Host functions are not validated.
+     */
+    public int validate(Function f) {
+        FunctionCache cache = f.cache();
+        if (cache.isValidated() || cache.hasValidationError()) {
+            return cache.maxStackHeight();
+        }
+        synchronized (cache) {
+            if (cache.isValidated() || cache.hasValidationError()) {
+                return cache.maxStackHeight();
+            }
+            try {
+                FunctionValidator validator = new FunctionValidator(f);
+                cache.setLocalTypes(validator.locals);
+                cache.setMaxStackHeight(validator.validate());
+            } catch (RuntimeException e) {
+                cache.setValidationError(STR."VALIDATION_ERROR: Invalid function \{f.name()}: \{e.getMessage()}");
+            }
+        }
+        return cache.maxStackHeight();
+    }
+
+    private static FunctionType[] functionTypes(Function[] functions) {
+        return functions == null ? new FunctionType[0] : Arrays.stream(functions).map(Function::type).toArray(FunctionType[]::new);
+    }
+
+    private static ValueType numType(String s) {
+        return switch (s) {
+            case "I32" -> I32;
+            case "I64" -> I64;
+            case "F32" -> F32;
+            case "F64" -> F64;
+            default -> null;
+        };
+    }
+
+    private static <E extends Enum<E>> Map<E, FunctionType> binaryTypes(Class<E> c) {
+        Map<E, FunctionType> map = new EnumMap<>(c);
+        for (E e : c.getEnumConstants()) {
+            String[] parts = e.name().split("_");
+            ValueType t = numType(parts[0]);
+            map.put(e, new FunctionType(new ValueType[]{t, t}, new ValueType[]{COMPARISONS.contains(parts[1]) ? I32 : t}));
+        }
+        return map;
+    }
+
+    private static ValueType[] types(ValueType[] t) {
+        return t == null ? EMPTY : t;
+    }
+
+    private static final class ControlFrame {
+        final int label;
+        final boolean isLoop;
+        final ValueType[] params;
+        final ValueType[] results;
+        final int height;
+        boolean unreachable;
+
+        ControlFrame(int label, boolean isLoop, FunctionType type, int height) {
+            this.label = label;
+            this.isLoop = isLoop;
+            this.params = types(type.paramTypes());
+            this.results = types(type.returnTypes());
+            this.height = height;
+        }
+
+        ValueType[] labelTypes() {
+            return isLoop ? params : results;
+        }
+    }
+
+    /**
+     * Validation state of a single function. A null operand type stands for an unknown type, which is popped from
+     * the polymorphic stack of unreachable code.
+     */
+    private final class FunctionValidator {
+        private final Function fun;
+        private final ValueType[] locals;
+        private final ArrayList<ValueType> operands = new ArrayList<>();
+        private final ArrayList<ControlFrame> frames = new ArrayList<>();
+        private int slots = 0;
+        private int maxHeight = 0;
+
+        FunctionValidator(Function fun) {
+            this.fun = fun;
+            ValueType[] params = types(fun.type().paramTypes());
+            ValueType[] declared = types(fun.locals());
+            this.locals = Arrays.copyOf(params, params.length + declared.length);
+            System.arraycopy(declared, 0, locals, params.length, declared.length);
+        }
+
+        int validate() {
+            Instruction[] code = fun.code();
+            // Host functions and stubs for imported functions, which have no locals
+            if (code == null || code.length == 1 && code[0] instanceof FunctionInstruction.CallJava
+                    || code.length == 0 && fun.locals() == null) {
+                return fun.type().returnSlots();
+            }
+            ControlFrame frame = new ControlFrame(FUNC_LEVEL, false, new FunctionType(null, fun.type().returnTypes()), 0);
+            frames.add(frame);
+            validate(code);
+            popFrame();
+            return maxHeight;
+        }
+
+        private void validate(Instruction[] code) {
+            for (int i = 0; i < code.length; i++) {
+                validate(code[i]);
+                // The interpreter does not track operand types, so it needs the annotation to select both slots of a v128
+                if (code[i] instanceof Select.SelectUntyped && operands.getLast() == VEC_TYPE) {
+                    code[i] = VECTOR_SELECT;
+                }
+            }
+        }
+
+        private void validate(Instruction ins) {
+            switch (ins) {
+                case ConstInstruction.IntConst _ -> push(I32);
+                case ConstInstruction.LongConst _ -> push(I64);
+                case ConstInstruction.FloatConst _ -> push(F32);
+                case ConstInstruction.DoubleConst _ -> push(F64);
+                case IntBinaryInstruction b -> apply(I32_TYPES.get(b));
+                case LongBinaryInstruction b -> apply(I64_TYPES.get(b));
+                case FloatBinaryInstruction b -> apply(F32_TYPES.get(b));
+                case DoubleBinaryInstruction b -> apply(F64_TYPES.get(b));
+                case UnaryInstruction u -> {
+                    switch (u) {
+                        case DROP -> pop();
+                        case MEMORY_GROW -> apply(FunctionType.I32_UNARY);
+                        default -> apply(UNARY_TYPES.get(u));
+                    }
+                }
+                case NullaryInstruction n -> {
+                    switch (n) {
+                        case UNREACHABLE -> unreachable();
+                        case NOP -> {}
+                        case MEMORY_SIZE -> push(I32);
+                    }
+                }
+                case LoadInstruction l -> {
+                    pop(I32);
+                    push(prefixType(l.opCode()));
+                }
+                case StoreInstruction s -> {
+                    pop(prefixType(s.opCode()));
+                    pop(I32);
+                }
+                case FunctionInstruction f -> validateFunctionInstruction(f);
+                case GlobalInstruction g -> {
+                    switch (g) {
+                        case GlobalInstruction.GlobalGet i -> push(global(i.val()));
+                        case GlobalInstruction.GlobalSet i -> {
+                            if (!mutableGlobals[i.val()]) {
+                                throw new RuntimeException(STR."global.set of immutable global \{i.val()}");
+                            }
+                            pop(global(i.val()));
+                        }
+                    }
+                }
+                case Select.SelectUntyped _ -> {
+                    pop(I32);
+                    ValueType t1 = pop();
+                    ValueType t2 = pop();
+                    if (t1 instanceof ValueType.RefType || t2 instanceof ValueType.RefType) {
+                        throw new RuntimeException("select without type annotation on reference types");
+                    }
+                    if (t1 != null && t2 != null && t1 != t2) {
+                        throw new RuntimeException(STR."select on different types \{t1} and \{t2}");
+                    }
+                    push(t1 == null ? t2 : t1);
+                }
+                case Select.SelectTyped s -> {
+                    if (s.types().length != 1) {
+                        throw new RuntimeException("select must have exactly one type");
+                    }
+                    pop(I32);
+                    pop(s.types()[0]);
+                    pop(s.types()[0]);
+                    push(s.types()[0]);
+                }
+                case SegmentInstruction s -> {
+                    switch (s) {
+                        case SegmentInstruction.DataDrop _ -> {}
+                        default -> popAll(I32, I32, I32);
+                    }
+                }
+                case RefTypeInstruction r -> validateRefTypeInstruction(r);
+                case VectorInstruction v -> validateVectorInstruction(v);
+                case AtomicInstruction a -> validateAtomicInstruction(a);
+                case FusedInstruction f -> validate(f.expand());
+                case ControlFlowInstruction c -> validateControlFlow(c);
+            }
+        }
+
+        private void validateFunctionInstruction(FunctionInstruction f) {
+            switch (f) {
+                case FunctionInstruction.Call c -> {
+                    if (c.val() < 0 || c.val() >= functionTypes.length) {
+                        throw new RuntimeException(STR."Unknown function \{c.val()}");
+                    }
+                    apply(functionTypes[c.val()]);
+                }
+                case FunctionInstruction.CallIndirect c -> {
+                    if (c.type() == null) {
+                        throw new RuntimeException(STR."Unknown type \{c.typeIdx()} for call_indirect");
+                    }
+                    pop(I32);
+                    apply(c.type());
+                }
+                // Host calls read their params from locals
+                case FunctionInstruction.CallJava c -> pushAll(types(c.type().returnTypes()));
+                case FunctionInstruction.Return _ -> {
+                    popAll(frames.getFirst().results);
+                    unreachable();
+                }
+                case FunctionInstruction.LocalGet l -> push(local(l.val()));
+                case FunctionInstruction.LocalSet l -> pop(local(l.val()));
+                case FunctionInstruction.LocalTee l -> {
+                    pop(local(l.val()));
+                    push(local(l.val()));
+                }
+            }
+        }
+
+        private void validateRefTypeInstruction(RefTypeInstruction r) {
+            switch (r) {
+                case RefTypeInstruction.RefNull i -> push(i.type());
+                case RefTypeInstruction.RefIsNull _ -> {
+                    ValueType t = pop();
+                    if (t != null && !(t instanceof ValueType.RefType)) {
+                        throw new RuntimeException(STR."ref.is_null on \{t}");
+                    }
+                    push(I32);
+                }
+                case RefTypeInstruction.RefFunc _ -> push(ValueType.RefType.FUNCREF);
+                // Table element types are checked when running
+                case RefTypeInstruction.TableGet _ -> {
+                    pop(I32);
+                    push(null);
+                }
+                case RefTypeInstruction.TableSet _ -> {
+                    pop();
+                    pop(I32);
+                }
+                case RefTypeInstruction.TableCopy _, RefTypeInstruction.TableInit _ -> popAll(I32, I32, I32);
+                case RefTypeInstruction.TableFill _ -> {
+                    pop(I32);
+                    pop();
+                    pop(I32);
+                }
+                case RefTypeInstruction.TableSize _ -> push(I32);
+                case RefTypeInstruction.TableGrow _ -> {
+                    pop(I32);
+                    pop();
+                    push(I32);
+                }
+                case RefTypeInstruction.ElemDrop _ -> {}
+            }
+        }
+
+        private void validateAtomicInstruction(AtomicInstruction a) {
+            switch (a) {
+                case AtomicInstruction.AtomicFence _ -> {}
+                case AtomicInstruction.AtomicNotify n -> {
+                    checkAtomicAlign(n.align(), 4);
+                    popAll(I32, I32);
+                    push(I32);
+                }
+                case AtomicInstruction.AtomicWait w -> {
+                    checkAtomicAlign(w.align(), w.width());
+                    popAll(I32, w.width() == 8 ? I64 : I32, I64);
+                    push(I32);
+                }
+                case AtomicInstruction.AtomicLoad l -> {
+                    checkAtomicAlign(l.align(), l.width());
+                    pop(I32);
+                    push(l.type());
+                }
+                case AtomicInstruction.AtomicStore s -> {
+                    checkAtomicAlign(s.align(), s.width());
+                    popAll(I32, s.type());
+                }
+                case AtomicInstruction.AtomicRmw r -> {
+                    checkAtomicAlign(r.align(), r.width());
+                    popAll(I32, r.type());
+                    push(r.type());
+                }
+                case AtomicInstruction.AtomicCmpxchg c -> {
+                    checkAtomicAlign(c.align(), c.width());
+                    popAll(I32, c.type(), c.type());
+                    push(c.type());
+                }
+            }
+        }
+
+        // Unlike plain accesses, atomic accesses must declare their natural alignment
+        private static void checkAtomicAlign(int align, int width) {
+            if (align >= 31 || (1 << align) != width) {
+                throw new RuntimeException(STR."atomic alignment must be natural: 2^\{align} for width \{width}");
+            }
+        }
+
+        private void validateVectorInstruction(VectorInstruction v) {
+            switch (v) {
+                case VectorInstruction.V128Const _ -> push(VEC_TYPE);
+                case VectorInstruction.V128Load _, VectorInstruction.V128LoadSplat _, VectorInstruction.V128LoadZero _,
+                     VectorInstruction.V128LoadExtend _ -> {
+                    pop(I32);
+                    push(VEC_TYPE);
+                }
+                case VectorInstruction.V128LoadLane _ -> {
+                    popAll(I32, VEC_TYPE);
+                    push(VEC_TYPE);
+                }
+                case VectorInstruction.V128Store _, VectorInstruction.V128StoreLane _ -> popAll(I32, VEC_TYPE);
+                case VectorInstruction.Shuffle _ -> {
+                    popAll(VEC_TYPE, VEC_TYPE);
+                    push(VEC_TYPE);
+                }
+                case VectorInstruction.Splat s -> {
+                    pop(s.shape().laneType());
+                    push(VEC_TYPE);
+                }
+                case VectorInstruction.ExtractLane e -> {
+                    pop(VEC_TYPE);
+                    push(e.shape().laneType());
+                }
+                case VectorInstruction.ReplaceLane r -> {
+                    popAll(VEC_TYPE, r.shape().laneType());
+                    push(VEC_TYPE);
+                }
+                case VectorInstruction.VectorOp op -> {
+                    switch (op.kind()) {
+                        case UNARY -> popAll(VEC_TYPE);
+                        case BINARY -> popAll(VEC_TYPE, VEC_TYPE);
+                        case TERNARY -> popAll(VEC_TYPE, VEC_TYPE, VEC_TYPE);
+                        case SHIFT -> popAll(VEC_TYPE, I32);
+                        case TEST -> popAll(VEC_TYPE);
+                    }
+                    push(op.kind() == VectorInstruction.Kind.TEST ? I32 : VEC_TYPE);
+                }
+            }
+        }
+
+        private void validateControlFlow(ControlFlowInstruction c) {
+            switch (c) {
+                case ControlFlowInstruction.Block b -> {
+                    pushFrame(b.label(), b.type(), false);
+                    validate(b.code());
+                    popFrame();
+                }
+                case ControlFlowInstruction.Loop b -> {
+                    pushFrame(b.label(), b.type(), true);
+                    validate(b.code());
+                    popFrame();
+                }
+                case ControlFlowInstruction.If b -> {
+                    pop(I32);
+                    ControlFrame frame = pushFrame(b.label(), b.type(), false);
+                    if (!Arrays.equals(frame.params, frame.results)) {
+                        throw new RuntimeException("if without else must have same params and results");
+                    }
+                    validate(b.ifBlock());
+                    popFrame();
+                }
+                case ControlFlowInstruction.IfElse b -> {
+                    pop(I32);
+                    ControlFrame frame = pushFrame(b.label(), b.type(), false);
+                    validate(b.ifBlock());
+                    popAll(frame.results);
+                    checkFrameHeight(frame);
+                    frame.unreachable = false;
+                    pushAll(frame.params);
+                    validate(b.elseBlock());
+                    popFrame();
+                }
+                case ControlFlowInstruction.Branch b -> {
+                    popAll(frame(b.label()).labelTypes());
+                    unreachable();
+                }
+                case ControlFlowInstruction.BranchIf b -> {
+                    pop(I32);
+                    ValueType[] types = frame(b.label()).labelTypes();
+                    popAll(types);
+                    pushAll(types);
+                }
+                case ControlFlowInstruction.BranchTable b -> {
+                    pop(I32);
+                    int arity = frame(b.defaultLabel()).labelTypes().length;
+                    for (int label : b.labels()) {
+                        ValueType[] types = frame(label).labelTypes();
+                        if (types.length != arity) {
+                            throw new RuntimeException(STR."br_table labels have different arity \{types.length} and \{arity}");
+                        }
+                        popAll(types);
+                        pushAll(types);
+                    }
+                    popAll(frame(b.defaultLabel()).labelTypes());
+                    unreachable();
+                }
+                case ControlFlowInstruction.End _, ControlFlowInstruction.Else _ -> {}
+            }
+        }
+
+        private ControlFrame pushFrame(int label, FunctionType type, boolean isLoop) {
+            type = (type == null) ? FunctionType.VOID : type;
+            ValueType[] params = types(type.paramTypes());
+            popAll(params);
+            ControlFrame frame = new ControlFrame(label, isLoop, type, operands.size());
+            frames.add(frame);
+            pushAll(params);
+            return frame;
+        }
+
+        private void popFrame() {
+            ControlFrame frame = frames.getLast();
+            popAll(frame.results);
+            checkFrameHeight(frame);
+            frames.removeLast();
+            pushAll(frame.results);
+        }
+
+        private void checkFrameHeight(ControlFrame frame) {
+            if (operands.size() != frame.height) {
+                throw new RuntimeException(STR."\{operands.size() - frame.height} values left on stack at end of block \{frame.label}");
+            }
+        }
+
+        private ControlFrame frame(int label) {
+            for (int i = frames.size() - 1; i >= 0; i--) {
+                if (frames.get(i).label == label) {
+                    return frames.get(i);
+                }
+            }
+            throw new RuntimeException(STR."Unknown label \{label}");
+        }
+
+        private void unreachable() {
+            ControlFrame frame = frames.getLast();
+            while (operands.size() > frame.height) {
+                slots -= FunctionType.slots(operands.removeLast());
+            }
+            frame.unreachable = true;
+        }
+
+        private void apply(FunctionType type) {
+            popAll(types(type.paramTypes()));
+            pushAll(types(type.returnTypes()));
+        }
+
+        private void push(ValueType t) {
+            operands.add(t);
+            slots += FunctionType.slots(t);
+            maxHeight = Math.max(maxHeight, slots);
+        }
+
+        private void pushAll(ValueType... types) {
+            for (ValueType t : types) {
+                push(t);
+            }
+        }
+
+        private ValueType pop() {
+            ControlFrame frame = frames.getLast();
+            if (operands.size() == frame.height) {
+                if (frame.unreachable) {
+                    return null;
+                }
+                throw new RuntimeException(STR."Stack underflow in block \{frame.label}");
+            }
+            ValueType t = operands.removeLast();
+            slots -= FunctionType.slots(t);
+            return t;
+        }
+
+        private void pop(ValueType expected) {
+            ValueType actual = pop();
+            if (actual != null && expected != null && actual != expected) {
+                throw new RuntimeException(STR."Type mismatch: expected \{expected} but found \{actual}");
+            }
+        }
+
+        // Pops in reverse order, as the last type is on top of the stack
+        private void popAll(ValueType... types) {
+            for (int i = types.length - 1; i >= 0; i--) {
+                pop(types[i]);
+            }
+        }
+
+        private ValueType local(int idx) {
+            if (idx < 0 || idx >= locals.length) {
+                throw new RuntimeException(STR."Unknown local \{idx}");
+            }
+            return locals[idx];
+        }
+
+        private ValueType global(int idx) {
+            if (idx < 0 || idx >= globalTypes.length) {
+                throw new RuntimeException(STR."Unknown global \{idx}");
+            }
+            return globalTypes[idx];
+        }
+
+        private static ValueType prefixType(String opCode) {
+            return numType(opCode.substring(0, 3).toUpperCase());
+        }
+    }
+}
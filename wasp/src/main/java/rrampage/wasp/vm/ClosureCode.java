@@ -0,0 +1,42 @@
+package rrampage.wasp.vm;
+
+/**
+ * A function body compiled by {@link ClosureCompiler} into a tree of executor nodes. Follows the calling convention
+ * of {@link CompiledFunction}: params are popped from the machine stack into a frame array and the results are pushed
+ * back from it.
+ */
+public final class ClosureCode implements CompiledFunction {
+    private final ClosureNodes.Stmt body;
+    private final int numParams;
+    private final int frameSize;
+    private final int resultSlot;
+    private final int numReturns;
+    private final int cost;
+
+    ClosureCode(ClosureNodes.Stmt body, int numParams, int frameSize, int resultSlot, int numReturns, int cost) {
+        this.body = body;
+        this.numParams = numParams;
+        this.frameSize = frameSize;
+        this.resultSlot = resultSlot;
+        this.numReturns = numReturns;
+        this.cost = cost;
+    }
+
+    // Params, locals and operand stack slots
+    public int frameSize() {
+        return frameSize;
+    }
+
+    @Override
+    public void invoke(Machine machine) {
+        long[] frame = new long[frameSize];
+        for (int i = numParams - 1; i >= 0; i--) {
+            frame[i] = machine.pop();
+        }
+        machine.consumeFuel(cost);
+        body.exec(machine, frame);
+        for (int i = 0; i < numReturns; i++) {
+            machine.push(frame[resultSlot + i]);
+        }
+    }
+}
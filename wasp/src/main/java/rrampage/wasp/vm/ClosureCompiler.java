@@ -0,0 +1,477 @@
+package rrampage.wasp.vm;
+
+import rrampage.wasp.data.Function;
+import rrampage.wasp.data.FunctionCache;
+import rrampage.wasp.data.FunctionType;
+import rrampage.wasp.data.ValueType;
+import rrampage.wasp.data.Variable;
+import rrampage.wasp.instructions.*;
+import rrampage.wasp.vm.ClosureNodes.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Compiles the instruction tree of a function into a tree of {@link ClosureNodes} in a single pass. The operand stack
+ * is simulated while compiling, so expressions become nested nodes which pass values directly instead of through the
+ * machine stack. A value only goes to its operand stack slot of the frame when it has to outlive the expression:
+ * before side effects which could change what it reads, and at block boundaries and branches.
+ * <p>
+ * Functions with v128 values, host calls or instructions without a node fall back to flat code. Rare instructions
+ * which have no node of their own run through the interpreter on the machine stack.
+ */
+public class ClosureCompiler {
+    private static final int FUNC_LEVEL = -1;
+    // Unary ops which can not trap, so they get a node. The others run through the interpreter
+    private static final EnumSet<UnaryInstruction> NATIVE_UNARY = EnumSet.of(
+            UnaryInstruction.I64_EQZ, UnaryInstruction.I32_WRAP_I64, UnaryInstruction.I64_EXTEND_I32_S,
+            UnaryInstruction.I64_EXTEND_I32_U, UnaryInstruction.I32_CLZ, UnaryInstruction.I32_CTZ,
+            UnaryInstruction.I32_POPCNT, UnaryInstruction.I64_CLZ, UnaryInstruction.I64_CTZ, UnaryInstruction.I64_POPCNT,
+            UnaryInstruction.I32_REINTERPRET_F32, UnaryInstruction.F32_REINTERPRET_I32,
+            UnaryInstruction.I64_REINTERPRET_F64, UnaryInstruction.F64_REINTERPRET_I64, UnaryInstruction.I32_EXTEND8_S,
+            UnaryInstruction.I32_EXTEND16_S, UnaryInstruction.I64_EXTEND8_S, UnaryInstruction.I64_EXTEND16_S,
+            UnaryInstruction.I64_EXTEND32_S, UnaryInstruction.F32_NEG, UnaryInstruction.F32_ABS,
+            UnaryInstruction.F32_SQRT, UnaryInstruction.F64_NEG, UnaryInstruction.F64_ABS, UnaryInstruction.F64_SQRT,
+            UnaryInstruction.F64_FLOOR, UnaryInstruction.F64_CEIL, UnaryInstruction.F64_NEAREST,
+            UnaryInstruction.F32_DEMOTE_F64, UnaryInstruction.F64_PROMOTE_F32, UnaryInstruction.F32_CONVERT_I32_S,
+            UnaryInstruction.F32_CONVERT_I64_S, UnaryInstruction.F64_CONVERT_I32_S, UnaryInstruction.F64_CONVERT_I32_U,
+            UnaryInstruction.F64_CONVERT_I64_S);
+
+    private final Function fun;
+    private final Function[] functions;
+    // Slot of the first operand stack position. Params and locals come before it
+    private final int stackBase;
+    private final ArrayList<Expr> stack = new ArrayList<>();
+    private ArrayList<Stmt> stmts = new ArrayList<>();
+    private final ArrayList<ControlFrame> frames = new ArrayList<>();
+    private final ControlFrame root;
+    private int maxHeight = 0;
+    private boolean reachable = true;
+
+    private static final class ControlFrame {
+        final int label;
+        final boolean isLoop;
+        final FunctionType type;
+        // Stack height below block params
+        final int base;
+        // Value returned by statements branching to the block
+        final int depth;
+        boolean targeted;
+
+        ControlFrame(int label, boolean isLoop, FunctionType type, int base, int depth) {
+            this.label = label;
+            this.isLoop = isLoop;
+            this.type = type;
+            this.base = base;
+            this.depth = depth;
+        }
+
+        int branchArity() {
+            return isLoop ? type.numParams() : type.numReturns();
+        }
+    }
+
+    private ClosureCompiler(Function fun, Function[] functions) {
+        this.fun = fun;
+        this.functions = functions;
+        this.stackBase = fun.numParams() + fun.numLocals();
+        this.root = new ControlFrame(FUNC_LEVEL, false, fun.type(), 0, 0);
+    }
+
+    /**
+     * Returns closure code for the function or null if it can not be compiled. The result is stored in the function's
+     * cache.
+     */
+    public static ClosureCode compile(Function fun, Function[] functions) {
+        FunctionCache cache = fun.cache();
+        if (cache.hasClosureCode() || cache.hasClosureCodeError()) {
+            return cache.closureCode();
+        }
+        synchronized (cache) {
+            if (cache.hasClosureCode() || cache.hasClosureCodeError()) {
+                return cache.closureCode();
+            }
+            try {
+                cache.setClosureCode(new ClosureCompiler(fun, functions).compile());
+            } catch (RuntimeException e) {
+                cache.setClosureCodeError(STR."CLOSURE_CODE_ERROR: Unable to compile \{fun.name()}: \{e.getMessage()}");
+            }
+        }
+        return cache.closureCode();
+    }
+
+    private ClosureCode compile() {
+        requireScalarTypes(fun.type());
+        if (fun.locals() != null && Arrays.asList(fun.locals()).contains(ValueType.VecType.VEC_TYPE)) {
+            throw new RuntimeException("v128 locals are not supported");
+        }
+        Stmt body = compileBlock(fun.code(), root);
+        int numReturns = fun.type().numReturns();
+        return new ClosureCode(body, fun.numParams(), stackBase + Math.max(maxHeight, numReturns), stackBase, numReturns,
+                Machine.fuelCost(fun.code()));
+    }
+
+    private static void requireScalarTypes(FunctionType type) {
+        if (type.hasVectorTypes()) {
+            throw new RuntimeException(STR."v128 values are not supported in \{type}");
+        }
+    }
+
+    // Compiles the body of a block into its own statement. Values of the block end up in the slots of its results
+    private Stmt compileBlock(Instruction[] instructions, ControlFrame frame) {
+        ArrayList<Stmt> outer = stmts;
+        stmts = new ArrayList<>();
+        compile(instructions);
+        if (reachable) {
+            if (stack.size() != frame.base + frame.type.numReturns()) {
+                throw new RuntimeException(STR."Stack height \{stack.size()} does not match block \{frame.label} of type \{frame.type}");
+            }
+            spillAll();
+        }
+        Stmt body = (stmts.size() == 1) ? stmts.getFirst() : new Seq(stmts.toArray(new Stmt[0]));
+        stmts = outer;
+        return body;
+    }
+
+    private void compile(Instruction[] instructions) {
+        for (Instruction ins : instructions) {
+            // Skip dead code after br, return and unreachable
+            if (!reachable) {
+                return;
+            }
+            compile(ins);
+        }
+    }
+
+    private void compile(Instruction ins) {
+        switch (ins) {
+            case ConstInstruction.IntConst c -> push(new Const(c.val()));
+            case ConstInstruction.FloatConst c -> push(new Const(Float.floatToRawIntBits(c.val())));
+            case ConstInstruction.LongConst c -> push(new Const(c.val()));
+            case ConstInstruction.DoubleConst c -> push(new Const(Double.doubleToRawLongBits(c.val())));
+            case IntBinaryInstruction b -> {
+                Expr right = pop();
+                Expr left = pop();
+                push(i32Binary(b, left, right));
+            }
+            case LongBinaryInstruction b -> {
+                Expr right = pop();
+                push(new I64Binary(b, pop(), right));
+            }
+            case FloatBinaryInstruction b -> {
+                Expr right = pop();
+                push(new F32Binary(b, pop(), right));
+            }
+            case DoubleBinaryInstruction b -> {
+                Expr right = pop();
+                push(new F64Binary(b, pop(), right));
+            }
+            case UnaryInstruction u -> compileUnary(u);
+            case NullaryInstruction n -> {
+                switch (n) {
+                    case UNREACHABLE -> {
+                        stmts.add(new Unreachable());
+                        reachable = false;
+                    }
+                    case NOP -> {}
+                    case MEMORY_SIZE -> push(new MemorySize());
+                }
+            }
+            case LoadInstruction l -> push(new Load(FlatCodeCompiler.opCode(l), l.offset(), pop()));
+            case StoreInstruction s -> {
+                Expr value = pop();
+                Expr addr = pop();
+                spill(-1);
+                stmts.add(new Store(FlatCodeCompiler.opCode(s), s.offset(), addr, value));
+            }
+            case FunctionInstruction f -> compileFunctionInstruction(f);
+            case GlobalInstruction g -> {
+                switch (g) {
+                    case GlobalInstruction.GlobalGet i -> push(new GlobalGet(i.val()));
+                    case GlobalInstruction.GlobalSet i -> {
+                        Expr value = pop();
+                        spill(-1);
+                        stmts.add(new GlobalSet(i.val(), value));
+                    }
+                }
+            }
+            case Select _ -> {
+                Expr cond = pop();
+                Expr second = pop();
+                push(new SelectValue(pop(), second, cond));
+            }
+            case SegmentInstruction s -> bridgeStmt(s, (s instanceof SegmentInstruction.DataDrop) ? 0 : 3, 0);
+            case RefTypeInstruction r -> {
+                switch (r) {
+                    case RefTypeInstruction.RefNull _ -> push(new Const(Variable.REF_NULL));
+                    case RefTypeInstruction.RefFunc i -> push(new Const(i.functionIndex()));
+                    case RefTypeInstruction.RefIsNull _ -> push(new BridgeExpr(r, new Expr[]{pop()}));
+                    case RefTypeInstruction.ElemDrop _ -> bridgeStmt(r, 0, 0);
+                    case RefTypeInstruction.TableSize _ -> bridgeStmt(r, 0, 1);
+                    case RefTypeInstruction.TableGrow _ -> bridgeStmt(r, 2, 1);
+                    default -> throw new RuntimeException(STR."Unsupported instruction \{ins.opCode()}");
+                }
+            }
+            case FusedInstruction f -> compile(f.expand());
+            case ControlFlowInstruction c -> compileControlFlow(c);
+            default -> throw new RuntimeException(STR."Unsupported instruction \{ins.opCode()}");
+        }
+    }
+
+    private static Expr i32Binary(IntBinaryInstruction op, Expr left, Expr right) {
+        return switch (op) {
+            case I32_ADD -> (right instanceof Const c) ? new I32AddConst(left, (int) c.value) : new I32Add(left, right);
+            case I32_SUB -> new I32Sub(left, right);
+            case I32_MUL -> new I32Mul(left, right);
+            case I32_AND -> new I32And(left, right);
+            case I32_SHL -> new I32Shl(left, right);
+            case I32_EQ -> new I32Eq(left, right);
+            case I32_NE -> new I32Ne(left, right);
+            case I32_LT_S -> new I32LtS(left, right);
+            case I32_GT_S -> new I32GtS(left, right);
+            default -> new I32Binary(op, left, right);
+        };
+    }
+
+    private void compileUnary(UnaryInstruction u) {
+        switch (u) {
+            case DROP -> {
+                Expr value = pop();
+                if (!(value instanceof Const || value instanceof Slot)) {
+                    stmts.add(new Drop(value));
+                }
+            }
+            case MEMORY_GROW -> bridgeStmt(u, 1, 1);
+            case I32_EQZ -> push(new I32Eqz(pop()));
+            default -> push(NATIVE_UNARY.contains(u) ? new Unary(u, pop()) : new BridgeExpr(u, new Expr[]{pop()}));
+        }
+    }
+
+    private void compileFunctionInstruction(FunctionInstruction f) {
+        switch (f) {
+            case FunctionInstruction.Call c -> {
+                FunctionType type = functions[c.val()].type();
+                requireScalarTypes(type);
+                Expr[] args = popN(type.numParams());
+                spill(-1);
+                stmts.add(new Call(c.val(), args, slot(stack.size()), type.numReturns()));
+                pushResults(type.numReturns());
+            }
+            case FunctionInstruction.CallIndirect c -> {
+                if (c.type() == null) {
+                    throw new RuntimeException("Unknown type for call_indirect");
+                }
+                requireScalarTypes(c.type());
+                Expr offset = pop();
+                Expr[] args = popN(c.type().numParams());
+                spill(-1);
+                stmts.add(new CallIndirect(c.tableIdx(), c.typeId(), args, offset, slot(stack.size()), c.type().numReturns()));
+                pushResults(c.type().numReturns());
+            }
+            case FunctionInstruction.Return _ -> {
+                spillAll();
+                stmts.add(branch(root));
+                reachable = false;
+            }
+            case FunctionInstruction.LocalGet l -> push(new Slot(l.val()));
+            case FunctionInstruction.LocalSet l -> {
+                Expr value = pop();
+                spill(l.val());
+                stmts.add(new SetSlot(l.val(), value));
+            }
+            case FunctionInstruction.LocalTee l -> {
+                Expr value = pop();
+                spill(l.val());
+                stmts.add(new SetSlot(l.val(), value));
+                push(new Slot(l.val()));
+            }
+            default -> throw new RuntimeException(STR."Unsupported instruction \{f.opCode()}");
+        }
+    }
+
+    private void compileControlFlow(ControlFlowInstruction c) {
+        switch (c) {
+            case ControlFlowInstruction.Block b -> {
+                ControlFrame frame = enterFrame(b.label(), b.type(), false);
+                Stmt body = compileBlock(b.code(), frame);
+                stmts.add(new ClosureNodes.Block(frame.depth, body));
+                exitFrame(frame);
+            }
+            case ControlFlowInstruction.Loop b -> {
+                ControlFrame frame = enterFrame(b.label(), b.type(), true);
+                Stmt body = compileBlock(b.code(), frame);
+                stmts.add(new ClosureNodes.Loop(frame.depth, Machine.fuelCost(b.code()), body));
+                exitFrame(frame);
+            }
+            case ControlFlowInstruction.If b -> {
+                Expr cond = pop();
+                ControlFrame frame = enterFrame(b.label(), b.type(), false);
+                if (frame.type.numParams() != frame.type.numReturns()) {
+                    throw new RuntimeException("if without else must have same number of params and results");
+                }
+                Stmt then = compileBlock(b.ifBlock(), frame);
+                stmts.add(new ClosureNodes.If(frame.depth, cond, then, new Seq(new Stmt[0])));
+                // Without else the params are passed through as results
+                reachable = true;
+                exitFrame(frame);
+            }
+            case ControlFlowInstruction.IfElse b -> {
+                Expr cond = pop();
+                ControlFrame frame = enterFrame(b.label(), b.type(), false);
+                Stmt then = compileBlock(b.ifBlock(), frame);
+                boolean thenReachable = reachable;
+                resetStack(frame.base, frame.type.numParams());
+                reachable = true;
+                Stmt otherwise = compileBlock(b.elseBlock(), frame);
+                stmts.add(new ClosureNodes.If(frame.depth, cond, then, otherwise));
+                reachable = reachable || thenReachable;
+                exitFrame(frame);
+            }
+            case ControlFlowInstruction.Branch b -> {
+                spillAll();
+                stmts.add(branch(findFrame(b.label())));
+                reachable = false;
+            }
+            case ControlFlowInstruction.BranchIf b -> {
+                Expr cond = pop();
+                spillAll();
+                stmts.add(new BrIf(cond, branch(findFrame(b.label()))));
+            }
+            case ControlFlowInstruction.BranchTable b -> {
+                Expr index = pop();
+                spillAll();
+                int n = b.labels().length;
+                Br[] targets = new Br[n + 1];
+                for (int i = 0; i <= n; i++) {
+                    targets[i] = branch(findFrame((i < n) ? b.labels()[i] : b.defaultLabel()));
+                }
+                stmts.add(new BrTable(index, targets));
+                reachable = false;
+            }
+            case ControlFlowInstruction.Else _ -> {}
+            case ControlFlowInstruction.End _ -> {}
+        }
+    }
+
+    // Values to keep are on top of the spilled stack. They move to the slots where the target expects them
+    private Br branch(ControlFrame target) {
+        int arity = target.branchArity();
+        int from = stack.size() - arity;
+        if (from < target.base) {
+            throw new RuntimeException(STR."Stack underflow at branch to \{target.label}");
+        }
+        if (!target.isLoop) {
+            target.targeted = true;
+        }
+        return new Br(target.depth, slot(from), slot(target.base), (from == target.base) ? 0 : arity);
+    }
+
+    // Params of the block are spilled, so the body reads them from their slots
+    private ControlFrame enterFrame(int label, FunctionType type, boolean isLoop) {
+        type = (type == null) ? FunctionType.VOID : type;
+        int base = stack.size() - type.numParams();
+        if (base < 0) {
+            throw new RuntimeException(STR."Stack underflow at block \{label}");
+        }
+        spillAll();
+        ControlFrame frame = new ControlFrame(label, isLoop, type, base, frames.size() + 1);
+        frames.add(frame);
+        return frame;
+    }
+
+    private void exitFrame(ControlFrame frame) {
+        frames.removeLast();
+        // End of block is reachable if we fall through or some branch targets it
+        reachable = reachable || frame.targeted;
+        resetStack(frame.base, frame.type.numReturns());
+    }
+
+    // Leaves the spilled values below base and n values in the slots above it
+    private void resetStack(int base, int n) {
+        while (stack.size() > base) {
+            stack.removeLast();
+        }
+        pushResults(n);
+    }
+
+    private ControlFrame findFrame(int label) {
+        if (label != FUNC_LEVEL) {
+            for (int i = frames.size() - 1; i >= 0; i--) {
+                if (frames.get(i).label == label) {
+                    return frames.get(i);
+                }
+            }
+        }
+        // The interpreter unwinds unknown labels all the way out of the function
+        return root;
+    }
+
+    /*
+        Stores values which are still expressions into their slots before a side effect. Constants and reads of slots
+        are kept as they are, except for reads of the local about to be written.
+     */
+    private void spill(int clobbered) {
+        for (int i = 0; i < stack.size(); i++) {
+            Expr e = stack.get(i);
+            if (!(e instanceof Const || (e instanceof Slot s && s.slot != clobbered))) {
+                store(i);
+            }
+        }
+    }
+
+    // Stores every value into its slot, as control flow passes values in slots
+    private void spillAll() {
+        for (int i = 0; i < stack.size(); i++) {
+            if (!(stack.get(i) instanceof Slot s && s.slot == slot(i))) {
+                store(i);
+            }
+        }
+    }
+
+    private void store(int i) {
+        stmts.add(new SetSlot(slot(i), stack.get(i)));
+        stack.set(i, new Slot(slot(i)));
+    }
+
+    // Side effects without a node run through the interpreter with results going to the slots where they are pushed
+    private void bridgeStmt(Instruction ins, int numOperands, int numResults) {
+        Expr[] operands = popN(numOperands);
+        spill(-1);
+        stmts.add(new BridgeStmt(ins, operands, slot(stack.size()), numResults));
+        pushResults(numResults);
+    }
+
+    private int slot(int position) {
+        return stackBase + position;
+    }
+
+    private void push(Expr e) {
+        stack.add(e);
+        maxHeight = Math.max(maxHeight, stack.size());
+    }
+
+    private void pushResults(int n) {
+        for (int i = 0; i < n; i++) {
+            push(new Slot(slot(stack.size())));
+        }
+    }
+
+    private Expr pop() {
+        if (stack.isEmpty()) {
+            throw new RuntimeException("Stack underflow");
+        }
+        return stack.removeLast();
+    }
+
+    private Expr[] popN(int n) {
+        if (stack.size() < n) {
+            throw new RuntimeException("Stack underflow");
+        }
+        List<Expr> top = stack.subList(stack.size() - n, stack.size());
+        Expr[] values = top.toArray(new Expr[0]);
+        top.clear();
+        return values;
+    }
+}
@@ -0,0 +1,509 @@
+package rrampage.wasp.vm;
+
+import rrampage.wasp.data.Memory;
+import rrampage.wasp.instructions.*;
+import rrampage.wasp.utils.MathUtils;
+
+import static rrampage.wasp.instructions.ByteCodeConstants.*;
+import static rrampage.wasp.utils.ConversionUtils.*;
+
+/**
+ * Executor nodes built by {@link ClosureCompiler}. Every node is a small final class, so calls to its children are
+ * monomorphic at each site and HotSpot can inline whole expression trees.
+ * <p>
+ * Values use the representation of the machine stack. A frame is a long[] holding params, locals and one slot per
+ * operand stack position. Statements return {@link #NEXT} to continue with the following statement or the depth of
+ * the block they branch to, where depth 0 is the function body.
+ */
+final class ClosureNodes {
+    static final int NEXT = -1;
+
+    private ClosureNodes() {}
+
+    abstract static class Expr {
+        abstract long eval(Machine m, long[] frame);
+    }
+
+    abstract static class Stmt {
+        abstract int exec(Machine m, long[] frame);
+    }
+
+    // Expressions
+
+    static final class Const extends Expr {
+        final long value;
+        Const(long value) { this.value = value; }
+        long eval(Machine m, long[] frame) { return value; }
+    }
+
+    // Reads a param, local or operand stack slot
+    static final class Slot extends Expr {
+        final int slot;
+        Slot(int slot) { this.slot = slot; }
+        long eval(Machine m, long[] frame) { return frame[slot]; }
+    }
+
+    static final class GlobalGet extends Expr {
+        final int idx;
+        GlobalGet(int idx) { this.idx = idx; }
+        long eval(Machine m, long[] frame) { return m.getGlobal(idx); }
+    }
+
+    static final class MemorySize extends Expr {
+        long eval(Machine m, long[] frame) { return m.getMainMemory().getMemorySize(); }
+    }
+
+    static final class SelectValue extends Expr {
+        final Expr first, second, cond;
+        SelectValue(Expr first, Expr second, Expr cond) { this.first = first; this.second = second; this.cond = cond; }
+        long eval(Machine m, long[] frame) {
+            long t1 = first.eval(m, frame);
+            long t2 = second.eval(m, frame);
+            return ((int) cond.eval(m, frame) == 0) ? t2 : t1;
+        }
+    }
+
+    // Most common i32 ops get their own node, the rest share I32Binary
+
+    static final class I32Add extends Expr {
+        final Expr left, right;
+        I32Add(Expr left, Expr right) { this.left = left; this.right = right; }
+        long eval(Machine m, long[] frame) { return (int) left.eval(m, frame) + (int) right.eval(m, frame); }
+    }
+
+    static final class I32AddConst extends Expr {
+        final Expr left;
+        final int right;
+        I32AddConst(Expr left, int right) { this.left = left; this.right = right; }
+        long eval(Machine m, long[] frame) { return (int) left.eval(m, frame) + right; }
+    }
+
+    static final class I32Sub extends Expr {
+        final Expr left, right;
+        I32Sub(Expr left, Expr right) { this.left = left; this.right = right; }
+        long eval(Machine m, long[] frame) { return (int) left.eval(m, frame) - (int) right.eval(m, frame); }
+    }
+
+    static final class I32Mul extends Expr {
+        final Expr left, right;
+        I32Mul(Expr left, Expr right) { this.left = left; this.right = right; }
+        long eval(Machine m, long[] frame) { return (int) left.eval(m, frame) * (int) right.eval(m, frame); }
+    }
+
+    static final class I32And extends Expr {
+        final Expr left, right;
+        I32And(Expr left, Expr right) { this.left = left; this.right = right; }
+        long eval(Machine m, long[] frame) { return (int) left.eval(m, frame) & (int) right.eval(m, frame); }
+    }
+
+    static final class I32Shl extends Expr {
+        final Expr left, right;
+        I32Shl(Expr left, Expr right) { this.left = left; this.right = right; }
+        long eval(Machine m, long[] frame) { return (int) left.eval(m, frame) << (int) right.eval(m, frame); }
+    }
+
+    static final class I32Eq extends Expr {
+        final Expr left, right;
+        I32Eq(Expr left, Expr right) { this.left = left; this.right = right; }
+        long eval(Machine m, long[] frame) { return wrapBoolean((int) left.eval(m, frame) == (int) right.eval(m, frame)); }
+    }
+
+    static final class I32Ne extends Expr {
+        final Expr left, right;
+        I32Ne(Expr left, Expr right) { this.left = left; this.right = right; }
+        long eval(Machine m, long[] frame) { return wrapBoolean((int) left.eval(m, frame) != (int) right.eval(m, frame)); }
+    }
+
+    static final class I32LtS extends Expr {
+        final Expr left, right;
+        I32LtS(Expr left, Expr right) { this.left = left; this.right = right; }
+        long eval(Machine m, long[] frame) { return wrapBoolean((int) left.eval(m, frame) < (int) right.eval(m, frame)); }
+    }
+
+    static final class I32GtS extends Expr {
+        final Expr left, right;
+        I32GtS(Expr left, Expr right) { this.left = left; this.right = right; }
+        long eval(Machine m, long[] frame) { return wrapBoolean((int) left.eval(m, frame) > (int) right.eval(m, frame)); }
+    }
+
+    static final class I32Binary extends Expr {
+        final IntBinaryInstruction op;
+        final Expr left, right;
+        I32Binary(IntBinaryInstruction op, Expr left, Expr right) { this.op = op; this.left = left; this.right = right; }
+        long eval(Machine m, long[] frame) { return Machine.i32Binary(op, (int) left.eval(m, frame), (int) right.eval(m, frame)); }
+    }
+
+    static final class I32Eqz extends Expr {
+        final Expr operand;
+        I32Eqz(Expr operand) { this.operand = operand; }
+        long eval(Machine m, long[] frame) { return wrapBoolean((int) operand.eval(m, frame) == 0); }
+    }
+
+    static final class I64Binary extends Expr {
+        final LongBinaryInstruction op;
+        final Expr left, right;
+        I64Binary(LongBinaryInstruction op, Expr left, Expr right) { this.op = op; this.left = left; this.right = right; }
+        long eval(Machine m, long[] frame) {
+            long l = left.eval(m, frame);
+            long r = right.eval(m, frame);
+            return switch (op) {
+                case I64_ADD -> l + r;
+                case I64_SUB -> l - r;
+                case I64_MUL -> l * r;
+                case I64_DIV_S -> l / r;
+                case I64_DIV_U -> Long.divideUnsigned(l, r);
+                case I64_REM_S -> l % r;
+                case I64_REM_U -> Long.remainderUnsigned(l, r);
+                case I64_AND -> l & r;
+                case I64_OR -> l | r;
+                case I64_XOR -> l ^ r;
+                case I64_SHL -> l << r;
+                case I64_SHR_S -> l >> r;
+                case I64_SHR_U -> l >>> r;
+                case I64_ROTL -> Long.rotateLeft(l, (int) r);
+                case I64_ROTR -> Long.rotateRight(l, (int) r);
+                case I64_EQ -> wrapBoolean(l == r);
+                case I64_NE -> wrapBoolean(l != r);
+                case I64_LT_S -> wrapBoolean(l < r);
+                case I64_LT_U -> wrapBoolean(Long.compareUnsigned(l, r) < 0);
+                case I64_GT_S -> wrapBoolean(l > r);
+                case I64_GT_U -> wrapBoolean(Long.compareUnsigned(l, r) > 0);
+                case I64_LE_S -> wrapBoolean(l <= r);
+                case I64_LE_U -> wrapBoolean(Long.compareUnsigned(l, r) <= 0);
+                case I64_GE_S -> wrapBoolean(l >= r);
+                case I64_GE_U -> wrapBoolean(Long.compareUnsigned(l, r) >= 0);
+            };
+        }
+    }
+
+    static final class F32Binary extends Expr {
+        final FloatBinaryInstruction op;
+        final Expr left, right;
+        F32Binary(FloatBinaryInstruction op, Expr left, Expr right) { this.op = op; this.left = left; this.right = right; }
+        long eval(Machine m, long[] frame) {
+            float l = longToFloat(left.eval(m, frame));
+            float r = longToFloat(right.eval(m, frame));
+            return switch (op) {
+                case F32_ADD -> floatToLong(l + r);
+                case F32_SUB -> floatToLong(l - r);
+                case F32_MUL -> floatToLong(l * r);
+                case F32_DIV -> floatToLong(l / r);
+                case F32_MIN -> floatToLong(Float.min(l, r));
+                case F32_MAX -> floatToLong(Float.max(l, r));
+                case F32_COPY_SIGN -> floatToLong(Math.copySign(l, r));
+                case F32_EQ -> wrapBoolean(l == r);
+                case F32_NE -> wrapBoolean(l != r);
+                case F32_LT -> wrapBoolean(l < r);
+                case F32_GT -> wrapBoolean(l > r);
+                case F32_LE -> wrapBoolean(l <= r);
+                case F32_GE -> wrapBoolean(l >= r);
+            };
+        }
+    }
+
+    static final class F64Binary extends Expr {
+        final DoubleBinaryInstruction op;
+        final Expr left, right;
+        F64Binary(DoubleBinaryInstruction op, Expr left, Expr right) { this.op = op; this.left = left; this.right = right; }
+        long eval(Machine m, long[] frame) {
+            double l = longToDouble(left.eval(m, frame));
+            double r = longToDouble(right.eval(m, frame));
+            return switch (op) {
+                case F64_ADD -> doubleToLong(l + r);
+                case F64_SUB -> doubleToLong(l - r);
+                case F64_MUL -> doubleToLong(l * r);
+                case F64_DIV -> doubleToLong(l / r);
+                case F64_MIN -> doubleToLong(Double.min(l, r));
+                case F64_MAX -> doubleToLong(Double.max(l, r));
+                case F64_COPY_SIGN -> doubleToLong(Math.copySign(l, r));
+                case F64_EQ -> wrapBoolean(l == r);
+                case F64_NE -> wrapBoolean(l != r);
+                case F64_LT -> wrapBoolean(l < r);
+                case F64_GT -> wrapBoolean(l > r);
+                case F64_LE -> wrapBoolean(l <= r);
+                case F64_GE -> wrapBoolean(l >= r);
+            };
+        }
+    }
+
+    /*
+        Unary ops which can not trap. ClosureCompiler#isNativeUnary lists them, the others run through BridgeExpr so
+        they trap exactly like the interpreter.
+     */
+    static final class Unary extends Expr {
+        final UnaryInstruction op;
+        final Expr operand;
+        Unary(UnaryInstruction op, Expr operand) { this.op = op; this.operand = operand; }
+        long eval(Machine m, long[] frame) {
+            long v = operand.eval(m, frame);
+            return switch (op) {
+                case I64_EQZ -> wrapBoolean(v == 0);
+                case I32_WRAP_I64, I32_REINTERPRET_F32, F32_REINTERPRET_I32, I64_EXTEND32_S -> (int) v;
+                case I64_EXTEND_I32_S, I64_REINTERPRET_F64, F64_REINTERPRET_I64 -> v;
+                case I64_EXTEND_I32_U -> Integer.toUnsignedLong((int) v);
+                case I32_CLZ -> Integer.numberOfLeadingZeros((int) v);
+                case I32_CTZ -> Integer.numberOfTrailingZeros((int) v);
+                case I32_POPCNT -> Integer.bitCount((int) v);
+                case I64_CLZ -> Long.numberOfLeadingZeros(v);
+                case I64_CTZ -> Long.numberOfTrailingZeros(v);
+                case I64_POPCNT -> Long.bitCount(v);
+                case I32_EXTEND8_S, I64_EXTEND8_S -> (byte) v;
+                case I32_EXTEND16_S, I64_EXTEND16_S -> (short) v;
+                case F32_NEG -> floatToLong(-longToFloat(v));
+                case F32_ABS -> floatToLong(Math.abs(longToFloat(v)));
+                case F32_SQRT -> floatToLong((float) Math.sqrt(longToFloat(v)));
+                case F64_NEG -> doubleToLong(-longToDouble(v));
+                case F64_ABS -> doubleToLong(Math.abs(longToDouble(v)));
+                case F64_SQRT -> doubleToLong(Math.sqrt(longToDouble(v)));
+                case F64_FLOOR -> doubleToLong(Math.floor(longToDouble(v)));
+                case F64_CEIL -> doubleToLong(Math.ceil(longToDouble(v)));
+                case F64_NEAREST -> doubleToLong(MathUtils.nearest(longToDouble(v)));
+                case F32_DEMOTE_F64 -> floatToLong((float) longToDouble(v));
+                case F64_PROMOTE_F32 -> doubleToLong(longToFloat(v));
+                case F32_CONVERT_I32_S -> floatToLong((int) v);
+                case F32_CONVERT_I64_S -> floatToLong(v);
+                case F64_CONVERT_I32_S -> doubleToLong((int) v);
+                case F64_CONVERT_I32_U -> doubleToLong(Integer.toUnsignedLong((int) v));
+                case F64_CONVERT_I64_S -> doubleToLong(v);
+                default -> throw new IllegalStateException(STR."Unexpected unary op: \{op}");
+            };
+        }
+    }
+
+    // Loads use the flat code op codes as kinds
+    static final class Load extends Expr {
+        final int kind, offset;
+        final Expr addr;
+        Load(int kind, int offset, Expr addr) { this.kind = kind; this.offset = offset; this.addr = addr; }
+        long eval(Machine m, long[] frame) {
+            Memory memory = m.getMainMemory();
+            int ea = (int) addr.eval(m, frame) + offset;
+            return switch (kind) {
+                case LOAD_I32, LOAD_F32, LOAD32_I64_S -> memory.loadInt(ea);
+                case LOAD_I64, LOAD_F64 -> memory.loadLong(ea);
+                case LOAD8_I32_S, LOAD8_I64_S -> memory.loadByte(ea);
+                case LOAD8_I32_U, LOAD8_I64_U -> Byte.toUnsignedLong(memory.loadByte(ea));
+                case LOAD16_I32_S, LOAD16_I64_S -> memory.loadShort(ea);
+                case LOAD16_I32_U, LOAD16_I64_U -> Short.toUnsignedLong(memory.loadShort(ea));
+                case LOAD32_I64_U -> Integer.toUnsignedLong(memory.loadInt(ea));
+                default -> throw new IllegalStateException(STR."Unexpected load: \{kind}");
+            };
+        }
+    }
+
+    // Instructions without a node of their own run through the interpreter on the machine stack
+    static final class BridgeExpr extends Expr {
+        final Instruction ins;
+        final Expr[] operands;
+        BridgeExpr(Instruction ins, Expr[] operands) { this.ins = ins; this.operands = operands; }
+        long eval(Machine m, long[] frame) {
+            for (Expr operand : operands) {
+                m.push(operand.eval(m, frame));
+            }
+            m.stepInstruction(ins);
+            return m.pop();
+        }
+    }
+
+    // Statements
+
+    static final class SetSlot extends Stmt {
+        final int slot;
+        final Expr value;
+        SetSlot(int slot, Expr value) { this.slot = slot; this.value = value; }
+        int exec(Machine m, long[] frame) {
+            frame[slot] = value.eval(m, frame);
+            return NEXT;
+        }
+    }
+
+    static final class GlobalSet extends Stmt {
+        final int idx;
+        final Expr value;
+        GlobalSet(int idx, Expr value) { this.idx = idx; this.value = value; }
+        int exec(Machine m, long[] frame) {
+            m.setGlobal(idx, value.eval(m, frame));
+            return NEXT;
+        }
+    }
+
+    static final class Store extends Stmt {
+        final int kind, offset;
+        final Expr addr, value;
+        Store(int kind, int offset, Expr addr, Expr value) { this.kind = kind; this.offset = offset; this.addr = addr; this.value = value; }
+        int exec(Machine m, long[] frame) {
+            int ea = (int) addr.eval(m, frame) + offset;
+            long val = value.eval(m, frame);
+            Memory memory = m.getMainMemory();
+            switch (kind) {
+                case STORE_I32, STORE_F32, STORE32_I64 -> memory.store(ea, (int) val);
+                case STORE_I64, STORE_F64 -> memory.store(ea, val);
+                case STORE8_I32, STORE8_I64 -> memory.store(ea, (byte) val);
+                case STORE16_I32, STORE16_I64 -> memory.store(ea, (short) val);
+                default -> throw new IllegalStateException(STR."Unexpected store: \{kind}");
+            }
+            return NEXT;
+        }
+    }
+
+    // Evaluates a dropped value, which can still trap
+    static final class Drop extends Stmt {
+        final Expr value;
+        Drop(Expr value) { this.value = value; }
+        int exec(Machine m, long[] frame) {
+            value.eval(m, frame);
+            return NEXT;
+        }
+    }
+
+    // Args are passed on the machine stack and results are popped into consecutive slots
+    static final class Call extends Stmt {
+        final int funcIdx, resultSlot, numResults;
+        final Expr[] args;
+        Call(int funcIdx, Expr[] args, int resultSlot, int numResults) {
+            this.funcIdx = funcIdx; this.args = args; this.resultSlot = resultSlot; this.numResults = numResults;
+        }
+        int exec(Machine m, long[] frame) {
+            for (Expr arg : args) {
+                m.push(arg.eval(m, frame));
+            }
+            m.callFunction(funcIdx);
+            for (int i = numResults - 1; i >= 0; i--) {
+                frame[resultSlot + i] = m.pop();
+            }
+            return NEXT;
+        }
+    }
+
+    static final class CallIndirect extends Stmt {
+        final int tblIdx, typeId, resultSlot, numResults;
+        final Expr[] args;
+        final Expr offset;
+        CallIndirect(int tblIdx, int typeId, Expr[] args, Expr offset, int resultSlot, int numResults) {
+            this.tblIdx = tblIdx; this.typeId = typeId; this.args = args; this.offset = offset; this.resultSlot = resultSlot; this.numResults = numResults;
+        }
+        int exec(Machine m, long[] frame) {
+            for (Expr arg : args) {
+                m.push(arg.eval(m, frame));
+            }
+            m.callIndirect(tblIdx, (int) offset.eval(m, frame), typeId);
+            for (int i = numResults - 1; i >= 0; i--) {
+                frame[resultSlot + i] = m.pop();
+            }
+            return NEXT;
+        }
+    }
+
+    static final class BridgeStmt extends Stmt {
+        final Instruction ins;
+        final Expr[] operands;
+        final int resultSlot, numResults;
+        BridgeStmt(Instruction ins, Expr[] operands, int resultSlot, int numResults) {
+            this.ins = ins; this.operands = operands; this.resultSlot = resultSlot; this.numResults = numResults;
+        }
+        int exec(Machine m, long[] frame) {
+            for (Expr operand : operands) {
+                m.push(operand.eval(m, frame));
+            }
+            m.stepInstruction(ins);
+            for (int i = numResults - 1; i >= 0; i--) {
+                frame[resultSlot + i] = m.pop();
+            }
+            return NEXT;
+        }
+    }
+
+    static final class Unreachable extends Stmt {
+        int exec(Machine m, long[] frame) {
+            throw new RuntimeException("Unreachable op code detected! Crashing on demand!");
+        }
+    }
+
+    // Control flow
+
+    static final class Seq extends Stmt {
+        final Stmt[] body;
+        Seq(Stmt[] body) { this.body = body; }
+        int exec(Machine m, long[] frame) {
+            for (Stmt s : body) {
+                int target = s.exec(m, frame);
+                if (target != NEXT) {
+                    return target;
+                }
+            }
+            return NEXT;
+        }
+    }
+
+    static final class Block extends Stmt {
+        final int depth;
+        final Stmt body;
+        Block(int depth, Stmt body) { this.depth = depth; this.body = body; }
+        int exec(Machine m, long[] frame) {
+            int target = body.exec(m, frame);
+            return (target == depth) ? NEXT : target;
+        }
+    }
+
+    // Branches to the loop start the next iteration, which is charged like in the other interpreters
+    static final class Loop extends Stmt {
+        final int depth, cost;
+        final Stmt body;
+        Loop(int depth, int cost, Stmt body) { this.depth = depth; this.cost = cost; this.body = body; }
+        int exec(Machine m, long[] frame) {
+            while (true) {
+                m.consumeFuel(cost);
+                int target = body.exec(m, frame);
+                if (target != depth) {
+                    return target;
+                }
+            }
+        }
+    }
+
+    static final class If extends Stmt {
+        final int depth;
+        final Expr cond;
+        final Stmt then, otherwise;
+        If(int depth, Expr cond, Stmt then, Stmt otherwise) { this.depth = depth; this.cond = cond; this.then = then; this.otherwise = otherwise; }
+        int exec(Machine m, long[] frame) {
+            int target = ((int) cond.eval(m, frame) != 0) ? then.exec(m, frame) : otherwise.exec(m, frame);
+            return (target == depth) ? NEXT : target;
+        }
+    }
+
+    /*
+        Branch values have been spilled to the top slots of the operand stack. They move down to the slots of the
+        target's params or results. Targets are never above the values, so copying upwards from the lowest is safe.
+     */
+    static final class Br extends Stmt {
+        final int depth, from, to, count;
+        Br(int depth, int from, int to, int count) { this.depth = depth; this.from = from; this.to = to; this.count = count; }
+        int exec(Machine m, long[] frame) {
+            for (int i = 0; i < count; i++) {
+                frame[to + i] = frame[from + i];
+            }
+            return depth;
+        }
+    }
+
+    static final class BrIf extends Stmt {
+        final Expr cond;
+        final Br br;
+        BrIf(Expr cond, Br br) { this.cond = cond; this.br = br; }
+        int exec(Machine m, long[] frame) {
+            return ((int) cond.eval(m, frame) != 0) ? br.exec(m, frame) : NEXT;
+        }
+    }
+
+    // The last entry is the default
+    static final class BrTable extends Stmt {
+        final Expr index;
+        final Br[] targets;
+        BrTable(Expr index, Br[] targets) { this.index = index; this.targets = targets; }
+        int exec(Machine m, long[] frame) {
+            int i = (int) index.eval(m, frame);
+            return targets[(i >= 0 && i < targets.length - 1) ? i : targets.length - 1].exec(m, frame);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package rrampage.wasp.vm;
+
+/**
+ * A WASM function compiled to JVM bytecode by {@link JitCompiler}, to executor nodes by {@link ClosureCompiler} or to
+ * register code by {@link RegisterCodeCompiler}.
+ * Follows the same calling convention as the interpreter: params are popped from the machine stack
+ * and results are pushed back on to it.
+ */
+public interface CompiledFunction {
+    void invoke(Machine machine);
+}
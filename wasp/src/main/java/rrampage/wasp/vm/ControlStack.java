@@ -0,0 +1,77 @@
+package rrampage.wasp.vm;
+
+import rrampage.wasp.data.Function;
+
+import java.util.Arrays;
+
+/**
+ * Guest frames of the {@link MachineConfig.Interpreter#STACKLESS} interpreter. Each frame is a function running as
+ * {@link FlatCode} with the pc to continue from and its frame pointer on the {@link MachineStack}.
+ * Frames are kept in parallel arrays, so calls do not allocate once the arrays have grown.
+ */
+final class ControlStack {
+    private static final int INITIAL_SIZE = 64;
+    // Guest recursion is bounded by the heap, so infinite recursion traps here instead of running out of memory
+    static final int MAX_FRAMES = 1 << 20;
+    private Function[] functions = new Function[INITIAL_SIZE];
+    private FlatCode[] codes = new FlatCode[INITIAL_SIZE];
+    private int[] pcs = new int[INITIAL_SIZE];
+    private int[] fps = new int[INITIAL_SIZE];
+    private int size;
+
+    void push(Function function, FlatCode code, int fp) {
+        if (size == functions.length) {
+            if (size == MAX_FRAMES) {
+                throw new RuntimeException("STACK_OVERFLOW: call stack exhausted");
+            }
+            int n = size * 2;
+            functions = Arrays.copyOf(functions, n);
+            codes = Arrays.copyOf(codes, n);
+            pcs = Arrays.copyOf(pcs, n);
+            fps = Arrays.copyOf(fps, n);
+        }
+        functions[size] = function;
+        codes[size] = code;
+        pcs[size] = 0;
+        fps[size] = fp;
+        size++;
+    }
+
+    Function pop() {
+        Function f = functions[--size];
+        functions[size] = null;
+        codes[size] = null;
+        return f;
+    }
+
+    // Drops frames above size n e.g. after a trap
+    void truncate(int n) {
+        Arrays.fill(functions, n, size, null);
+        Arrays.fill(codes, n, size, null);
+        size = n;
+    }
+
+    int size() {
+        return size;
+    }
+
+    Function function(int idx) {
+        return functions[idx];
+    }
+
+    FlatCode code(int idx) {
+        return codes[idx];
+    }
+
+    int pc(int idx) {
+        return pcs[idx];
+    }
+
+    void setPc(int idx, int pc) {
+        pcs[idx] = pc;
+    }
+
+    int fp(int idx) {
+        return fps[idx];
+    }
+}
@@ -0,0 +1,200 @@
+package rrampage.wasp.vm;
+
+import rrampage.wasp.data.Function;
+import rrampage.wasp.data.FunctionType;
+import rrampage.wasp.data.ValueType;
+
+import static rrampage.wasp.utils.ConversionUtils.*;
+
+/**
+ * An exported function of a {@link Machine}, resolved once with {@link Machine#exportedFunction(String)}.
+ * Arguments are pushed directly onto the machine stack, so calls do not allocate.
+ * <p>
+ * Arguments and results use the machine stack representation: i32 and i64 values as is and f32/f64 values as their raw bits
+ * (see {@link rrampage.wasp.utils.ConversionUtils#floatToLong(float)}). The result of a function with a single result is popped
+ * and returned. Functions without results return 0 and results of functions with multiple results are left on the stack.
+ * Functions with v128 params or results are rejected when the export is resolved.
+ * <p>
+ * {@code invokeFloat} and {@code invokeDouble} take and return Java floats and doubles. They check that all params and the
+ * result have that type. Use {@link Machine#exportedFunction(String, FunctionType)} to check the whole signature once
+ * when the export is resolved.
+ */
+public final class ExportedFunction {
+    private final Machine machine;
+    private final Function function;
+    private final String name;
+    private final int numParams;
+    private final boolean returnsValue;
+    // Type of the single result or null. Params are all f32 or all f64, computed once for the typed entry points
+    private final ValueType resultType;
+    private final boolean floatParams, doubleParams;
+
+    ExportedFunction(Machine machine, String name, Function function) {
+        this.machine = machine;
+        this.function = function;
+        this.name = name;
+        if (function.type().hasVectorTypes()) {
+            // A v128 takes two stack slots, so it does not fit the one long per argument and result of the entry points
+            throw new RuntimeException(String.format("INVOKE: %s has type %s. v128 params and results are not supported", name, function.type()));
+        }
+        this.numParams = function.numParams();
+        this.returnsValue = function.type().numReturns() == 1;
+        this.resultType = returnsValue ? function.type().returnTypes()[0] : null;
+        this.floatParams = allParams(function.type(), ValueType.NumType.F32);
+        this.doubleParams = allParams(function.type(), ValueType.NumType.F64);
+    }
+
+    private static boolean allParams(FunctionType type, ValueType t) {
+        for (int i = 0; i < type.numParams(); i++) {
+            if (type.paramTypes()[i] != t) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public FunctionType type() {
+        return function.type();
+    }
+
+    Machine machine() {
+        return machine;
+    }
+
+    public long invoke() {
+        checkParams(0);
+        return call();
+    }
+
+    public long invoke(long a) {
+        checkParams(1);
+        machine.push(a);
+        return call();
+    }
+
+    public long invoke(long a, long b) {
+        checkParams(2);
+        machine.push(a);
+        machine.push(b);
+        return call();
+    }
+
+    public long invoke(long a, long b, long c) {
+        checkParams(3);
+        machine.push(a);
+        machine.push(b);
+        machine.push(c);
+        return call();
+    }
+
+    public long invoke(long... args) {
+        checkParams(args.length);
+        for (long arg : args) {
+            machine.push(arg);
+        }
+        return call();
+    }
+
+    public int invokeInt() {
+        return (int) invoke();
+    }
+
+    public int invokeInt(long a) {
+        return (int) invoke(a);
+    }
+
+    public int invokeInt(long a, long b) {
+        return (int) invoke(a, b);
+    }
+
+    public int invokeInt(long a, long b, long c) {
+        return (int) invoke(a, b, c);
+    }
+
+    public int invokeInt(long... args) {
+        return (int) invoke(args);
+    }
+
+    public float invokeFloat() {
+        checkTypes(ValueType.NumType.F32, floatParams, 0);
+        return longToFloat(call());
+    }
+
+    public float invokeFloat(float a) {
+        checkTypes(ValueType.NumType.F32, floatParams, 1);
+        machine.push(floatToLong(a));
+        return longToFloat(call());
+    }
+
+    public float invokeFloat(float a, float b) {
+        checkTypes(ValueType.NumType.F32, floatParams, 2);
+        machine.push(floatToLong(a));
+        machine.push(floatToLong(b));
+        return longToFloat(call());
+    }
+
+    public float invokeFloat(float a, float b, float c) {
+        checkTypes(ValueType.NumType.F32, floatParams, 3);
+        machine.push(floatToLong(a));
+        machine.push(floatToLong(b));
+        machine.push(floatToLong(c));
+        return longToFloat(call());
+    }
+
+    public double invokeDouble() {
+        checkTypes(ValueType.NumType.F64, doubleParams, 0);
+        return longToDouble(call());
+    }
+
+    public double invokeDouble(double a) {
+        checkTypes(ValueType.NumType.F64, doubleParams, 1);
+        machine.push(doubleToLong(a));
+        return longToDouble(call());
+    }
+
+    public double invokeDouble(double a, double b) {
+        checkTypes(ValueType.NumType.F64, doubleParams, 2);
+        machine.push(doubleToLong(a));
+        machine.push(doubleToLong(b));
+        return longToDouble(call());
+    }
+
+    public double invokeDouble(double a, double b, double c) {
+        checkTypes(ValueType.NumType.F64, doubleParams, 3);
+        machine.push(doubleToLong(a));
+        machine.push(doubleToLong(b));
+        machine.push(doubleToLong(c));
+        return longToDouble(call());
+    }
+
+    /**
+     * Creates an invocation of this function which can be suspended by host functions. It starts running on the first
+     * {@link Invocation#resume()}. Needs the {@link MachineConfig.Interpreter#STACKLESS} interpreter.
+     */
+    public Invocation start(long... args) {
+        checkParams(args.length);
+        return new Invocation(machine, function, args);
+    }
+
+    private void checkParams(int n) {
+        if (n != numParams) {
+            throw new RuntimeException(String.format("INVOKE: Incorrect number of params passed for %s. Expected: %d Got: %d", name, numParams, n));
+        }
+    }
+
+    private void checkTypes(ValueType t, boolean paramsMatch, int n) {
+        checkParams(n);
+        if (!paramsMatch || resultType != t) {
+            throw new RuntimeException(String.format("INVOKE: %s has type %s, which does not only take and return %s", name, function.type(), t));
+        }
+    }
+
+    private long call() {
+        machine.invokeFunction(function);
+        return returnsValue ? machine.pop() : 0;
+    }
+}
@@ -0,0 +1,29 @@
+package rrampage.wasp.vm;
+
+import rrampage.wasp.data.Function;
+
+/**
+ * A function body lowered by {@link FlatCodeCompiler} into a single code stream, so that it can be executed by
+ * {@link Machine} in one loop without recursing into blocks.
+ * <p>
+ * Op codes are the WASM byte codes from {@link rrampage.wasp.instructions.ByteCodeConstants}, with 0xFC prefixed
+ * op codes offset by {@link #FC_OPS}. Immediates follow their op code:
+ * <ul>
+ *     <li>br, br_if: absolute target, number of values to drop, number of values to keep</li>
+ *     <li>br_table: n followed by n+1 (target, drop, keep) entries where the last one is the default</li>
+ *     <li>if: target when condition is zero. else: unconditional target</li>
+ *     <li>i64/f64 const: index into {@link #constants()}. java call, atomic: index into {@link #refs()}</li>
+ *     <li>fuel, loop: cost charged at function entry and at the start of every loop iteration. loop: followed by
+ *     the index of its {@link rrampage.wasp.instructions.ControlFlowInstruction.Loop} in {@link #refs()}</li>
+ *     <li>fused instructions: their fields in declaration order, with i32 ops as ordinals of
+ *     {@link rrampage.wasp.instructions.IntBinaryInstruction} and br_if labels as (target, drop, keep)</li>
+ * </ul>
+ * Loop iterations are counted on the cache of the lowered function, which decides when it is JIT compiled on
+ * tiered machines and when a running loop moves to compiled code.
+ */
+public record FlatCode(int[] code, long[] constants, Object[] refs, int numReturns, Function function) {
+    public static final int FC_OPS = 0x100;
+    public static final int CALL_JAVA = 0x200, ATOMIC = 0x201, FUEL = 0x202, LOOP = 0x203;
+    public static final int LOCAL_LOCAL_I32 = 0x300, LOCAL_CONST_I32 = 0x301, LOCAL_CONST_I32_SET = 0x302,
+            CONST_I32_BR_IF = 0x303;
+}
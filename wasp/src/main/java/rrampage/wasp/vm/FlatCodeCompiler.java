@@ -0,0 +1,649 @@
+package rrampage.wasp.vm;
+
+import rrampage.wasp.data.Function;
+import rrampage.wasp.data.FunctionCache;
+import rrampage.wasp.data.FunctionType;
+import rrampage.wasp.data.ValueType;
+import rrampage.wasp.instructions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static rrampage.wasp.instructions.ByteCodeConstants.*;
+import static rrampage.wasp.vm.FlatCode.*;
+
+/**
+ * Lowers the nested instruction tree of a function into a {@link FlatCode} stream.
+ * Stack heights are tracked while lowering, so every branch knows exactly how many values to drop and keep.
+ * Functions whose stack heights do not line up (e.g. hand written code leaving values in a void block) can not be
+ * lowered and are run by the tree walking interpreter instead. Neither can functions which have not been validated:
+ * flat code pushes into the frame reserved for the maximum stack height of the function, without growing the stack.
+ */
+public class FlatCodeCompiler {
+    private static final int FUNC_LEVEL = -1;
+
+    private final Function fun;
+    private final Function[] functions;
+    private int[] code = new int[64];
+    private int pc = 0;
+    private final ArrayList<Long> constants = new ArrayList<>();
+    private final ArrayList<Object> refs = new ArrayList<>();
+    private final ArrayList<ControlFrame> frames = new ArrayList<>();
+    private int height = 0;
+    private boolean reachable = true;
+
+    private static final class ControlFrame {
+        final int label;
+        final boolean isLoop;
+        final FunctionType type;
+        // Stack height below block params
+        final int base;
+        final int startPc;
+        // Positions of forward jump targets to be filled in at the end of the block
+        final ArrayList<Integer> patches = new ArrayList<>();
+
+        ControlFrame(int label, boolean isLoop, FunctionType type, int base, int startPc) {
+            this.label = label;
+            this.isLoop = isLoop;
+            this.type = type;
+            this.base = base;
+            this.startPc = startPc;
+        }
+
+        int branchArity() {
+            return isLoop ? type.numParams() : type.numReturns();
+        }
+    }
+
+    private FlatCodeCompiler(Function fun, Function[] functions) {
+        this.fun = fun;
+        this.functions = functions;
+    }
+
+    /**
+     * Returns flat code for the function or null if it can not be lowered. The result is stored in the function's cache.
+     */
+    public static FlatCode compile(Function fun, Function[] functions) {
+        FunctionCache cache = fun.cache();
+        if (cache.hasFlatCode() || cache.hasFlatCodeError()) {
+            return cache.flatCode();
+        }
+        synchronized (cache) {
+            if (cache.hasFlatCode() || cache.hasFlatCodeError()) {
+                return cache.flatCode();
+            }
+            try {
+                cache.setFlatCode(new FlatCodeCompiler(fun, functions).lower());
+            } catch (RuntimeException e) {
+                cache.setFlatCodeError(STR."FLAT_CODE_ERROR: Unable to lower \{fun.name()}: \{e.getMessage()}");
+            }
+        }
+        return cache.flatCode();
+    }
+
+    private FlatCode lower() {
+        FunctionCache cache = fun.cache();
+        if (!cache.isValidated()) {
+            throw new RuntimeException(cache.hasValidationError() ? cache.validationError() : "Function has not been validated");
+        }
+        requireScalarTypes(fun.type());
+        if (fun.locals() != null && Arrays.asList(fun.locals()).contains(ValueType.VecType.VEC_TYPE)) {
+            throw new RuntimeException("v128 locals are not supported");
+        }
+        emit(FUEL, Machine.fuelCost(fun.code()), 0);
+        lower(fun.code());
+        if (reachable && height != fun.type().numReturns()) {
+            throw new RuntimeException(STR."Stack height \{height} does not match \{fun.type().numReturns()} results at end of function");
+        }
+        emit(FUNC_RETURN);
+        long[] consts = new long[constants.size()];
+        for (int i = 0; i < consts.length; i++) {
+            consts[i] = constants.get(i);
+        }
+        return new FlatCode(Arrays.copyOf(code, pc), consts, refs.toArray(), fun.type().numReturns(), fun);
+    }
+
+    // Flat code keeps one slot per value. Functions passing v128 values run on the tree interpreter
+    private static void requireScalarTypes(FunctionType type) {
+        if (type.hasVectorTypes()) {
+            throw new RuntimeException(STR."v128 values are not supported in \{type}");
+        }
+    }
+
+    private void lower(Instruction[] instructions) {
+        for (Instruction ins : instructions) {
+            // Skip dead code after br, return and unreachable
+            if (!reachable) {
+                return;
+            }
+            lower(ins);
+        }
+    }
+
+    private void lower(Instruction ins) {
+        switch (ins) {
+            case ConstInstruction.IntConst c -> emit(CONST_INT, c.val(), 1);
+            case ConstInstruction.FloatConst c -> emit(CONST_FLOAT, Float.floatToRawIntBits(c.val()), 1);
+            case ConstInstruction.LongConst c -> emit(CONST_LONG, constant(c.val()), 1);
+            case ConstInstruction.DoubleConst c -> emit(CONST_DOUBLE, constant(Double.doubleToRawLongBits(c.val())), 1);
+            case IntBinaryInstruction b -> emit(opCode(b), -1);
+            case LongBinaryInstruction b -> emit(opCode(b), -1);
+            case FloatBinaryInstruction b -> emit(opCode(b), -1);
+            case DoubleBinaryInstruction b -> emit(opCode(b), -1);
+            case UnaryInstruction u -> emit(opCode(u), (u == UnaryInstruction.DROP) ? -1 : 0);
+            case NullaryInstruction n -> {
+                switch (n) {
+                    case UNREACHABLE -> {
+                        emit(NULL_UNREACHABLE);
+                        reachable = false;
+                    }
+                    case NOP -> {}
+                    case MEMORY_SIZE -> emit(NULL_MEM_SIZE, 1);
+                }
+            }
+            case LoadInstruction l -> emit(opCode(l), l.offset(), 0);
+            case StoreInstruction s -> emit(opCode(s), s.offset(), -2);
+            case FunctionInstruction f -> {
+                switch (f) {
+                    case FunctionInstruction.Call c -> {
+                        FunctionType type = functions[c.val()].type();
+                        requireScalarTypes(type);
+                        emit(FUNC_CALL, c.val(), type.numReturns() - type.numParams());
+                    }
+                    case FunctionInstruction.CallIndirect c -> {
+                        if (c.type() == null) {
+                            throw new RuntimeException("Unknown type for call_indirect");
+                        }
+                        requireScalarTypes(c.type());
+                        emit(FUNC_CALL_INDIRECT, c.tableIdx(), c.typeId(), c.type().numReturns() - c.type().numParams() - 1);
+                    }
+                    // Params are read from locals
+                    case FunctionInstruction.CallJava c -> emit(CALL_JAVA, ref(c), c.type().numReturns());
+                    case FunctionInstruction.Return _ -> {
+                        emit(FUNC_RETURN);
+                        reachable = false;
+                    }
+                    case FunctionInstruction.LocalGet l -> emit(LOCAL_GET, l.val(), 1);
+                    case FunctionInstruction.LocalSet l -> emit(LOCAL_SET, l.val(), -1);
+                    case FunctionInstruction.LocalTee l -> emit(LOCAL_TEE, l.val(), 0);
+                }
+            }
+            case GlobalInstruction g -> {
+                switch (g) {
+                    case GlobalInstruction.GlobalGet i -> emit(GLOBAL_GET, i.val(), 1);
+                    case GlobalInstruction.GlobalSet i -> emit(GLOBAL_SET, i.val(), -1);
+                }
+            }
+            case Select _ -> emit(SELECT, -2);
+            case SegmentInstruction s -> {
+                switch (s) {
+                    case SegmentInstruction.MemoryInit i -> emit(FC_OPS | FC_MEM_INIT, i.dataSegmentIndex(), i.memoryIndex(), -3);
+                    case SegmentInstruction.DataDrop i -> emit(FC_OPS | FC_DATA_DROP, i.dataSegmentIndex(), 0);
+                    case SegmentInstruction.MemoryCopy i -> emit(FC_OPS | FC_MEM_COPY, i.srcMemoryIndex(), i.dstMemoryIndex(), -3);
+                    case SegmentInstruction.MemoryFill i -> emit(FC_OPS | FC_MEM_FILL, i.memoryIndex(), -3);
+                }
+            }
+            case RefTypeInstruction r -> {
+                switch (r) {
+                    case RefTypeInstruction.RefNull _ -> emit(REF_NULL, 1);
+                    case RefTypeInstruction.RefIsNull _ -> emit(REF_IS_NULL, 0);
+                    case RefTypeInstruction.RefFunc i -> emit(REF_FUNC, i.functionIndex(), 1);
+                    case RefTypeInstruction.ElemDrop i -> emit(FC_OPS | FC_ELEM_DROP, i.elementIndex(), 0);
+                    case RefTypeInstruction.TableSize i -> emit(FC_OPS | FC_TABLE_SIZE, i.tableIndex(), 1);
+                    case RefTypeInstruction.TableGrow i -> emit(FC_OPS | FC_TABLE_GROW, i.tableIndex(), -1);
+                    default -> throw new RuntimeException(STR."Unsupported instruction \{ins.opCode()}");
+                }
+            }
+            // Atomics are rare and executed by the machine from the ref
+            case AtomicInstruction a -> emit(ATOMIC, ref(a), switch (a) {
+                case AtomicInstruction.AtomicFence _, AtomicInstruction.AtomicLoad _ -> 0;
+                case AtomicInstruction.AtomicNotify _, AtomicInstruction.AtomicRmw _ -> -1;
+                case AtomicInstruction.AtomicWait _, AtomicInstruction.AtomicStore _, AtomicInstruction.AtomicCmpxchg _ -> -2;
+            });
+            case FusedInstruction f -> lowerFused(f);
+            case ControlFlowInstruction c -> lowerControlFlow(c);
+            default -> throw new RuntimeException(STR."Unsupported instruction \{ins.opCode()}");
+        }
+    }
+
+    private void lowerFused(FusedInstruction f) {
+        switch (f) {
+            case FusedInstruction.LocalLocalI32 i -> emit(LOCAL_LOCAL_I32, i.left(), i.right(), i.op().ordinal(), 1);
+            case FusedInstruction.LocalConstI32 i -> emit(LOCAL_CONST_I32, i.local(), i.val(), i.op().ordinal(), 1);
+            case FusedInstruction.LocalConstI32Set i -> {
+                emit(LOCAL_CONST_I32_SET, i.local(), i.val(), i.op().ordinal(), 0);
+                emit(i.dst());
+            }
+            case FusedInstruction.ConstI32BrIf i -> {
+                ControlFrame target = findFrame(i.label());
+                if (target == null) {
+                    // Branches out of the function are rare, so they use the unfused sequence
+                    for (Instruction ins : i.expand()) {
+                        lower(ins);
+                    }
+                    return;
+                }
+                emit(CONST_I32_BR_IF, i.val(), i.op().ordinal(), -1);
+                emit(0);
+                setTarget(target, pc - 1);
+                emit(dropCount(target));
+                emit(target.branchArity());
+            }
+        }
+    }
+
+    private void lowerControlFlow(ControlFlowInstruction c) {
+        switch (c) {
+            case ControlFlowInstruction.Block b -> {
+                ControlFrame frame = enterFrame(b.label(), b.type(), false);
+                lower(b.code());
+                exitFrame(frame);
+            }
+            case ControlFlowInstruction.Loop b -> {
+                ControlFrame frame = enterFrame(b.label(), b.type(), true);
+                // Branches to the loop target its start, so every iteration is charged and counted
+                emit(LOOP, Machine.fuelCost(b.code()), ref(b), 0);
+                lower(b.code());
+                exitFrame(frame);
+            }
+            case ControlFlowInstruction.If b -> {
+                height--;
+                ControlFrame frame = enterFrame(b.label(), b.type(), false);
+                if (frame.type.numParams() != frame.type.numReturns()) {
+                    throw new RuntimeException("if without else must have same number of params and results");
+                }
+                emit(CF_IF);
+                frame.patches.add(pc);
+                emit(0);
+                lower(b.ifBlock());
+                exitFrame(frame);
+            }
+            case ControlFlowInstruction.IfElse b -> {
+                height--;
+                ControlFrame frame = enterFrame(b.label(), b.type(), false);
+                emit(CF_IF);
+                int elseTarget = pc;
+                emit(0);
+                lower(b.ifBlock());
+                if (reachable) {
+                    checkHeight(frame);
+                    emit(CF_ELSE);
+                    frame.patches.add(pc);
+                    emit(0);
+                }
+                code[elseTarget] = pc;
+                height = frame.base + frame.type.numParams();
+                reachable = true;
+                lower(b.elseBlock());
+                exitFrame(frame);
+            }
+            case ControlFlowInstruction.Branch b -> {
+                lowerBranch(b.label(), false);
+                reachable = false;
+            }
+            case ControlFlowInstruction.BranchIf b -> {
+                height--;
+                lowerBranch(b.label(), true);
+            }
+            case ControlFlowInstruction.BranchTable b -> {
+                height--;
+                int n = b.labels().length;
+                emit(CF_BR_TABLE);
+                emit(n);
+                int entries = pc;
+                for (int i = 0; i <= 3 * n + 2; i++) {
+                    emit(0);
+                }
+                ArrayList<Integer> returns = new ArrayList<>();
+                for (int i = 0; i <= n; i++) {
+                    int entry = entries + 3 * i;
+                    ControlFrame target = findFrame((i < n) ? b.labels()[i] : b.defaultLabel());
+                    if (target == null) {
+                        returns.add(entry);
+                        continue;
+                    }
+                    setTarget(target, entry);
+                    code[entry + 1] = dropCount(target);
+                    code[entry + 2] = target.branchArity();
+                }
+                // Branches out of the function jump to a return placed right after the table
+                if (!returns.isEmpty()) {
+                    for (int entry : returns) {
+                        code[entry] = pc;
+                    }
+                    emit(FUNC_RETURN);
+                }
+                reachable = false;
+            }
+            case ControlFlowInstruction.Else _ -> {}
+            case ControlFlowInstruction.End _ -> {}
+        }
+    }
+
+    private void lowerBranch(int label, boolean conditional) {
+        ControlFrame target = findFrame(label);
+        if (target == null) {
+            if (conditional) {
+                // Skip the return when condition is zero
+                emit(CF_IF);
+                int skip = pc;
+                emit(0);
+                emit(FUNC_RETURN);
+                code[skip] = pc;
+            } else {
+                emit(FUNC_RETURN);
+            }
+            return;
+        }
+        emit(conditional ? CF_BR_IF : CF_BR);
+        emit(0);
+        setTarget(target, pc - 1);
+        emit(dropCount(target));
+        emit(target.branchArity());
+    }
+
+    private ControlFrame enterFrame(int label, FunctionType type, boolean isLoop) {
+        type = (type == null) ? FunctionType.VOID : type;
+        int base = height - type.numParams();
+        if (base < 0) {
+            throw new RuntimeException(STR."Stack underflow at block \{label}");
+        }
+        ControlFrame frame = new ControlFrame(label, isLoop, type, base, pc);
+        frames.add(frame);
+        return frame;
+    }
+
+    private void exitFrame(ControlFrame frame) {
+        if (reachable) {
+            checkHeight(frame);
+        }
+        frames.removeLast();
+        for (int patch : frame.patches) {
+            code[patch] = pc;
+        }
+        // End of block is reachable if we fall through or some branch targets it
+        reachable = reachable || !frame.patches.isEmpty();
+        height = frame.base + frame.type.numReturns();
+    }
+
+    private void checkHeight(ControlFrame frame) {
+        if (height != frame.base + frame.type.numReturns()) {
+            throw new RuntimeException(STR."Stack height \{height} does not match block \{frame.label} of type \{frame.type}");
+        }
+    }
+
+    private ControlFrame findFrame(int label) {
+        if (label == FUNC_LEVEL) {
+            return null;
+        }
+        for (int i = frames.size() - 1; i >= 0; i--) {
+            if (frames.get(i).label == label) {
+                return frames.get(i);
+            }
+        }
+        // The interpreter unwinds unknown labels all the way out of the function
+        return null;
+    }
+
+    private void setTarget(ControlFrame target, int pos) {
+        if (target.isLoop) {
+            code[pos] = target.startPc;
+        } else {
+            target.patches.add(pos);
+        }
+    }
+
+    private int dropCount(ControlFrame target) {
+        int drop = height - target.branchArity() - target.base;
+        if (drop < 0) {
+            throw new RuntimeException(STR."Stack underflow at branch to \{target.label}");
+        }
+        return drop;
+    }
+
+    private int constant(long val) {
+        constants.add(val);
+        return constants.size() - 1;
+    }
+
+    private int ref(Object o) {
+        refs.add(o);
+        return refs.size() - 1;
+    }
+
+    private void emit(int val) {
+        if (pc == code.length) {
+            code = Arrays.copyOf(code, pc * 2);
+        }
+        code[pc++] = val;
+    }
+
+    private void emit(int op, int delta) {
+        emit(op);
+        adjustHeight(op, delta);
+    }
+
+    private void emit(int op, int immediate, int delta) {
+        emit(op);
+        emit(immediate);
+        adjustHeight(op, delta);
+    }
+
+    private void emit(int op, int immediate1, int immediate2, int delta) {
+        emit(op);
+        emit(immediate1);
+        emit(immediate2);
+        adjustHeight(op, delta);
+    }
+
+    private void emit(int op, int immediate1, int immediate2, int immediate3, int delta) {
+        emit(op);
+        emit(immediate1);
+        emit(immediate2);
+        emit(immediate3);
+        adjustHeight(op, delta);
+    }
+
+    private void adjustHeight(int op, int delta) {
+        height += delta;
+        if (height < 0) {
+            throw new RuntimeException(STR."Stack underflow at op code \{op}");
+        }
+    }
+
+    static int opCode(LoadInstruction ins) {
+        return switch (ins) {
+            case LoadInstruction.I32Load _ -> LOAD_I32;
+            case LoadInstruction.I32Load8S _ -> LOAD8_I32_S;
+            case LoadInstruction.I32Load8U _ -> LOAD8_I32_U;
+            case LoadInstruction.I32Load16S _ -> LOAD16_I32_S;
+            case LoadInstruction.I32Load16U _ -> LOAD16_I32_U;
+            case LoadInstruction.I64Load _ -> LOAD_I64;
+            case LoadInstruction.I64Load8S _ -> LOAD8_I64_S;
+            case LoadInstruction.I64Load8U _ -> LOAD8_I64_U;
+            case LoadInstruction.I64Load16S _ -> LOAD16_I64_S;
+            case LoadInstruction.I64Load16U _ -> LOAD16_I64_U;
+            case LoadInstruction.I64Load32S _ -> LOAD32_I64_S;
+            case LoadInstruction.I64Load32U _ -> LOAD32_I64_U;
+            case LoadInstruction.F32Load _ -> LOAD_F32;
+            case LoadInstruction.F64Load _ -> LOAD_F64;
+        };
+    }
+
+    static int opCode(StoreInstruction ins) {
+        return switch (ins) {
+            case StoreInstruction.I32Store _ -> STORE_I32;
+            case StoreInstruction.I32Store8 _ -> STORE8_I32;
+            case StoreInstruction.I32Store16 _ -> STORE16_I32;
+            case StoreInstruction.I64Store _ -> STORE_I64;
+            case StoreInstruction.I64Store8 _ -> STORE8_I64;
+            case StoreInstruction.I64Store16 _ -> STORE16_I64;
+            case StoreInstruction.I64Store32 _ -> STORE32_I64;
+            case StoreInstruction.F32Store _ -> STORE_F32;
+            case StoreInstruction.F64Store _ -> STORE_F64;
+        };
+    }
+
+    static int opCode(IntBinaryInstruction ins) {
+        return switch (ins) {
+            case I32_ADD -> BI_I32_ADD;
+            case I32_SUB -> BI_I32_SUB;
+            case I32_MUL -> BI_I32_MUL;
+            case I32_DIV_S -> BI_I32_DIV_S;
+            case I32_REM_S -> BI_I32_REM_S;
+            case I32_DIV_U -> BI_I32_DIV_U;
+            case I32_REM_U -> BI_I32_REM_U;
+            case I32_EQ -> BI_I32_EQ;
+            case I32_NE -> BI_I32_NE;
+            case I32_GT_S -> BI_I32_GT_S;
+            case I32_LT_S -> BI_I32_LT_S;
+            case I32_GE_S -> BI_I32_GE_S;
+            case I32_LE_S -> BI_I32_LE_S;
+            case I32_GT_U -> BI_I32_GT_U;
+            case I32_LT_U -> BI_I32_LT_U;
+            case I32_GE_U -> BI_I32_GE_U;
+            case I32_LE_U -> BI_I32_LE_U;
+            case I32_AND -> BI_I32_AND;
+            case I32_OR -> BI_I32_OR;
+            case I32_XOR -> BI_I32_XOR;
+            case I32_SHL -> BI_I32_SHL;
+            case I32_SHR_S -> BI_I32_SHR_S;
+            case I32_SHR_U -> BI_I32_SHR_U;
+            case I32_ROTL -> BI_I32_ROTL;
+            case I32_ROTR -> BI_I32_ROTR;
+        };
+    }
+
+    static int opCode(LongBinaryInstruction ins) {
+        return switch (ins) {
+            case I64_ADD -> BI_I64_ADD;
+            case I64_SUB -> BI_I64_SUB;
+            case I64_MUL -> BI_I64_MUL;
+            case I64_DIV_S -> BI_I64_DIV_S;
+            case I64_DIV_U -> BI_I64_DIV_U;
+            case I64_REM_S -> BI_I64_REM_S;
+            case I64_REM_U -> BI_I64_REM_U;
+            case I64_EQ -> BI_I64_EQ;
+            case I64_NE -> BI_I64_NE;
+            case I64_GT_S -> BI_I64_GT_S;
+            case I64_LT_S -> BI_I64_LT_S;
+            case I64_GE_S -> BI_I64_GE_S;
+            case I64_LE_S -> BI_I64_LE_S;
+            case I64_GT_U -> BI_I64_GT_U;
+            case I64_LT_U -> BI_I64_LT_U;
+            case I64_GE_U -> BI_I64_GE_U;
+            case I64_LE_U -> BI_I64_LE_U;
+            case I64_AND -> BI_I64_AND;
+            case I64_OR -> BI_I64_OR;
+            case I64_XOR -> BI_I64_XOR;
+            case I64_SHL -> BI_I64_SHL;
+            case I64_SHR_S -> BI_I64_SHR_S;
+            case I64_SHR_U -> BI_I64_SHR_U;
+            case I64_ROTL -> BI_I64_ROTL;
+            case I64_ROTR -> BI_I64_ROTR;
+        };
+    }
+
+    static int opCode(FloatBinaryInstruction ins) {
+        return switch (ins) {
+            case F32_ADD -> BI_F32_ADD;
+            case F32_SUB -> BI_F32_SUB;
+            case F32_MUL -> BI_F32_MUL;
+            case F32_DIV -> BI_F32_DIV;
+            case F32_EQ -> BI_F32_EQ;
+            case F32_NE -> BI_F32_NE;
+            case F32_GT -> BI_F32_GT;
+            case F32_LT -> BI_F32_LT;
+            case F32_GE -> BI_F32_GE;
+            case F32_LE -> BI_F32_LE;
+            case F32_MAX -> BI_F32_MAX;
+            case F32_MIN -> BI_F32_MIN;
+            case F32_COPY_SIGN -> BI_F32_COPYSIGN;
+        };
+    }
+
+    static int opCode(DoubleBinaryInstruction ins) {
+        return switch (ins) {
+            case F64_ADD -> BI_F64_ADD;
+            case F64_SUB -> BI_F64_SUB;
+            case F64_MUL -> BI_F64_MUL;
+            case F64_DIV -> BI_F64_DIV;
+            case F64_EQ -> BI_F64_EQ;
+            case F64_NE -> BI_F64_NE;
+            case F64_GT -> BI_F64_GT;
+            case F64_LT -> BI_F64_LT;
+            case F64_GE -> BI_F64_GE;
+            case F64_LE -> BI_F64_LE;
+            case F64_MAX -> BI_F64_MAX;
+            case F64_MIN -> BI_F64_MIN;
+            case F64_COPY_SIGN -> BI_F64_COPYSIGN;
+        };
+    }
+
+    static int opCode(UnaryInstruction ins) {
+        return switch (ins) {
+            case DROP -> UN_DROP;
+            case MEMORY_GROW -> UN_MEM_GROW;
+            case I32_EQZ -> UN_I32_EQZ;
+            case I32_POPCNT -> UN_I32_POPCNT;
+            case I32_WRAP_I64 -> UN_I32_WRAP_I64;
+            case I32_TRUNC_F32_S -> UN_I32_TRUNC_F32_S;
+            case I32_TRUNC_F32_U -> UN_I32_TRUNC_F32_U;
+            case I32_TRUNC_F64_S -> UN_I32_TRUNC_F64_S;
+            case I32_TRUNC_F64_U -> UN_I32_TRUNC_F64_U;
+            case I32_TRUNC_SAT_F32_S -> FC_OPS | FC_I32_TRUNC_SAT_F32_S;
+            case I32_TRUNC_SAT_F32_U -> FC_OPS | FC_I32_TRUNC_SAT_F32_U;
+            case I32_TRUNC_SAT_F64_S -> FC_OPS | FC_I32_TRUNC_SAT_F64_S;
+            case I32_TRUNC_SAT_F64_U -> FC_OPS | FC_I32_TRUNC_SAT_F64_U;
+            case I64_EQZ -> UN_I64_EQZ;
+            case I64_POPCNT -> UN_I64_POPCNT;
+            case I64_EXTEND_I32_S -> UN_I64_EXTEND_I32_S;
+            case I64_EXTEND_I32_U -> UN_I64_EXTEND_I32_U;
+            case I64_TRUNC_F32_S -> UN_I64_TRUNC_F32_S;
+            case I64_TRUNC_F32_U -> UN_I64_TRUNC_F32_U;
+            case I64_TRUNC_F64_S -> UN_I64_TRUNC_F64_S;
+            case I64_TRUNC_F64_U -> UN_I64_TRUNC_F64_U;
+            case I64_TRUNC_SAT_F32_S -> FC_OPS | FC_I64_TRUNC_SAT_F32_S;
+            case I64_TRUNC_SAT_F32_U -> FC_OPS | FC_I64_TRUNC_SAT_F32_U;
+            case I64_TRUNC_SAT_F64_S -> FC_OPS | FC_I64_TRUNC_SAT_F64_S;
+            case I64_TRUNC_SAT_F64_U -> FC_OPS | FC_I64_TRUNC_SAT_F64_U;
+            case I32_CTZ -> UN_I32_CTZ;
+            case I32_CLZ -> UN_I32_CLZ;
+            case I64_CTZ -> UN_I64_CTZ;
+            case I64_CLZ -> UN_I64_CLZ;
+            case F32_NEG -> UN_F32_NEG;
+            case F64_NEG -> UN_F64_NEG;
+            case F32_ABS -> UN_F32_ABS;
+            case F64_ABS -> UN_F64_ABS;
+            case F32_CEIL -> UN_F32_CEIL;
+            case F32_FLOOR -> UN_F32_FLOOR;
+            case F32_TRUNC -> UN_F32_TRUNC;
+            case F32_DEMOTE_F64 -> UN_F32_DEMOTE_F64;
+            case F32_CONVERT_I32_S -> UN_F32_CONVERT_I32_S;
+            case F32_CONVERT_I32_U -> UN_F32_CONVERT_I32_U;
+            case F32_CONVERT_I64_S -> UN_F32_CONVERT_I64_S;
+            case F32_CONVERT_I64_U -> UN_F32_CONVERT_I64_U;
+            case F32_NEAREST -> UN_F32_NEAREST;
+            case F32_SQRT -> UN_F32_SQRT;
+            case F64_CEIL -> UN_F64_CEIL;
+            case F64_FLOOR -> UN_F64_FLOOR;
+            case F64_TRUNC -> UN_F64_TRUNC;
+            case F64_PROMOTE_F32 -> UN_F64_PROMOTE_F32;
+            case F64_CONVERT_I32_S -> UN_F64_CONVERT_I32_S;
+            case F64_CONVERT_I32_U -> UN_F64_CONVERT_I32_U;
+            case F64_CONVERT_I64_S -> UN_F64_CONVERT_I64_S;
+            case F64_CONVERT_I64_U -> UN_F64_CONVERT_I64_U;
+            case F64_NEAREST -> UN_F64_NEAREST;
+            case F64_SQRT -> UN_F64_SQRT;
+            case I32_REINTERPRET_F32 -> UN_I32_REINTERPRET_F32;
+            case F32_REINTERPRET_I32 -> UN_F32_REINTERPRET_I32;
+            case I64_REINTERPRET_F64 -> UN_I64_REINTERPRET_F64;
+            case F64_REINTERPRET_I64 -> UN_F64_REINTERPRET_I64;
+            case I32_EXTEND8_S -> UN_I32_EXTEND8_S;
+            case I32_EXTEND16_S -> UN_I32_EXTEND16_S;
+            case I64_EXTEND8_S -> UN_I64_EXTEND8_S;
+            case I64_EXTEND16_S -> UN_I64_EXTEND16_S;
+            case I64_EXTEND32_S -> UN_I64_EXTEND32_S;
+        };
+    }
+}
@@ -0,0 +1,153 @@
+package rrampage.wasp.vm;
+
+import rrampage.wasp.data.FunctionType;
+import rrampage.wasp.data.ValueType;
+import rrampage.wasp.utils.ConversionUtils;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import static rrampage.wasp.utils.ConversionUtils.*;
+
+/**
+ * Builds the adapter used to call an imported Java function. The adapter has the exact type
+ * <pre>(MachineStack stack, int fp)void</pre>
+ * It reads the arguments from stack[fp..fp+numParams), calls the target with primitive arguments and pushes the
+ * results onto the stack, so it can be called with invokeExact without boxing.
+ */
+public final class HostCallAdapter {
+    static final MethodType ADAPTER_TYPE = MethodType.methodType(void.class, MachineStack.class, int.class);
+    private static final MethodHandle GET, PUSH, ADD;
+    private static final MethodHandle INT_TO_LONG, FLOAT_TO_LONG, DOUBLE_TO_LONG, LONG_TO_INT, LONG_TO_FLOAT, LONG_TO_DOUBLE;
+    private static final MethodHandle PUSH_INTS, PUSH_LONGS, PUSH_FLOATS, PUSH_DOUBLES, PUSH_OBJECTS;
+
+    static {
+        try {
+            var lookup = MethodHandles.lookup();
+            GET = lookup.findVirtual(MachineStack.class, "get", MethodType.methodType(long.class, int.class));
+            PUSH = lookup.findVirtual(MachineStack.class, "push", MethodType.methodType(void.class, long.class));
+            ADD = lookup.findStatic(Integer.class, "sum", MethodType.methodType(int.class, int.class, int.class));
+            INT_TO_LONG = lookup.findStatic(ConversionUtils.class, "intToLong", MethodType.methodType(long.class, int.class));
+            FLOAT_TO_LONG = lookup.findStatic(ConversionUtils.class, "floatToLong", MethodType.methodType(long.class, float.class));
+            DOUBLE_TO_LONG = lookup.findStatic(ConversionUtils.class, "doubleToLong", MethodType.methodType(long.class, double.class));
+            LONG_TO_INT = lookup.findStatic(ConversionUtils.class, "longToInt", MethodType.methodType(int.class, long.class));
+            LONG_TO_FLOAT = lookup.findStatic(ConversionUtils.class, "longToFloat", MethodType.methodType(float.class, long.class));
+            LONG_TO_DOUBLE = lookup.findStatic(ConversionUtils.class, "longToDouble", MethodType.methodType(double.class, long.class));
+            PUSH_INTS = lookup.findStatic(HostCallAdapter.class, "pushInts", MethodType.methodType(void.class, MachineStack.class, int[].class));
+            PUSH_LONGS = lookup.findStatic(HostCallAdapter.class, "pushLongs", MethodType.methodType(void.class, MachineStack.class, long[].class));
+            PUSH_FLOATS = lookup.findStatic(HostCallAdapter.class, "pushFloats", MethodType.methodType(void.class, MachineStack.class, float[].class));
+            PUSH_DOUBLES = lookup.findStatic(HostCallAdapter.class, "pushDoubles", MethodType.methodType(void.class, MachineStack.class, double[].class));
+            PUSH_OBJECTS = lookup.findStatic(HostCallAdapter.class, "pushObjects", MethodType.methodType(void.class, MachineStack.class, ValueType[].class, Object[].class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private HostCallAdapter() {}
+
+    /**
+     * Adapters can only be built for signatures of numeric types. Imports with reference or vector types are called
+     * through the boxed path in {@link Machine}
+     */
+    public static boolean canAdapt(FunctionType type) {
+        return isNumeric(type.paramTypes()) && isNumeric(type.returnTypes());
+    }
+
+    private static boolean isNumeric(ValueType[] types) {
+        if (types != null) {
+            for (ValueType t : types) {
+                if (!(t instanceof ValueType.NumType)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public static MethodHandle adapt(FunctionType type, MethodHandle target) {
+        MethodHandle mh = target.asType(FunctionType.getMethodTypeFromFunctionType(type));
+        int numParams = type.numParams();
+        // (int, long, ...)R -> (long, long, ...)R
+        for (int i = 0; i < numParams; i++) {
+            MethodHandle fromLong = fromLong(type.paramTypes()[i]);
+            if (fromLong != null) {
+                mh = MethodHandles.filterArguments(mh, i, fromLong);
+            }
+        }
+        // Read argument i with stack.get(fp + i): (MachineStack, int, MachineStack, int, ...)R
+        for (int i = numParams - 1; i >= 0; i--) {
+            mh = MethodHandles.collectArguments(mh, i, MethodHandles.filterArguments(GET, 1, MethodHandles.insertArguments(ADD, 1, i)));
+        }
+        // Push the result: (MachineStack, MachineStack, int, ...)void
+        mh = type.isVoidReturn() ? MethodHandles.dropArguments(mh, 0, MachineStack.class)
+                : MethodHandles.collectArguments(pushResult(type, mh.type().returnType()), 1, mh);
+        int[] reorder = new int[1 + 2 * numParams];
+        for (int i = 0; i < numParams; i++) {
+            reorder[1 + 2 * i] = 0;
+            reorder[2 + 2 * i] = 1;
+        }
+        return MethodHandles.permuteArguments(mh, ADAPTER_TYPE, reorder);
+    }
+
+    private static MethodHandle fromLong(ValueType t) {
+        return switch (t) {
+            case ValueType.NumType.I32 -> LONG_TO_INT;
+            case ValueType.NumType.F32 -> LONG_TO_FLOAT;
+            case ValueType.NumType.F64 -> LONG_TO_DOUBLE;
+            default -> null;
+        };
+    }
+
+    // (MachineStack, R)void
+    private static MethodHandle pushResult(FunctionType type, Class<?> returnType) {
+        if (returnType == int.class) return MethodHandles.filterArguments(PUSH, 1, INT_TO_LONG);
+        if (returnType == long.class) return PUSH;
+        if (returnType == float.class) return MethodHandles.filterArguments(PUSH, 1, FLOAT_TO_LONG);
+        if (returnType == double.class) return MethodHandles.filterArguments(PUSH, 1, DOUBLE_TO_LONG);
+        if (returnType == int[].class) return PUSH_INTS;
+        if (returnType == long[].class) return PUSH_LONGS;
+        if (returnType == float[].class) return PUSH_FLOATS;
+        if (returnType == double[].class) return PUSH_DOUBLES;
+        return MethodHandles.insertArguments(PUSH_OBJECTS, 1, (Object) type.returnTypes());
+    }
+
+    // Multiple results are pushed in reverse order
+
+    private static void pushInts(MachineStack stack, int[] ret) {
+        for (int i = ret.length - 1; i >= 0; i--) {
+            stack.push(intToLong(ret[i]));
+        }
+    }
+
+    private static void pushLongs(MachineStack stack, long[] ret) {
+        for (int i = ret.length - 1; i >= 0; i--) {
+            stack.push(ret[i]);
+        }
+    }
+
+    private static void pushFloats(MachineStack stack, float[] ret) {
+        for (int i = ret.length - 1; i >= 0; i--) {
+            stack.push(floatToLong(ret[i]));
+        }
+    }
+
+    private static void pushDoubles(MachineStack stack, double[] ret) {
+        for (int i = ret.length - 1; i >= 0; i--) {
+            stack.push(doubleToLong(ret[i]));
+        }
+    }
+
+    // Results of mixed types can only be returned boxed
+    private static void pushObjects(MachineStack stack, ValueType[] types, Object[] ret) {
+        for (int i = types.length - 1; i >= 0; i--) {
+            stack.push(switch (types[i]) {
+                case ValueType.NumType.I32 -> intToLong((int) ret[i]);
+                case ValueType.NumType.I64 -> (long) ret[i];
+                case ValueType.NumType.F32 -> floatToLong((float) ret[i]);
+                case ValueType.NumType.F64 -> doubleToLong((double) ret[i]);
+                default -> throw new IllegalStateException(String.format("Invalid value type: %s", types[i]));
+            });
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package rrampage.wasp.vm;
+
+import rrampage.wasp.data.Function;
+
+/**
+ * A call of an exported function on the {@link MachineConfig.Interpreter#STACKLESS} interpreter which a host function
+ * can suspend with {@link Machine#suspend()}, e.g. to wait for input, and which is resumed later:
+ * <pre>
+ *     Invocation invocation = machine.exportedFunction("main").start();
+ *     while (!invocation.resume()) {
+ *         // a host function suspended the invocation
+ *     }
+ *     long result = invocation.result();
+ * </pre>
+ * Guest frames stay on the machine stack and control stack while suspended. The machine can run other calls in
+ * between as long as they complete, and suspended invocations must be resumed in the reverse order of suspending.
+ * Results follow {@link ExportedFunction}.
+ */
+public final class Invocation {
+    private final Machine machine;
+    private final Function function;
+    private final long[] args;
+    private final boolean returnsValue;
+    private boolean started;
+    private boolean done;
+    private int base; // size of the control stack below the frames of this invocation
+    // Sizes of the control stack and value stack when suspended
+    private int frameDepth;
+    private int stackPointer;
+    private long result;
+
+    Invocation(Machine machine, Function function, long[] args) {
+        this.machine = machine;
+        this.function = function;
+        this.args = args;
+        this.returnsValue = function.type().numReturns() == 1;
+    }
+
+    /**
+     * Runs the invocation until it completes or is suspended. Returns true once it has completed.
+     */
+    public boolean resume() {
+        if (done) {
+            return true;
+        }
+        boolean completed;
+        try {
+            if (!started) {
+                started = true;
+                base = machine.controlStackSize();
+                for (long arg : args) {
+                    machine.push(arg);
+                }
+                completed = machine.startInvocation(function);
+            } else {
+                if (machine.controlStackSize() != frameDepth || machine.stackPointer() != stackPointer) {
+                    throw new RuntimeException("INVOKE: Machine state changed while the invocation was suspended");
+                }
+                completed = machine.resumeInvocation(base);
+            }
+        } catch (RuntimeException e) {
+            done = true;
+            throw e;
+        }
+        if (completed) {
+            done = true;
+            result = returnsValue ? machine.pop() : 0;
+        } else {
+            frameDepth = machine.controlStackSize();
+            stackPointer = machine.stackPointer();
+        }
+        return completed;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    public boolean isSuspended() {
+        return started && !done;
+    }
+
+    public long result() {
+        if (!done) {
+            throw new IllegalStateException("INVOKE: Invocation has not completed");
+        }
+        return result;
+    }
+}
@@ -0,0 +1,1267 @@
+package rrampage.wasp.vm;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import rrampage.wasp.data.*;
+import rrampage.wasp.instructions.*;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.objectweb.asm.Opcodes.*;
+import static rrampage.wasp.data.ValueType.NumType.*;
+
+/**
+ * Compiles WASM functions into hidden JVM classes implementing {@link CompiledFunction}.
+ * WASM locals are mapped to JVM locals and the WASM operand stack to the JVM operand stack, so that
+ * HotSpot can optimize hot guest code. The machine stack is only used at call boundaries, which lets compiled
+ * and interpreted functions call each other freely.
+ * Functions using instructions which are not supported (ref types, tables, bulk memory, host calls) are not compiled
+ * and the reason is recorded in {@link FunctionCache#compileError()}.
+ */
+public class JitCompiler {
+    private static final String MACHINE = "rrampage/wasp/vm/Machine";
+    private static final String MEMORY = "rrampage/wasp/data/Memory";
+    private static final String RUNTIME = "rrampage/wasp/vm/JitRuntime";
+    private static final String COMPILED_FUNCTION = "rrampage/wasp/vm/CompiledFunction";
+    private static final String CLASS_NAME = "rrampage/wasp/vm/JitFunction";
+    private static final int MACHINE_SLOT = 1;
+    private static final int FUNC_LEVEL = -1;
+
+    // Compiles functions of tiered machines. A single thread keeps compilation from competing with guests for cores
+    private static final ExecutorService BACKGROUND_COMPILER = Executors.newSingleThreadExecutor(
+            Thread.ofPlatform().name("wasp-jit").daemon(true).factory());
+
+    private final Function[] functions;
+    private final Variable[] globals;
+
+    JitCompiler(Function[] functions, Variable[] globals) {
+        this.functions = functions;
+        this.globals = globals;
+    }
+
+    /**
+     * Returns compiled code for the function or null if it can not be compiled.
+     * The result is stored in the function's cache so each function is compiled at most once.
+     */
+    CompiledFunction compile(Function fun) {
+        FunctionCache cache = fun.cache();
+        if (cache.isCompiled() || cache.hasCompileError()) {
+            return cache.compiled();
+        }
+        synchronized (cache) {
+            if (cache.isCompiled() || cache.hasCompileError()) {
+                return cache.compiled();
+            }
+            try {
+                cache.setCompiled(define(new MethodCompiler(fun, null).generate()));
+            } catch (Throwable e) {
+                cache.setCompileError(STR."JIT_ERROR: Unable to compile \{fun.name()}: \{e}");
+            }
+        }
+        return cache.compiled();
+    }
+
+    /**
+     * Queues the function for compilation on the background compiler thread, once per function body.
+     * Callers pick up the compiled code from the function's cache when it is ready.
+     */
+    void compileInBackground(Function fun) {
+        if (fun.cache().requestTierUp()) {
+            BACKGROUND_COMPILER.execute(() -> compile(fun));
+        }
+    }
+
+    /**
+     * Queues compilation of the function with its entry at the start of the loop, for moving a running call of the
+     * function out of the interpreter. The compiled code pops all locals and the operand stack at the loop start from
+     * the machine stack, i.e. the frame of the interpreter at that point. Loops which can not be compiled are not
+     * retried and keep running in the interpreter. The error is stored in the function's cache.
+     */
+    void compileOsrInBackground(Function fun, ControlFlowInstruction.Loop loop, int loopRef) {
+        FunctionCache cache = fun.cache();
+        if (!cache.hasCompileError() && cache.requestOsr(loopRef)) {
+            BACKGROUND_COMPILER.execute(() -> {
+                try {
+                    cache.setOsrCode(loopRef, define(new MethodCompiler(fun, loop).generate()));
+                } catch (Throwable e) {
+                    cache.setOsrError(loopRef, STR."JIT_ERROR: Unable to compile \{fun.name()} with an entry at loop \{loop.label()}: \{e}");
+                }
+            });
+        }
+    }
+
+    private static CompiledFunction define(byte[] classBytes) throws Throwable {
+        MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classBytes, true);
+        return (CompiledFunction) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+    }
+
+    private static final class ControlFrame {
+        final int label;
+        final boolean isLoop;
+        final FunctionType type;
+        // Height of type stack below block params
+        final int base;
+        final Label start = new Label();
+        final Label end = new Label();
+        boolean endReachable;
+
+        ControlFrame(int label, boolean isLoop, FunctionType type, int base) {
+            this.label = label;
+            this.isLoop = isLoop;
+            this.type = type;
+            this.base = base;
+        }
+
+        // Branches to a loop restart it and take its params. Branches to other blocks exit them with their results.
+        int branchArity() {
+            return isLoop ? type.numParams() : type.numReturns();
+        }
+
+        Label target() {
+            return isLoop ? start : end;
+        }
+    }
+
+    private final class MethodCompiler {
+        private final Function fun;
+        // Loop to enter the function at, null to enter at the start
+        private final ControlFlowInstruction.Loop osrLoop;
+        private final Label osrEntry = new Label();
+        private Label osrTarget;
+        private List<ValueType> osrStack;
+        private final ClassWriter cw;
+        private MethodVisitor mv;
+        private final int[] localSlots;
+        private final ValueType[] localTypes;
+        private int tempBase;
+        private int nextTemp;
+        // Types of values on the JVM operand stack
+        private final ArrayList<ValueType> stack = new ArrayList<>();
+        private final ArrayList<ControlFrame> frames = new ArrayList<>();
+        private boolean reachable = true;
+
+        MethodCompiler(Function fun, ControlFlowInstruction.Loop osrLoop) {
+            this.fun = fun;
+            this.osrLoop = osrLoop;
+            this.cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS) {
+                // Avoid loading classes while computing frames. Only our own types ever get merged.
+                @Override
+                protected String getCommonSuperClass(String type1, String type2) {
+                    return type1.equals(type2) ? type1 : "java/lang/Object";
+                }
+            };
+            int n = fun.numParams() + fun.numLocals();
+            this.localSlots = new int[n];
+            this.localTypes = new ValueType[n];
+        }
+
+        byte[] generate() {
+            cw.visit(V21, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, CLASS_NAME, null, "java/lang/Object", new String[]{COMPILED_FUNCTION});
+            MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+            init.visitCode();
+            init.visitVarInsn(ALOAD, 0);
+            init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+            init.visitInsn(RETURN);
+            init.visitMaxs(0, 0);
+            init.visitEnd();
+
+            mv = cw.visitMethod(ACC_PUBLIC, "invoke", STR."(L\{MACHINE};)V", null, null);
+            mv.visitCode();
+            emitPrologue();
+            emitConsumeFuel(fun.code());
+            emitCode(fun.code());
+            if (reachable) {
+                emitReturn();
+            }
+            if (osrLoop != null) {
+                emitOsrEntry();
+            }
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+            cw.visitEnd();
+            return cw.toByteArray();
+        }
+
+        private void emitPrologue() {
+            int numParams = fun.numParams();
+            int slot = MACHINE_SLOT + 1;
+            for (int i = 0; i < localSlots.length; i++) {
+                ValueType t = (i < numParams) ? fun.type().paramTypes()[i] : fun.locals()[i - numParams];
+                requireNumType(t);
+                localTypes[i] = t;
+                localSlots[i] = slot;
+                slot += slotSize(t);
+            }
+            tempBase = slot;
+            if (osrLoop != null) {
+                // Code before the loop is never run and is replaced by the class writer
+                mv.visitJumpInsn(GOTO, osrEntry);
+                return;
+            }
+            // LIFO for function params as params are pushed to stack and must be popped in reverse order
+            for (int i = numParams - 1; i >= 0; i--) {
+                mv.visitVarInsn(ALOAD, MACHINE_SLOT);
+                mv.visitMethodInsn(INVOKEVIRTUAL, MACHINE, "pop", "()J", false);
+                fromLong(localTypes[i]);
+                store(localTypes[i], localSlots[i]);
+            }
+            for (int i = numParams; i < localSlots.length; i++) {
+                switch ((ValueType.NumType) localTypes[i]) {
+                    case I32 -> mv.visitInsn(ICONST_0);
+                    case I64 -> mv.visitInsn(LCONST_0);
+                    case F32 -> mv.visitInsn(FCONST_0);
+                    case F64 -> mv.visitInsn(DCONST_0);
+                }
+                store(localTypes[i], localSlots[i]);
+            }
+        }
+
+        /*
+            Entry for on-stack replacement: moves the interpreter's frame from the machine stack into JVM locals and the
+            JVM operand stack, then continues at the start of the loop, which charges fuel for the iteration.
+         */
+        private void emitOsrEntry() {
+            if (osrStack == null) {
+                throw new RuntimeException(STR."JIT_ERROR: Loop \{osrLoop.label()} of \{fun.name()} is not reachable");
+            }
+            mv.visitLabel(osrEntry);
+            nextTemp = tempBase;
+            int[] temps = new int[osrStack.size()];
+            for (int i = temps.length - 1; i >= 0; i--) {
+                temps[i] = newTemp(osrStack.get(i));
+                mv.visitVarInsn(ALOAD, MACHINE_SLOT);
+                mv.visitMethodInsn(INVOKEVIRTUAL, MACHINE, "pop", "()J", false);
+                fromLong(osrStack.get(i));
+                store(osrStack.get(i), temps[i]);
+            }
+            for (int i = localSlots.length - 1; i >= 0; i--) {
+                mv.visitVarInsn(ALOAD, MACHINE_SLOT);
+                mv.visitMethodInsn(INVOKEVIRTUAL, MACHINE, "pop", "()J", false);
+                fromLong(localTypes[i]);
+                store(localTypes[i], localSlots[i]);
+            }
+            for (int i = 0; i < temps.length; i++) {
+                load(osrStack.get(i), temps[i]);
+            }
+            mv.visitJumpInsn(GOTO, osrTarget);
+        }
+
+        // Charges the fuel of a function body or loop iteration, like the interpreters do
+        private void emitConsumeFuel(Instruction[] code) {
+            mv.visitVarInsn(ALOAD, MACHINE_SLOT);
+            pushInt(Machine.fuelCost(code));
+            mv.visitMethodInsn(INVOKEVIRTUAL, MACHINE, "consumeFuel", "(I)V", false);
+        }
+
+        private void emitCode(Instruction[] code) {
+            for (Instruction ins : code) {
+                // Skip dead code after br, return and unreachable
+                if (!reachable) {
+                    return;
+                }
+                // Temporaries never live across instructions so their slots can be reused
+                nextTemp = tempBase;
+                emit(ins);
+            }
+        }
+
+        private void emit(Instruction ins) {
+            switch (ins) {
+                case ConstInstruction.IntConst c -> {
+                    pushInt(c.val());
+                    push(I32);
+                }
+                case ConstInstruction.LongConst c -> {
+                    mv.visitLdcInsn(c.val());
+                    push(I64);
+                }
+                case ConstInstruction.FloatConst c -> {
+                    mv.visitLdcInsn(c.val());
+                    push(F32);
+                }
+                case ConstInstruction.DoubleConst c -> {
+                    mv.visitLdcInsn(c.val());
+                    push(F64);
+                }
+                case IntBinaryInstruction b -> emitIntBinary(b);
+                case LongBinaryInstruction b -> emitLongBinary(b);
+                case FloatBinaryInstruction b -> emitFloatBinary(b);
+                case DoubleBinaryInstruction b -> emitDoubleBinary(b);
+                case UnaryInstruction u -> emitUnary(u);
+                case NullaryInstruction n -> {
+                    switch (n) {
+                        case UNREACHABLE -> {
+                            invokeRuntime("unreachable", "()Ljava/lang/RuntimeException;");
+                            mv.visitInsn(ATHROW);
+                            reachable = false;
+                        }
+                        case NOP -> {}
+                        case MEMORY_SIZE -> {
+                            loadMemory();
+                            mv.visitMethodInsn(INVOKEVIRTUAL, MEMORY, "getMemorySize", "()I", false);
+                            push(I32);
+                        }
+                    }
+                }
+                case LoadInstruction l -> emitLoad(l);
+                case StoreInstruction s -> emitStore(s);
+                case FunctionInstruction f -> emitFunction(f);
+                case GlobalInstruction g -> emitGlobal(g);
+                case Select _ -> emitSelect();
+                case ControlFlowInstruction c -> emitControlFlow(c);
+                case FusedInstruction f -> {
+                    for (Instruction i : f.expand()) {
+                        emit(i);
+                    }
+                }
+                default -> throw unsupported(ins);
+            }
+        }
+
+        private void emitIntBinary(IntBinaryInstruction b) {
+            switch (b) {
+                case I32_ADD -> mv.visitInsn(IADD);
+                case I32_SUB -> mv.visitInsn(ISUB);
+                case I32_MUL -> mv.visitInsn(IMUL);
+                case I32_DIV_S -> mv.visitInsn(IDIV);
+                case I32_REM_S -> mv.visitInsn(IREM);
+                case I32_DIV_U -> invokeStatic("java/lang/Integer", "divideUnsigned", "(II)I");
+                case I32_REM_U -> invokeStatic("java/lang/Integer", "remainderUnsigned", "(II)I");
+                case I32_AND -> mv.visitInsn(IAND);
+                case I32_OR -> mv.visitInsn(IOR);
+                case I32_XOR -> mv.visitInsn(IXOR);
+                case I32_EQ -> invokeRuntime("i32Eq", "(II)I");
+                case I32_NE -> invokeRuntime("i32Ne", "(II)I");
+                case I32_GE_S -> invokeRuntime("i32GeS", "(II)I");
+                case I32_GT_S -> invokeRuntime("i32GtS", "(II)I");
+                case I32_LE_S -> invokeRuntime("i32LeS", "(II)I");
+                case I32_LT_S -> invokeRuntime("i32LtS", "(II)I");
+                case I32_GE_U -> invokeRuntime("i32GeU", "(II)I");
+                case I32_GT_U -> invokeRuntime("i32GtU", "(II)I");
+                case I32_LE_U -> invokeRuntime("i32LeU", "(II)I");
+                case I32_LT_U -> invokeRuntime("i32LtU", "(II)I");
+                case I32_SHL -> mv.visitInsn(ISHL);
+                case I32_SHR_S -> mv.visitInsn(ISHR);
+                case I32_SHR_U -> mv.visitInsn(IUSHR);
+                case I32_ROTL -> invokeStatic("java/lang/Integer", "rotateLeft", "(II)I");
+                case I32_ROTR -> invokeStatic("java/lang/Integer", "rotateRight", "(II)I");
+                default -> throw unsupported(b);
+            }
+            pop(2);
+            push(I32);
+        }
+
+        private void emitLongBinary(LongBinaryInstruction b) {
+            ValueType result = I64;
+            switch (b) {
+                case I64_ADD -> mv.visitInsn(LADD);
+                case I64_SUB -> mv.visitInsn(LSUB);
+                case I64_MUL -> mv.visitInsn(LMUL);
+                case I64_DIV_S -> mv.visitInsn(LDIV);
+                case I64_REM_S -> mv.visitInsn(LREM);
+                case I64_DIV_U -> invokeStatic("java/lang/Long", "divideUnsigned", "(JJ)J");
+                case I64_REM_U -> invokeStatic("java/lang/Long", "remainderUnsigned", "(JJ)J");
+                case I64_AND -> mv.visitInsn(LAND);
+                case I64_OR -> mv.visitInsn(LOR);
+                case I64_XOR -> mv.visitInsn(LXOR);
+                case I64_SHL -> {
+                    mv.visitInsn(L2I);
+                    mv.visitInsn(LSHL);
+                }
+                case I64_SHR_S -> {
+                    mv.visitInsn(L2I);
+                    mv.visitInsn(LSHR);
+                }
+                case I64_SHR_U -> {
+                    mv.visitInsn(L2I);
+                    mv.visitInsn(LUSHR);
+                }
+                case I64_ROTL -> {
+                    mv.visitInsn(L2I);
+                    invokeStatic("java/lang/Long", "rotateLeft", "(JI)J");
+                }
+                case I64_ROTR -> {
+                    mv.visitInsn(L2I);
+                    invokeStatic("java/lang/Long", "rotateRight", "(JI)J");
+                }
+                default -> {
+                    result = I32;
+                    switch (b) {
+                        case I64_EQ -> invokeRuntime("i64Eq", "(JJ)I");
+                        case I64_NE -> invokeRuntime("i64Ne", "(JJ)I");
+                        case I64_GE_S -> invokeRuntime("i64GeS", "(JJ)I");
+                        case I64_GT_S -> invokeRuntime("i64GtS", "(JJ)I");
+                        case I64_LE_S -> invokeRuntime("i64LeS", "(JJ)I");
+                        case I64_LT_S -> invokeRuntime("i64LtS", "(JJ)I");
+                        case I64_GE_U -> invokeRuntime("i64GeU", "(JJ)I");
+                        case I64_GT_U -> invokeRuntime("i64GtU", "(JJ)I");
+                        case I64_LE_U -> invokeRuntime("i64LeU", "(JJ)I");
+                        case I64_LT_U -> invokeRuntime("i64LtU", "(JJ)I");
+                        default -> throw unsupported(b);
+                    }
+                }
+            }
+            pop(2);
+            push(result);
+        }
+
+        private void emitFloatBinary(FloatBinaryInstruction b) {
+            ValueType result = F32;
+            switch (b) {
+                case F32_ADD -> mv.visitInsn(FADD);
+                case F32_SUB -> mv.visitInsn(FSUB);
+                case F32_MUL -> mv.visitInsn(FMUL);
+                case F32_DIV -> mv.visitInsn(FDIV);
+                case F32_MAX -> invokeStatic("java/lang/Math", "max", "(FF)F");
+                case F32_MIN -> invokeStatic("java/lang/Math", "min", "(FF)F");
+                case F32_COPY_SIGN -> invokeStatic("java/lang/Math", "copySign", "(FF)F");
+                default -> {
+                    result = I32;
+                    switch (b) {
+                        case F32_EQ -> invokeRuntime("f32Eq", "(FF)I");
+                        case F32_NE -> invokeRuntime("f32Ne", "(FF)I");
+                        case F32_GE -> invokeRuntime("f32Ge", "(FF)I");
+                        case F32_GT -> invokeRuntime("f32Gt", "(FF)I");
+                        case F32_LE -> invokeRuntime("f32Le", "(FF)I");
+                        case F32_LT -> invokeRuntime("f32Lt", "(FF)I");
+                        default -> throw unsupported(b);
+                    }
+                }
+            }
+            pop(2);
+            push(result);
+        }
+
+        private void emitDoubleBinary(DoubleBinaryInstruction b) {
+            ValueType result = F64;
+            switch (b) {
+                case F64_ADD -> mv.visitInsn(DADD);
+                case F64_SUB -> mv.visitInsn(DSUB);
+                case F64_MUL -> mv.visitInsn(DMUL);
+                case F64_DIV -> mv.visitInsn(DDIV);
+                case F64_MAX -> invokeStatic("java/lang/Math", "max", "(DD)D");
+                case F64_MIN -> invokeStatic("java/lang/Math", "min", "(DD)D");
+                case F64_COPY_SIGN -> invokeStatic("java/lang/Math", "copySign", "(DD)D");
+                default -> {
+                    result = I32;
+                    switch (b) {
+                        case F64_EQ -> invokeRuntime("f64Eq", "(DD)I");
+                        case F64_NE -> invokeRuntime("f64Ne", "(DD)I");
+                        case F64_GE -> invokeRuntime("f64Ge", "(DD)I");
+                        case F64_GT -> invokeRuntime("f64Gt", "(DD)I");
+                        case F64_LE -> invokeRuntime("f64Le", "(DD)I");
+                        case F64_LT -> invokeRuntime("f64Lt", "(DD)I");
+                        default -> throw unsupported(b);
+                    }
+                }
+            }
+            pop(2);
+            push(result);
+        }
+
+        private void emitUnary(UnaryInstruction u) {
+            if (u == UnaryInstruction.DROP) {
+                mv.visitInsn(slotSize(pop()) == 2 ? POP2 : POP);
+                return;
+            }
+            ValueType result = switch (u) {
+                case MEMORY_GROW -> {
+                    loadMemory();
+                    mv.visitInsn(SWAP);
+                    mv.visitMethodInsn(INVOKEVIRTUAL, MEMORY, "grow", "(I)I", false);
+                    yield I32;
+                }
+                case I32_EQZ -> {
+                    invokeRuntime("i32Eqz", "(I)I");
+                    yield I32;
+                }
+                case I64_EQZ -> {
+                    invokeRuntime("i64Eqz", "(J)I");
+                    yield I32;
+                }
+                case I32_POPCNT -> {
+                    invokeStatic("java/lang/Integer", "bitCount", "(I)I");
+                    yield I32;
+                }
+                case I64_POPCNT -> {
+                    invokeStatic("java/lang/Long", "bitCount", "(J)I");
+                    mv.visitInsn(I2L);
+                    yield I64;
+                }
+                case I32_CLZ -> {
+                    invokeStatic("java/lang/Integer", "numberOfLeadingZeros", "(I)I");
+                    yield I32;
+                }
+                case I64_CLZ -> {
+                    invokeStatic("java/lang/Long", "numberOfLeadingZeros", "(J)I");
+                    mv.visitInsn(I2L);
+                    yield I64;
+                }
+                case I32_CTZ -> {
+                    invokeStatic("java/lang/Integer", "numberOfTrailingZeros", "(I)I");
+                    yield I32;
+                }
+                case I64_CTZ -> {
+                    invokeStatic("java/lang/Long", "numberOfTrailingZeros", "(J)I");
+                    mv.visitInsn(I2L);
+                    yield I64;
+                }
+                case F32_NEG -> {
+                    mv.visitInsn(FNEG);
+                    yield F32;
+                }
+                case F64_NEG -> {
+                    mv.visitInsn(DNEG);
+                    yield F64;
+                }
+                case F32_ABS -> {
+                    invokeStatic("java/lang/Math", "abs", "(F)F");
+                    yield F32;
+                }
+                case F64_ABS -> {
+                    invokeStatic("java/lang/Math", "abs", "(D)D");
+                    yield F64;
+                }
+                case F32_CEIL -> {
+                    mv.visitInsn(F2D);
+                    invokeStatic("java/lang/Math", "ceil", "(D)D");
+                    mv.visitInsn(D2F);
+                    yield F32;
+                }
+                case F64_CEIL -> {
+                    invokeStatic("java/lang/Math", "ceil", "(D)D");
+                    yield F64;
+                }
+                case F32_FLOOR -> {
+                    mv.visitInsn(F2D);
+                    invokeStatic("java/lang/Math", "floor", "(D)D");
+                    mv.visitInsn(D2F);
+                    yield F32;
+                }
+                case F64_FLOOR -> {
+                    invokeStatic("java/lang/Math", "floor", "(D)D");
+                    yield F64;
+                }
+                case F32_TRUNC -> {
+                    invokeRuntime("f32Trunc", "(F)F");
+                    yield F32;
+                }
+                case F64_TRUNC -> {
+                    invokeRuntime("f64Trunc", "(D)D");
+                    yield F64;
+                }
+                case F32_DEMOTE_F64 -> {
+                    mv.visitInsn(D2F);
+                    yield F32;
+                }
+                case F64_PROMOTE_F32 -> {
+                    mv.visitInsn(F2D);
+                    yield F64;
+                }
+                case F32_NEAREST -> {
+                    invokeStatic("rrampage/wasp/utils/MathUtils", "nearest", "(F)F");
+                    yield F32;
+                }
+                case F64_NEAREST -> {
+                    invokeStatic("rrampage/wasp/utils/MathUtils", "nearest", "(D)D");
+                    yield F64;
+                }
+                case F32_SQRT -> {
+                    mv.visitInsn(F2D);
+                    invokeStatic("java/lang/Math", "sqrt", "(D)D");
+                    mv.visitInsn(D2F);
+                    yield F32;
+                }
+                case F64_SQRT -> {
+                    invokeStatic("java/lang/Math", "sqrt", "(D)D");
+                    yield F64;
+                }
+                case I32_WRAP_I64 -> {
+                    mv.visitInsn(L2I);
+                    yield I32;
+                }
+                case I64_EXTEND_I32_S -> {
+                    mv.visitInsn(I2L);
+                    yield I64;
+                }
+                case I64_EXTEND_I32_U -> {
+                    invokeStatic("java/lang/Integer", "toUnsignedLong", "(I)J");
+                    yield I64;
+                }
+                case I32_REINTERPRET_F32 -> {
+                    invokeStatic("java/lang/Float", "floatToRawIntBits", "(F)I");
+                    yield I32;
+                }
+                case F32_REINTERPRET_I32 -> {
+                    invokeStatic("java/lang/Float", "intBitsToFloat", "(I)F");
+                    yield F32;
+                }
+                case I64_REINTERPRET_F64 -> {
+                    invokeStatic("java/lang/Double", "doubleToRawLongBits", "(D)J");
+                    yield I64;
+                }
+                case F64_REINTERPRET_I64 -> {
+                    invokeStatic("java/lang/Double", "longBitsToDouble", "(J)D");
+                    yield F64;
+                }
+                case F32_CONVERT_I32_S -> {
+                    mv.visitInsn(I2F);
+                    yield F32;
+                }
+                case F32_CONVERT_I32_U -> {
+                    invokeStatic("java/lang/Integer", "toUnsignedLong", "(I)J");
+                    mv.visitInsn(L2F);
+                    yield F32;
+                }
+                case F32_CONVERT_I64_S -> {
+                    mv.visitInsn(L2F);
+                    yield F32;
+                }
+                case F32_CONVERT_I64_U -> {
+                    invokeRuntime("f32ConvertI64U", "(J)F");
+                    yield F32;
+                }
+                case F64_CONVERT_I32_S -> {
+                    mv.visitInsn(I2D);
+                    yield F64;
+                }
+                case F64_CONVERT_I32_U -> {
+                    invokeStatic("java/lang/Integer", "toUnsignedLong", "(I)J");
+                    mv.visitInsn(L2D);
+                    yield F64;
+                }
+                case F64_CONVERT_I64_S -> {
+                    mv.visitInsn(L2D);
+                    yield F64;
+                }
+                case F64_CONVERT_I64_U -> {
+                    invokeRuntime("f64ConvertI64U", "(J)D");
+                    yield F64;
+                }
+                case I32_TRUNC_F32_S, I32_TRUNC_SAT_F32_S -> {
+                    mv.visitInsn(F2I);
+                    yield I32;
+                }
+                case I32_TRUNC_F64_S, I32_TRUNC_SAT_F64_S -> {
+                    mv.visitInsn(D2I);
+                    yield I32;
+                }
+                case I64_TRUNC_F32_S, I64_TRUNC_SAT_F32_S -> {
+                    mv.visitInsn(F2L);
+                    yield I64;
+                }
+                case I64_TRUNC_F64_S, I64_TRUNC_SAT_F64_S -> {
+                    mv.visitInsn(D2L);
+                    yield I64;
+                }
+                case I32_TRUNC_F32_U, I32_TRUNC_SAT_F32_U -> {
+                    invokeStatic("rrampage/wasp/utils/MathUtils", "truncateFloatToUnsignedInt", "(F)I");
+                    yield I32;
+                }
+                case I32_TRUNC_F64_U, I32_TRUNC_SAT_F64_U -> {
+                    invokeStatic("rrampage/wasp/utils/MathUtils", "truncateDoubleToUnsignedInt", "(D)I");
+                    yield I32;
+                }
+                case I64_TRUNC_F32_U, I64_TRUNC_SAT_F32_U -> {
+                    invokeStatic("rrampage/wasp/utils/MathUtils", "truncateFloatToUnsignedLong", "(F)J");
+                    yield I64;
+                }
+                case I64_TRUNC_F64_U, I64_TRUNC_SAT_F64_U -> {
+                    invokeStatic("rrampage/wasp/utils/MathUtils", "truncateDoubleToUnsignedLong", "(D)J");
+                    yield I64;
+                }
+                case I32_EXTEND8_S -> {
+                    mv.visitInsn(I2B);
+                    yield I32;
+                }
+                case I32_EXTEND16_S -> {
+                    mv.visitInsn(I2S);
+                    yield I32;
+                }
+                case I64_EXTEND8_S -> {
+                    mv.visitInsn(L2I);
+                    mv.visitInsn(I2B);
+                    mv.visitInsn(I2L);
+                    yield I64;
+                }
+                case I64_EXTEND16_S -> {
+                    mv.visitInsn(L2I);
+                    mv.visitInsn(I2S);
+                    mv.visitInsn(I2L);
+                    yield I64;
+                }
+                case I64_EXTEND32_S -> {
+                    mv.visitInsn(L2I);
+                    mv.visitInsn(I2L);
+                    yield I64;
+                }
+                default -> throw unsupported(u);
+            };
+            pop(1);
+            push(result);
+        }
+
+        private void emitLoad(LoadInstruction l) {
+            pop(1);
+            addOffset(l.offset());
+            loadMemory();
+            mv.visitInsn(SWAP);
+            switch (l) {
+                case LoadInstruction.I32Load _ -> loadFromMemory("loadInt", "(I)I", I32);
+                case LoadInstruction.I32Load8S _ -> loadFromMemory("loadByte", "(I)B", I32);
+                case LoadInstruction.I32Load8U _ -> {
+                    loadFromMemory("loadByte", "(I)B", I32);
+                    invokeStatic("java/lang/Byte", "toUnsignedInt", "(B)I");
+                }
+                case LoadInstruction.I32Load16S _ -> loadFromMemory("loadShort", "(I)S", I32);
+                case LoadInstruction.I32Load16U _ -> {
+                    loadFromMemory("loadShort", "(I)S", I32);
+                    invokeStatic("java/lang/Short", "toUnsignedInt", "(S)I");
+                }
+                case LoadInstruction.I64Load _ -> loadFromMemory("loadLong", "(I)J", I64);
+                case LoadInstruction.I64Load8S _ -> {
+                    loadFromMemory("loadByte", "(I)B", I64);
+                    mv.visitInsn(I2L);
+                }
+                case LoadInstruction.I64Load8U _ -> {
+                    loadFromMemory("loadByte", "(I)B", I64);
+                    invokeStatic("java/lang/Byte", "toUnsignedLong", "(B)J");
+                }
+                case LoadInstruction.I64Load16S _ -> {
+                    loadFromMemory("loadShort", "(I)S", I64);
+                    mv.visitInsn(I2L);
+                }
+                case LoadInstruction.I64Load16U _ -> {
+                    loadFromMemory("loadShort", "(I)S", I64);
+                    invokeStatic("java/lang/Short", "toUnsignedLong", "(S)J");
+                }
+                case LoadInstruction.I64Load32S _ -> {
+                    loadFromMemory("loadInt", "(I)I", I64);
+                    mv.visitInsn(I2L);
+                }
+                case LoadInstruction.I64Load32U _ -> {
+                    loadFromMemory("loadInt", "(I)I", I64);
+                    invokeStatic("java/lang/Integer", "toUnsignedLong", "(I)J");
+                }
+                // Go through raw bits so that NaN payloads are preserved
+                case LoadInstruction.F32Load _ -> {
+                    loadFromMemory("loadInt", "(I)I", F32);
+                    invokeStatic("java/lang/Float", "intBitsToFloat", "(I)F");
+                }
+                case LoadInstruction.F64Load _ -> {
+                    loadFromMemory("loadLong", "(I)J", F64);
+                    invokeStatic("java/lang/Double", "longBitsToDouble", "(J)D");
+                }
+            }
+        }
+
+        private void loadFromMemory(String method, String descriptor, ValueType result) {
+            mv.visitMethodInsn(INVOKEVIRTUAL, MEMORY, method, descriptor, false);
+            push(result);
+        }
+
+        private void emitStore(StoreInstruction s) {
+            ValueType valType = pop();
+            pop(1);
+            int val = newTemp(valType);
+            store(valType, val);
+            addOffset(s.offset());
+            loadMemory();
+            mv.visitInsn(SWAP);
+            load(valType, val);
+            String descriptor = switch (s) {
+                case StoreInstruction.I32Store _ -> "(II)V";
+                case StoreInstruction.I32Store8 _ -> {
+                    mv.visitInsn(I2B);
+                    yield "(IB)V";
+                }
+                case StoreInstruction.I32Store16 _ -> {
+                    mv.visitInsn(I2S);
+                    yield "(IS)V";
+                }
+                case StoreInstruction.I64Store _ -> "(IJ)V";
+                case StoreInstruction.I64Store8 _ -> {
+                    mv.visitInsn(L2I);
+                    mv.visitInsn(I2B);
+                    yield "(IB)V";
+                }
+                case StoreInstruction.I64Store16 _ -> {
+                    mv.visitInsn(L2I);
+                    mv.visitInsn(I2S);
+                    yield "(IS)V";
+                }
+                case StoreInstruction.I64Store32 _ -> {
+                    mv.visitInsn(L2I);
+                    yield "(II)V";
+                }
+                case StoreInstruction.F32Store _ -> {
+                    invokeStatic("java/lang/Float", "floatToRawIntBits", "(F)I");
+                    yield "(II)V";
+                }
+                case StoreInstruction.F64Store _ -> {
+                    invokeStatic("java/lang/Double", "doubleToRawLongBits", "(D)J");
+                    yield "(IJ)V";
+                }
+            };
+            mv.visitMethodInsn(INVOKEVIRTUAL, MEMORY, "store", descriptor, false);
+        }
+
+        private void emitFunction(FunctionInstruction f) {
+            switch (f) {
+                case FunctionInstruction.Call c -> {
+                    if (c.val() < 0 || c.val() >= functions.length) {
+                        throw unsupported(f);
+                    }
+                    FunctionType type = functions[c.val()].type();
+                    pushArgs(type);
+                    mv.visitVarInsn(ALOAD, MACHINE_SLOT);
+                    pushInt(c.val());
+                    mv.visitMethodInsn(INVOKEVIRTUAL, MACHINE, "callFunction", "(I)V", false);
+                    popResults(type);
+                }
+                case FunctionInstruction.CallIndirect c -> {
+                    if (c.type() == null) {
+                        throw unsupported(f);
+                    }
+                    pop(1);
+                    int offset = newTemp(I32);
+                    mv.visitVarInsn(ISTORE, offset);
+                    pushArgs(c.type());
+                    mv.visitVarInsn(ALOAD, MACHINE_SLOT);
+                    pushInt(c.tableIdx());
+                    mv.visitVarInsn(ILOAD, offset);
+                    pushInt(c.typeId());
+                    mv.visitMethodInsn(INVOKEVIRTUAL, MACHINE, "callIndirect", "(III)V", false);
+                    popResults(c.type());
+                }
+                case FunctionInstruction.Return _ -> emitReturn();
+                case FunctionInstruction.LocalGet l -> {
+                    load(localTypes[l.val()], localSlots[l.val()]);
+                    push(localTypes[l.val()]);
+                }
+                case FunctionInstruction.LocalSet l -> {
+                    pop(1);
+                    store(localTypes[l.val()], localSlots[l.val()]);
+                }
+                case FunctionInstruction.LocalTee l -> {
+                    mv.visitInsn(slotSize(localTypes[l.val()]) == 2 ? DUP2 : DUP);
+                    store(localTypes[l.val()], localSlots[l.val()]);
+                }
+                default -> throw unsupported(f);
+            }
+        }
+
+        private void emitGlobal(GlobalInstruction g) {
+            switch (g) {
+                case GlobalInstruction.GlobalGet i -> {
+                    ValueType type = globals[i.val()].type();
+                    requireNumType(type);
+                    mv.visitVarInsn(ALOAD, MACHINE_SLOT);
+                    pushInt(i.val());
+                    mv.visitMethodInsn(INVOKEVIRTUAL, MACHINE, "getGlobal", "(I)J", false);
+                    fromLong(type);
+                    push(type);
+                }
+                case GlobalInstruction.GlobalSet i -> {
+                    ValueType type = pop();
+                    toLong(type);
+                    int val = newTemp(I64);
+                    mv.visitVarInsn(LSTORE, val);
+                    mv.visitVarInsn(ALOAD, MACHINE_SLOT);
+                    pushInt(i.val());
+                    mv.visitVarInsn(LLOAD, val);
+                    mv.visitMethodInsn(INVOKEVIRTUAL, MACHINE, "setGlobal", "(IJ)V", false);
+                }
+            }
+        }
+
+        private void emitSelect() {
+            pop(1);
+            int cond = newTemp(I32);
+            mv.visitVarInsn(ISTORE, cond);
+            ValueType type = pop();
+            pop(1);
+            int t2 = newTemp(type);
+            store(type, t2);
+            int t1 = newTemp(type);
+            store(type, t1);
+            Label other = new Label(), end = new Label();
+            mv.visitVarInsn(ILOAD, cond);
+            mv.visitJumpInsn(IFEQ, other);
+            load(type, t1);
+            mv.visitJumpInsn(GOTO, end);
+            mv.visitLabel(other);
+            load(type, t2);
+            mv.visitLabel(end);
+            push(type);
+        }
+
+        private void emitControlFlow(ControlFlowInstruction c) {
+            switch (c) {
+                case ControlFlowInstruction.Block b -> {
+                    ControlFrame frame = enterFrame(b.label(), b.type(), false);
+                    emitCode(b.code());
+                    exitFrame(frame);
+                }
+                case ControlFlowInstruction.Loop b -> {
+                    ControlFrame frame = enterFrame(b.label(), b.type(), true);
+                    mv.visitLabel(frame.start);
+                    if (b == osrLoop) {
+                        osrTarget = frame.start;
+                        osrStack = new ArrayList<>(stack);
+                    }
+                    emitConsumeFuel(b.code());
+                    emitCode(b.code());
+                    exitFrame(frame);
+                }
+                case ControlFlowInstruction.If b -> {
+                    pop(1);
+                    ControlFrame frame = enterFrame(b.label(), b.type(), false);
+                    if (frame.type.numParams() != frame.type.numReturns()) {
+                        throw unsupported(c);
+                    }
+                    mv.visitJumpInsn(IFEQ, frame.end);
+                    frame.endReachable = true;
+                    emitCode(b.ifBlock());
+                    exitFrame(frame);
+                }
+                case ControlFlowInstruction.IfElse b -> {
+                    pop(1);
+                    ControlFrame frame = enterFrame(b.label(), b.type(), false);
+                    List<ValueType> entry = new ArrayList<>(stack);
+                    Label elseLabel = new Label();
+                    mv.visitJumpInsn(IFEQ, elseLabel);
+                    emitCode(b.ifBlock());
+                    if (reachable) {
+                        shuffle(frame.base, frame.type.numReturns());
+                        frame.endReachable = true;
+                        mv.visitJumpInsn(GOTO, frame.end);
+                    }
+                    mv.visitLabel(elseLabel);
+                    restore(entry);
+                    reachable = true;
+                    emitCode(b.elseBlock());
+                    exitFrame(frame);
+                }
+                case ControlFlowInstruction.Branch b -> {
+                    emitBranch(b.label());
+                    reachable = false;
+                }
+                case ControlFlowInstruction.BranchIf b -> {
+                    pop(1);
+                    ControlFrame target = findFrame(b.label());
+                    if (target != null && stack.size() == target.base + target.branchArity()) {
+                        // No values need to be discarded so jump directly
+                        target.endReachable |= !target.isLoop;
+                        mv.visitJumpInsn(IFNE, target.target());
+                        return;
+                    }
+                    Label skip = new Label();
+                    mv.visitJumpInsn(IFEQ, skip);
+                    emitBranch(b.label());
+                    mv.visitLabel(skip);
+                    reachable = true;
+                }
+                case ControlFlowInstruction.BranchTable b -> {
+                    pop(1);
+                    Map<Integer, Label> stubs = new LinkedHashMap<>();
+                    Label defaultStub = stubs.computeIfAbsent(b.defaultLabel(), k -> new Label());
+                    if (b.labels().length == 0) {
+                        mv.visitInsn(POP);
+                        mv.visitJumpInsn(GOTO, defaultStub);
+                    } else {
+                        Label[] targets = new Label[b.labels().length];
+                        for (int i = 0; i < targets.length; i++) {
+                            targets[i] = stubs.computeIfAbsent(b.labels()[i], k -> new Label());
+                        }
+                        mv.visitTableSwitchInsn(0, targets.length - 1, defaultStub, targets);
+                    }
+                    for (var e : stubs.entrySet()) {
+                        mv.visitLabel(e.getValue());
+                        emitBranch(e.getKey());
+                    }
+                    reachable = false;
+                }
+                case ControlFlowInstruction.Else _ -> {}
+                case ControlFlowInstruction.End _ -> {}
+            }
+        }
+
+        private ControlFrame enterFrame(int label, FunctionType type, boolean isLoop) {
+            type = (type == null) ? FunctionType.VOID : type;
+            int base = stack.size() - type.numParams();
+            if (base < 0) {
+                throw new RuntimeException(STR."JIT_ERROR: Stack underflow at block \{label}");
+            }
+            ControlFrame frame = new ControlFrame(label, isLoop, type, base);
+            frames.add(frame);
+            return frame;
+        }
+
+        private void exitFrame(ControlFrame frame) {
+            if (reachable) {
+                shuffle(frame.base, frame.type.numReturns());
+                frame.endReachable = true;
+            }
+            frames.removeLast();
+            if (!frame.isLoop && frame.endReachable) {
+                mv.visitLabel(frame.end);
+            }
+            truncate(frame.base);
+            for (int i = 0; i < frame.type.numReturns(); i++) {
+                push(frame.type.returnTypes()[i]);
+            }
+            reachable = frame.endReachable;
+        }
+
+        private ControlFrame findFrame(int label) {
+            if (label == FUNC_LEVEL) {
+                return null;
+            }
+            for (int i = frames.size() - 1; i >= 0; i--) {
+                if (frames.get(i).label == label) {
+                    return frames.get(i);
+                }
+            }
+            // The interpreter unwinds unknown labels all the way out of the function
+            return null;
+        }
+
+        // Emits an unconditional jump to the label. The type stack is left unchanged for code following a conditional branch
+        private void emitBranch(int label) {
+            ControlFrame target = findFrame(label);
+            if (target == null) {
+                emitReturn();
+                return;
+            }
+            List<ValueType> saved = new ArrayList<>(stack);
+            shuffle(target.base, target.branchArity());
+            target.endReachable |= !target.isLoop;
+            mv.visitJumpInsn(GOTO, target.target());
+            restore(saved);
+        }
+
+        private void emitReturn() {
+            FunctionType type = fun.type();
+            int n = type.numReturns();
+            if (stack.size() < n) {
+                throw new RuntimeException(STR."JIT_ERROR: Stack underflow at return of \{fun.name()}");
+            }
+            List<ValueType> saved = new ArrayList<>(stack);
+            int[] temps = new int[n];
+            for (int i = n - 1; i >= 0; i--) {
+                ValueType t = pop();
+                temps[i] = newTemp(t);
+                store(t, temps[i]);
+            }
+            for (int i = 0; i < n; i++) {
+                mv.visitVarInsn(ALOAD, MACHINE_SLOT);
+                load(type.returnTypes()[i], temps[i]);
+                toLong(type.returnTypes()[i]);
+                mv.visitMethodInsn(INVOKEVIRTUAL, MACHINE, "push", "(J)V", false);
+            }
+            mv.visitInsn(RETURN);
+            restore(saved);
+            reachable = false;
+        }
+
+        /**
+         * Drops values between base and the top arity values of the stack, i.e. what handleStack does in the interpreter
+         */
+        private void shuffle(int base, int arity) {
+            int excess = stack.size() - base - arity;
+            if (excess < 0) {
+                throw new RuntimeException(STR."JIT_ERROR: Stack underflow in \{fun.name()}");
+            }
+            if (excess == 0) {
+                return;
+            }
+            ValueType[] types = new ValueType[arity];
+            int[] temps = new int[arity];
+            for (int i = arity - 1; i >= 0; i--) {
+                types[i] = pop();
+                temps[i] = newTemp(types[i]);
+                store(types[i], temps[i]);
+            }
+            for (int i = 0; i < excess; i++) {
+                mv.visitInsn(slotSize(pop()) == 2 ? POP2 : POP);
+            }
+            for (int i = 0; i < arity; i++) {
+                load(types[i], temps[i]);
+                push(types[i]);
+            }
+        }
+
+        // Moves call arguments from the JVM stack to the machine stack
+        private void pushArgs(FunctionType type) {
+            int n = type.numParams();
+            int[] temps = new int[n];
+            ValueType[] types = new ValueType[n];
+            for (int i = n - 1; i >= 0; i--) {
+                types[i] = pop();
+                temps[i] = newTemp(types[i]);
+                store(types[i], temps[i]);
+            }
+            for (int i = 0; i < n; i++) {
+                mv.visitVarInsn(ALOAD, MACHINE_SLOT);
+                load(types[i], temps[i]);
+                toLong(types[i]);
+                mv.visitMethodInsn(INVOKEVIRTUAL, MACHINE, "push", "(J)V", false);
+            }
+        }
+
+        // Moves call results from the machine stack to the JVM stack
+        private void popResults(FunctionType type) {
+            int n = type.numReturns();
+            int[] temps = new int[n];
+            for (int i = n - 1; i >= 0; i--) {
+                ValueType t = type.returnTypes()[i];
+                requireNumType(t);
+                mv.visitVarInsn(ALOAD, MACHINE_SLOT);
+                mv.visitMethodInsn(INVOKEVIRTUAL, MACHINE, "pop", "()J", false);
+                fromLong(t);
+                if (n == 1) {
+                    push(t);
+                    return;
+                }
+                temps[i] = newTemp(t);
+                store(t, temps[i]);
+            }
+            for (int i = 0; i < n; i++) {
+                load(type.returnTypes()[i], temps[i]);
+                push(type.returnTypes()[i]);
+            }
+        }
+
+        private void loadMemory() {
+            mv.visitVarInsn(ALOAD, MACHINE_SLOT);
+            mv.visitMethodInsn(INVOKEVIRTUAL, MACHINE, "getMainMemory", STR."()L\{MEMORY};", false);
+        }
+
+        private void addOffset(int offset) {
+            if (offset != 0) {
+                pushInt(offset);
+                mv.visitInsn(IADD);
+            }
+        }
+
+        private void pushInt(int val) {
+            if (val >= -1 && val <= 5) {
+                mv.visitInsn(ICONST_0 + val);
+            } else if (val >= Byte.MIN_VALUE && val <= Byte.MAX_VALUE) {
+                mv.visitIntInsn(BIPUSH, val);
+            } else if (val >= Short.MIN_VALUE && val <= Short.MAX_VALUE) {
+                mv.visitIntInsn(SIPUSH, val);
+            } else {
+                mv.visitLdcInsn(val);
+            }
+        }
+
+        private void invokeStatic(String owner, String name, String descriptor) {
+            mv.visitMethodInsn(INVOKESTATIC, owner, name, descriptor, false);
+        }
+
+        private void invokeRuntime(String name, String descriptor) {
+            invokeStatic(RUNTIME, name, descriptor);
+        }
+
+        // Converts value on top of stack to its raw bits as stored on the machine stack
+        private void toLong(ValueType t) {
+            switch ((ValueType.NumType) t) {
+                case I32 -> mv.visitInsn(I2L);
+                case I64 -> {}
+                case F32 -> {
+                    invokeStatic("java/lang/Float", "floatToRawIntBits", "(F)I");
+                    mv.visitInsn(I2L);
+                }
+                case F64 -> invokeStatic("java/lang/Double", "doubleToRawLongBits", "(D)J");
+            }
+        }
+
+        private void fromLong(ValueType t) {
+            switch ((ValueType.NumType) t) {
+                case I32 -> mv.visitInsn(L2I);
+                case I64 -> {}
+                case F32 -> {
+                    mv.visitInsn(L2I);
+                    invokeStatic("java/lang/Float", "intBitsToFloat", "(I)F");
+                }
+                case F64 -> invokeStatic("java/lang/Double", "longBitsToDouble", "(J)D");
+            }
+        }
+
+        private void load(ValueType t, int slot) {
+            switch ((ValueType.NumType) t) {
+                case I32 -> mv.visitVarInsn(ILOAD, slot);
+                case I64 -> mv.visitVarInsn(LLOAD, slot);
+                case F32 -> mv.visitVarInsn(FLOAD, slot);
+                case F64 -> mv.visitVarInsn(DLOAD, slot);
+            }
+        }
+
+        private void store(ValueType t, int slot) {
+            switch ((ValueType.NumType) t) {
+                case I32 -> mv.visitVarInsn(ISTORE, slot);
+                case I64 -> mv.visitVarInsn(LSTORE, slot);
+                case F32 -> mv.visitVarInsn(FSTORE, slot);
+                case F64 -> mv.visitVarInsn(DSTORE, slot);
+            }
+        }
+
+        private int newTemp(ValueType t) {
+            int slot = nextTemp;
+            nextTemp += slotSize(t);
+            return slot;
+        }
+
+        private void push(ValueType t) {
+            stack.add(t);
+        }
+
+        private ValueType pop() {
+            if (stack.isEmpty()) {
+                throw new RuntimeException(STR."JIT_ERROR: Stack underflow in \{fun.name()}");
+            }
+            return stack.removeLast();
+        }
+
+        private void pop(int n) {
+            for (int i = 0; i < n; i++) {
+                pop();
+            }
+        }
+
+        private void truncate(int size) {
+            while (stack.size() > size) {
+                stack.removeLast();
+            }
+        }
+
+        private void restore(List<ValueType> saved) {
+            stack.clear();
+            stack.addAll(saved);
+        }
+
+        private RuntimeException unsupported(Instruction ins) {
+            return new RuntimeException(STR."JIT_ERROR: Unsupported instruction \{ins.opCode()}");
+        }
+    }
+
+    private static void requireNumType(ValueType t) {
+        if (!(t instanceof ValueType.NumType)) {
+            throw new RuntimeException(STR."JIT_ERROR: Unsupported value type \{t}");
+        }
+    }
+
+    private static int slotSize(ValueType t) {
+        return (t == I64 || t == F64) ? 2 : 1;
+    }
+}
@@ -0,0 +1,58 @@
+package rrampage.wasp.vm;
+
+/**
+ * Static helpers called from JIT compiled code for operations without a single JVM opcode.
+ * Semantics mirror the corresponding cases in {@link Machine}'s interpreter.
+ */
+public final class JitRuntime {
+    private JitRuntime() {}
+
+    public static RuntimeException unreachable() {
+        return new RuntimeException("Unreachable op code detected! Crashing on demand!");
+    }
+
+    public static int i32Eqz(int a) {return a == 0 ? 1 : 0;}
+    public static int i64Eqz(long a) {return a == 0 ? 1 : 0;}
+
+    public static int i32Eq(int l, int r) {return l == r ? 1 : 0;}
+    public static int i32Ne(int l, int r) {return l != r ? 1 : 0;}
+    public static int i32GeS(int l, int r) {return l >= r ? 1 : 0;}
+    public static int i32GtS(int l, int r) {return l > r ? 1 : 0;}
+    public static int i32LeS(int l, int r) {return l <= r ? 1 : 0;}
+    public static int i32LtS(int l, int r) {return l < r ? 1 : 0;}
+    public static int i32GeU(int l, int r) {return Integer.compareUnsigned(l, r) >= 0 ? 1 : 0;}
+    public static int i32GtU(int l, int r) {return Integer.compareUnsigned(l, r) > 0 ? 1 : 0;}
+    public static int i32LeU(int l, int r) {return Integer.compareUnsigned(l, r) <= 0 ? 1 : 0;}
+    public static int i32LtU(int l, int r) {return Integer.compareUnsigned(l, r) < 0 ? 1 : 0;}
+
+    public static int i64Eq(long l, long r) {return l == r ? 1 : 0;}
+    public static int i64Ne(long l, long r) {return l != r ? 1 : 0;}
+    public static int i64GeS(long l, long r) {return l >= r ? 1 : 0;}
+    public static int i64GtS(long l, long r) {return l > r ? 1 : 0;}
+    public static int i64LeS(long l, long r) {return l <= r ? 1 : 0;}
+    public static int i64LtS(long l, long r) {return l < r ? 1 : 0;}
+    public static int i64GeU(long l, long r) {return Long.compareUnsigned(l, r) >= 0 ? 1 : 0;}
+    public static int i64GtU(long l, long r) {return Long.compareUnsigned(l, r) > 0 ? 1 : 0;}
+    public static int i64LeU(long l, long r) {return Long.compareUnsigned(l, r) <= 0 ? 1 : 0;}
+    public static int i64LtU(long l, long r) {return Long.compareUnsigned(l, r) < 0 ? 1 : 0;}
+
+    public static int f32Eq(float l, float r) {return l == r ? 1 : 0;}
+    public static int f32Ne(float l, float r) {return l != r ? 1 : 0;}
+    public static int f32Ge(float l, float r) {return l >= r ? 1 : 0;}
+    public static int f32Gt(float l, float r) {return l > r ? 1 : 0;}
+    public static int f32Le(float l, float r) {return l <= r ? 1 : 0;}
+    public static int f32Lt(float l, float r) {return l < r ? 1 : 0;}
+
+    public static int f64Eq(double l, double r) {return l == r ? 1 : 0;}
+    public static int f64Ne(double l, double r) {return l != r ? 1 : 0;}
+    public static int f64Ge(double l, double r) {return l >= r ? 1 : 0;}
+    public static int f64Gt(double l, double r) {return l > r ? 1 : 0;}
+    public static int f64Le(double l, double r) {return l <= r ? 1 : 0;}
+    public static int f64Lt(double l, double r) {return l < r ? 1 : 0;}
+
+    public static float f32Trunc(float f) {return (float) ((f < 0.0) ? Math.ceil(f) : Math.floor(f));}
+    public static double f64Trunc(double f) {return (f < 0.0) ? Math.ceil(f) : Math.floor(f);}
+
+    public static float f32ConvertI64U(long l) {return Float.parseFloat(Long.toUnsignedString(l));}
+    public static double f64ConvertI64U(long l) {return Double.parseDouble(Long.toUnsignedString(l));}
+}
@@ -3,18 +3,23 @@ package rrampage.wasp.vm;
 import rrampage.wasp.data.*;
 import rrampage.wasp.instructions.*;
 import rrampage.wasp.utils.MathUtils;
+import rrampage.wasp.validator.Validator;
 
 import java.lang.invoke.MethodHandle;
+import java.lang.invoke.VarHandle;
 import java.lang.reflect.Array;
 import java.util.*;
 
+import static rrampage.wasp.instructions.ByteCodeConstants.*;
 import static rrampage.wasp.utils.ConversionUtils.*;
+import static rrampage.wasp.vm.FlatCode.*;
 
 
 public class Machine {
     private static final int FUNC_LEVEL = -1;
     private static final int RETURN_LEVEL = -2;
     private static final int BLOCK_LEVEL = -3; // Signifies normal consumption of all instructions in code array
+    private static final int NEXT_INSTRUCTION = -4; // Signifies that execution continues with the next instruction
     private final MachineStack stack; // Store everything as long. Convert to type as per instruction
 
     // TODO : Keep in mind proposal for multiple memories:
@@ -28,7 +33,22 @@ public class Machine {
     private final Map<String, Object> exportMap;
     private final long startIdx;
     private final MachineVisitor machineVisitor;
+    private final MachineConfig config;
+    private final JitCompiler jit; // null when functions are only interpreted
+    private final boolean useFlatCode;
+    private final boolean useClosures;
+    private final boolean useRegisterCode;
+    private Validator validator; // created on first call of a function which has not been validated
+    private VectorOps vectorOps; // created on first SIMD instruction
+    private final boolean instrumented; // true when the tree interpreter has to call instruction visitors
     private final ArrayDeque<String> callStack = new ArrayDeque<>();
+    private final ControlStack frames; // guest frames of the stackless interpreter, null for other interpreters
+    private Function pendingCall; // callee of the frame which returned to runFrames
+    private boolean resumable; // true while an Invocation runs its frames
+    private boolean suspendRequested;
+    private int nativeCalls; // calls running on the Java stack
+    private boolean validatedFrame; // true while the tree interpreter runs a validated function, see exitBlock
+    private long fuel; // Long.MAX_VALUE when not metered, which is never used up
 
     public Machine(Function[] functions, Table[] tables, Variable[] globals, int pages, DataSegment[] dataSegments, ElementSegment[] elementSegments, long startIdx) {
        this(functions, tables, globals, new Memory[]{new Memory(pages)}, dataSegments, elementSegments, null, startIdx, MachineVisitors.NULL_VISITOR);
@@ -36,6 +56,17 @@ public class Machine {
 
     public Machine(Function[] functions, Table[] tables, Variable[] globals, Memory[] memories, DataSegment[] dataSegments, ElementSegment[] elementSegments,
                    Map<String, Object> exportMap, long startIdx, MachineVisitor machineVisitor) {
+        this(functions, tables, globals, memories, dataSegments, elementSegments, exportMap, startIdx, machineVisitor, MachineConfig.DEFAULT);
+    }
+
+    public Machine(Function[] functions, Table[] tables, Variable[] globals, Memory[] memories, DataSegment[] dataSegments, ElementSegment[] elementSegments,
+                   Map<String, Object> exportMap, long startIdx, MachineVisitor machineVisitor, MachineConfig config) {
+        this(functions, tables, globals, memories, dataSegments, elementSegments, exportMap, startIdx, machineVisitor, config, true);
+    }
+
+    // Forks are created from an already initialized state, so they do not run the start function
+    Machine(Function[] functions, Table[] tables, Variable[] globals, Memory[] memories, DataSegment[] dataSegments, ElementSegment[] elementSegments,
+            Map<String, Object> exportMap, long startIdx, MachineVisitor machineVisitor, MachineConfig config, boolean runStart) {
         if (memories == null || memories.length == 0) {
             // Create a 1 page memory if null or zero-length memory is passed
             memories = new Memory[]{new Memory(1)};
@@ -53,7 +84,18 @@ public class Machine {
         this.exportMap = exportMap;
         this.startIdx = startIdx;
         this.machineVisitor = machineVisitor;
-        this.start();
+        this.config = config;
+        // Instruction visitors need to see every instruction, so they always run with the tree interpreter
+        this.instrumented = machineVisitor.hasPreInstructionVisitor || machineVisitor.hasPostInstructionVisitor;
+        this.jit = (config.jit && !instrumented) ? new JitCompiler(functions, globals) : null;
+        this.useFlatCode = config.interpreter != MachineConfig.Interpreter.TREE && !instrumented;
+        this.useClosures = config.interpreter == MachineConfig.Interpreter.CLOSURE && !instrumented;
+        this.useRegisterCode = config.interpreter == MachineConfig.Interpreter.REGISTER && !instrumented;
+        this.frames = (config.interpreter == MachineConfig.Interpreter.STACKLESS && !instrumented) ? new ControlStack() : null;
+        this.fuel = config.fuel;
+        if (runStart) {
+            this.start();
+        }
         this.machineVisitor.start(this);
     }
 
@@ -61,12 +103,29 @@ public class Machine {
         return this.memories[0];
     }
 
+    /**
+     * Captures memories, globals, tables and segments so that independent copies of this machine can be created with
+     * {@link MachineSnapshot#fork()}. The value stack is not captured, so take snapshots between invocations.
+     */
+    public MachineSnapshot snapshot() {
+        return new MachineSnapshot(functions, tables, globals, memories, dataSegments, elementSegments, exportMap, startIdx, machineVisitor, config);
+    }
+
+    /**
+     * Returns a new machine with the current state of this one. Memory pages are shared until either machine writes to them.
+     */
+    public Machine fork() {
+        return snapshot().fork();
+    }
+
     public Map<String, Object> exports(){ return this.exportMap;}
 
     public Variable[] globals() { return this.globals;}
 
     public Function[] functions() { return this.functions;}
 
+    public MachineConfig config() { return this.config;}
+
     public long pop() {
         return stack.pop();
     }
@@ -118,27 +177,363 @@ public class Machine {
     }
 
     private void call(Function fun) {
-        callStack.push(fun.name());
-        if (machineVisitor.hasPreFunctionVisitor) {machineVisitor.visitPreFunction(fun);}
-        // Creating a "scratch space" of variables for function params as well as local vars to be used in function body
-        Variable[] locals = new Variable[fun.numParams() + fun.numLocals()];
-        // LIFO for function params as params are pushed to stack and must be popped in reverse order
-        for (int i = fun.numParams()-1; i >= 0; i-- ) {
-            locals[i] = Variable.newMutableVariable(fun.type().paramTypes()[i], pop());
+        enterFunction(fun);
+        CompiledFunction compiled = (jit == null) ? null : compiled(fun);
+        if (compiled == null && useClosures) {
+            compiled = ClosureCompiler.compile(fun, functions);
         }
-        for (int i = fun.numParams(); i < locals.length; i++) {
-            locals[i] = Variable.newMutableVariable(fun.locals()[i - fun.numParams()], 0);
+        if (compiled == null && useRegisterCode) {
+            compiled = RegisterCodeCompiler.compile(fun, functions);
+        }
+        FlatCode flatCode = (compiled == null && useFlatCode) ? FlatCodeCompiler.compile(fun, functions) : null;
+        if (flatCode != null && frames != null) {
+            // The function is exited when its frame returns
+            runNested(fun, flatCode);
+        } else {
+            callEntered(fun, compiled, flatCode);
+        }
+    }
+
+    /*
+        Returns the JIT compiled code of the function or null if it runs in the interpreter. Without tiering, functions
+        are compiled on their first call. Tiered machines interpret functions until they have been called or have looped
+        often enough and then compile them on a background thread. Calls keep being interpreted until the compiled code
+        is ready, so cold code never pays for compilation.
+     */
+    private CompiledFunction compiled(Function fun) {
+        if (!config.tiered) {
+            return jit.compile(fun);
+        }
+        FunctionCache cache = fun.cache();
+        CompiledFunction compiled = cache.compiled();
+        if (compiled == null && cache.countCall() >= config.callThreshold) {
+            jit.compileInBackground(fun);
         }
-        // Set labels of machine to function labels and reset to original labels once execution is completed
+        return compiled;
+    }
+
+    /*
+        Counts an iteration of a loop in flat code. Once the loop is hot, the function is compiled for its next calls
+        and, for the running call, with an entry at the start of the loop. When that is ready, the locals and operand
+        stack of the frame move into the compiled code, which runs the rest of the call (on-stack replacement).
+        Returns true when the call completed that way with its results on the stack, like FUNC_RETURN.
+        Invocations stay in flat code so they can still be suspended and yield when out of fuel.
+     */
+    private boolean loopIteration(FlatCode flatCode, int loopRef) {
+        if (!config.tiered) {
+            return false;
+        }
+        Function fun = flatCode.function();
+        FunctionCache cache = fun.cache();
+        if (cache.countLoopIteration() < config.loopThreshold || resumable) {
+            return false;
+        }
+        jit.compileInBackground(fun);
+        CompiledFunction osrCode = cache.osrCode(loopRef);
+        if (osrCode == null) {
+            jit.compileOsrInBackground(fun, (ControlFlowInstruction.Loop) flatCode.refs()[loopRef], loopRef);
+            return false;
+        }
+        nativeCalls++;
+        try {
+            osrCode.invoke(this);
+        } finally {
+            nativeCalls--;
+        }
+        return true;
+    }
+
+    private void enterFunction(Function fun) {
+        callStack.push(fun.name());
+        if (machineVisitor.hasPreFunctionVisitor) {machineVisitor.visitPreFunction(fun);}
+        reserveFrame(fun);
+    }
+
+    private void exitFunction(Function fun) {
+        if (machineVisitor.hasPostFunctionVisitor) {machineVisitor.visitPostFunction(fun);}
+        callStack.pop();
+    }
+
+    private void callEntered(Function fun, CompiledFunction compiled, FlatCode flatCode) {
         // System.out.println(STR."FUNC: \{fun.name()} Type: \{fun.type()}");
+        nativeCalls++;
         try {
-            execute(fun.code(), locals, FUNC_LEVEL);
+            if (compiled != null) {
+                compiled.invoke(this);
+            } else if (flatCode != null) {
+                executeFlat(flatCode, enterFrame(fun), fun.type(), 0);
+            } else {
+                executeTree(fun);
+            }
         } catch (Exception e) {
             System.out.println(STR."Exception at \{fun.name()}\nJava stack trace: \{e.getMessage()}\nWASM call stack trace: \{callStack}");
             throw e;
+        } finally {
+            nativeCalls--;
+        }
+        exitFunction(fun);
+    }
+
+    private void executeTree(Function fun) {
+        boolean caller = validatedFrame;
+        validatedFrame = fun.cache().isValidated();
+        try {
+            int base = stack.stackPointer() - fun.type().paramSlots();
+            consumeFuel(fuelCost(fun.code()));
+            execute(fun.code(), createLocals(fun));
+            if (validatedFrame) {
+                exitBlock(base, fun.type().returnSlots());
+            }
+        } finally {
+            validatedFrame = caller;
+        }
+    }
+
+    // Runs a call made from the Java stack e.g. by a host function or the tree interpreter on the control stack
+    private void runNested(Function fun, FlatCode flatCode) {
+        int base = frames.size();
+        frames.push(fun, flatCode, enterFrame(fun));
+        nativeCalls++;
+        try {
+            runFrames(base);
+        } catch (Exception e) {
+            System.out.println(STR."Exception at \{frames.function(frames.size() - 1).name()}\nJava stack trace: \{e.getMessage()}\nWASM call stack trace: \{callStack}");
+            frames.truncate(base);
+            throw e;
+        } finally {
+            nativeCalls--;
+        }
+    }
+
+    /*
+        Runs the frames above base until they have all returned. executeFlat returns here on every call instead of
+        recursing, so guest recursion grows the control stack and not the Java stack. Callees which are JIT compiled or
+        can not be lowered run on the Java stack as usual.
+        Returns false when a host function suspended the invocation. Its frames are left in place to be resumed.
+     */
+    private boolean runFrames(int base) {
+        while (frames.size() > base) {
+            int top = frames.size() - 1;
+            Function fun = frames.function(top);
+            int pc = executeFlat(frames.code(top), frames.fp(top), fun.type(), frames.pc(top));
+            if (pc < 0) {
+                frames.pop();
+                exitFunction(fun);
+                continue;
+            }
+            frames.setPc(top, pc);
+            Function callee = pendingCall;
+            if (callee != null) {
+                pendingCall = null;
+                enterFunction(callee);
+                CompiledFunction compiled = (jit == null) ? null : compiled(callee);
+                FlatCode flatCode = (compiled == null) ? FlatCodeCompiler.compile(callee, functions) : null;
+                if (flatCode != null) {
+                    frames.push(callee, flatCode, enterFrame(callee));
+                } else {
+                    callEntered(callee, compiled, null);
+                }
+            }
+            if (suspendRequested) {
+                suspendRequested = false;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Starts an invocation whose arguments have been pushed. Returns true if it ran to completion without suspending
+    boolean startInvocation(Function fun) {
+        if (frames == null) {
+            throw new RuntimeException("INVOKE: Suspendable invocations need the stackless interpreter");
+        }
+        if (resumable || nativeCalls != 0) {
+            throw new RuntimeException("INVOKE: Can not start an invocation while another one is running");
+        }
+        enterFunction(fun);
+        FlatCode flatCode = FlatCodeCompiler.compile(fun, functions);
+        if (flatCode == null) {
+            try {
+                callEntered(fun, null, null);
+            } finally {
+                machineVisitor.end(this);
+            }
+            return true;
+        }
+        int base = frames.size();
+        frames.push(fun, flatCode, enterFrame(fun));
+        return resumeInvocation(base);
+    }
+
+    boolean resumeInvocation(int base) {
+        resumable = true;
+        boolean completed = false;
+        try {
+            completed = runFrames(base);
+            return completed;
+        } catch (Exception e) {
+            System.out.println(STR."Exception in invocation\nJava stack trace: \{e.getMessage()}\nWASM call stack trace: \{callStack}");
+            frames.truncate(base);
+            completed = true;
+            throw e;
+        } finally {
+            resumable = false;
+            if (completed) {
+                machineVisitor.end(this);
+            }
         }
-        if (machineVisitor.hasPostFunctionVisitor) {machineVisitor.visitPostFunction(fun);}
-        callStack.pop();
+    }
+
+    int controlStackSize() {
+        return frames == null ? 0 : frames.size();
+    }
+
+    int stackPointer() {
+        return stack.stackPointer();
+    }
+
+    /**
+     * Suspends the running {@link Invocation} once the calling host function returns. The results of the host function
+     * are kept and the invocation continues after the call when it is resumed.
+     * Only host functions called directly from guest code of an invocation can suspend, i.e. there must be no other host
+     * function, JIT compiled or tree interpreted function below it on the Java stack.
+     */
+    public void suspend() {
+        if (!resumable || nativeCalls != 0) {
+            throw new RuntimeException("SUSPEND: Only a host function called from a stackless invocation can suspend it");
+        }
+        suspendRequested = true;
+    }
+
+    /**
+     * Remaining fuel. Function bodies and loop iterations are charged when they start, so a guest runs until its fuel
+     * is used up at one of these points. A machine without a fuel budget ({@link MachineConfig.ConfigBuilder#fuel(long)})
+     * starts with {@link Long#MAX_VALUE} fuel, which is never used up. Fuel is negative when an invocation yielded after
+     * running out.
+     */
+    public long fuel() {
+        return fuel;
+    }
+
+    public void setFuel(long fuel) {
+        this.fuel = fuel;
+    }
+
+    public void addFuel(long amount) {
+        fuel = (fuel > Long.MAX_VALUE - amount) ? Long.MAX_VALUE : fuel + amount;
+    }
+
+    /*
+        Fuel cost of running a function body or one loop iteration: one unit for entering it and one for each instruction
+        directly in it. Nested blocks are charged as a single instruction and nested loops are charged on their own.
+        The cost does not depend on the interpreter, so metered guests use the same fuel whichever tier runs them.
+     */
+    static int fuelCost(Instruction[] code) {
+        return 1 + code.length;
+    }
+
+    // Entry point for JIT compiled code and the tree interpreter, which can not yield
+    void consumeFuel(int cost) {
+        if ((fuel -= cost) < 0) {
+            outOfFuel();
+        }
+    }
+
+    /*
+        Called when fuel is used up. Flat code run directly by an Invocation yields: it is suspended as if a host
+        function called suspend() and continues when resumed, after the host added fuel. Returns true in that case.
+        Anything else traps.
+     */
+    private boolean outOfFuel() {
+        if (resumable && nativeCalls == 0) {
+            suspendRequested = true;
+            return true;
+        }
+        throw new RuntimeException(STR."OUT_OF_FUEL: Fuel exhausted in \{callStack.peek()}");
+    }
+
+    /*
+        Functions are validated on their first call. Validated functions get their whole frame up front, so the stack
+        does not grow while they run. Lazily decoded bodies were not validated by the parser, so they trap when invalid.
+        Other functions were either validated when parsed or built by hand, and run even if they are invalid
+     */
+    private void reserveFrame(Function fun) {
+        FunctionCache cache = fun.cache();
+        int maxStackHeight = cache.maxStackHeight();
+        if (maxStackHeight < 0) {
+            if (!cache.hasValidationError()) {
+                if (validator == null) {
+                    validator = Validator.of(functions, globals == null ? new Variable[0] : globals);
+                }
+                maxStackHeight = validator.validate(fun);
+            }
+            if (cache.hasValidationError() && cache.isLazy()) {
+                throw new RuntimeException(cache.validationError());
+            }
+        }
+        if (maxStackHeight > 0) {
+            stack.reserve(fun.numLocals() + maxStackHeight);
+        }
+    }
+
+    private Variable[] createLocals(Function fun) {
+        // Creating a "scratch space" of variables for function params as well as local vars to be used in function body.
+        // Functions are validated when entered, which records the types of params followed by locals
+        ValueType[] types = fun.cache().localTypes();
+        Variable[] locals = new Variable[types.length];
+        // LIFO for function params as params are pushed to stack and must be popped in reverse order
+        for (int i = fun.numParams()-1; i >= 0; i-- ) {
+            ValueType type = types[i];
+            if (type == ValueType.VecType.VEC_TYPE) {
+                long high = pop();
+                var v = (Variable.V128Variable) Variable.newMutableVariable(type, pop());
+                v.setVal(v.low(), high);
+                locals[i] = v;
+            } else {
+                locals[i] = Variable.newMutableVariable(type, pop());
+            }
+        }
+        for (int i = fun.numParams(); i < locals.length; i++) {
+            locals[i] = Variable.newMutableVariable(types[i], 0);
+        }
+        return locals;
+    }
+
+    private int enterFrame(Function fun) {
+        // Params are already on the stack, so they become the first locals of the frame. Other locals start as zero
+        int fp = stack.stackPointer() - fun.numParams();
+        stack.pushZeros(fun.numLocals());
+        return fp;
+    }
+
+    // Entry points for JIT compiled code
+    void callFunction(int funcIdx) {
+        call(functions[funcIdx]);
+    }
+
+    void callIndirect(int tblIdx, int tblOffset, int typeId) {
+        call(indirectFunction(tblIdx, tblOffset, typeId));
+    }
+
+    // typeId is the interned id of the expected signature, or -1 to skip the check when the type is unknown
+    private Function indirectFunction(int tblIdx, int tblOffset, int typeId) {
+        if (tblOffset < 0 || tblIdx < 0 || tblIdx >= tables.length || tblOffset >= tables[tblIdx].size()) {
+            throw new RuntimeException("Array bounds mismatch in indirect call");
+        }
+        Table table = tables[tblIdx];
+        Function fun = table.get(tblOffset);
+        if (fun == null || (typeId >= 0 && table.typeId(tblOffset) != typeId)) {
+            throw new RuntimeException("Function Type mismatch in indirect call");
+        }
+        return fun;
+    }
+
+    long getGlobal(int idx) {
+        return globals[idx].getValAsLong();
+    }
+
+    void setGlobal(int idx, long val) {
+        globals[idx].setVal(val);
     }
 
     private void start() {
@@ -150,7 +545,7 @@ public class Machine {
         if (!startFun.isVoidReturn() && startFun.numParams() > 0) {
             return;
         }
-        execute(new Instruction[]{new FunctionInstruction.Call((int) startIdx)}, null, FUNC_LEVEL);
+        execute(new Instruction[]{new FunctionInstruction.Call((int) startIdx)}, null);
     }
 
     private void handleStack(int oldStackPtr, FunctionType type) {
@@ -167,7 +562,7 @@ public class Machine {
             // throw new RuntimeException(STR."HANDLE_STACK_ERROR newSP \{sp} < oldSP \{oldStackPtr}");
         }
         // TODO: Check for sp < oldStackPtr + numReturn ??
-        int keep = (type ==null) ? 0 : type.numReturns();
+        int keep = (type ==null) ? 0 : type.returnSlots();
         int drop = sp - oldStackPtr - keep;
         if (drop <= 0 || keep == 0) {
             return;
@@ -176,473 +571,975 @@ public class Machine {
         stack.dropKeep(drop, keep);
     }
 
-    private int execute(Instruction[] instructions, Variable[] locals, int level) {
+    /*
+        Validated functions have exact block arities, so the stack is repaired exactly instead of by handleStack:
+        leaving a block or function keeps its results right above base, the height below its params, and branching
+        to a loop keeps its params there. Branches to outer blocks and returns are repaired by the block they exit to.
+     */
+    private void exitBlock(int base, int keep) {
+        int drop = stack.stackPointer() - base - keep;
+        if (drop > 0) {
+            stack.dropKeep(drop, keep);
+        }
+    }
+
+    // sp was taken before the condition was popped
+    private void exitIf(int sp, FunctionType type, int level, int label) {
+        if (!validatedFrame) {
+            handleStack(sp, type);
+        } else if (level == BLOCK_LEVEL || level == label) {
+            exitBlock(sp - 1 - paramSlots(type), returnSlots(type));
+        }
+    }
+
+    private static int paramSlots(FunctionType type) {
+        return (type == null) ? 0 : type.paramSlots();
+    }
+
+    private static int returnSlots(FunctionType type) {
+        return (type == null) ? 0 : type.returnSlots();
+    }
+
+    private static final IntBinaryInstruction[] I32_BINARY_OPS = IntBinaryInstruction.values();
+
+    static int i32Binary(IntBinaryInstruction op, int l, int r) {
+        return switch (op) {
+            case I32_ADD -> l+r;
+            case I32_SUB -> l-r;
+            case I32_MUL -> l*r;
+            case I32_DIV_S -> l/r;
+            case I32_REM_S -> l%r;
+            case I32_DIV_U -> Integer.divideUnsigned(l,r);
+            case I32_REM_U -> Integer.remainderUnsigned(l,r);
+            case I32_AND -> l&r;
+            case I32_OR -> l|r;
+            case I32_XOR -> l^r;
+            case I32_EQ -> wrapBoolean(l == r);
+            case I32_NE -> wrapBoolean(l != r);
+            case I32_GE_S -> wrapBoolean(l >= r);
+            case I32_GT_S -> wrapBoolean(l > r);
+            case I32_LE_S -> wrapBoolean(l <= r);
+            case I32_LT_S -> wrapBoolean(l < r);
+            case I32_GE_U -> wrapBoolean(Integer.compareUnsigned(l,r) >= 0);
+            case I32_GT_U -> wrapBoolean(Integer.compareUnsigned(l,r) > 0);
+            case I32_LE_U -> wrapBoolean(Integer.compareUnsigned(l,r) <= 0);
+            case I32_LT_U -> wrapBoolean(Integer.compareUnsigned(l,r) < 0);
+            case I32_SHL -> l << r;
+            case I32_SHR_S -> l >> r;
+            case I32_SHR_U -> l >>> r;
+            case I32_ROTL -> Integer.rotateLeft(l, r);
+            case I32_ROTR -> Integer.rotateRight(l, r);
+        };
+    }
+
+    private int execute(Instruction[] instructions, Variable[] locals) {
+        return instrumented ? executeInstrumented(instructions, locals) : executeLean(instructions, locals);
+    }
+
+    // Selected when no instruction visitors are set, so the loop carries no visitor calls at all
+    private int executeLean(Instruction[] instructions, Variable[] locals) {
+        for (Instruction ins : instructions) {
+            int level = step(ins, locals);
+            if (level != NEXT_INSTRUCTION) {
+                return level;
+            }
+        }
+        return BLOCK_LEVEL;
+    }
+
+    private int executeInstrumented(Instruction[] instructions, Variable[] locals) {
         for (Instruction ins : instructions) {
             machineVisitor.visitPreInstruction(ins);
-            switch (ins) {
-                case ConstInstruction.DoubleConst c -> pushDouble(c.val());
-                case ConstInstruction.FloatConst c -> pushFloat(c.val());
-                case ConstInstruction.IntConst c -> pushInt(c.val());
-                case ConstInstruction.LongConst c -> push(c.val());
-                case DoubleBinaryInstruction b -> {
-                    double r = popDouble();
-                    double l = popDouble();
-                    switch (b) {
-                        case F64_ADD -> pushDouble(l+r);
-                        case F64_SUB -> pushDouble(l-r);
-                        case F64_MUL -> pushDouble(l*r);
-                        case F64_DIV -> pushDouble(l/r);
-                        case F64_MAX -> pushDouble(Double.max(l,r));
-                        case F64_MIN -> pushDouble(Double.min(l,r));
-                        case F64_COPY_SIGN -> pushDouble(Math.copySign(l,r));
-                        case F64_EQ -> pushInt(wrapBoolean(l == r));
-                        case F64_NE -> pushInt(wrapBoolean(l != r));
-                        case F64_GE -> pushInt(wrapBoolean(l >= r));
-                        case F64_GT -> pushInt(wrapBoolean(l > r));
-                        case F64_LE -> pushInt(wrapBoolean(l <= r));
-                        case F64_LT -> pushInt(wrapBoolean(l < r));
-                        default -> throw new IllegalStateException("Unexpected value: " + ins.opCode());
-                    }
-                }
-                case FloatBinaryInstruction b -> {
-                    float r = popFloat();
-                    float l = popFloat();
-                    switch (b) {
-                        case F32_ADD -> pushFloat(l+r);
-                        case F32_SUB -> pushFloat(l-r);
-                        case F32_MUL -> pushFloat(l*r);
-                        case F32_DIV -> pushFloat(l/r);
-                        case F32_MAX -> pushFloat(Float.max(l,r));
-                        case F32_MIN -> pushFloat(Float.min(l,r));
-                        case F32_COPY_SIGN -> pushFloat(Math.copySign(l,r));
-                        case F32_EQ -> pushInt(wrapBoolean(l == r));
-                        case F32_NE -> pushInt(wrapBoolean(l != r));
-                        case F32_GE -> pushInt(wrapBoolean(l >= r));
-                        case F32_GT -> pushInt(wrapBoolean(l > r));
-                        case F32_LE -> pushInt(wrapBoolean(l <= r));
-                        case F32_LT -> pushInt(wrapBoolean(l < r));
-                        default -> throw new IllegalStateException("Unexpected value: " + ins.opCode());
-                    }
-                }
-                case LongBinaryInstruction b -> {
-                    long r = pop();
-                    long l = pop();
-                    switch (b) {
-                        case I64_ADD -> push(l+r);
-                        case I64_SUB -> push(l-r);
-                        case I64_MUL -> push(l*r);
-                        case I64_DIV_S -> push(l/r);
-                        case I64_REM_S -> push(l % r);
-                        case I64_DIV_U -> push(Long.divideUnsigned(l,r));
-                        case I64_REM_U -> push(Long.remainderUnsigned(l,r));
-                        case I64_AND -> push(l&r);
-                        case I64_OR -> push(l|r);
-                        case I64_XOR -> push(l^r);
-                        case I64_EQ -> pushInt(wrapBoolean(l == r));
-                        case I64_NE -> pushInt(wrapBoolean(l != r));
-                        case I64_GE_S -> pushInt(wrapBoolean(l >= r));
-                        case I64_GT_S -> pushInt(wrapBoolean(l > r));
-                        case I64_LE_S -> pushInt(wrapBoolean(l <= r));
-                        case I64_LT_S -> pushInt(wrapBoolean(l < r));
-                        case I64_GE_U -> pushInt(wrapBoolean(Long.compareUnsigned(l,r) >= 0));
-                        case I64_GT_U -> pushInt(wrapBoolean(Long.compareUnsigned(l,r) > 0));
-                        case I64_LE_U -> pushInt(wrapBoolean(Long.compareUnsigned(l,r) <= 0));
-                        case I64_LT_U -> pushInt(wrapBoolean(Long.compareUnsigned(l,r) < 0));
-                        case I64_SHL -> push(l << r);
-                        case I64_SHR_S -> push(l >> r);
-                        case I64_SHR_U -> push(l >>> r);
-                        case I64_ROTL -> push(Long.rotateLeft(l, (int) r));
-                        case I64_ROTR -> push(Long.rotateRight(l, (int) r));
-                        default -> throw new IllegalStateException("Unexpected value: " + ins.opCode());
-                    }
-                }
-                case IntBinaryInstruction b -> {
-                    int r = popInt();
-                    int l = popInt();
-                    // System.out.printf("Ins: %s l : %d r : %d\n", b, l ,r);
-                    switch (b) {
-                        case I32_ADD -> pushInt(l+r);
-                        case I32_SUB -> pushInt(l-r);
-                        case I32_MUL -> pushInt(l*r);
-                        case I32_DIV_S -> pushInt(l/r);
-                        case I32_REM_S -> pushInt(l%r);
-                        case I32_DIV_U -> pushInt(Integer.divideUnsigned(l,r));
-                        case I32_REM_U -> pushInt(Integer.remainderUnsigned(l,r));
-                        case I32_AND -> pushInt(l&r);
-                        case I32_OR -> pushInt(l|r);
-                        case I32_XOR -> pushInt(l^r);
-                        case I32_EQ -> pushInt(wrapBoolean(l == r));
-                        case I32_NE -> pushInt(wrapBoolean(l != r));
-                        case I32_GE_S -> pushInt(wrapBoolean(l >= r));
-                        case I32_GT_S -> pushInt(wrapBoolean(l > r));
-                        case I32_LE_S -> pushInt(wrapBoolean(l <= r));
-                        case I32_LT_S -> pushInt(wrapBoolean(l < r));
-                        case I32_GE_U -> pushInt(wrapBoolean(Integer.compareUnsigned(l,r) >= 0));
-                        case I32_GT_U -> pushInt(wrapBoolean(Integer.compareUnsigned(l,r) > 0));
-                        case I32_LE_U -> pushInt(wrapBoolean(Integer.compareUnsigned(l,r) <= 0));
-                        case I32_LT_U -> pushInt(wrapBoolean(Integer.compareUnsigned(l,r) < 0));
-                        case I32_SHL -> pushInt(l << r);
-                        case I32_SHR_S -> push(l >> r);
-                        case I32_SHR_U -> pushInt(l >>> r);
-                        case I32_ROTL -> pushInt(Integer.rotateLeft(l, r));
-                        case I32_ROTR -> pushInt(Integer.rotateRight(l, r));
-                        default -> throw new IllegalStateException("Unexpected value: " + ins.opCode());
-                    }
-                }
-                case UnaryInstruction u -> {
-                    switch (u) {
-                        case DROP -> pop();
-                        case MEMORY_GROW -> {
-                            int numPages = popInt();
-                            int ret = getMainMemory().grow(numPages);
-                            // System.out.println(STR."GROW_MEM numPages: \{numPages} return: \{ret}");
-                            pushInt(ret);
-                        }
-                        case I32_EQZ -> pushInt(wrapBoolean(popInt() == 0));
-                        case I64_EQZ -> pushInt(wrapBoolean(pop() == 0));
-                        case I32_POPCNT -> pushInt(Integer.bitCount(popInt()));
-                        case I64_POPCNT -> push(Long.bitCount(pop()));
-                        case I32_CLZ -> pushInt(Integer.numberOfLeadingZeros(popInt()));
-                        case I64_CLZ -> push(Long.numberOfLeadingZeros(pop()));
-                        case I32_CTZ -> pushInt(Integer.numberOfTrailingZeros(popInt()));
-                        case I64_CTZ -> push(Long.numberOfTrailingZeros(pop()));
-                        case F32_NEG -> pushFloat(-popFloat());
-                        case F64_NEG -> pushDouble(-popDouble());
-                        case F32_ABS -> pushFloat(Math.abs(popFloat()));
-                        case F64_ABS -> pushDouble(Math.abs(popDouble()));
-                        case F32_CEIL -> pushFloat((float) Math.ceil(popFloat()));
-                        case F64_CEIL -> pushDouble(Math.ceil(popDouble()));
-                        case F32_FLOOR -> pushFloat((float) Math.floor(popFloat()));
-                        case F64_FLOOR -> pushDouble(Math.floor(popDouble()));
-                        case F32_TRUNC -> {
-                            float f = popFloat();
-                            pushFloat((float) ((f < 0.0) ? Math.ceil(f) : Math.floor(f)));
-                        }
-                        case F64_TRUNC -> {
-                            double f = popDouble();
-                            pushDouble((f < 0.0) ? Math.ceil(f) : Math.floor(f));
+            int level = step(ins, locals);
+            machineVisitor.visitPostInstruction(ins);
+            if (level != NEXT_INSTRUCTION) {
+                return level;
+            }
+        }
+        return BLOCK_LEVEL;
+    }
+
+    // Entry point for closure and register code running instructions which have no op of their own. They must not use locals or branch
+    void stepInstruction(Instruction ins) {
+        step(ins, null);
+    }
+
+    /**
+     * Executes a single instruction. Returns NEXT_INSTRUCTION to continue with the following instruction
+     * or the level to branch to.
+     */
+    private int step(Instruction ins, Variable[] locals) {
+        int level;
+        switch (ins) {
+            case ConstInstruction.DoubleConst c -> pushDouble(c.val());
+            case ConstInstruction.FloatConst c -> pushFloat(c.val());
+            case ConstInstruction.IntConst c -> pushInt(c.val());
+            case ConstInstruction.LongConst c -> push(c.val());
+            case DoubleBinaryInstruction b -> {
+                double r = popDouble();
+                double l = popDouble();
+                switch (b) {
+                    case F64_ADD -> pushDouble(l+r);
+                    case F64_SUB -> pushDouble(l-r);
+                    case F64_MUL -> pushDouble(l*r);
+                    case F64_DIV -> pushDouble(l/r);
+                    case F64_MAX -> pushDouble(Double.max(l,r));
+                    case F64_MIN -> pushDouble(Double.min(l,r));
+                    case F64_COPY_SIGN -> pushDouble(Math.copySign(l,r));
+                    case F64_EQ -> pushInt(wrapBoolean(l == r));
+                    case F64_NE -> pushInt(wrapBoolean(l != r));
+                    case F64_GE -> pushInt(wrapBoolean(l >= r));
+                    case F64_GT -> pushInt(wrapBoolean(l > r));
+                    case F64_LE -> pushInt(wrapBoolean(l <= r));
+                    case F64_LT -> pushInt(wrapBoolean(l < r));
+                    default -> throw new IllegalStateException("Unexpected value: " + ins.opCode());
+                }
+            }
+            case FloatBinaryInstruction b -> {
+                float r = popFloat();
+                float l = popFloat();
+                switch (b) {
+                    case F32_ADD -> pushFloat(l+r);
+                    case F32_SUB -> pushFloat(l-r);
+                    case F32_MUL -> pushFloat(l*r);
+                    case F32_DIV -> pushFloat(l/r);
+                    case F32_MAX -> pushFloat(Float.max(l,r));
+                    case F32_MIN -> pushFloat(Float.min(l,r));
+                    case F32_COPY_SIGN -> pushFloat(Math.copySign(l,r));
+                    case F32_EQ -> pushInt(wrapBoolean(l == r));
+                    case F32_NE -> pushInt(wrapBoolean(l != r));
+                    case F32_GE -> pushInt(wrapBoolean(l >= r));
+                    case F32_GT -> pushInt(wrapBoolean(l > r));
+                    case F32_LE -> pushInt(wrapBoolean(l <= r));
+                    case F32_LT -> pushInt(wrapBoolean(l < r));
+                    default -> throw new IllegalStateException("Unexpected value: " + ins.opCode());
+                }
+            }
+            case LongBinaryInstruction b -> {
+                long r = pop();
+                long l = pop();
+                switch (b) {
+                    case I64_ADD -> push(l+r);
+                    case I64_SUB -> push(l-r);
+                    case I64_MUL -> push(l*r);
+                    case I64_DIV_S -> push(l/r);
+                    case I64_REM_S -> push(l % r);
+                    case I64_DIV_U -> push(Long.divideUnsigned(l,r));
+                    case I64_REM_U -> push(Long.remainderUnsigned(l,r));
+                    case I64_AND -> push(l&r);
+                    case I64_OR -> push(l|r);
+                    case I64_XOR -> push(l^r);
+                    case I64_EQ -> pushInt(wrapBoolean(l == r));
+                    case I64_NE -> pushInt(wrapBoolean(l != r));
+                    case I64_GE_S -> pushInt(wrapBoolean(l >= r));
+                    case I64_GT_S -> pushInt(wrapBoolean(l > r));
+                    case I64_LE_S -> pushInt(wrapBoolean(l <= r));
+                    case I64_LT_S -> pushInt(wrapBoolean(l < r));
+                    case I64_GE_U -> pushInt(wrapBoolean(Long.compareUnsigned(l,r) >= 0));
+                    case I64_GT_U -> pushInt(wrapBoolean(Long.compareUnsigned(l,r) > 0));
+                    case I64_LE_U -> pushInt(wrapBoolean(Long.compareUnsigned(l,r) <= 0));
+                    case I64_LT_U -> pushInt(wrapBoolean(Long.compareUnsigned(l,r) < 0));
+                    case I64_SHL -> push(l << r);
+                    case I64_SHR_S -> push(l >> r);
+                    case I64_SHR_U -> push(l >>> r);
+                    case I64_ROTL -> push(Long.rotateLeft(l, (int) r));
+                    case I64_ROTR -> push(Long.rotateRight(l, (int) r));
+                    default -> throw new IllegalStateException("Unexpected value: " + ins.opCode());
+                }
+            }
+            case IntBinaryInstruction b -> {
+                int r = popInt();
+                int l = popInt();
+                pushInt(i32Binary(b, l, r));
+            }
+            case FusedInstruction f -> {
+                switch (f) {
+                    case FusedInstruction.LocalLocalI32(int left, int right, IntBinaryInstruction op) ->
+                            pushInt(i32Binary(op, (int) locals[left].getValAsLong(), (int) locals[right].getValAsLong()));
+                    case FusedInstruction.LocalConstI32(int local, int val, IntBinaryInstruction op) ->
+                            pushInt(i32Binary(op, (int) locals[local].getValAsLong(), val));
+                    case FusedInstruction.LocalConstI32Set(int local, int val, IntBinaryInstruction op, int dst) ->
+                            locals[dst].setVal(i32Binary(op, (int) locals[local].getValAsLong(), val));
+                    case FusedInstruction.ConstI32BrIf(int val, IntBinaryInstruction op, int label) -> {
+                        if (i32Binary(op, popInt(), val) != 0) {
+                            return label;
                         }
-                        case F32_DEMOTE_F64 -> pushFloat((float) popDouble());
-                        case F64_PROMOTE_F32 -> pushDouble(popFloat());
-                        case F32_NEAREST -> pushFloat(MathUtils.nearest(popFloat()));
-                        case F64_NEAREST -> pushDouble(MathUtils.nearest(popDouble()));
-                        case F32_SQRT -> pushFloat((float) Math.sqrt(popFloat()));
-                        case F64_SQRT -> pushDouble(Math.sqrt(popDouble()));
-                        // wrap and extend ops
-                        case I32_WRAP_I64 -> pushInt((int)pop());
-                        case I64_EXTEND_I32_S -> push(intToLong(popInt()));
-                        case I64_EXTEND_I32_U -> push(Integer.toUnsignedLong(popInt()));
-                        // Reinterpret ops
-                        case I32_REINTERPRET_F32 -> pushInt(Float.floatToRawIntBits(popFloat()));
-                        case F32_REINTERPRET_I32 -> pushFloat(Float.intBitsToFloat(popInt()));
-                        case I64_REINTERPRET_F64 -> push(Double.doubleToRawLongBits(popDouble()));
-                        case F64_REINTERPRET_I64 -> pushDouble(Double.longBitsToDouble(pop()));
-                        // convert i32/i64 signed/unsigned to f32/f64
-                        case F32_CONVERT_I32_S -> pushFloat(popInt());
-                        case F32_CONVERT_I32_U -> pushFloat(Integer.toUnsignedLong(popInt()));
-                        case F32_CONVERT_I64_S -> pushFloat(pop());
-                        case F32_CONVERT_I64_U -> pushFloat(Float.parseFloat(Long.toUnsignedString(pop())));
-                        case F64_CONVERT_I32_S -> pushDouble(popInt());
-                        case F64_CONVERT_I32_U -> pushDouble(Integer.toUnsignedLong(popInt()));
-                        case F64_CONVERT_I64_S -> pushDouble(pop());
-                        case F64_CONVERT_I64_U -> pushDouble(Double.parseDouble(Long.toUnsignedString(pop())));
-                        // convert f32/f64 to signed i32/i64
-                        case I32_TRUNC_F32_S, I32_TRUNC_SAT_F32_S -> pushInt((int) popFloat());
-                        case I32_TRUNC_F64_S, I32_TRUNC_SAT_F64_S -> pushInt((int) popDouble());
-                        case I64_TRUNC_F32_S, I64_TRUNC_SAT_F32_S -> push((long) popFloat());
-                        case I64_TRUNC_F64_S, I64_TRUNC_SAT_F64_S -> push((long) popDouble());
-                        // convert f32/f64 to unsigned i32/i64
-                        case I32_TRUNC_F32_U, I32_TRUNC_SAT_F32_U -> pushInt(MathUtils.truncateFloatToUnsignedInt(popFloat()));
-                        case I32_TRUNC_F64_U, I32_TRUNC_SAT_F64_U -> pushInt(MathUtils.truncateDoubleToUnsignedInt(popDouble()));
-                        case I64_TRUNC_F32_U, I64_TRUNC_SAT_F32_U -> push(MathUtils.truncateFloatToUnsignedLong(popFloat()));
-                        case I64_TRUNC_F64_U, I64_TRUNC_SAT_F64_U -> push(MathUtils.truncateDoubleToUnsignedLong(popDouble()));
-                        case I32_EXTEND8_S -> pushInt((byte) popInt());
-                        case I32_EXTEND16_S -> pushInt((short) popInt());
-                        case I64_EXTEND8_S -> push((byte) pop());
-                        case I64_EXTEND16_S -> push((short) pop());
-                        case I64_EXTEND32_S -> push((int) pop());
-                        default -> throw new IllegalStateException("Unexpected value: " + ins.opCode());
-                    }
-                }
-                case NullaryInstruction u -> {
-                    switch (u) {
-                        case UNREACHABLE -> throw new RuntimeException("Unreachable op code detected! Crashing on demand!");
-                        case NOP -> {}
-                        case MEMORY_SIZE -> pushInt(getMainMemory().getMemorySize());
-                    }
-                }
-                case StoreInstruction s -> {
-                    long val = pop();
-                    int addr = popInt();
-                    int effectiveAddr = addr + s.offset();
-                    // System.out.println(STR."addr: \{addr} offset:\{s.offset()} effectiveAddr: \{effectiveAddr} align: \{s.align()}");
-                    switch (s) {
-                        case StoreInstruction.I32Store _ -> getMainMemory().store(effectiveAddr, (int) val);
-                        case StoreInstruction.I32Store8 _ -> getMainMemory().store(effectiveAddr,(byte)val);
-                        case StoreInstruction.I32Store16 _ -> getMainMemory().store(effectiveAddr,(short)val);
-                        case StoreInstruction.I64Store _ -> getMainMemory().store(effectiveAddr,val);
-                        case StoreInstruction.I64Store8 _ -> getMainMemory().store(effectiveAddr,(byte)val);
-                        case StoreInstruction.I64Store16 _ -> getMainMemory().store(effectiveAddr,(short)val);
-                        case StoreInstruction.I64Store32 _, StoreInstruction.F32Store _ -> getMainMemory().store(effectiveAddr,(int) val);
-                        case StoreInstruction.F64Store _ -> getMainMemory().store(effectiveAddr,val);
-                    }
-                }
-                case LoadInstruction l -> {
-                    int addr = popInt();
-                    int effectiveAddr = addr + l.offset();
-                    switch (l) {
-                        case LoadInstruction.I32Load _ -> pushInt(getMainMemory().loadInt(effectiveAddr));
-                        case LoadInstruction.I32Load8S _ -> pushInt(getMainMemory().loadByte(effectiveAddr));
-                        case LoadInstruction.I32Load8U _ -> pushInt(Byte.toUnsignedInt(getMainMemory().loadByte(effectiveAddr)));
-                        case LoadInstruction.I32Load16S _ -> pushInt(getMainMemory().loadShort(effectiveAddr));
-                        case LoadInstruction.I32Load16U _ -> pushInt(Short.toUnsignedInt(getMainMemory().loadShort(effectiveAddr)));
-                        case LoadInstruction.I64Load _ -> push(getMainMemory().loadLong(effectiveAddr));
-                        case LoadInstruction.I64Load8S _ -> push(getMainMemory().loadByte(effectiveAddr));
-                        case LoadInstruction.I64Load8U _ -> push(Byte.toUnsignedLong(getMainMemory().loadByte(effectiveAddr)));
-                        case LoadInstruction.I64Load16S _ -> push(getMainMemory().loadShort(effectiveAddr));
-                        case LoadInstruction.I64Load16U _ -> push(Short.toUnsignedLong(getMainMemory().loadShort(effectiveAddr)));
-                        case LoadInstruction.I64Load32S _ -> push(getMainMemory().loadInt(effectiveAddr));
-                        case LoadInstruction.I64Load32U _ -> push(Integer.toUnsignedLong(getMainMemory().loadInt(effectiveAddr)));
-                        case LoadInstruction.F32Load _ -> pushInt(getMainMemory().loadInt(effectiveAddr));
-                        case LoadInstruction.F64Load _ -> push(getMainMemory().loadLong(effectiveAddr));
-                        default -> throw new IllegalStateException("Unexpected value: " + ins.opCode());
-                    }
-                }
-                case FunctionInstruction f -> {
-                    switch (f) {
-                        case FunctionInstruction.Call l -> call(functions[l.val()]);
-                        case FunctionInstruction.CallIndirect l -> {
-                            int tblOffset = popInt();
-                            int tblIdx = l.tableIdx();
-                            int typeIdx = l.typeIdx(); // TODO: Expose Types for another level of validation
-                            if (tblOffset < 0 || tblIdx < 0 || tblIdx >= tables.length || tblOffset >= tables[tblIdx].size()) {
-                                throw new RuntimeException("Array bounds mismatch in indirect call");
-                            }
-                            Function fun = tables[tblIdx].get(tblOffset);
-                            if (fun == null) {
-                                throw new RuntimeException("Function Type mismatch in indirect call");
+                    }
+                }
+            }
+            case UnaryInstruction u -> {
+                switch (u) {
+                    case DROP -> pop();
+                    case MEMORY_GROW -> {
+                        int numPages = popInt();
+                        int ret = getMainMemory().grow(numPages);
+                        // System.out.println(STR."GROW_MEM numPages: \{numPages} return: \{ret}");
+                        pushInt(ret);
+                    }
+                    case I32_EQZ -> pushInt(wrapBoolean(popInt() == 0));
+                    case I64_EQZ -> pushInt(wrapBoolean(pop() == 0));
+                    case I32_POPCNT -> pushInt(Integer.bitCount(popInt()));
+                    case I64_POPCNT -> push(Long.bitCount(pop()));
+                    case I32_CLZ -> pushInt(Integer.numberOfLeadingZeros(popInt()));
+                    case I64_CLZ -> push(Long.numberOfLeadingZeros(pop()));
+                    case I32_CTZ -> pushInt(Integer.numberOfTrailingZeros(popInt()));
+                    case I64_CTZ -> push(Long.numberOfTrailingZeros(pop()));
+                    case F32_NEG -> pushFloat(-popFloat());
+                    case F64_NEG -> pushDouble(-popDouble());
+                    case F32_ABS -> pushFloat(Math.abs(popFloat()));
+                    case F64_ABS -> pushDouble(Math.abs(popDouble()));
+                    case F32_CEIL -> pushFloat((float) Math.ceil(popFloat()));
+                    case F64_CEIL -> pushDouble(Math.ceil(popDouble()));
+                    case F32_FLOOR -> pushFloat((float) Math.floor(popFloat()));
+                    case F64_FLOOR -> pushDouble(Math.floor(popDouble()));
+                    case F32_TRUNC -> {
+                        float f = popFloat();
+                        pushFloat((float) ((f < 0.0) ? Math.ceil(f) : Math.floor(f)));
+                    }
+                    case F64_TRUNC -> {
+                        double f = popDouble();
+                        pushDouble((f < 0.0) ? Math.ceil(f) : Math.floor(f));
+                    }
+                    case F32_DEMOTE_F64 -> pushFloat((float) popDouble());
+                    case F64_PROMOTE_F32 -> pushDouble(popFloat());
+                    case F32_NEAREST -> pushFloat(MathUtils.nearest(popFloat()));
+                    case F64_NEAREST -> pushDouble(MathUtils.nearest(popDouble()));
+                    case F32_SQRT -> pushFloat((float) Math.sqrt(popFloat()));
+                    case F64_SQRT -> pushDouble(Math.sqrt(popDouble()));
+                    // wrap and extend ops
+                    case I32_WRAP_I64 -> pushInt((int)pop());
+                    case I64_EXTEND_I32_S -> push(intToLong(popInt()));
+                    case I64_EXTEND_I32_U -> push(Integer.toUnsignedLong(popInt()));
+                    // Reinterpret ops
+                    case I32_REINTERPRET_F32 -> pushInt(Float.floatToRawIntBits(popFloat()));
+                    case F32_REINTERPRET_I32 -> pushFloat(Float.intBitsToFloat(popInt()));
+                    case I64_REINTERPRET_F64 -> push(Double.doubleToRawLongBits(popDouble()));
+                    case F64_REINTERPRET_I64 -> pushDouble(Double.longBitsToDouble(pop()));
+                    // convert i32/i64 signed/unsigned to f32/f64
+                    case F32_CONVERT_I32_S -> pushFloat(popInt());
+                    case F32_CONVERT_I32_U -> pushFloat(Integer.toUnsignedLong(popInt()));
+                    case F32_CONVERT_I64_S -> pushFloat(pop());
+                    case F32_CONVERT_I64_U -> pushFloat(Float.parseFloat(Long.toUnsignedString(pop())));
+                    case F64_CONVERT_I32_S -> pushDouble(popInt());
+                    case F64_CONVERT_I32_U -> pushDouble(Integer.toUnsignedLong(popInt()));
+                    case F64_CONVERT_I64_S -> pushDouble(pop());
+                    case F64_CONVERT_I64_U -> pushDouble(Double.parseDouble(Long.toUnsignedString(pop())));
+                    // convert f32/f64 to signed i32/i64
+                    case I32_TRUNC_F32_S, I32_TRUNC_SAT_F32_S -> pushInt((int) popFloat());
+                    case I32_TRUNC_F64_S, I32_TRUNC_SAT_F64_S -> pushInt((int) popDouble());
+                    case I64_TRUNC_F32_S, I64_TRUNC_SAT_F32_S -> push((long) popFloat());
+                    case I64_TRUNC_F64_S, I64_TRUNC_SAT_F64_S -> push((long) popDouble());
+                    // convert f32/f64 to unsigned i32/i64
+                    case I32_TRUNC_F32_U, I32_TRUNC_SAT_F32_U -> pushInt(MathUtils.truncateFloatToUnsignedInt(popFloat()));
+                    case I32_TRUNC_F64_U, I32_TRUNC_SAT_F64_U -> pushInt(MathUtils.truncateDoubleToUnsignedInt(popDouble()));
+                    case I64_TRUNC_F32_U, I64_TRUNC_SAT_F32_U -> push(MathUtils.truncateFloatToUnsignedLong(popFloat()));
+                    case I64_TRUNC_F64_U, I64_TRUNC_SAT_F64_U -> push(MathUtils.truncateDoubleToUnsignedLong(popDouble()));
+                    case I32_EXTEND8_S -> pushInt((byte) popInt());
+                    case I32_EXTEND16_S -> pushInt((short) popInt());
+                    case I64_EXTEND8_S -> push((byte) pop());
+                    case I64_EXTEND16_S -> push((short) pop());
+                    case I64_EXTEND32_S -> push((int) pop());
+                    default -> throw new IllegalStateException("Unexpected value: " + ins.opCode());
+                }
+            }
+            case NullaryInstruction u -> {
+                switch (u) {
+                    case UNREACHABLE -> throw new RuntimeException("Unreachable op code detected! Crashing on demand!");
+                    case NOP -> {}
+                    case MEMORY_SIZE -> pushInt(getMainMemory().getMemorySize());
+                }
+            }
+            case StoreInstruction s -> {
+                long val = pop();
+                int addr = popInt();
+                int effectiveAddr = addr + s.offset();
+                // System.out.println(STR."addr: \{addr} offset:\{s.offset()} effectiveAddr: \{effectiveAddr} align: \{s.align()}");
+                switch (s) {
+                    case StoreInstruction.I32Store _ -> getMainMemory().store(effectiveAddr, (int) val);
+                    case StoreInstruction.I32Store8 _ -> getMainMemory().store(effectiveAddr,(byte)val);
+                    case StoreInstruction.I32Store16 _ -> getMainMemory().store(effectiveAddr,(short)val);
+                    case StoreInstruction.I64Store _ -> getMainMemory().store(effectiveAddr,val);
+                    case StoreInstruction.I64Store8 _ -> getMainMemory().store(effectiveAddr,(byte)val);
+                    case StoreInstruction.I64Store16 _ -> getMainMemory().store(effectiveAddr,(short)val);
+                    case StoreInstruction.I64Store32 _, StoreInstruction.F32Store _ -> getMainMemory().store(effectiveAddr,(int) val);
+                    case StoreInstruction.F64Store _ -> getMainMemory().store(effectiveAddr,val);
+                }
+            }
+            case LoadInstruction l -> {
+                int addr = popInt();
+                int effectiveAddr = addr + l.offset();
+                switch (l) {
+                    case LoadInstruction.I32Load _ -> pushInt(getMainMemory().loadInt(effectiveAddr));
+                    case LoadInstruction.I32Load8S _ -> pushInt(getMainMemory().loadByte(effectiveAddr));
+                    case LoadInstruction.I32Load8U _ -> pushInt(Byte.toUnsignedInt(getMainMemory().loadByte(effectiveAddr)));
+                    case LoadInstruction.I32Load16S _ -> pushInt(getMainMemory().loadShort(effectiveAddr));
+                    case LoadInstruction.I32Load16U _ -> pushInt(Short.toUnsignedInt(getMainMemory().loadShort(effectiveAddr)));
+                    case LoadInstruction.I64Load _ -> push(getMainMemory().loadLong(effectiveAddr));
+                    case LoadInstruction.I64Load8S _ -> push(getMainMemory().loadByte(effectiveAddr));
+                    case LoadInstruction.I64Load8U _ -> push(Byte.toUnsignedLong(getMainMemory().loadByte(effectiveAddr)));
+                    case LoadInstruction.I64Load16S _ -> push(getMainMemory().loadShort(effectiveAddr));
+                    case LoadInstruction.I64Load16U _ -> push(Short.toUnsignedLong(getMainMemory().loadShort(effectiveAddr)));
+                    case LoadInstruction.I64Load32S _ -> push(getMainMemory().loadInt(effectiveAddr));
+                    case LoadInstruction.I64Load32U _ -> push(Integer.toUnsignedLong(getMainMemory().loadInt(effectiveAddr)));
+                    case LoadInstruction.F32Load _ -> pushInt(getMainMemory().loadInt(effectiveAddr));
+                    case LoadInstruction.F64Load _ -> push(getMainMemory().loadLong(effectiveAddr));
+                    default -> throw new IllegalStateException("Unexpected value: " + ins.opCode());
+                }
+            }
+            case FunctionInstruction f -> {
+                switch (f) {
+                    case FunctionInstruction.Call l -> call(functions[l.val()]);
+                    case FunctionInstruction.CallIndirect l -> callIndirect(l.tableIdx(), popInt(), l.typeId());
+                    case FunctionInstruction.CallJava c -> {
+                        // The adapter reads its arguments from the stack
+                        int fp = stack.stackPointer();
+                        for (int  i = 0; i < c.type().numParams(); i++) {
+                            if (locals[i] instanceof Variable.V128Variable v) {
+                                push(v.low());
+                                push(v.high());
+                            } else {
+                                push(locals[i].getValAsLong());
                             }
-                            call(fun);
                         }
-                        case FunctionInstruction.CallJava(FunctionType type, MethodHandle function) -> {
-                            try {
-                                Object[] args = new Object[type.numParams()];
-                                for (int  i = 0; i < type.numParams(); i++) {
-                                    Variable v = locals[i];
-                                    args[i] = switch (v) {
-                                        case Variable.F32Variable x -> x.getVal();
-                                        case Variable.F64Variable x -> x.getVal();
-                                        case Variable.I32Variable x -> x.getVal();
-                                        case Variable.I64Variable x -> x.getVal();
-                                        case Variable.FuncrefVariable x -> x.getVal();
-                                    };
-                                    // System.out.println("Class for " + i + " is " + args[i].getClass());
-                                }
-                                Object ret = function.invokeWithArguments(args);
-                                if (type.isVoidReturn()) {
-                                    continue;
-                                }
-                                if (type.returnTypes().length == 1) {
-                                    // push ret to Stack
-                                    ValueType retType = type.returnTypes()[0];
-                                    switch (retType) {
-                                        case ValueType.NumType.I32 -> pushInt((int) ret);
-                                        case ValueType.NumType.I64 -> push((long) ret);
-                                        case ValueType.NumType.F32 -> pushFloat((float) ret);
-                                        case ValueType.NumType.F64 -> pushDouble((double) ret);
-                                        default -> throw new IllegalStateException(String.format("Invalid value type: %s", retType));
-                                    }
-                                    continue;
-                                }
-                                if (!ret.getClass().isArray()) {
-                                    throw new RuntimeException("Invalid class returned for import function: %s".formatted(ret.getClass()));
-                                }
-                                // Push in reverse order
-                                for (int i = type.returnTypes().length -1; i >= 0; i--) {
-                                    switch (type.returnTypes()[i]) {
-                                        case ValueType.NumType.I32 -> pushInt((int) Array.get(ret, i));
-                                        case ValueType.NumType.I64 -> push((long) Array.get(ret, i));
-                                        case ValueType.NumType.F32 -> pushFloat((float) Array.get(ret, i));
-                                        case ValueType.NumType.F64 -> pushDouble((double) Array.get(ret, i));
-                                        default -> throw new IllegalStateException(String.format("Invalid value type: %s", type.returnTypes()[i]));
-                                    }
-                                }
-                            } catch (Throwable e) {
-                                System.err.println(e.getMessage());
-                                throw new RuntimeException("InvokeError " + e.getMessage());
-                            }
+                        callJava(c, fp);
+                        stack.dropKeep(c.type().paramSlots(), c.type().returnSlots());
+                    }
+                    case FunctionInstruction.Return() -> {
+                        return RETURN_LEVEL;
+                    }
+                    case FunctionInstruction.LocalGet l -> {
+                        Variable var = locals[l.val()];
+                        push(var.getValAsLong());
+                        if (var instanceof Variable.V128Variable v) {
+                            push(v.high());
                         }
-                        case FunctionInstruction.Return() -> {
-                            machineVisitor.visitPostInstruction(ins);
-                            return RETURN_LEVEL;
+                    }
+                    case FunctionInstruction.LocalSet l -> {
+                        Variable var = locals[l.val()];
+                        if (var instanceof Variable.V128Variable v) {
+                            long high = pop();
+                            v.setVal(pop(), high);
+                        } else {
+                            var.setVal(pop());
                         }
-                        case FunctionInstruction.LocalGet l -> push(locals[l.val()].getValAsLong());
-                        case FunctionInstruction.LocalSet l -> locals[l.val()].setVal(pop());
-                        case FunctionInstruction.LocalTee l -> {
+                    }
+                    case FunctionInstruction.LocalTee l -> {
+                        Variable var = locals[l.val()];
+                        if (var instanceof Variable.V128Variable v) {
+                            v.setVal(stack.get(stack.stackPointer() - 2), stack.get(stack.stackPointer() - 1));
+                        } else {
                             long val = pop();
-                            Variable var = locals[l.val()];
                             var.setVal(val);
                             push(val);
-                            // pushVariable(var);
                         }
+                        // pushVariable(var);
                     }
                 }
-                case GlobalInstruction i -> {
-                    switch (i) {
-                        case GlobalInstruction.GlobalGet g -> push(globals[g.val()].getValAsLong());
-                        case GlobalInstruction.GlobalSet g -> globals[g.val()].setVal(pop());
-                    }
+            }
+            case GlobalInstruction i -> {
+                switch (i) {
+                    case GlobalInstruction.GlobalGet g -> push(globals[g.val()].getValAsLong());
+                    case GlobalInstruction.GlobalSet g -> globals[g.val()].setVal(pop());
                 }
-                case Select s -> {
-                    // TODO: Type check for typed select by using vector of value types
-                    int cmp = popInt();
-                    long t2 = pop();
-                    long t1 = pop();
-                    long val = (cmp == 0) ? t2 : t1;
-                    // System.out.printf("T1 %d T2: %d cmp: %d val: %d\n", t1, t2, cmp, val);
-                    push(val);
-                }
-                case ControlFlowInstruction i -> {
-                    int sp = stack.stackPointer();
-                    switch (i) {
-                        case ControlFlowInstruction.Block b -> {
-                            level = execute(b.code(), locals, b.label());
-                            if (level > b.label()) {
-                                throw new RuntimeException("CONTROL_FLOW_ERROR");
-                            }
-                            handleStack(sp, b.type());
-                            // If loop body ends normally or level is same as label of block
-                            if (level == BLOCK_LEVEL || level == b.label()) {
-                                continue;
-                            }
-                            machineVisitor.visitPostInstruction(ins);
-                            return level;
+            }
+            case Select s -> {
+                // TODO: Type check for typed select by using vector of value types
+                if (s instanceof Select.SelectTyped t && t.types().length == 1 && t.types()[0] == ValueType.VecType.VEC_TYPE) {
+                    selectV128();
+                    return NEXT_INSTRUCTION;
+                }
+                int cmp = popInt();
+                long t2 = pop();
+                long t1 = pop();
+                long val = (cmp == 0) ? t2 : t1;
+                // System.out.printf("T1 %d T2: %d cmp: %d val: %d\n", t1, t2, cmp, val);
+                push(val);
+            }
+            case ControlFlowInstruction i -> {
+                int sp = stack.stackPointer();
+                switch (i) {
+                    case ControlFlowInstruction.Block b -> {
+                        level = execute(b.code(), locals);
+                        if (level > b.label()) {
+                            throw new RuntimeException("CONTROL_FLOW_ERROR");
                         }
-                        case ControlFlowInstruction.Loop b -> {
-                            do {
-                                level = execute(b.code(), locals, b.label());
-                            } while (level == b.label());
+                        if (!validatedFrame) {
                             handleStack(sp, b.type());
-                            // If loop body ends normally
-                            if (level == BLOCK_LEVEL) {
-                                continue;
-                            }
-                            machineVisitor.visitPostInstruction(ins);
-                            return level;
+                        } else if (level == BLOCK_LEVEL || level == b.label()) {
+                            exitBlock(sp - paramSlots(b.type()), returnSlots(b.type()));
                         }
-                        case ControlFlowInstruction.Branch b -> {
-                            // it has to jump to level pointed by the label
-                            machineVisitor.visitPostInstruction(ins);
-                            return b.label();
+                        // If loop body ends normally or level is same as label of block
+                        if (level == BLOCK_LEVEL || level == b.label()) {
+                            return NEXT_INSTRUCTION;
                         }
-                        case ControlFlowInstruction.BranchIf b -> {
-                            int cmp = popInt();
-                            if (cmp != 0) {
-                                machineVisitor.visitPostInstruction(ins);
-                                return b.label();
-                            }
-                        }
-                        case ControlFlowInstruction.BranchTable b -> {
-                            int jmpIdx = popInt();
-                            machineVisitor.visitPostInstruction(ins);
-                            return (jmpIdx >= 0 && jmpIdx < b.labels().length) ? b.labels()[jmpIdx] : b.defaultLabel();
-                        }
-                        case ControlFlowInstruction.If b -> {
-                            int cmp = popInt();
-                            if (cmp == 0) {
-                                continue;
+                        return level;
+                    }
+                    case ControlFlowInstruction.Loop b -> {
+                        int base = sp - paramSlots(b.type());
+                        do {
+                            consumeFuel(fuelCost(b.code()));
+                            level = execute(b.code(), locals);
+                            if (validatedFrame && level == b.label()) {
+                                exitBlock(base, paramSlots(b.type()));
                             }
-                            level = execute(b.ifBlock(), locals, b.label());
+                        } while (level == b.label());
+                        if (!validatedFrame) {
                             handleStack(sp, b.type());
-                            // If loop body ends normally
-                            if (level == BLOCK_LEVEL || level == b.label()) {
-                                continue;
-                            }
-                            machineVisitor.visitPostInstruction(ins);
-                            return level;
+                        } else if (level == BLOCK_LEVEL) {
+                            exitBlock(base, returnSlots(b.type()));
                         }
-                        case ControlFlowInstruction.IfElse b -> {
-                            int cmp = popInt();
-                            if (cmp != 0) {
-                                level = execute(b.ifBlock(), locals, b.label());
-                            } else {
-                                level = execute(b.elseBlock(), locals, b.label());
-                            }
-                            handleStack(sp, b.type());
-                            // If loop body ends normally
-                            if (level == BLOCK_LEVEL || level == b.label()) {
-                                continue;
-                            }
-                            machineVisitor.visitPostInstruction(ins);
-                            return level;
+                        // If loop body ends normally
+                        if (level == BLOCK_LEVEL) {
+                            return NEXT_INSTRUCTION;
                         }
-                        case ControlFlowInstruction.Else _else -> {} // Do nothing
-                        case ControlFlowInstruction.End _end -> {} // Do nothing
-                    }
-                }
-                case SegmentInstruction i -> {
-                    switch (i) {
-                        case SegmentInstruction.DataDrop(int segIdx) -> this.dataSegments[segIdx] = new DataSegment.PassiveDataSegment(new byte[0]);
-                        case SegmentInstruction.MemoryCopy(int srcMemIdx, int dstMemIdx) -> {
-                            Memory srcMem = memories[srcMemIdx], dstMem = memories[dstMemIdx];
-                            int numBytesToCopy = popInt();
-                            int srcAddr = popInt();
-                            int dstAddr = popInt();
-                            // TODO : Implement Copy without intermediate byte[]
-                            byte[] data = srcMem.load(srcAddr, numBytesToCopy);
-                            dstMem.store(dstAddr, data);
+                        return level;
+                    }
+                    case ControlFlowInstruction.Branch b -> {
+                        // it has to jump to level pointed by the label
+                        return b.label();
+                    }
+                    case ControlFlowInstruction.BranchIf b -> {
+                        int cmp = popInt();
+                        if (cmp != 0) {
+                            return b.label();
                         }
-                        case SegmentInstruction.MemoryFill(int memIdx) -> {
-                            int numBytesToSet = popInt();
-                            byte val = (byte) popInt();
-                            int dstAddr = popInt();
-                            memories[memIdx].fill(dstAddr, val, numBytesToSet);
+                    }
+                    case ControlFlowInstruction.BranchTable b -> {
+                        int jmpIdx = popInt();
+                        return (jmpIdx >= 0 && jmpIdx < b.labels().length) ? b.labels()[jmpIdx] : b.defaultLabel();
+                    }
+                    case ControlFlowInstruction.If b -> {
+                        int cmp = popInt();
+                        if (cmp == 0) {
+                            return NEXT_INSTRUCTION;
                         }
-                        case SegmentInstruction.MemoryInit(int segIdx, int memIdx) -> {
-                            Memory m = memories[memIdx];
-                            DataSegment seg = dataSegments[segIdx];
-                            if (seg instanceof DataSegment.ActiveDataSegment) {
-                                throw new IllegalStateException("Can not load data from active segment at index: " + segIdx);
-                            }
-                            int numBytesToCopy = popInt();
-                            int srcOffset = popInt();
-                            int dstAddr = popInt();
-                            m.store(dstAddr, seg.data(), srcOffset, numBytesToCopy);
+                        level = execute(b.ifBlock(), locals);
+                        exitIf(sp, b.type(), level, b.label());
+                        // If loop body ends normally
+                        if (level == BLOCK_LEVEL || level == b.label()) {
+                            return NEXT_INSTRUCTION;
                         }
+                        return level;
                     }
-                }
-                case RefTypeInstruction i -> {
-                    switch (i) {
-                        case RefTypeInstruction.ElemDrop(int elemIdx) -> {
-                            // TODO : Should we create a zero-byte elem segment here and preserve reftype info ?
-                            this.elementSegments[elemIdx] = null;
+                    case ControlFlowInstruction.IfElse b -> {
+                        int cmp = popInt();
+                        if (cmp != 0) {
+                            level = execute(b.ifBlock(), locals);
+                        } else {
+                            level = execute(b.elseBlock(), locals);
                         }
-                        case RefTypeInstruction.RefFunc r -> {
-                            // TODO
-                            System.out.println(STR."REF_FUNC \{r.functionIndex()}");
-                            pushInt(r.functionIndex());
+                        exitIf(sp, b.type(), level, b.label());
+                        // If loop body ends normally
+                        if (level == BLOCK_LEVEL || level == b.label()) {
+                            return NEXT_INSTRUCTION;
                         }
-                        case RefTypeInstruction.RefIsNull _ -> pushInt(wrapBoolean(popInt() == Variable.REF_NULL));
-                        case RefTypeInstruction.RefNull _ -> pushInt(Variable.REF_NULL);
-                        case RefTypeInstruction.TableCopy r -> throw new IllegalStateException("Unexpected value: " + ins.opCode());
-                        case RefTypeInstruction.TableFill r -> throw new IllegalStateException("Unexpected value: " + ins.opCode());
-                        case RefTypeInstruction.TableGet r -> throw new IllegalStateException("Unexpected value: " + ins.opCode());
-                        case RefTypeInstruction.TableGrow r -> {
-                            int delta = popInt();
-                            int funcIdx = popInt();
-                            int ret = tables[r.tableIndex()].grow(delta, funcIdx);
-                            pushInt(ret);
-                        }
-                        case RefTypeInstruction.TableInit r -> throw new IllegalStateException("Unexpected value: " + ins.opCode());
-                        case RefTypeInstruction.TableSet r -> throw new IllegalStateException("Unexpected value: " + ins.opCode());
-                        case RefTypeInstruction.TableSize r -> pushInt(tables[r.tableIndex()].size());
+                        return level;
                     }
+                    case ControlFlowInstruction.Else _else -> {} // Do nothing
+                    case ControlFlowInstruction.End _end -> {} // Do nothing
                 }
-                default -> throw new IllegalStateException("Unexpected value: " + ins.opCode());
             }
-            machineVisitor.visitPostInstruction(ins);
+            case SegmentInstruction i -> {
+                switch (i) {
+                    case SegmentInstruction.DataDrop(int segIdx) -> dataDrop(segIdx);
+                    case SegmentInstruction.MemoryCopy(int srcMemIdx, int dstMemIdx) -> memoryCopy(srcMemIdx, dstMemIdx);
+                    case SegmentInstruction.MemoryFill(int memIdx) -> memoryFill(memIdx);
+                    case SegmentInstruction.MemoryInit(int segIdx, int memIdx) -> memoryInit(segIdx, memIdx);
+                }
+            }
+            case AtomicInstruction a -> atomic(a);
+            case VectorInstruction v -> {
+                if (vectorOps == null) {
+                    vectorOps = new VectorOps();
+                }
+                vectorOps.execute(v, stack, this);
+            }
+            case RefTypeInstruction i -> {
+                switch (i) {
+                    case RefTypeInstruction.ElemDrop(int elemIdx) -> {
+                        // TODO : Should we create a zero-byte elem segment here and preserve reftype info ?
+                        this.elementSegments[elemIdx] = null;
+                    }
+                    case RefTypeInstruction.RefFunc r -> {
+                        // TODO
+                        System.out.println(STR."REF_FUNC \{r.functionIndex()}");
+                        pushInt(r.functionIndex());
+                    }
+                    case RefTypeInstruction.RefIsNull _ -> pushInt(wrapBoolean(popInt() == Variable.REF_NULL));
+                    case RefTypeInstruction.RefNull _ -> pushInt(Variable.REF_NULL);
+                    case RefTypeInstruction.TableCopy r -> throw new IllegalStateException("Unexpected value: " + ins.opCode());
+                    case RefTypeInstruction.TableFill r -> throw new IllegalStateException("Unexpected value: " + ins.opCode());
+                    case RefTypeInstruction.TableGet r -> throw new IllegalStateException("Unexpected value: " + ins.opCode());
+                    case RefTypeInstruction.TableGrow r -> {
+                        int delta = popInt();
+                        int funcIdx = popInt();
+                        int ret = tables[r.tableIndex()].grow(delta, funcIdx);
+                        pushInt(ret);
+                    }
+                    case RefTypeInstruction.TableInit r -> throw new IllegalStateException("Unexpected value: " + ins.opCode());
+                    case RefTypeInstruction.TableSet r -> throw new IllegalStateException("Unexpected value: " + ins.opCode());
+                    case RefTypeInstruction.TableSize r -> pushInt(tables[r.tableIndex()].size());
+                }
+            }
+            default -> throw new IllegalStateException("Unexpected value: " + ins.opCode());
+        }
+        return NEXT_INSTRUCTION;
+    }
+
+    private void selectV128() {
+        int cmp = popInt();
+        long high2 = pop(), low2 = pop();
+        long high1 = pop(), low1 = pop();
+        push(cmp == 0 ? low2 : low1);
+        push(cmp == 0 ? high2 : high1);
+    }
+
+    private void atomic(AtomicInstruction ins) {
+        Memory memory = getMainMemory();
+        switch (ins) {
+            case AtomicInstruction.AtomicFence _ -> VarHandle.fullFence();
+            case AtomicInstruction.AtomicNotify n -> {
+                int count = popInt();
+                pushInt(memory.atomicNotify(popInt() + n.offset(), count));
+            }
+            case AtomicInstruction.AtomicWait w -> {
+                long timeout = pop();
+                long expected = pop();
+                pushInt(memory.atomicWait(popInt() + w.offset(), w.width(), expected, timeout));
+            }
+            case AtomicInstruction.AtomicLoad l -> pushAtomic(l.type(), memory.atomicLoad(popInt() + l.offset(), l.width()));
+            case AtomicInstruction.AtomicStore s -> {
+                long val = pop();
+                memory.atomicStore(popInt() + s.offset(), s.width(), val);
+            }
+            case AtomicInstruction.AtomicRmw r -> {
+                long val = pop();
+                pushAtomic(r.type(), memory.atomicRmw(r.op(), popInt() + r.offset(), r.width(), val));
+            }
+            case AtomicInstruction.AtomicCmpxchg c -> {
+                long replacement = pop();
+                long expected = pop();
+                pushAtomic(c.type(), memory.atomicCompareExchange(popInt() + c.offset(), c.width(), expected, replacement));
+            }
+        }
+    }
+
+    // Atomic results are zero-extended to the access width, i32 results are kept sign-extended on the stack
+    private void pushAtomic(ValueType.NumType type, long val) {
+        if (type == ValueType.NumType.I32) {
+            pushInt((int) val);
+        } else {
+            push(val);
+        }
+    }
+
+    private void callJava(FunctionInstruction.CallJava c, int fp) {
+        try {
+            if (c.adapter() == null) {
+                callJavaBoxed(c, fp);
+                return;
+            }
+            c.adapter().invokeExact(stack, fp);
+        } catch (Throwable e) {
+            System.err.println(e.getMessage());
+            throw new RuntimeException("InvokeError " + e.getMessage());
+        }
+    }
+
+    /*
+        Imports with reference or vector types have no adapter. Their arguments are boxed: references are passed as long
+        and v128 as long[]{low, high}. Multiple results are returned as an array and pushed in reverse order like adapters do
+     */
+    private void callJavaBoxed(FunctionInstruction.CallJava c, int fp) throws Throwable {
+        FunctionType type = c.type();
+        Object[] args = new Object[type.numParams()];
+        for (int i = 0, slot = fp; i < args.length; slot += FunctionType.slots(type.paramTypes()[i]), i++) {
+            args[i] = switch (type.paramTypes()[i]) {
+                case ValueType.NumType.I32 -> longToInt(stack.get(slot));
+                case ValueType.NumType.F32 -> longToFloat(stack.get(slot));
+                case ValueType.NumType.F64 -> longToDouble(stack.get(slot));
+                case ValueType.VecType.VEC_TYPE -> new long[]{stack.get(slot), stack.get(slot + 1)};
+                default -> stack.get(slot);
+            };
+        }
+        Object ret = c.function().invokeWithArguments(args);
+        if (type.numReturns() == 1) {
+            pushBoxed(type.returnTypes()[0], ret);
+            return;
+        }
+        for (int i = type.numReturns() - 1; i >= 0; i--) {
+            pushBoxed(type.returnTypes()[i], Array.get(ret, i));
+        }
+    }
+
+    private void pushBoxed(ValueType type, Object val) {
+        switch (type) {
+            case ValueType.NumType.I32 -> pushInt((int) val);
+            case ValueType.NumType.F32 -> pushFloat((float) val);
+            case ValueType.NumType.F64 -> pushDouble((double) val);
+            case ValueType.VecType.VEC_TYPE -> {
+                long[] v = (long[]) val;
+                push(v[0]);
+                push(v[1]);
+            }
+            default -> push(((Number) val).longValue());
+        }
+    }
+
+    private void dataDrop(int segIdx) {
+        this.dataSegments[segIdx] = new DataSegment.PassiveDataSegment(new byte[0]);
+    }
+
+    private void memoryCopy(int srcMemIdx, int dstMemIdx) {
+        Memory srcMem = memories[srcMemIdx], dstMem = memories[dstMemIdx];
+        int numBytesToCopy = popInt();
+        int srcAddr = popInt();
+        int dstAddr = popInt();
+        srcMem.copyTo(srcAddr, dstMem, dstAddr, numBytesToCopy);
+    }
+
+    private void memoryFill(int memIdx) {
+        int numBytesToSet = popInt();
+        byte val = (byte) popInt();
+        int dstAddr = popInt();
+        memories[memIdx].fill(dstAddr, val, numBytesToSet);
+    }
+
+    private void memoryInit(int segIdx, int memIdx) {
+        Memory m = memories[memIdx];
+        DataSegment seg = dataSegments[segIdx];
+        if (seg instanceof DataSegment.ActiveDataSegment) {
+            throw new IllegalStateException("Can not load data from active segment at index: " + segIdx);
+        }
+        int numBytesToCopy = popInt();
+        int srcOffset = popInt();
+        int dstAddr = popInt();
+        m.store(dstAddr, seg.data(), srcOffset, numBytesToCopy);
+    }
+
+    /*
+        Runs a function lowered by FlatCodeCompiler. Blocks are already resolved to jumps, so there is no recursion
+        except for calls. Branches drop and keep values as computed at lowering time. Only validated functions are
+        lowered, so ops which raise the stack height push into the frame set aside by reserveFrame without growing it.
+        Locals are the stack slots starting at frame pointer fp. On return, results replace the frame and -1 is returned.
+        On the stackless interpreter, calls are not made here: the callee is left in pendingCall and the pc to continue
+        from is returned to runFrames. The same happens after a host function asked to suspend or the invocation ran
+        out of fuel.
+     */
+    private int executeFlat(FlatCode flatCode, int fp, FunctionType type, int pc) {
+        final int[] code = flatCode.code();
+        final Memory memory = getMainMemory();
+        while (true) {
+            int op = code[pc++];
+            switch (op) {
+                case NULL_UNREACHABLE -> throw new RuntimeException("Unreachable op code detected! Crashing on demand!");
+                case NULL_MEM_SIZE -> stack.pushReserved(intToLong(memory.getMemorySize()));
+                case UN_MEM_GROW -> pushInt(memory.grow(popInt()));
+                // Control flow
+                case CF_IF -> {
+                    int target = code[pc++];
+                    if (popInt() == 0) {
+                        pc = target;
+                    }
+                }
+                case CF_ELSE -> pc = code[pc];
+                case CF_BR -> {
+                    int drop = code[pc+1];
+                    if (drop > 0) {
+                        stack.dropKeep(drop, code[pc+2]);
+                    }
+                    pc = code[pc];
+                }
+                case CF_BR_IF -> {
+                    if (popInt() == 0) {
+                        pc += 3;
+                        continue;
+                    }
+                    int drop = code[pc+1];
+                    if (drop > 0) {
+                        stack.dropKeep(drop, code[pc+2]);
+                    }
+                    pc = code[pc];
+                }
+                case CF_BR_TABLE -> {
+                    int n = code[pc++];
+                    int jmpIdx = popInt();
+                    int entry = pc + 3 * ((jmpIdx >= 0 && jmpIdx < n) ? jmpIdx : n);
+                    int drop = code[entry+1];
+                    if (drop > 0) {
+                        stack.dropKeep(drop, code[entry+2]);
+                    }
+                    pc = code[entry];
+                }
+                case FUNC_RETURN -> {
+                    int keep = flatCode.numReturns();
+                    int drop = stack.stackPointer() - fp - keep;
+                    if (drop > 0) {
+                        stack.dropKeep(drop, keep);
+                    }
+                    return -1;
+                }
+                case FUNC_CALL, FUNC_CALL_INDIRECT -> {
+                    Function callee = (op == FUNC_CALL) ? functions[code[pc++]] : indirectFunction(code[pc++], popInt(), code[pc++]);
+                    if (frames != null) {
+                        pendingCall = callee;
+                        return pc;
+                    }
+                    call(callee);
+                }
+                case CALL_JAVA -> {
+                    callJava((FunctionInstruction.CallJava) flatCode.refs()[code[pc++]], fp);
+                    if (suspendRequested) {
+                        return pc;
+                    }
+                }
+                case ATOMIC -> atomic((AtomicInstruction) flatCode.refs()[code[pc++]]);
+                case FUEL -> {
+                    if ((fuel -= code[pc++]) < 0 && outOfFuel()) {
+                        return pc;
+                    }
+                }
+                case LOOP -> {
+                    if (jit != null && loopIteration(flatCode, code[pc + 1])) {
+                        return -1;
+                    }
+                    pc += 2;
+                    if ((fuel -= code[pc - 2]) < 0 && outOfFuel()) {
+                        return pc;
+                    }
+                }
+                // Variables
+                case UN_DROP -> pop();
+                case SELECT -> {
+                    int cmp = popInt();
+                    long t2 = pop();
+                    long t1 = pop();
+                    push((cmp == 0) ? t2 : t1);
+                }
+                case LOCAL_GET -> stack.pushReserved(stack.get(fp + code[pc++]));
+                case LOCAL_SET -> stack.set(fp + code[pc++], pop());
+                case LOCAL_TEE -> stack.set(fp + code[pc++], stack.get(stack.stackPointer() - 1));
+                case GLOBAL_GET -> stack.pushReserved(globals[code[pc++]].getValAsLong());
+                case GLOBAL_SET -> globals[code[pc++]].setVal(pop());
+                // Memory
+                case LOAD_I32, LOAD_F32 -> pushInt(memory.loadInt(popInt() + code[pc++]));
+                case LOAD_I64, LOAD_F64 -> push(memory.loadLong(popInt() + code[pc++]));
+                case LOAD8_I32_S -> pushInt(memory.loadByte(popInt() + code[pc++]));
+                case LOAD8_I32_U -> pushInt(Byte.toUnsignedInt(memory.loadByte(popInt() + code[pc++])));
+                case LOAD16_I32_S -> pushInt(memory.loadShort(popInt() + code[pc++]));
+                case LOAD16_I32_U -> pushInt(Short.toUnsignedInt(memory.loadShort(popInt() + code[pc++])));
+                case LOAD8_I64_S -> push(memory.loadByte(popInt() + code[pc++]));
+                case LOAD8_I64_U -> push(Byte.toUnsignedLong(memory.loadByte(popInt() + code[pc++])));
+                case LOAD16_I64_S -> push(memory.loadShort(popInt() + code[pc++]));
+                case LOAD16_I64_U -> push(Short.toUnsignedLong(memory.loadShort(popInt() + code[pc++])));
+                case LOAD32_I64_S -> push(memory.loadInt(popInt() + code[pc++]));
+                case LOAD32_I64_U -> push(Integer.toUnsignedLong(memory.loadInt(popInt() + code[pc++])));
+                case STORE_I32, STORE_F32, STORE32_I64 -> {
+                    long val = pop();
+                    memory.store(popInt() + code[pc++], (int) val);
+                }
+                case STORE_I64, STORE_F64 -> {
+                    long val = pop();
+                    memory.store(popInt() + code[pc++], val);
+                }
+                case STORE8_I32, STORE8_I64 -> {
+                    long val = pop();
+                    memory.store(popInt() + code[pc++], (byte) val);
+                }
+                case STORE16_I32, STORE16_I64 -> {
+                    long val = pop();
+                    memory.store(popInt() + code[pc++], (short) val);
+                }
+                // Constants
+                case CONST_INT, CONST_FLOAT -> stack.pushReserved(intToLong(code[pc++]));
+                case CONST_LONG, CONST_DOUBLE -> stack.pushReserved(flatCode.constants()[code[pc++]]);
+                // i32
+                case UN_I32_EQZ -> pushInt(wrapBoolean(popInt() == 0));
+                case BI_I32_EQ -> { int r = popInt(), l = popInt(); pushInt(wrapBoolean(l == r)); }
+                case BI_I32_NE -> { int r = popInt(), l = popInt(); pushInt(wrapBoolean(l != r)); }
+                case BI_I32_LT_S -> { int r = popInt(), l = popInt(); pushInt(wrapBoolean(l < r)); }
+                case BI_I32_LT_U -> { int r = popInt(), l = popInt(); pushInt(wrapBoolean(Integer.compareUnsigned(l,r) < 0)); }
+                case BI_I32_GT_S -> { int r = popInt(), l = popInt(); pushInt(wrapBoolean(l > r)); }
+                case BI_I32_GT_U -> { int r = popInt(), l = popInt(); pushInt(wrapBoolean(Integer.compareUnsigned(l,r) > 0)); }
+                case BI_I32_LE_S -> { int r = popInt(), l = popInt(); pushInt(wrapBoolean(l <= r)); }
+                case BI_I32_LE_U -> { int r = popInt(), l = popInt(); pushInt(wrapBoolean(Integer.compareUnsigned(l,r) <= 0)); }
+                case BI_I32_GE_S -> { int r = popInt(), l = popInt(); pushInt(wrapBoolean(l >= r)); }
+                case BI_I32_GE_U -> { int r = popInt(), l = popInt(); pushInt(wrapBoolean(Integer.compareUnsigned(l,r) >= 0)); }
+                case UN_I32_CLZ -> pushInt(Integer.numberOfLeadingZeros(popInt()));
+                case UN_I32_CTZ -> pushInt(Integer.numberOfTrailingZeros(popInt()));
+                case UN_I32_POPCNT -> pushInt(Integer.bitCount(popInt()));
+                case BI_I32_ADD -> { int r = popInt(), l = popInt(); pushInt(l+r); }
+                case BI_I32_SUB -> { int r = popInt(), l = popInt(); pushInt(l-r); }
+                case BI_I32_MUL -> { int r = popInt(), l = popInt(); pushInt(l*r); }
+                case BI_I32_DIV_S -> { int r = popInt(), l = popInt(); pushInt(l/r); }
+                case BI_I32_DIV_U -> { int r = popInt(), l = popInt(); pushInt(Integer.divideUnsigned(l,r)); }
+                case BI_I32_REM_S -> { int r = popInt(), l = popInt(); pushInt(l%r); }
+                case BI_I32_REM_U -> { int r = popInt(), l = popInt(); pushInt(Integer.remainderUnsigned(l,r)); }
+                case BI_I32_AND -> { int r = popInt(), l = popInt(); pushInt(l&r); }
+                case BI_I32_OR -> { int r = popInt(), l = popInt(); pushInt(l|r); }
+                case BI_I32_XOR -> { int r = popInt(), l = popInt(); pushInt(l^r); }
+                case BI_I32_SHL -> { int r = popInt(), l = popInt(); pushInt(l << r); }
+                case BI_I32_SHR_S -> { int r = popInt(), l = popInt(); pushInt(l >> r); }
+                case BI_I32_SHR_U -> { int r = popInt(), l = popInt(); pushInt(l >>> r); }
+                case BI_I32_ROTL -> { int r = popInt(), l = popInt(); pushInt(Integer.rotateLeft(l, r)); }
+                case BI_I32_ROTR -> { int r = popInt(), l = popInt(); pushInt(Integer.rotateRight(l, r)); }
+                // i64
+                case UN_I64_EQZ -> pushInt(wrapBoolean(pop() == 0));
+                case BI_I64_EQ -> { long r = pop(), l = pop(); pushInt(wrapBoolean(l == r)); }
+                case BI_I64_NE -> { long r = pop(), l = pop(); pushInt(wrapBoolean(l != r)); }
+                case BI_I64_LT_S -> { long r = pop(), l = pop(); pushInt(wrapBoolean(l < r)); }
+                case BI_I64_LT_U -> { long r = pop(), l = pop(); pushInt(wrapBoolean(Long.compareUnsigned(l,r) < 0)); }
+                case BI_I64_GT_S -> { long r = pop(), l = pop(); pushInt(wrapBoolean(l > r)); }
+                case BI_I64_GT_U -> { long r = pop(), l = pop(); pushInt(wrapBoolean(Long.compareUnsigned(l,r) > 0)); }
+                case BI_I64_LE_S -> { long r = pop(), l = pop(); pushInt(wrapBoolean(l <= r)); }
+                case BI_I64_LE_U -> { long r = pop(), l = pop(); pushInt(wrapBoolean(Long.compareUnsigned(l,r) <= 0)); }
+                case BI_I64_GE_S -> { long r = pop(), l = pop(); pushInt(wrapBoolean(l >= r)); }
+                case BI_I64_GE_U -> { long r = pop(), l = pop(); pushInt(wrapBoolean(Long.compareUnsigned(l,r) >= 0)); }
+                case UN_I64_CLZ -> push(Long.numberOfLeadingZeros(pop()));
+                case UN_I64_CTZ -> push(Long.numberOfTrailingZeros(pop()));
+                case UN_I64_POPCNT -> push(Long.bitCount(pop()));
+                case BI_I64_ADD -> { long r = pop(), l = pop(); push(l+r); }
+                case BI_I64_SUB -> { long r = pop(), l = pop(); push(l-r); }
+                case BI_I64_MUL -> { long r = pop(), l = pop(); push(l*r); }
+                case BI_I64_DIV_S -> { long r = pop(), l = pop(); push(l/r); }
+                case BI_I64_DIV_U -> { long r = pop(), l = pop(); push(Long.divideUnsigned(l,r)); }
+                case BI_I64_REM_S -> { long r = pop(), l = pop(); push(l%r); }
+                case BI_I64_REM_U -> { long r = pop(), l = pop(); push(Long.remainderUnsigned(l,r)); }
+                case BI_I64_AND -> { long r = pop(), l = pop(); push(l&r); }
+                case BI_I64_OR -> { long r = pop(), l = pop(); push(l|r); }
+                case BI_I64_XOR -> { long r = pop(), l = pop(); push(l^r); }
+                case BI_I64_SHL -> { long r = pop(), l = pop(); push(l << r); }
+                case BI_I64_SHR_S -> { long r = pop(), l = pop(); push(l >> r); }
+                case BI_I64_SHR_U -> { long r = pop(), l = pop(); push(l >>> r); }
+                case BI_I64_ROTL -> { long r = pop(), l = pop(); push(Long.rotateLeft(l, (int) r)); }
+                case BI_I64_ROTR -> { long r = pop(), l = pop(); push(Long.rotateRight(l, (int) r)); }
+                // f32
+                case BI_F32_EQ -> { float r = popFloat(), l = popFloat(); pushInt(wrapBoolean(l == r)); }
+                case BI_F32_NE -> { float r = popFloat(), l = popFloat(); pushInt(wrapBoolean(l != r)); }
+                case BI_F32_LT -> { float r = popFloat(), l = popFloat(); pushInt(wrapBoolean(l < r)); }
+                case BI_F32_GT -> { float r = popFloat(), l = popFloat(); pushInt(wrapBoolean(l > r)); }
+                case BI_F32_LE -> { float r = popFloat(), l = popFloat(); pushInt(wrapBoolean(l <= r)); }
+                case BI_F32_GE -> { float r = popFloat(), l = popFloat(); pushInt(wrapBoolean(l >= r)); }
+                case UN_F32_ABS -> pushFloat(Math.abs(popFloat()));
+                case UN_F32_NEG -> pushFloat(-popFloat());
+                case UN_F32_CEIL -> pushFloat((float) Math.ceil(popFloat()));
+                case UN_F32_FLOOR -> pushFloat((float) Math.floor(popFloat()));
+                case UN_F32_TRUNC -> {
+                    float f = popFloat();
+                    pushFloat((float) ((f < 0.0) ? Math.ceil(f) : Math.floor(f)));
+                }
+                case UN_F32_NEAREST -> pushFloat(MathUtils.nearest(popFloat()));
+                case UN_F32_SQRT -> pushFloat((float) Math.sqrt(popFloat()));
+                case BI_F32_ADD -> { float r = popFloat(), l = popFloat(); pushFloat(l+r); }
+                case BI_F32_SUB -> { float r = popFloat(), l = popFloat(); pushFloat(l-r); }
+                case BI_F32_MUL -> { float r = popFloat(), l = popFloat(); pushFloat(l*r); }
+                case BI_F32_DIV -> { float r = popFloat(), l = popFloat(); pushFloat(l/r); }
+                case BI_F32_MIN -> { float r = popFloat(), l = popFloat(); pushFloat(Float.min(l,r)); }
+                case BI_F32_MAX -> { float r = popFloat(), l = popFloat(); pushFloat(Float.max(l,r)); }
+                case BI_F32_COPYSIGN -> { float r = popFloat(), l = popFloat(); pushFloat(Math.copySign(l,r)); }
+                // f64
+                case BI_F64_EQ -> { double r = popDouble(), l = popDouble(); pushInt(wrapBoolean(l == r)); }
+                case BI_F64_NE -> { double r = popDouble(), l = popDouble(); pushInt(wrapBoolean(l != r)); }
+                case BI_F64_LT -> { double r = popDouble(), l = popDouble(); pushInt(wrapBoolean(l < r)); }
+                case BI_F64_GT -> { double r = popDouble(), l = popDouble(); pushInt(wrapBoolean(l > r)); }
+                case BI_F64_LE -> { double r = popDouble(), l = popDouble(); pushInt(wrapBoolean(l <= r)); }
+                case BI_F64_GE -> { double r = popDouble(), l = popDouble(); pushInt(wrapBoolean(l >= r)); }
+                case UN_F64_ABS -> pushDouble(Math.abs(popDouble()));
+                case UN_F64_NEG -> pushDouble(-popDouble());
+                case UN_F64_CEIL -> pushDouble(Math.ceil(popDouble()));
+                case UN_F64_FLOOR -> pushDouble(Math.floor(popDouble()));
+                case UN_F64_TRUNC -> {
+                    double f = popDouble();
+                    pushDouble((f < 0.0) ? Math.ceil(f) : Math.floor(f));
+                }
+                case UN_F64_NEAREST -> pushDouble(MathUtils.nearest(popDouble()));
+                case UN_F64_SQRT -> pushDouble(Math.sqrt(popDouble()));
+                case BI_F64_ADD -> { double r = popDouble(), l = popDouble(); pushDouble(l+r); }
+                case BI_F64_SUB -> { double r = popDouble(), l = popDouble(); pushDouble(l-r); }
+                case BI_F64_MUL -> { double r = popDouble(), l = popDouble(); pushDouble(l*r); }
+                case BI_F64_DIV -> { double r = popDouble(), l = popDouble(); pushDouble(l/r); }
+                case BI_F64_MIN -> { double r = popDouble(), l = popDouble(); pushDouble(Double.min(l,r)); }
+                case BI_F64_MAX -> { double r = popDouble(), l = popDouble(); pushDouble(Double.max(l,r)); }
+                case BI_F64_COPYSIGN -> { double r = popDouble(), l = popDouble(); pushDouble(Math.copySign(l,r)); }
+                // Conversions
+                case UN_I32_WRAP_I64 -> pushInt((int) pop());
+                case UN_I32_TRUNC_F32_S, FC_OPS | FC_I32_TRUNC_SAT_F32_S -> pushInt((int) popFloat());
+                case UN_I32_TRUNC_F32_U, FC_OPS | FC_I32_TRUNC_SAT_F32_U -> pushInt(MathUtils.truncateFloatToUnsignedInt(popFloat()));
+                case UN_I32_TRUNC_F64_S, FC_OPS | FC_I32_TRUNC_SAT_F64_S -> pushInt((int) popDouble());
+                case UN_I32_TRUNC_F64_U, FC_OPS | FC_I32_TRUNC_SAT_F64_U -> pushInt(MathUtils.truncateDoubleToUnsignedInt(popDouble()));
+                case UN_I64_EXTEND_I32_S -> push(intToLong(popInt()));
+                case UN_I64_EXTEND_I32_U -> push(Integer.toUnsignedLong(popInt()));
+                case UN_I64_TRUNC_F32_S, FC_OPS | FC_I64_TRUNC_SAT_F32_S -> push((long) popFloat());
+                case UN_I64_TRUNC_F32_U, FC_OPS | FC_I64_TRUNC_SAT_F32_U -> push(MathUtils.truncateFloatToUnsignedLong(popFloat()));
+                case UN_I64_TRUNC_F64_S, FC_OPS | FC_I64_TRUNC_SAT_F64_S -> push((long) popDouble());
+                case UN_I64_TRUNC_F64_U, FC_OPS | FC_I64_TRUNC_SAT_F64_U -> push(MathUtils.truncateDoubleToUnsignedLong(popDouble()));
+                case UN_F32_CONVERT_I32_S -> pushFloat(popInt());
+                case UN_F32_CONVERT_I32_U -> pushFloat(Integer.toUnsignedLong(popInt()));
+                case UN_F32_CONVERT_I64_S -> pushFloat(pop());
+                case UN_F32_CONVERT_I64_U -> pushFloat(Float.parseFloat(Long.toUnsignedString(pop())));
+                case UN_F32_DEMOTE_F64 -> pushFloat((float) popDouble());
+                case UN_F64_CONVERT_I32_S -> pushDouble(popInt());
+                case UN_F64_CONVERT_I32_U -> pushDouble(Integer.toUnsignedLong(popInt()));
+                case UN_F64_CONVERT_I64_S -> pushDouble(pop());
+                case UN_F64_CONVERT_I64_U -> pushDouble(Double.parseDouble(Long.toUnsignedString(pop())));
+                case UN_F64_PROMOTE_F32 -> pushDouble(popFloat());
+                // Values are stored as raw bits, so reinterpret only has to fix the width
+                case UN_I32_REINTERPRET_F32, UN_F32_REINTERPRET_I32 -> pushInt(popInt());
+                case UN_I64_REINTERPRET_F64, UN_F64_REINTERPRET_I64 -> {}
+                case UN_I32_EXTEND8_S -> pushInt((byte) popInt());
+                case UN_I32_EXTEND16_S -> pushInt((short) popInt());
+                case UN_I64_EXTEND8_S -> push((byte) pop());
+                case UN_I64_EXTEND16_S -> push((short) pop());
+                case UN_I64_EXTEND32_S -> push((int) pop());
+                // Reference types
+                case REF_NULL -> stack.pushReserved(intToLong(Variable.REF_NULL));
+                case REF_IS_NULL -> pushInt(wrapBoolean(popInt() == Variable.REF_NULL));
+                case REF_FUNC -> stack.pushReserved(intToLong(code[pc++]));
+                // Fused instructions
+                case LOCAL_LOCAL_I32 -> {
+                    stack.pushReserved(intToLong(i32Binary(I32_BINARY_OPS[code[pc+2]], (int) stack.get(fp + code[pc]), (int) stack.get(fp + code[pc+1]))));
+                    pc += 3;
+                }
+                case LOCAL_CONST_I32 -> {
+                    stack.pushReserved(intToLong(i32Binary(I32_BINARY_OPS[code[pc+2]], (int) stack.get(fp + code[pc]), code[pc+1])));
+                    pc += 3;
+                }
+                case LOCAL_CONST_I32_SET -> {
+                    stack.set(fp + code[pc+3], intToLong(i32Binary(I32_BINARY_OPS[code[pc+2]], (int) stack.get(fp + code[pc]), code[pc+1])));
+                    pc += 4;
+                }
+                case CONST_I32_BR_IF -> {
+                    if (i32Binary(I32_BINARY_OPS[code[pc+1]], popInt(), code[pc]) == 0) {
+                        pc += 5;
+                        continue;
+                    }
+                    int drop = code[pc+3];
+                    if (drop > 0) {
+                        stack.dropKeep(drop, code[pc+4]);
+                    }
+                    pc = code[pc+2];
+                }
+                // 0xFC prefixed ops
+                case FC_OPS | FC_MEM_INIT -> {
+                    memoryInit(code[pc], code[pc+1]);
+                    pc += 2;
+                }
+                case FC_OPS | FC_DATA_DROP -> dataDrop(code[pc++]);
+                case FC_OPS | FC_MEM_COPY -> {
+                    memoryCopy(code[pc], code[pc+1]);
+                    pc += 2;
+                }
+                case FC_OPS | FC_MEM_FILL -> memoryFill(code[pc++]);
+                case FC_OPS | FC_ELEM_DROP -> this.elementSegments[code[pc++]] = null;
+                case FC_OPS | FC_TABLE_GROW -> {
+                    int delta = popInt();
+                    int funcIdx = popInt();
+                    pushInt(tables[code[pc++]].grow(delta, funcIdx));
+                }
+                case FC_OPS | FC_TABLE_SIZE -> stack.pushReserved(intToLong(tables[code[pc++]].size()));
+                default -> throw new IllegalStateException(STR."Unexpected flat op code: \{op} in function of type \{type}");
+            }
         }
-        return BLOCK_LEVEL;
     }
 
     private void pushVariable(Variable var) {
@@ -660,7 +1557,34 @@ public class Machine {
             throw new RuntimeException(String.format("INVOKE: Incorrect number of params passed for %s. Expected: %d Got: %d", function, type.numParams(), expr.length));
         }
         // machineVisitor.start(this);
-        execute(expr, null, FUNC_LEVEL);
+        execute(expr, null);
+        invokeFunction(f);
+    }
+
+    /**
+     * Resolves an exported function once, so that it can be called repeatedly without looking it up or allocating arguments
+     */
+    public ExportedFunction exportedFunction(String function) {
+        Object o = exportMap.get(function);
+        if (!(o instanceof Function f)) {
+            throw new RuntimeException("Invalid WASM export called: " + function);
+        }
+        return new ExportedFunction(this, function, f);
+    }
+
+    /**
+     * Resolves an exported function and checks once that it has the given type
+     */
+    public ExportedFunction exportedFunction(String function, FunctionType type) {
+        ExportedFunction f = exportedFunction(function);
+        if (!f.type().equals(type)) {
+            throw new RuntimeException(String.format("INVOKE: Export %s has type %s. Expected: %s", function, f.type(), type));
+        }
+        return f;
+    }
+
+    // Arguments have been pushed by the caller
+    void invokeFunction(Function f) {
         try {
             call(f);
         } finally {
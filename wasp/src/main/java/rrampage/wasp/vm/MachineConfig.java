@@ -0,0 +1,184 @@
+package rrampage.wasp.vm;
+
+/**
+ * Execution options for a {@link Machine}. Use {@link ConfigBuilder} to create one:
+ * <pre>MachineConfig.ConfigBuilder.of().jit(true).build()</pre>
+ */
+public class MachineConfig {
+    public static final MachineConfig DEFAULT = ConfigBuilder.of().build();
+
+    final boolean jit;
+    final Interpreter interpreter;
+    final boolean fuseInstructions;
+    final boolean optimize;
+    final boolean offHeapMemory;
+    final long fuel;
+    final boolean tiered;
+    final int callThreshold;
+    final int loopThreshold;
+
+    /**
+     * How functions which are not JIT compiled are run.
+     */
+    public enum Interpreter {
+        // Walk the nested instruction tree, recursing into every block
+        TREE,
+        // Run the function lowered to a flat code stream with precomputed branch targets
+        FLAT,
+        // Run flat code with guest frames on a heap allocated control stack instead of the Java stack, so deep guest
+        // recursion does not overflow the Java stack and invocations can be suspended. See Invocation
+        STACKLESS,
+        // Run the function compiled to a tree of executor nodes (see ClosureCompiler), which pass values directly
+        // instead of through the operand stack. Functions which can not be compiled run flat code
+        CLOSURE,
+        // Run the function translated to three-address code over a frame of registers (see RegisterCodeCompiler),
+        // which drops the local.get and stack shuffling of flat code. Functions which can not be translated run flat code
+        REGISTER,
+    }
+
+    private MachineConfig(ConfigBuilder builder) {
+        this.jit = builder.jit || builder.tiered;
+        this.interpreter = builder.interpreter;
+        this.fuseInstructions = builder.fuseInstructions;
+        this.optimize = builder.optimize;
+        this.offHeapMemory = builder.offHeapMemory;
+        this.fuel = builder.fuel;
+        this.tiered = builder.tiered;
+        this.callThreshold = builder.callThreshold;
+        this.loopThreshold = builder.loopThreshold;
+    }
+
+    public boolean isJitEnabled() {
+        return jit;
+    }
+
+    public Interpreter interpreter() {
+        return interpreter;
+    }
+
+    public boolean isFusionEnabled() {
+        return fuseInstructions;
+    }
+
+    public boolean isOptimizationEnabled() {
+        return optimize;
+    }
+
+    public boolean isOffHeapMemoryEnabled() {
+        return offHeapMemory;
+    }
+
+    public boolean isFuelMetered() {
+        return fuel != Long.MAX_VALUE;
+    }
+
+    public boolean isTiered() {
+        return tiered;
+    }
+
+    public int callThreshold() {
+        return callThreshold;
+    }
+
+    public int loopThreshold() {
+        return loopThreshold;
+    }
+
+    public static class ConfigBuilder {
+        boolean jit;
+        Interpreter interpreter = Interpreter.FLAT;
+        boolean fuseInstructions;
+        boolean optimize;
+        boolean offHeapMemory;
+        long fuel = Long.MAX_VALUE;
+        boolean tiered;
+        int callThreshold = 1000;
+        int loopThreshold = 10_000;
+
+        private ConfigBuilder() {}
+
+        public static ConfigBuilder of() {
+            return new ConfigBuilder();
+        }
+
+        /**
+         * Compile functions to JVM bytecode before running them. Functions which can not be compiled
+         * (or machines with instruction visitors) fall back to the interpreter.
+         */
+        public ConfigBuilder jit(boolean enabled) {
+            this.jit = enabled;
+            return this;
+        }
+
+        /**
+         * Interpreter used for functions which are not compiled. Machines with instruction visitors and functions
+         * which can not be lowered always use the {@link Interpreter#TREE} interpreter.
+         */
+        public ConfigBuilder interpreter(Interpreter interpreter) {
+            this.interpreter = interpreter;
+            return this;
+        }
+
+        /**
+         * Replace common instruction sequences with superinstructions when the module is instantiated.
+         * See {@link rrampage.wasp.optimizer.InstructionFuser}.
+         */
+        public ConfigBuilder fuseInstructions(boolean enabled) {
+            this.fuseInstructions = enabled;
+            return this;
+        }
+
+        /**
+         * Run the optimization pipeline on the module's functions when the module is instantiated. Fusion, if enabled,
+         * runs on the optimized functions. See {@link rrampage.wasp.optimizer.ModuleOptimizer}.
+         */
+        public ConfigBuilder optimize(boolean enabled) {
+            this.optimize = enabled;
+            return this;
+        }
+
+        /**
+         * Back memories defined by the module with {@link rrampage.wasp.data.SegmentMemory} instead of a heap array.
+         * Imported memories are used as supplied.
+         */
+        public ConfigBuilder offHeapMemory(boolean enabled) {
+            this.offHeapMemory = enabled;
+            return this;
+        }
+
+        /**
+         * Fuel each machine starts with. Function bodies and loop iterations use up fuel by the number of instructions
+         * in them (see {@link Machine#fuel()}). When it runs out, calls trap with OUT_OF_FUEL, except for
+         * {@link Invocation}s on the {@link Interpreter#STACKLESS} interpreter which yield so that the host can add
+         * fuel with {@link Machine#addFuel(long)} and resume them. Unmetered by default.
+         */
+        public ConfigBuilder fuel(long budget) {
+            this.fuel = budget;
+            return this;
+        }
+
+        /**
+         * Start functions in the interpreter and JIT compile them on a background thread once they are hot, instead of
+         * compiling every function on its first call. Implies {@link #jit(boolean)}.
+         */
+        public ConfigBuilder tiered(boolean enabled) {
+            this.tiered = enabled;
+            return this;
+        }
+
+        /**
+         * Number of calls or loop iterations after which a function of a tiered machine is compiled. Counts are kept
+         * per function body, so they are shared by all machines instantiated from the same module. Loop iterations
+         * are counted by flat code only.
+         */
+        public ConfigBuilder tierUpThresholds(int calls, int loopIterations) {
+            this.callThreshold = calls;
+            this.loopThreshold = loopIterations;
+            return this;
+        }
+
+        public MachineConfig build() {
+            return new MachineConfig(this);
+        }
+    }
+}
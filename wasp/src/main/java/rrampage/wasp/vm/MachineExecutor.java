@@ -0,0 +1,157 @@
+package rrampage.wasp.vm;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs invocations of many {@link Machine}s concurrently, each on its own virtual thread. A guest blocked in a host
+ * function (e.g. reading input) parks its virtual thread and frees the carrier thread for other guests.
+ * <p>
+ * A machine is not thread-safe, so invocations of the same machine run one at a time, roughly in submission order.
+ * Invocations of different machines run in parallel, up to the parallelism of the executor. An invocation takes a
+ * permit only once it holds its machine, so invocations queued on a busy machine do not keep other machines waiting.
+ * <p>
+ * A deadline covers waiting for the machine and a permit and running the invocation. When it passes, the result completes with a
+ * {@link java.util.concurrent.TimeoutException} and the invocation's thread is interrupted, which stops host functions
+ * blocked in interruptible calls. Guest code itself is not preempted. The machine of an invocation which timed out or
+ * was cancelled may be left mid-call and should be discarded.
+ */
+public final class MachineExecutor implements AutoCloseable {
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final int parallelism;
+    private final Duration deadline;
+    // Machines are weakly held, so discarded machines do not pin their locks
+    private final Map<Machine, ReentrantLock> machineLocks = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private MachineExecutor(ExecutorBuilder builder) {
+        this.executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(builder.threadName, 0).factory());
+        this.parallelism = builder.parallelism;
+        this.permits = new Semaphore(builder.parallelism, true);
+        this.deadline = builder.deadline;
+    }
+
+    public int parallelism() {
+        return parallelism;
+    }
+
+    // Number of invocations holding a permit
+    public int running() {
+        return parallelism - permits.availablePermits();
+    }
+
+    /**
+     * Invokes the exported function with the executor's default deadline. The result is as returned by
+     * {@link ExportedFunction#invoke(long...)}.
+     */
+    public CompletableFuture<Long> submit(ExportedFunction function, long... args) {
+        return submit(function, deadline, args);
+    }
+
+    public CompletableFuture<Long> submit(ExportedFunction function, Duration deadline, long... args) {
+        long[] copy = args.clone();
+        return submit(function.machine(), m -> function.invoke(copy), deadline);
+    }
+
+    /**
+     * Runs a task against the machine, e.g. several calls which must not interleave with other invocations.
+     * A null deadline waits indefinitely.
+     */
+    public <T> CompletableFuture<T> submit(Machine machine, java.util.function.Function<Machine, T> task, Duration deadline) {
+        ReentrantLock lock = machineLocks.computeIfAbsent(machine, m -> new ReentrantLock(true));
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Future<?> thread = executor.submit(() -> {
+            try {
+                T value;
+                lock.lockInterruptibly();
+                try {
+                    permits.acquire();
+                    try {
+                        if (result.isDone()) {
+                            return;
+                        }
+                        value = task.apply(machine);
+                    } finally {
+                        permits.release();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                // Completed after releasing both, so callers of a completed invocation see its machine and permit free
+                result.complete(value);
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        if (deadline != null) {
+            result.orTimeout(deadline.toNanos(), TimeUnit.NANOSECONDS);
+        }
+        // Interrupts the invocation when the caller cancels or the deadline passes
+        result.whenComplete((r, e) -> {
+            if (e != null) {
+                thread.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Stops accepting invocations and waits for submitted invocations to finish.
+     */
+    @Override
+    public void close() {
+        executor.close();
+    }
+
+    public static class ExecutorBuilder {
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        Duration deadline;
+        String threadName = "wasp-machine-";
+
+        private ExecutorBuilder() {}
+
+        public static ExecutorBuilder of() {
+            return new ExecutorBuilder();
+        }
+
+        /**
+         * Maximum number of invocations running at once. Other invocations wait for a permit on their (parked) virtual
+         * thread. Invocations blocked in host functions hold their permit, so I/O bound guests want a parallelism above
+         * the number of carrier threads.
+         */
+        public ExecutorBuilder parallelism(int parallelism) {
+            if (parallelism < 1) {
+                throw new IllegalArgumentException(STR."Parallelism must be positive. Got: \{parallelism}");
+            }
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * Default deadline of invocations submitted without one. Null (the default) waits indefinitely.
+         */
+        public ExecutorBuilder deadline(Duration deadline) {
+            this.deadline = deadline;
+            return this;
+        }
+
+        // Prefix of virtual thread names, followed by a counter
+        public ExecutorBuilder threadName(String prefix) {
+            this.threadName = prefix;
+            return this;
+        }
+
+        public MachineExecutor build() {
+            return new MachineExecutor(this);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package rrampage.wasp.vm;
+
+import rrampage.wasp.data.*;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * State of a {@link Machine} after initialization. Forking a snapshot skips re-running global initialization,
+ * data segments and the start function. Memory pages are shared copy-on-write between the snapshot and its forks,
+ * so forking a machine with a large memory costs a page table copy.
+ * Shared memories are not copied. The snapshot and its forks use the same shared memory, as machines importing it do.
+ */
+public final class MachineSnapshot {
+    private final Function[] functions;
+    private final Table[] tables;
+    private final Variable[] globals;
+    // MemorySnapshot of each memory, or the memory itself if it is shared
+    private final Object[] memories;
+    private final DataSegment[] dataSegments;
+    private final ElementSegment[] elementSegments;
+    private final Map<String, Object> exportMap;
+    private final long startIdx;
+    private final MachineVisitor machineVisitor;
+    private final MachineConfig config;
+
+    MachineSnapshot(Function[] functions, Table[] tables, Variable[] globals, Memory[] memories, DataSegment[] dataSegments, ElementSegment[] elementSegments,
+                    Map<String, Object> exportMap, long startIdx, MachineVisitor machineVisitor, MachineConfig config) {
+        this.functions = functions;
+        this.tables = copyTables(tables);
+        this.globals = copyGlobals(globals);
+        this.memories = new Object[memories.length];
+        for (int i = 0; i < memories.length; i++) {
+            this.memories[i] = memories[i].isShared() ? memories[i] : MemorySnapshot.of(memories[i]);
+        }
+        this.dataSegments = dataSegments == null ? null : dataSegments.clone();
+        this.elementSegments = elementSegments == null ? null : elementSegments.clone();
+        this.exportMap = exportMap == null ? null : remapExports(exportMap, memories, this.memories, tables, this.tables, globals, this.globals);
+        this.startIdx = startIdx;
+        this.machineVisitor = machineVisitor;
+        this.config = config;
+    }
+
+    /**
+     * Creates a new machine with the state of this snapshot. Forks are independent of each other and of the snapshot.
+     */
+    public Machine fork() {
+        Table[] tables = copyTables(this.tables);
+        Variable[] globals = copyGlobals(this.globals);
+        Memory[] memories = new Memory[this.memories.length];
+        for (int i = 0; i < memories.length; i++) {
+            memories[i] = (this.memories[i] instanceof MemorySnapshot s) ? s.fork() : (Memory) this.memories[i];
+        }
+        var exportMap = this.exportMap == null ? null : remapExports(this.exportMap, this.memories, memories, this.tables, tables, this.globals, globals);
+        return new Machine(functions, tables, globals, memories,
+                dataSegments == null ? null : dataSegments.clone(), elementSegments == null ? null : elementSegments.clone(),
+                exportMap, startIdx, machineVisitor, config, false);
+    }
+
+    private static Table[] copyTables(Table[] tables) {
+        if (tables == null) {
+            return null;
+        }
+        Table[] copy = new Table[tables.length];
+        for (int i = 0; i < tables.length; i++) {
+            copy[i] = tables[i] == null ? null : tables[i].copy();
+        }
+        return copy;
+    }
+
+    private static Variable[] copyGlobals(Variable[] globals) {
+        if (globals == null) {
+            return null;
+        }
+        Variable[] copy = new Variable[globals.length];
+        for (int i = 0; i < globals.length; i++) {
+            Variable v = globals[i];
+            copy[i] = v == null ? null : Variable.copyOf(v);
+        }
+        return copy;
+    }
+
+    // Exports refer to the memories, tables and globals of the machine they were created for.
+    // Exported memories of a snapshot refer to its MemorySnapshot
+    private static Map<String, Object> remapExports(Map<String, Object> exportMap, Object[] srcMemories, Object[] dstMemories,
+                                                    Object[] srcTables, Object[] dstTables, Object[] srcGlobals, Object[] dstGlobals) {
+        Map<String, Object> remapped = new HashMap<>(exportMap.size());
+        for (var e : exportMap.entrySet()) {
+            Object o = switch (e.getValue()) {
+                case Memory m -> dstMemories[indexOf(srcMemories, m)];
+                case MemorySnapshot m -> dstMemories[indexOf(srcMemories, m)];
+                case Table t -> dstTables[indexOf(srcTables, t)];
+                case Variable v -> dstGlobals[indexOf(srcGlobals, v)];
+                default -> e.getValue();
+            };
+            remapped.put(e.getKey(), o);
+        }
+        return Collections.unmodifiableMap(remapped);
+    }
+
+    private static int indexOf(Object[] arr, Object o) {
+        for (int i = 0; i < arr.length; i++) {
+            if (arr[i] == o) {
+                return i;
+            }
+        }
+        throw new RuntimeException(STR."SNAPSHOT_ERROR: Unable to find exported \{o}");
+    }
+}
@@ -2,6 +2,7 @@ package rrampage.wasp.vm;
 
 import java.util.Arrays;
 
+// i32 and f32 values are stored sign extended, f32 and f64 as raw bits. A v128 value takes two slots with the low 64 bits below
 public class MachineStack {
     private long[] array = new long[4096];
     private int stackPointer = 0;
@@ -22,6 +23,13 @@ public class MachineStack {
         }
     }
 
+    /**
+     * Pushes into space set aside by {@link #reserve(int)}, so the stack never grows here
+     */
+    public void pushReserved(long value) {
+        array[stackPointer++] = value;
+    }
+
     public long pop() {
         /*if (stackPointer <= 0) {
             throw new RuntimeException("STACK_UNDERFLOW");
@@ -41,6 +49,33 @@ public class MachineStack {
     }
 
     public int stackPointer() {return stackPointer;}
+
+    /*
+        Frame support: locals of a function live on the stack below its operands and are addressed
+        relative to a frame pointer, so that calls do not allocate.
+     */
+    public long get(int idx) {return array[idx];}
+
+    public void set(int idx, long value) {array[idx] = value;}
+
+    /**
+     * Grows the stack so that at least n more values can be pushed without growing it again
+     */
+    public void reserve(int n) {
+        int sp = stackPointer + n;
+        if (sp > array.length) {
+            array = Arrays.copyOf(array, Math.max(sp, (int) (array.length * 1.5)));
+        }
+    }
+
+    public void pushZeros(int n) {
+        int sp = stackPointer + n;
+        if (sp > array.length) {
+            array = Arrays.copyOf(array, Math.max(sp, (int) (array.length * 1.5)));
+        }
+        Arrays.fill(array, stackPointer, sp, 0L);
+        stackPointer = sp;
+    }
     public void dropKeep(int drop, int keep) {
         // If there is no value to be dropped, return
         if (drop == 0) {
@@ -52,21 +87,8 @@ public class MachineStack {
         // keep the 1st "keep" values
         // drop "drop" values below
         int sp = stackPointer;
-        long[] keeps = new long[keep]; // copy to temp array
-        System.arraycopy(array, sp-keep, keeps, 0, keep);
-        System.arraycopy(keeps, 0, array, sp-drop-keep, keep);
+        // arraycopy handles overlapping ranges, so no temp array is needed
+        System.arraycopy(array, sp-keep, array, sp-drop-keep, keep);
         stackPointer = sp - drop;
     }
-
-    public static void main(String[] args) {
-        for (int j = 0; j < 20; j++) {
-            MachineStack ms = new MachineStack();
-            var ts = System.nanoTime();
-            var n = 100_000_000;
-            for (int i = 0; i < n; i++) {
-                ms.push(111);
-            }
-            System.out.println(STR."Time: \{(System.nanoTime() - ts)/1_000_000}");
-        }
-    }
 }
@@ -0,0 +1,42 @@
+package rrampage.wasp.vm;
+
+import rrampage.wasp.data.Function;
+
+/**
+ * A function body translated by {@link RegisterCodeCompiler} from stack code into three-address code over virtual
+ * registers, run by {@link RegisterInterpreter}. Registers are slots of a long[] frame: params and locals, then one
+ * register per operand stack position and finally the {@link #constants()}, which are copied into the frame on entry.
+ * <p>
+ * Op codes are the WASM byte codes from {@link rrampage.wasp.instructions.ByteCodeConstants} with registers instead of
+ * stack operands, followed by immediates:
+ * <ul>
+ *     <li>binary and unary ops, load: dst, operands. load: followed by offset. store: address, value, offset</li>
+ *     <li>br: target. br_if: condition, target. if: condition, target when it is zero. br_table: index, n, n+1 targets</li>
+ *     <li>call: function, first arg, number of args, number of results. call_indirect: table, type id, offset register,
+ *     first arg, number of args, number of results. Args are in consecutive registers which receive the results</li>
+ *     <li>return: no immediates, the results are in the first operand stack registers</li>
+ *     <li>global.get: dst, global. global.set: global, src. select: dst, first, second, condition</li>
+ *     <li>mov: dst, src. loop: cost charged at the start of every iteration</li>
+ *     <li>step: index into {@link #refs()} of an instruction run by the interpreter, first operand, number of operands,
+ *     number of results</li>
+ * </ul>
+ */
+public record RegisterCode(int[] code, long[] constants, Object[] refs, int frameSize, int stackBase, int constBase,
+                           int numReturns, int cost, Function function) implements CompiledFunction {
+    // Unused WASM op codes, so the interpreter switch stays a dense jump table
+    public static final int MOV = 0x06, LOOP = 0x07, STEP = 0x08;
+
+    @Override
+    public void invoke(Machine machine) {
+        long[] frame = new long[frameSize];
+        for (int i = function.numParams() - 1; i >= 0; i--) {
+            frame[i] = machine.pop();
+        }
+        System.arraycopy(constants, 0, frame, constBase, constants.length);
+        machine.consumeFuel(cost);
+        RegisterInterpreter.execute(machine, this, frame);
+        for (int i = 0; i < numReturns; i++) {
+            machine.push(frame[stackBase + i]);
+        }
+    }
+}
@@ -0,0 +1,634 @@
+package rrampage.wasp.vm;
+
+import rrampage.wasp.data.Function;
+import rrampage.wasp.data.FunctionCache;
+import rrampage.wasp.data.FunctionType;
+import rrampage.wasp.data.ValueType;
+import rrampage.wasp.data.Variable;
+import rrampage.wasp.instructions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+
+import static rrampage.wasp.instructions.ByteCodeConstants.*;
+import static rrampage.wasp.vm.RegisterCode.*;
+
+/**
+ * Translates the instruction tree of a function into {@link RegisterCode}. The operand stack is simulated with the
+ * register holding each value: an op reads its operands from their registers and writes its result to the register
+ * of the stack position it is pushed to.
+ * <p>
+ * local.get and constants emit no code, they push the local's or the constant's register. Such values are copied to
+ * their stack register only when the local is written while they are on the stack and at control flow, where values
+ * are passed in stack registers. A local.set right after the op computing its value retargets that op to the local,
+ * so e.g. local.get; local.get; i32.add; local.set becomes a single add.
+ * <p>
+ * Functions whose stack heights do not line up, with v128 values or host calls are not translated and run flat code.
+ */
+public class RegisterCodeCompiler {
+    private static final int FUNC_LEVEL = -1;
+    // Unary ops which can not trap and have an op code in the register interpreter. The others are stepped
+    private static final EnumSet<UnaryInstruction> NATIVE_UNARY = EnumSet.of(
+            UnaryInstruction.I32_EQZ, UnaryInstruction.I64_EQZ, UnaryInstruction.I32_WRAP_I64,
+            UnaryInstruction.I64_EXTEND_I32_S, UnaryInstruction.I64_EXTEND_I32_U, UnaryInstruction.I32_CLZ,
+            UnaryInstruction.I32_CTZ, UnaryInstruction.I32_POPCNT, UnaryInstruction.I64_CLZ, UnaryInstruction.I64_CTZ,
+            UnaryInstruction.I64_POPCNT, UnaryInstruction.I32_REINTERPRET_F32, UnaryInstruction.F32_REINTERPRET_I32,
+            UnaryInstruction.I64_REINTERPRET_F64, UnaryInstruction.F64_REINTERPRET_I64, UnaryInstruction.I32_EXTEND8_S,
+            UnaryInstruction.I32_EXTEND16_S, UnaryInstruction.I64_EXTEND8_S, UnaryInstruction.I64_EXTEND16_S,
+            UnaryInstruction.I64_EXTEND32_S, UnaryInstruction.F32_NEG, UnaryInstruction.F32_ABS,
+            UnaryInstruction.F32_SQRT, UnaryInstruction.F64_NEG, UnaryInstruction.F64_ABS, UnaryInstruction.F64_SQRT,
+            UnaryInstruction.F32_DEMOTE_F64, UnaryInstruction.F64_PROMOTE_F32, UnaryInstruction.F32_CONVERT_I32_S,
+            UnaryInstruction.F32_CONVERT_I64_S, UnaryInstruction.F64_CONVERT_I32_S, UnaryInstruction.F64_CONVERT_I64_S);
+
+    private final Function fun;
+    private final Function[] functions;
+    // Register of the first operand stack position. Params and locals come before it
+    private final int stackBase;
+    private int[] code = new int[64];
+    private int pc = 0;
+    // Constants are numbered from -1 down while translating and moved after the stack registers at the end
+    private final HashMap<Long, Integer> constantRegisters = new HashMap<>();
+    private final ArrayList<Long> constants = new ArrayList<>();
+    private final ArrayList<Object> refs = new ArrayList<>();
+    // Positions of register operands which are constants
+    private final ArrayList<Integer> constPatches = new ArrayList<>();
+    private final ArrayList<Integer> stack = new ArrayList<>();
+    private final ArrayList<ControlFrame> frames = new ArrayList<>();
+    private final ControlFrame root;
+    private int maxHeight = 0;
+    private boolean reachable = true;
+    // Position of the dst of the last op, which a following local.set can retarget. -1 after any other code or a label
+    private int lastDst = -1;
+
+    private static final class ControlFrame {
+        final int label;
+        final boolean isLoop;
+        final FunctionType type;
+        // Stack height below block params
+        final int base;
+        final int startPc;
+        // Positions of forward jump targets to be filled in at the end of the block
+        final ArrayList<Integer> patches = new ArrayList<>();
+
+        ControlFrame(int label, boolean isLoop, FunctionType type, int base, int startPc) {
+            this.label = label;
+            this.isLoop = isLoop;
+            this.type = type;
+            this.base = base;
+            this.startPc = startPc;
+        }
+
+        int branchArity() {
+            return isLoop ? type.numParams() : type.numReturns();
+        }
+    }
+
+    private RegisterCodeCompiler(Function fun, Function[] functions) {
+        this.fun = fun;
+        this.functions = functions;
+        this.stackBase = fun.numParams() + fun.numLocals();
+        this.root = new ControlFrame(FUNC_LEVEL, false, fun.type(), 0, 0);
+    }
+
+    /**
+     * Returns register code for the function or null if it can not be translated. The result is stored in the
+     * function's cache.
+     */
+    public static RegisterCode compile(Function fun, Function[] functions) {
+        FunctionCache cache = fun.cache();
+        if (cache.hasRegisterCode() || cache.hasRegisterCodeError()) {
+            return cache.registerCode();
+        }
+        synchronized (cache) {
+            if (cache.hasRegisterCode() || cache.hasRegisterCodeError()) {
+                return cache.registerCode();
+            }
+            try {
+                cache.setRegisterCode(new RegisterCodeCompiler(fun, functions).translate());
+            } catch (RuntimeException e) {
+                cache.setRegisterCodeError(STR."REGISTER_CODE_ERROR: Unable to translate \{fun.name()}: \{e.getMessage()}");
+            }
+        }
+        return cache.registerCode();
+    }
+
+    private RegisterCode translate() {
+        requireScalarTypes(fun.type());
+        if (fun.locals() != null && Arrays.asList(fun.locals()).contains(ValueType.VecType.VEC_TYPE)) {
+            throw new RuntimeException("v128 locals are not supported");
+        }
+        translate(fun.code());
+        if (reachable) {
+            checkHeight(root);
+            spillAll();
+            emit(FUNC_RETURN);
+        }
+        int constBase = stackBase + Math.max(maxHeight, fun.type().numReturns());
+        // Registers of constants are negative in the code until now
+        for (int patch : constPatches) {
+            code[patch] = constBase - code[patch] - 1;
+        }
+        long[] consts = new long[constants.size()];
+        for (int i = 0; i < consts.length; i++) {
+            consts[i] = constants.get(i);
+        }
+        // The interpreter reads three words after every op code
+        return new RegisterCode(Arrays.copyOf(code, pc + 3), consts, refs.toArray(), constBase + consts.length, stackBase, constBase,
+                fun.type().numReturns(), Machine.fuelCost(fun.code()), fun);
+    }
+
+    private static void requireScalarTypes(FunctionType type) {
+        if (type.hasVectorTypes()) {
+            throw new RuntimeException(STR."v128 values are not supported in \{type}");
+        }
+    }
+
+    private void translate(Instruction[] instructions) {
+        for (Instruction ins : instructions) {
+            // Skip dead code after br, return and unreachable
+            if (!reachable) {
+                return;
+            }
+            translate(ins);
+        }
+    }
+
+    private void translate(Instruction ins) {
+        switch (ins) {
+            case ConstInstruction.IntConst c -> push(constant(c.val()));
+            case ConstInstruction.FloatConst c -> push(constant(Float.floatToRawIntBits(c.val())));
+            case ConstInstruction.LongConst c -> push(constant(c.val()));
+            case ConstInstruction.DoubleConst c -> push(constant(Double.doubleToRawLongBits(c.val())));
+            case IntBinaryInstruction b -> binary(FlatCodeCompiler.opCode(b));
+            case LongBinaryInstruction b -> binary(FlatCodeCompiler.opCode(b));
+            case FloatBinaryInstruction b -> binary(FlatCodeCompiler.opCode(b));
+            case DoubleBinaryInstruction b -> binary(FlatCodeCompiler.opCode(b));
+            case UnaryInstruction u -> {
+                switch (u) {
+                    case DROP -> pop();
+                    case MEMORY_GROW -> op(UN_MEM_GROW, pop());
+                    default -> {
+                        if (NATIVE_UNARY.contains(u)) {
+                            op(FlatCodeCompiler.opCode(u), pop());
+                        } else {
+                            step(u, 1, 1);
+                        }
+                    }
+                }
+            }
+            case NullaryInstruction n -> {
+                switch (n) {
+                    case UNREACHABLE -> {
+                        emit(NULL_UNREACHABLE);
+                        reachable = false;
+                    }
+                    case NOP -> {}
+                    case MEMORY_SIZE -> {
+                        int dst = stackRegister(stack.size());
+                        emit(NULL_MEM_SIZE, dst);
+                        push(dst);
+                    }
+                }
+            }
+            case LoadInstruction l -> {
+                int addr = pop();
+                int dst = stackRegister(stack.size());
+                emit(FlatCodeCompiler.opCode(l));
+                int dstPos = pc;
+                emit(dst);
+                register(addr);
+                emit(l.offset());
+                push(dst);
+                lastDst = dstPos;
+            }
+            case StoreInstruction s -> {
+                int value = pop();
+                int addr = pop();
+                emit(FlatCodeCompiler.opCode(s));
+                register(addr);
+                register(value);
+                emit(s.offset());
+            }
+            case FunctionInstruction f -> translateFunctionInstruction(f);
+            case GlobalInstruction g -> {
+                switch (g) {
+                    case GlobalInstruction.GlobalGet i -> {
+                        int dst = stackRegister(stack.size());
+                        emit(GLOBAL_GET, dst, i.val());
+                        push(dst);
+                    }
+                    case GlobalInstruction.GlobalSet i -> {
+                        int value = pop();
+                        emit(GLOBAL_SET, i.val());
+                        register(value);
+                    }
+                }
+            }
+            case Select _ -> {
+                int cond = pop();
+                int second = pop();
+                int first = pop();
+                int dst = stackRegister(stack.size());
+                emit(SELECT, dst);
+                register(first);
+                register(second);
+                register(cond);
+                push(dst);
+            }
+            case SegmentInstruction s -> step(s, (s instanceof SegmentInstruction.DataDrop) ? 0 : 3, 0);
+            case RefTypeInstruction r -> {
+                switch (r) {
+                    case RefTypeInstruction.RefNull _ -> push(constant(Variable.REF_NULL));
+                    case RefTypeInstruction.RefFunc i -> push(constant(i.functionIndex()));
+                    case RefTypeInstruction.RefIsNull _ -> step(r, 1, 1);
+                    case RefTypeInstruction.ElemDrop _ -> step(r, 0, 0);
+                    case RefTypeInstruction.TableSize _ -> step(r, 0, 1);
+                    case RefTypeInstruction.TableGrow _ -> step(r, 2, 1);
+                    default -> throw new RuntimeException(STR."Unsupported instruction \{ins.opCode()}");
+                }
+            }
+            case FusedInstruction f -> translate(f.expand());
+            case ControlFlowInstruction c -> translateControlFlow(c);
+            default -> throw new RuntimeException(STR."Unsupported instruction \{ins.opCode()}");
+        }
+    }
+
+    private void translateFunctionInstruction(FunctionInstruction f) {
+        switch (f) {
+            case FunctionInstruction.Call c -> {
+                FunctionType type = functions[c.val()].type();
+                requireScalarTypes(type);
+                int first = spillTop(type.numParams());
+                emit(FUNC_CALL, c.val(), first);
+                emit(type.numParams());
+                emit(type.numReturns());
+                pushResults(type.numReturns());
+            }
+            case FunctionInstruction.CallIndirect c -> {
+                if (c.type() == null) {
+                    throw new RuntimeException("Unknown type for call_indirect");
+                }
+                requireScalarTypes(c.type());
+                int offset = pop();
+                int first = spillTop(c.type().numParams());
+                emit(FUNC_CALL_INDIRECT, c.tableIdx());
+                emit(c.typeId());
+                register(offset);
+                emit(first);
+                emit(c.type().numParams());
+                emit(c.type().numReturns());
+                pushResults(c.type().numReturns());
+            }
+            case FunctionInstruction.Return _ -> {
+                branch(root);
+                reachable = false;
+            }
+            case FunctionInstruction.LocalGet l -> push(l.val());
+            case FunctionInstruction.LocalSet l -> setLocal(l.val(), pop());
+            case FunctionInstruction.LocalTee l -> {
+                setLocal(l.val(), pop());
+                push(l.val());
+            }
+            default -> throw new RuntimeException(STR."Unsupported instruction \{f.opCode()}");
+        }
+    }
+
+    private void setLocal(int local, int value) {
+        // Values still read from the local keep its old value
+        for (int i = 0; i < stack.size(); i++) {
+            if (stack.get(i) == local) {
+                spill(i);
+            }
+        }
+        if (lastDst >= 0 && code[lastDst] == value && value == stackRegister(stack.size())) {
+            code[lastDst] = local;
+            lastDst = -1;
+        } else if (value != local) {
+            mov(local, value);
+        }
+    }
+
+    private void translateControlFlow(ControlFlowInstruction c) {
+        switch (c) {
+            case ControlFlowInstruction.Block b -> {
+                ControlFrame frame = enterFrame(b.label(), b.type(), false);
+                translate(b.code());
+                exitFrame(frame);
+            }
+            case ControlFlowInstruction.Loop b -> {
+                ControlFrame frame = enterFrame(b.label(), b.type(), true);
+                // Branches to the loop target its start, so every iteration is charged
+                emit(LOOP, Machine.fuelCost(b.code()));
+                translate(b.code());
+                exitFrame(frame);
+            }
+            case ControlFlowInstruction.If b -> {
+                int cond = pop();
+                ControlFrame frame = enterFrame(b.label(), b.type(), false);
+                if (frame.type.numParams() != frame.type.numReturns()) {
+                    throw new RuntimeException("if without else must have same number of params and results");
+                }
+                emit(CF_IF);
+                register(cond);
+                frame.patches.add(pc);
+                emit(0);
+                translate(b.ifBlock());
+                exitFrame(frame);
+            }
+            case ControlFlowInstruction.IfElse b -> {
+                int cond = pop();
+                ControlFrame frame = enterFrame(b.label(), b.type(), false);
+                emit(CF_IF);
+                register(cond);
+                int elseTarget = pc;
+                emit(0);
+                translate(b.ifBlock());
+                if (reachable) {
+                    checkHeight(frame);
+                    spillAll();
+                    emit(CF_BR);
+                    frame.patches.add(pc);
+                    emit(0);
+                }
+                code[elseTarget] = label();
+                resetStack(frame.base, frame.type.numParams());
+                reachable = true;
+                translate(b.elseBlock());
+                exitFrame(frame);
+            }
+            case ControlFlowInstruction.Branch b -> {
+                branch(findFrame(b.label()));
+                reachable = false;
+            }
+            case ControlFlowInstruction.BranchIf b -> {
+                int cond = pop();
+                ControlFrame target = findFrame(b.label());
+                if (target != root && !needsMoves(target)) {
+                    emit(CF_BR_IF);
+                    register(cond);
+                    emit(0);
+                    setTarget(target, pc - 1);
+                    return;
+                }
+                // Skip the moves and the jump when the condition is zero
+                emit(CF_IF);
+                register(cond);
+                int skip = pc;
+                emit(0);
+                branch(target);
+                code[skip] = label();
+            }
+            case ControlFlowInstruction.BranchTable b -> {
+                int index = pop();
+                int n = b.labels().length;
+                emit(CF_BR_TABLE);
+                register(index);
+                emit(n);
+                int entries = pc;
+                for (int i = 0; i <= n; i++) {
+                    emit(0);
+                }
+                // Targets which need moves or return get a stub after the table
+                for (int i = 0; i <= n; i++) {
+                    ControlFrame target = findFrame((i < n) ? b.labels()[i] : b.defaultLabel());
+                    if (target != root && !needsMoves(target)) {
+                        setTarget(target, entries + i);
+                    } else {
+                        code[entries + i] = label();
+                        branch(target);
+                    }
+                }
+                reachable = false;
+            }
+            case ControlFlowInstruction.Else _ -> {}
+            case ControlFlowInstruction.End _ -> {}
+        }
+    }
+
+    // Moves the values kept by the branch into the target's registers and jumps there. Leaves the stack unchanged
+    private void branch(ControlFrame target) {
+        int arity = target.branchArity();
+        int from = stack.size() - arity;
+        if (from < target.base) {
+            throw new RuntimeException(STR."Stack underflow at branch to \{target.label}");
+        }
+        // Targets are never above the values, so moving them in order does not overwrite values still to be moved
+        for (int i = 0; i < arity; i++) {
+            int dst = stackRegister(target.base + i);
+            if (stack.get(from + i) != dst) {
+                mov(dst, stack.get(from + i));
+            }
+        }
+        if (target == root) {
+            emit(FUNC_RETURN);
+        } else {
+            emit(CF_BR);
+            emit(0);
+            setTarget(target, pc - 1);
+        }
+    }
+
+    private boolean needsMoves(ControlFrame target) {
+        int from = stack.size() - target.branchArity();
+        for (int i = 0; i < target.branchArity(); i++) {
+            if (stack.get(from + i) != stackRegister(target.base + i)) {
+                return true;
+            }
+        }
+        return from < target.base;
+    }
+
+    // Values are passed into blocks in their stack registers, so code in the block can not change them
+    private ControlFrame enterFrame(int label, FunctionType type, boolean isLoop) {
+        type = (type == null) ? FunctionType.VOID : type;
+        int base = stack.size() - type.numParams();
+        if (base < 0) {
+            throw new RuntimeException(STR."Stack underflow at block \{label}");
+        }
+        spillAll();
+        ControlFrame frame = new ControlFrame(label, isLoop, type, base, label());
+        frames.add(frame);
+        return frame;
+    }
+
+    private void exitFrame(ControlFrame frame) {
+        if (reachable) {
+            checkHeight(frame);
+            spillAll();
+        }
+        frames.removeLast();
+        if (!frame.patches.isEmpty()) {
+            int target = label();
+            for (int patch : frame.patches) {
+                code[patch] = target;
+            }
+        }
+        // End of block is reachable if we fall through or some branch targets it
+        reachable = reachable || !frame.patches.isEmpty();
+        resetStack(frame.base, frame.type.numReturns());
+    }
+
+    private void checkHeight(ControlFrame frame) {
+        if (stack.size() != frame.base + frame.type.numReturns()) {
+            throw new RuntimeException(STR."Stack height \{stack.size()} does not match block \{frame.label} of type \{frame.type}");
+        }
+    }
+
+    // Leaves the spilled values below base and n values in the stack registers above it
+    private void resetStack(int base, int n) {
+        while (stack.size() > base) {
+            stack.removeLast();
+        }
+        pushResults(n);
+    }
+
+    private ControlFrame findFrame(int label) {
+        if (label != FUNC_LEVEL) {
+            for (int i = frames.size() - 1; i >= 0; i--) {
+                if (frames.get(i).label == label) {
+                    return frames.get(i);
+                }
+            }
+        }
+        // The interpreter unwinds unknown labels all the way out of the function
+        return root;
+    }
+
+    private void setTarget(ControlFrame target, int pos) {
+        if (target.isLoop) {
+            code[pos] = target.startPc;
+        } else {
+            target.patches.add(pos);
+        }
+    }
+
+    // Position of a jump target. Ops before it can not be retargeted, as other paths reach the code after it
+    private int label() {
+        lastDst = -1;
+        return pc;
+    }
+
+    private void spill(int position) {
+        int dst = stackRegister(position);
+        if (stack.get(position) != dst) {
+            mov(dst, stack.get(position));
+            stack.set(position, dst);
+        }
+    }
+
+    private void spillAll() {
+        for (int i = 0; i < stack.size(); i++) {
+            spill(i);
+        }
+    }
+
+    // Moves the top n values to their stack registers and pops them. Returns the register of the lowest one
+    private int spillTop(int n) {
+        if (stack.size() < n) {
+            throw new RuntimeException("Stack underflow");
+        }
+        int first = stack.size() - n;
+        for (int i = first; i < stack.size(); i++) {
+            spill(i);
+        }
+        while (stack.size() > first) {
+            stack.removeLast();
+        }
+        return stackRegister(first);
+    }
+
+    // Instructions without an op code run through the interpreter with operands and results in stack registers
+    private void step(Instruction ins, int numOperands, int numResults) {
+        int first = spillTop(numOperands);
+        refs.add(ins);
+        emit(STEP, refs.size() - 1, first);
+        emit(numOperands);
+        emit(numResults);
+        pushResults(numResults);
+    }
+
+    private void binary(int op) {
+        int right = pop();
+        int left = pop();
+        int dst = stackRegister(stack.size());
+        emit(op);
+        int dstPos = pc;
+        emit(dst);
+        register(left);
+        register(right);
+        push(dst);
+        lastDst = dstPos;
+    }
+
+    private void op(int op, int operand) {
+        int dst = stackRegister(stack.size());
+        emit(op);
+        int dstPos = pc;
+        emit(dst);
+        register(operand);
+        push(dst);
+        lastDst = dstPos;
+    }
+
+    private void mov(int dst, int src) {
+        emit(MOV, dst);
+        register(src);
+    }
+
+    private int stackRegister(int position) {
+        return stackBase + position;
+    }
+
+    private int constant(long val) {
+        return constantRegisters.computeIfAbsent(val, v -> {
+            constants.add(v);
+            return -constants.size();
+        });
+    }
+
+    private void push(int register) {
+        stack.add(register);
+        maxHeight = Math.max(maxHeight, stack.size());
+    }
+
+    private void pushResults(int n) {
+        for (int i = 0; i < n; i++) {
+            push(stackRegister(stack.size()));
+        }
+    }
+
+    private int pop() {
+        if (stack.isEmpty()) {
+            throw new RuntimeException("Stack underflow");
+        }
+        return stack.removeLast();
+    }
+
+    private void register(int register) {
+        if (register < 0) {
+            constPatches.add(pc);
+        }
+        emit(register);
+    }
+
+    private void emit(int val) {
+        if (pc == code.length) {
+            code = Arrays.copyOf(code, pc * 2);
+        }
+        code[pc++] = val;
+        lastDst = -1;
+    }
+
+    private void emit(int op, int immediate) {
+        emit(op);
+        emit(immediate);
+    }
+
+    private void emit(int op, int immediate1, int immediate2) {
+        emit(op);
+        emit(immediate1);
+        emit(immediate2);
+    }
+}
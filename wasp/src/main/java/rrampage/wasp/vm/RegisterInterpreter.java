@@ -0,0 +1,201 @@
+package rrampage.wasp.vm;
+
+import rrampage.wasp.data.Memory;
+import rrampage.wasp.instructions.Instruction;
+
+import static rrampage.wasp.instructions.ByteCodeConstants.*;
+import static rrampage.wasp.utils.ConversionUtils.*;
+import static rrampage.wasp.vm.RegisterCode.*;
+
+/**
+ * Runs {@link RegisterCode}. Values use the representation of the machine stack in the long[] frame of registers.
+ * The first three words after the op code are read before dispatch, as almost every op has at least three.
+ */
+final class RegisterInterpreter {
+    private RegisterInterpreter() {}
+
+    static void execute(Machine m, RegisterCode rc, long[] r) {
+        final int[] code = rc.code();
+        final Memory memory = m.getMainMemory();
+        int pc = 0;
+        while (true) {
+            int a = code[pc + 1], b = code[pc + 2], c = code[pc + 3];
+            switch (code[pc]) {
+                case NULL_UNREACHABLE -> throw new RuntimeException("Unreachable op code detected! Crashing on demand!");
+                case NULL_MEM_SIZE -> { r[a] = memory.getMemorySize(); pc += 2; }
+                case UN_MEM_GROW -> { r[a] = memory.grow((int) r[b]); pc += 3; }
+                // Control flow
+                case CF_BR -> pc = a;
+                case CF_BR_IF -> pc = ((int) r[a] != 0) ? b : pc + 3;
+                case CF_IF -> pc = ((int) r[a] == 0) ? b : pc + 3;
+                case CF_BR_TABLE -> {
+                    int i = (int) r[a];
+                    pc = code[pc + 3 + ((i >= 0 && i < b) ? i : b)];
+                }
+                case FUNC_RETURN -> {
+                    return;
+                }
+                case FUNC_CALL -> {
+                    pushArgs(m, r, b, c);
+                    m.callFunction(a);
+                    popResults(m, r, b, code[pc + 4]);
+                    pc += 5;
+                }
+                case FUNC_CALL_INDIRECT -> {
+                    // b is the type id
+                    pushArgs(m, r, code[pc + 4], code[pc + 5]);
+                    m.callIndirect(a, (int) r[c], b);
+                    popResults(m, r, code[pc + 4], code[pc + 6]);
+                    pc += 7;
+                }
+                case MOV -> { r[a] = r[b]; pc += 3; }
+                case LOOP -> {
+                    m.consumeFuel(a);
+                    pc += 2;
+                }
+                case STEP -> {
+                    pushArgs(m, r, b, c);
+                    m.stepInstruction((Instruction) rc.refs()[a]);
+                    popResults(m, r, b, code[pc + 4]);
+                    pc += 5;
+                }
+                // Variables
+                case SELECT -> { r[a] = ((int) r[code[pc + 4]] == 0) ? r[c] : r[b]; pc += 5; }
+                case GLOBAL_GET -> { r[a] = m.getGlobal(b); pc += 3; }
+                case GLOBAL_SET -> { m.setGlobal(a, r[b]); pc += 3; }
+                // Memory
+                case LOAD_I32, LOAD_F32, LOAD32_I64_S -> { r[a] = memory.loadInt((int) r[b] + c); pc += 4; }
+                case LOAD_I64, LOAD_F64 -> { r[a] = memory.loadLong((int) r[b] + c); pc += 4; }
+                case LOAD8_I32_S, LOAD8_I64_S -> { r[a] = memory.loadByte((int) r[b] + c); pc += 4; }
+                case LOAD8_I32_U, LOAD8_I64_U -> { r[a] = Byte.toUnsignedLong(memory.loadByte((int) r[b] + c)); pc += 4; }
+                case LOAD16_I32_S, LOAD16_I64_S -> { r[a] = memory.loadShort((int) r[b] + c); pc += 4; }
+                case LOAD16_I32_U, LOAD16_I64_U -> { r[a] = Short.toUnsignedLong(memory.loadShort((int) r[b] + c)); pc += 4; }
+                case LOAD32_I64_U -> { r[a] = Integer.toUnsignedLong(memory.loadInt((int) r[b] + c)); pc += 4; }
+                case STORE_I32, STORE_F32, STORE32_I64 -> { memory.store((int) r[a] + c, (int) r[b]); pc += 4; }
+                case STORE_I64, STORE_F64 -> { memory.store((int) r[a] + c, r[b]); pc += 4; }
+                case STORE8_I32, STORE8_I64 -> { memory.store((int) r[a] + c, (byte) r[b]); pc += 4; }
+                case STORE16_I32, STORE16_I64 -> { memory.store((int) r[a] + c, (short) r[b]); pc += 4; }
+                // i32
+                case UN_I32_EQZ -> { r[a] = wrapBoolean((int) r[b] == 0); pc += 3; }
+                case BI_I32_EQ -> { r[a] = wrapBoolean((int) r[b] == (int) r[c]); pc += 4; }
+                case BI_I32_NE -> { r[a] = wrapBoolean((int) r[b] != (int) r[c]); pc += 4; }
+                case BI_I32_LT_S -> { r[a] = wrapBoolean((int) r[b] < (int) r[c]); pc += 4; }
+                case BI_I32_LT_U -> { r[a] = wrapBoolean(Integer.compareUnsigned((int) r[b], (int) r[c]) < 0); pc += 4; }
+                case BI_I32_GT_S -> { r[a] = wrapBoolean((int) r[b] > (int) r[c]); pc += 4; }
+                case BI_I32_GT_U -> { r[a] = wrapBoolean(Integer.compareUnsigned((int) r[b], (int) r[c]) > 0); pc += 4; }
+                case BI_I32_LE_S -> { r[a] = wrapBoolean((int) r[b] <= (int) r[c]); pc += 4; }
+                case BI_I32_LE_U -> { r[a] = wrapBoolean(Integer.compareUnsigned((int) r[b], (int) r[c]) <= 0); pc += 4; }
+                case BI_I32_GE_S -> { r[a] = wrapBoolean((int) r[b] >= (int) r[c]); pc += 4; }
+                case BI_I32_GE_U -> { r[a] = wrapBoolean(Integer.compareUnsigned((int) r[b], (int) r[c]) >= 0); pc += 4; }
+                case UN_I32_CLZ -> { r[a] = Integer.numberOfLeadingZeros((int) r[b]); pc += 3; }
+                case UN_I32_CTZ -> { r[a] = Integer.numberOfTrailingZeros((int) r[b]); pc += 3; }
+                case UN_I32_POPCNT -> { r[a] = Integer.bitCount((int) r[b]); pc += 3; }
+                case BI_I32_ADD -> { r[a] = (int) r[b] + (int) r[c]; pc += 4; }
+                case BI_I32_SUB -> { r[a] = (int) r[b] - (int) r[c]; pc += 4; }
+                case BI_I32_MUL -> { r[a] = (int) r[b] * (int) r[c]; pc += 4; }
+                case BI_I32_DIV_S -> { r[a] = (int) r[b] / (int) r[c]; pc += 4; }
+                case BI_I32_DIV_U -> { r[a] = Integer.divideUnsigned((int) r[b], (int) r[c]); pc += 4; }
+                case BI_I32_REM_S -> { r[a] = (int) r[b] % (int) r[c]; pc += 4; }
+                case BI_I32_REM_U -> { r[a] = Integer.remainderUnsigned((int) r[b], (int) r[c]); pc += 4; }
+                case BI_I32_AND -> { r[a] = (int) r[b] & (int) r[c]; pc += 4; }
+                case BI_I32_OR -> { r[a] = (int) r[b] | (int) r[c]; pc += 4; }
+                case BI_I32_XOR -> { r[a] = (int) r[b] ^ (int) r[c]; pc += 4; }
+                case BI_I32_SHL -> { r[a] = (int) r[b] << (int) r[c]; pc += 4; }
+                case BI_I32_SHR_S -> { r[a] = (int) r[b] >> (int) r[c]; pc += 4; }
+                case BI_I32_SHR_U -> { r[a] = (int) r[b] >>> (int) r[c]; pc += 4; }
+                case BI_I32_ROTL -> { r[a] = Integer.rotateLeft((int) r[b], (int) r[c]); pc += 4; }
+                case BI_I32_ROTR -> { r[a] = Integer.rotateRight((int) r[b], (int) r[c]); pc += 4; }
+                // i64
+                case UN_I64_EQZ -> { r[a] = wrapBoolean(r[b] == 0); pc += 3; }
+                case BI_I64_EQ -> { r[a] = wrapBoolean(r[b] == r[c]); pc += 4; }
+                case BI_I64_NE -> { r[a] = wrapBoolean(r[b] != r[c]); pc += 4; }
+                case BI_I64_LT_S -> { r[a] = wrapBoolean(r[b] < r[c]); pc += 4; }
+                case BI_I64_LT_U -> { r[a] = wrapBoolean(Long.compareUnsigned(r[b], r[c]) < 0); pc += 4; }
+                case BI_I64_GT_S -> { r[a] = wrapBoolean(r[b] > r[c]); pc += 4; }
+                case BI_I64_GT_U -> { r[a] = wrapBoolean(Long.compareUnsigned(r[b], r[c]) > 0); pc += 4; }
+                case BI_I64_LE_S -> { r[a] = wrapBoolean(r[b] <= r[c]); pc += 4; }
+                case BI_I64_LE_U -> { r[a] = wrapBoolean(Long.compareUnsigned(r[b], r[c]) <= 0); pc += 4; }
+                case BI_I64_GE_S -> { r[a] = wrapBoolean(r[b] >= r[c]); pc += 4; }
+                case BI_I64_GE_U -> { r[a] = wrapBoolean(Long.compareUnsigned(r[b], r[c]) >= 0); pc += 4; }
+                case UN_I64_CLZ -> { r[a] = Long.numberOfLeadingZeros(r[b]); pc += 3; }
+                case UN_I64_CTZ -> { r[a] = Long.numberOfTrailingZeros(r[b]); pc += 3; }
+                case UN_I64_POPCNT -> { r[a] = Long.bitCount(r[b]); pc += 3; }
+                case BI_I64_ADD -> { r[a] = r[b] + r[c]; pc += 4; }
+                case BI_I64_SUB -> { r[a] = r[b] - r[c]; pc += 4; }
+                case BI_I64_MUL -> { r[a] = r[b] * r[c]; pc += 4; }
+                case BI_I64_DIV_S -> { r[a] = r[b] / r[c]; pc += 4; }
+                case BI_I64_DIV_U -> { r[a] = Long.divideUnsigned(r[b], r[c]); pc += 4; }
+                case BI_I64_REM_S -> { r[a] = r[b] % r[c]; pc += 4; }
+                case BI_I64_REM_U -> { r[a] = Long.remainderUnsigned(r[b], r[c]); pc += 4; }
+                case BI_I64_AND -> { r[a] = r[b] & r[c]; pc += 4; }
+                case BI_I64_OR -> { r[a] = r[b] | r[c]; pc += 4; }
+                case BI_I64_XOR -> { r[a] = r[b] ^ r[c]; pc += 4; }
+                case BI_I64_SHL -> { r[a] = r[b] << r[c]; pc += 4; }
+                case BI_I64_SHR_S -> { r[a] = r[b] >> r[c]; pc += 4; }
+                case BI_I64_SHR_U -> { r[a] = r[b] >>> r[c]; pc += 4; }
+                case BI_I64_ROTL -> { r[a] = Long.rotateLeft(r[b], (int) r[c]); pc += 4; }
+                case BI_I64_ROTR -> { r[a] = Long.rotateRight(r[b], (int) r[c]); pc += 4; }
+                // f32
+                case BI_F32_EQ -> { r[a] = wrapBoolean(longToFloat(r[b]) == longToFloat(r[c])); pc += 4; }
+                case BI_F32_NE -> { r[a] = wrapBoolean(longToFloat(r[b]) != longToFloat(r[c])); pc += 4; }
+                case BI_F32_LT -> { r[a] = wrapBoolean(longToFloat(r[b]) < longToFloat(r[c])); pc += 4; }
+                case BI_F32_GT -> { r[a] = wrapBoolean(longToFloat(r[b]) > longToFloat(r[c])); pc += 4; }
+                case BI_F32_LE -> { r[a] = wrapBoolean(longToFloat(r[b]) <= longToFloat(r[c])); pc += 4; }
+                case BI_F32_GE -> { r[a] = wrapBoolean(longToFloat(r[b]) >= longToFloat(r[c])); pc += 4; }
+                case UN_F32_ABS -> { r[a] = floatToLong(Math.abs(longToFloat(r[b]))); pc += 3; }
+                case UN_F32_NEG -> { r[a] = floatToLong(-longToFloat(r[b])); pc += 3; }
+                case UN_F32_SQRT -> { r[a] = floatToLong((float) Math.sqrt(longToFloat(r[b]))); pc += 3; }
+                case BI_F32_ADD -> { r[a] = floatToLong(longToFloat(r[b]) + longToFloat(r[c])); pc += 4; }
+                case BI_F32_SUB -> { r[a] = floatToLong(longToFloat(r[b]) - longToFloat(r[c])); pc += 4; }
+                case BI_F32_MUL -> { r[a] = floatToLong(longToFloat(r[b]) * longToFloat(r[c])); pc += 4; }
+                case BI_F32_DIV -> { r[a] = floatToLong(longToFloat(r[b]) / longToFloat(r[c])); pc += 4; }
+                case BI_F32_MIN -> { r[a] = floatToLong(Float.min(longToFloat(r[b]), longToFloat(r[c]))); pc += 4; }
+                case BI_F32_MAX -> { r[a] = floatToLong(Float.max(longToFloat(r[b]), longToFloat(r[c]))); pc += 4; }
+                case BI_F32_COPYSIGN -> { r[a] = floatToLong(Math.copySign(longToFloat(r[b]), longToFloat(r[c]))); pc += 4; }
+                // f64
+                case BI_F64_EQ -> { r[a] = wrapBoolean(longToDouble(r[b]) == longToDouble(r[c])); pc += 4; }
+                case BI_F64_NE -> { r[a] = wrapBoolean(longToDouble(r[b]) != longToDouble(r[c])); pc += 4; }
+                case BI_F64_LT -> { r[a] = wrapBoolean(longToDouble(r[b]) < longToDouble(r[c])); pc += 4; }
+                case BI_F64_GT -> { r[a] = wrapBoolean(longToDouble(r[b]) > longToDouble(r[c])); pc += 4; }
+                case BI_F64_LE -> { r[a] = wrapBoolean(longToDouble(r[b]) <= longToDouble(r[c])); pc += 4; }
+                case BI_F64_GE -> { r[a] = wrapBoolean(longToDouble(r[b]) >= longToDouble(r[c])); pc += 4; }
+                case UN_F64_ABS -> { r[a] = doubleToLong(Math.abs(longToDouble(r[b]))); pc += 3; }
+                case UN_F64_NEG -> { r[a] = doubleToLong(-longToDouble(r[b])); pc += 3; }
+                case UN_F64_SQRT -> { r[a] = doubleToLong(Math.sqrt(longToDouble(r[b]))); pc += 3; }
+                case BI_F64_ADD -> { r[a] = doubleToLong(longToDouble(r[b]) + longToDouble(r[c])); pc += 4; }
+                case BI_F64_SUB -> { r[a] = doubleToLong(longToDouble(r[b]) - longToDouble(r[c])); pc += 4; }
+                case BI_F64_MUL -> { r[a] = doubleToLong(longToDouble(r[b]) * longToDouble(r[c])); pc += 4; }
+                case BI_F64_DIV -> { r[a] = doubleToLong(longToDouble(r[b]) / longToDouble(r[c])); pc += 4; }
+                case BI_F64_MIN -> { r[a] = doubleToLong(Double.min(longToDouble(r[b]), longToDouble(r[c]))); pc += 4; }
+                case BI_F64_MAX -> { r[a] = doubleToLong(Double.max(longToDouble(r[b]), longToDouble(r[c]))); pc += 4; }
+                case BI_F64_COPYSIGN -> { r[a] = doubleToLong(Math.copySign(longToDouble(r[b]), longToDouble(r[c]))); pc += 4; }
+                // Conversions which can not trap. The others are stepped
+                case UN_I32_WRAP_I64, UN_I32_REINTERPRET_F32, UN_F32_REINTERPRET_I32, UN_I64_EXTEND32_S -> { r[a] = (int) r[b]; pc += 3; }
+                case UN_I64_EXTEND_I32_S, UN_I64_REINTERPRET_F64, UN_F64_REINTERPRET_I64 -> { r[a] = r[b]; pc += 3; }
+                case UN_I64_EXTEND_I32_U -> { r[a] = Integer.toUnsignedLong((int) r[b]); pc += 3; }
+                case UN_I32_EXTEND8_S, UN_I64_EXTEND8_S -> { r[a] = (byte) r[b]; pc += 3; }
+                case UN_I32_EXTEND16_S, UN_I64_EXTEND16_S -> { r[a] = (short) r[b]; pc += 3; }
+                case UN_F32_CONVERT_I32_S -> { r[a] = floatToLong((int) r[b]); pc += 3; }
+                case UN_F32_CONVERT_I64_S -> { r[a] = floatToLong(r[b]); pc += 3; }
+                case UN_F32_DEMOTE_F64 -> { r[a] = floatToLong((float) longToDouble(r[b])); pc += 3; }
+                case UN_F64_CONVERT_I32_S -> { r[a] = doubleToLong((int) r[b]); pc += 3; }
+                case UN_F64_CONVERT_I64_S -> { r[a] = doubleToLong(r[b]); pc += 3; }
+                case UN_F64_PROMOTE_F32 -> { r[a] = doubleToLong(longToFloat(r[b])); pc += 3; }
+                default -> throw new IllegalStateException(STR."Unexpected register op code: \{code[pc]} at \{pc}");
+            }
+        }
+    }
+
+    // Args are passed on the machine stack. Results are popped into the registers of the args
+    private static void pushArgs(Machine m, long[] r, int first, int n) {
+        for (int i = 0; i < n; i++) {
+            m.push(r[first + i]);
+        }
+    }
+
+    private static void popResults(Machine m, long[] r, int first, int n) {
+        for (int i = n - 1; i >= 0; i--) {
+            r[first + i] = m.pop();
+        }
+    }
+}
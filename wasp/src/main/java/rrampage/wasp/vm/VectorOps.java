@@ -0,0 +1,467 @@
+package rrampage.wasp.vm;
+
+import jdk.incubator.vector.*;
+import rrampage.wasp.data.Memory;
+import rrampage.wasp.instructions.VectorInstruction;
+import rrampage.wasp.instructions.VectorInstruction.Shape;
+import rrampage.wasp.instructions.VectorInstruction.VectorOp;
+
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.IntToLongFunction;
+
+import static jdk.incubator.vector.VectorOperators.*;
+
+/*
+    Executes SIMD instructions for the tree interpreter. Lane-wise operations are mapped to 128-bit species of the
+    Vector API, so that C2 compiles them to SSE/AVX or NEON instructions.
+    The class is only loaded once a SIMD instruction runs, so the jdk.incubator.vector module is needed only by modules using SIMD.
+    v128 values take two stack slots with the low 64 bits pushed first.
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+final class VectorOps {
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_128;
+    private static final VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_128;
+    // Operands are popped into buf: first operand at 0, second at 2 and third at 4. Results are written at 0
+    private final long[] buf = new long[6];
+
+    void execute(VectorInstruction ins, MachineStack stack, Machine machine) {
+        switch (ins) {
+            case VectorInstruction.V128Const(long low, long high) -> {
+                stack.push(low);
+                stack.push(high);
+            }
+            case VectorInstruction.V128Load l -> {
+                Memory memory = machine.getMainMemory();
+                int addr = (int) stack.pop() + l.offset();
+                long low = memory.loadLong(addr);
+                stack.push(low);
+                stack.push(memory.loadLong(addr + 8));
+            }
+            case VectorInstruction.V128Store s -> {
+                long high = stack.pop();
+                long low = stack.pop();
+                int addr = (int) stack.pop() + s.offset();
+                Memory memory = machine.getMainMemory();
+                // Check the whole range before writing, so that a failed store does not write the low half
+                memory.loadLong(addr + 8);
+                memory.store(addr, low);
+                memory.store(addr + 8, high);
+            }
+            case VectorInstruction.V128LoadSplat l -> {
+                Memory memory = machine.getMainMemory();
+                int addr = (int) stack.pop() + l.offset();
+                long val = switch (l.shape()) {
+                    case I8X16 -> memory.loadByte(addr);
+                    case I16X8 -> memory.loadShort(addr);
+                    case I32X4 -> memory.loadInt(addr);
+                    default -> memory.loadLong(addr);
+                };
+                splat(l.shape(), val);
+                pushResult(stack);
+            }
+            case VectorInstruction.V128LoadZero l -> {
+                Memory memory = machine.getMainMemory();
+                int addr = (int) stack.pop() + l.offset();
+                stack.push(l.shape() == Shape.I32X4 ? Integer.toUnsignedLong(memory.loadInt(addr)) : memory.loadLong(addr));
+                stack.push(0L);
+            }
+            case VectorInstruction.V128LoadExtend l -> {
+                int addr = (int) stack.pop() + l.offset();
+                buf[0] = machine.getMainMemory().loadLong(addr);
+                buf[1] = 0;
+                extend(l.shape(), false, l.signed());
+                pushResult(stack);
+            }
+            case VectorInstruction.V128LoadLane l -> {
+                long high = stack.pop();
+                long low = stack.pop();
+                Memory memory = machine.getMainMemory();
+                int addr = (int) stack.pop() + l.offset();
+                long val = switch (l.shape()) {
+                    case I8X16 -> memory.loadByte(addr);
+                    case I16X8 -> memory.loadShort(addr);
+                    case I32X4 -> memory.loadInt(addr);
+                    default -> memory.loadLong(addr);
+                };
+                pushReplaced(stack, l.shape(), l.lane(), low, high, val);
+            }
+            case VectorInstruction.V128StoreLane s -> {
+                long high = stack.pop();
+                long low = stack.pop();
+                Memory memory = machine.getMainMemory();
+                int addr = (int) stack.pop() + s.offset();
+                long val = extractLane(s.shape(), s.lane(), false, low, high);
+                switch (s.shape()) {
+                    case I8X16 -> memory.store(addr, (byte) val);
+                    case I16X8 -> memory.store(addr, (short) val);
+                    case I32X4 -> memory.store(addr, (int) val);
+                    default -> memory.store(addr, val);
+                }
+            }
+            case VectorInstruction.Shuffle s -> {
+                popOperand(stack, 2);
+                popOperand(stack, 0);
+                long low = 0, high = 0;
+                for (int i = 0; i < 16; i++) {
+                    int lane = s.lanes()[i];
+                    long b = byteAt(lane < 16 ? 0 : 2, lane & 15);
+                    if (i < 8) {
+                        low |= b << (i * 8);
+                    } else {
+                        high |= b << ((i - 8) * 8);
+                    }
+                }
+                stack.push(low);
+                stack.push(high);
+            }
+            case VectorInstruction.Splat s -> {
+                splat(s.shape(), stack.pop());
+                pushResult(stack);
+            }
+            case VectorInstruction.ExtractLane e -> {
+                long high = stack.pop();
+                long low = stack.pop();
+                stack.push(extractLane(e.shape(), e.lane(), e.signed(), low, high));
+            }
+            case VectorInstruction.ReplaceLane r -> {
+                long val = stack.pop();
+                long high = stack.pop();
+                long low = stack.pop();
+                pushReplaced(stack, r.shape(), r.lane(), low, high, val);
+            }
+            case VectorOp op -> execute(op, stack);
+        }
+    }
+
+    private void execute(VectorOp op, MachineStack stack) {
+        switch (op.kind()) {
+            case UNARY -> {
+                popOperand(stack, 0);
+                store(unary(op, load(op.shape(), 0)));
+                pushResult(stack);
+            }
+            case BINARY -> {
+                popOperand(stack, 2);
+                popOperand(stack, 0);
+                store(binary(op, load(op.shape(), 0), load(op.shape(), 2)));
+                pushResult(stack);
+            }
+            case TERNARY -> {
+                // v128.bitselect: bits of the first operand where the mask is set, otherwise bits of the second
+                popOperand(stack, 4);
+                popOperand(stack, 2);
+                popOperand(stack, 0);
+                store(load(Shape.I64X2, 2).lanewise(BITWISE_BLEND, load(Shape.I64X2, 0), load(Shape.I64X2, 4)));
+                pushResult(stack);
+            }
+            case SHIFT -> {
+                // The shift count is taken modulo the lane width, as in WASM
+                int count = (int) stack.pop();
+                popOperand(stack, 0);
+                Vector v = load(op.shape(), 0);
+                store(switch (op) {
+                    case I8X16_SHL, I16X8_SHL, I32X4_SHL, I64X2_SHL -> v.lanewise(LSHL, count);
+                    case I8X16_SHR_S, I16X8_SHR_S, I32X4_SHR_S, I64X2_SHR_S -> v.lanewise(ASHR, count);
+                    case I8X16_SHR_U, I16X8_SHR_U, I32X4_SHR_U, I64X2_SHR_U -> v.lanewise(LSHR, count);
+                    default -> throw new IllegalStateException("Unexpected value: " + op.opCode());
+                });
+                pushResult(stack);
+            }
+            case TEST -> {
+                popOperand(stack, 0);
+                Vector v = load(op.shape(), 0);
+                stack.push(switch (op) {
+                    case V128_ANY_TRUE -> (buf[0] | buf[1]) != 0 ? 1 : 0;
+                    case I8X16_ALL_TRUE, I16X8_ALL_TRUE, I32X4_ALL_TRUE, I64X2_ALL_TRUE -> v.compare(NE, 0).allTrue() ? 1 : 0;
+                    case I8X16_BITMASK, I16X8_BITMASK, I32X4_BITMASK, I64X2_BITMASK -> v.compare(LT, 0).toLong();
+                    default -> throw new IllegalStateException("Unexpected value: " + op.opCode());
+                });
+            }
+        }
+    }
+
+    private Vector unary(VectorOp op, Vector v) {
+        return switch (op) {
+            case V128_NOT -> v.lanewise(NOT);
+            case I8X16_ABS, I16X8_ABS, I32X4_ABS, I64X2_ABS, F32X4_ABS, F64X2_ABS -> v.lanewise(ABS);
+            case I8X16_NEG, I16X8_NEG, I32X4_NEG, I64X2_NEG, F32X4_NEG, F64X2_NEG -> v.lanewise(NEG);
+            case I8X16_POPCNT -> v.lanewise(BIT_COUNT);
+            case F32X4_SQRT, F64X2_SQRT -> v.lanewise(SQRT);
+            // Java casts saturate and map NaN to 0, as trunc_sat does
+            case I32X4_TRUNC_SAT_F32X4_S -> v.convert(F2I, 0);
+            case F32X4_CONVERT_I32X4_S -> v.convert(I2F, 0);
+            default -> laneByLane(op);
+        };
+    }
+
+    private Vector binary(VectorOp op, Vector a, Vector b) {
+        return switch (op) {
+            case V128_AND -> a.lanewise(AND, b);
+            case V128_ANDNOT -> a.lanewise(AND_NOT, b);
+            case V128_OR -> a.lanewise(OR, b);
+            case V128_XOR -> a.lanewise(XOR, b);
+            case I8X16_ADD, I16X8_ADD, I32X4_ADD, I64X2_ADD, F32X4_ADD, F64X2_ADD -> a.lanewise(ADD, b);
+            case I8X16_SUB, I16X8_SUB, I32X4_SUB, I64X2_SUB, F32X4_SUB, F64X2_SUB -> a.lanewise(SUB, b);
+            case I16X8_MUL, I32X4_MUL, I64X2_MUL, F32X4_MUL, F64X2_MUL -> a.lanewise(MUL, b);
+            case F32X4_DIV, F64X2_DIV -> a.lanewise(DIV, b);
+            // Signed and float min/max. Float lanes follow Math.min/max which propagate NaN and order -0.0 below 0.0
+            case I8X16_MIN_S, I16X8_MIN_S, I32X4_MIN_S, F32X4_MIN, F64X2_MIN -> a.lanewise(MIN, b);
+            case I8X16_MAX_S, I16X8_MAX_S, I32X4_MAX_S, F32X4_MAX, F64X2_MAX -> a.lanewise(MAX, b);
+            case I8X16_MIN_U, I16X8_MIN_U, I32X4_MIN_U -> b.blend(a, a.compare(UNSIGNED_LT, b));
+            case I8X16_MAX_U, I16X8_MAX_U, I32X4_MAX_U -> a.blend(b, a.compare(UNSIGNED_LT, b));
+            case I8X16_EQ, I16X8_EQ, I32X4_EQ, I64X2_EQ, F32X4_EQ, F64X2_EQ -> mask(op.shape(), a.compare(EQ, b));
+            case I8X16_NE, I16X8_NE, I32X4_NE, I64X2_NE, F32X4_NE, F64X2_NE -> mask(op.shape(), a.compare(NE, b));
+            case I8X16_LT_S, I16X8_LT_S, I32X4_LT_S, I64X2_LT_S, F32X4_LT, F64X2_LT -> mask(op.shape(), a.compare(LT, b));
+            case I8X16_GT_S, I16X8_GT_S, I32X4_GT_S, I64X2_GT_S, F32X4_GT, F64X2_GT -> mask(op.shape(), a.compare(GT, b));
+            case I8X16_LE_S, I16X8_LE_S, I32X4_LE_S, I64X2_LE_S, F32X4_LE, F64X2_LE -> mask(op.shape(), a.compare(LE, b));
+            case I8X16_GE_S, I16X8_GE_S, I32X4_GE_S, I64X2_GE_S, F32X4_GE, F64X2_GE -> mask(op.shape(), a.compare(GE, b));
+            case I8X16_LT_U, I16X8_LT_U, I32X4_LT_U -> mask(op.shape(), a.compare(UNSIGNED_LT, b));
+            case I8X16_GT_U, I16X8_GT_U, I32X4_GT_U -> mask(op.shape(), a.compare(UNSIGNED_GT, b));
+            case I8X16_LE_U, I16X8_LE_U, I32X4_LE_U -> mask(op.shape(), a.compare(UNSIGNED_LE, b));
+            case I8X16_GE_U, I16X8_GE_U, I32X4_GE_U -> mask(op.shape(), a.compare(UNSIGNED_GE, b));
+            // No saturating or swizzle operators in this version of the Vector API, so these go lane by lane
+            case I8X16_ADD_SAT_S, I8X16_ADD_SAT_U, I8X16_SUB_SAT_S, I8X16_SUB_SAT_U,
+                 I16X8_ADD_SAT_S, I16X8_ADD_SAT_U, I16X8_SUB_SAT_S, I16X8_SUB_SAT_U -> saturate(op);
+            case I8X16_SWIZZLE -> swizzle();
+            default -> laneByLane(op);
+        };
+    }
+
+    // Comparisons produce lanes of all ones or all zeroes. Float masks are converted to integer lanes of the same width
+    private static Vector mask(Shape shape, VectorMask m) {
+        return switch (shape) {
+            case F32X4 -> m.cast(INT_SPECIES).toVector();
+            case F64X2 -> m.cast(SPECIES).toVector();
+            default -> m.toVector();
+        };
+    }
+
+    private Vector saturate(VectorOp op) {
+        Shape shape = op.shape();
+        boolean signed = switch (op) {
+            case I8X16_ADD_SAT_S, I8X16_SUB_SAT_S, I16X8_ADD_SAT_S, I16X8_SUB_SAT_S -> true;
+            default -> false;
+        };
+        boolean add = switch (op) {
+            case I8X16_ADD_SAT_S, I8X16_ADD_SAT_U, I16X8_ADD_SAT_S, I16X8_ADD_SAT_U -> true;
+            default -> false;
+        };
+        int bits = shape.laneBits();
+        long min = signed ? -(1L << (bits - 1)) : 0, max = signed ? (1L << (bits - 1)) - 1 : (1L << bits) - 1;
+        long low = 0, high = 0;
+        for (int i = 0; i < shape.lanes(); i++) {
+            long l = extractLane(shape, i, signed, buf[0], buf[1]);
+            long r = extractLane(shape, i, signed, buf[2], buf[3]);
+            long v = Math.clamp(add ? l + r : l - r, min, max) & ((1L << bits) - 1);
+            int pos = i * bits;
+            if (pos < 64) {
+                low |= v << pos;
+            } else {
+                high |= v << (pos - 64);
+            }
+        }
+        buf[0] = low;
+        buf[1] = high;
+        return load(Shape.I64X2, 0);
+    }
+
+    private Vector swizzle() {
+        long low = 0, high = 0;
+        for (int i = 0; i < 16; i++) {
+            int lane = (int) extractLane(Shape.I8X16, i, false, buf[2], buf[3]);
+            long b = lane < 16 ? byteAt(0, lane) : 0;
+            if (i < 8) {
+                low |= b << (i * 8);
+            } else {
+                high |= b << ((i - 8) * 8);
+            }
+        }
+        buf[0] = low;
+        buf[1] = high;
+        return load(Shape.I64X2, 0);
+    }
+
+    // Operations which change the lane width or round floats have no single Vector API operator, so they go lane by lane
+    private Vector laneByLane(VectorOp op) {
+        Shape shape = op.shape();
+        switch (op) {
+            case I16X8_EXTEND_LOW_I8X16_S, I32X4_EXTEND_LOW_I16X8_S, I64X2_EXTEND_LOW_I32X4_S -> extend(shape, false, true);
+            case I16X8_EXTEND_HIGH_I8X16_S, I32X4_EXTEND_HIGH_I16X8_S, I64X2_EXTEND_HIGH_I32X4_S -> extend(shape, true, true);
+            case I16X8_EXTEND_LOW_I8X16_U, I32X4_EXTEND_LOW_I16X8_U, I64X2_EXTEND_LOW_I32X4_U -> extend(shape, false, false);
+            case I16X8_EXTEND_HIGH_I8X16_U, I32X4_EXTEND_HIGH_I16X8_U, I64X2_EXTEND_HIGH_I32X4_U -> extend(shape, true, false);
+            case I16X8_EXTMUL_LOW_I8X16_S, I32X4_EXTMUL_LOW_I16X8_S, I64X2_EXTMUL_LOW_I32X4_S -> extmul(shape, false, true);
+            case I16X8_EXTMUL_HIGH_I8X16_S, I32X4_EXTMUL_HIGH_I16X8_S, I64X2_EXTMUL_HIGH_I32X4_S -> extmul(shape, true, true);
+            case I16X8_EXTMUL_LOW_I8X16_U, I32X4_EXTMUL_LOW_I16X8_U, I64X2_EXTMUL_LOW_I32X4_U -> extmul(shape, false, false);
+            case I16X8_EXTMUL_HIGH_I8X16_U, I32X4_EXTMUL_HIGH_I16X8_U, I64X2_EXTMUL_HIGH_I32X4_U -> extmul(shape, true, false);
+            case I16X8_EXTADD_PAIRWISE_I8X16_S, I32X4_EXTADD_PAIRWISE_I16X8_S ->
+                    lanes(widened(shape), i -> lane(0, shape, 2 * i, true) + lane(0, shape, 2 * i + 1, true));
+            case I16X8_EXTADD_PAIRWISE_I8X16_U, I32X4_EXTADD_PAIRWISE_I16X8_U ->
+                    lanes(widened(shape), i -> lane(0, shape, 2 * i, false) + lane(0, shape, 2 * i + 1, false));
+            case I8X16_NARROW_I16X8_S, I16X8_NARROW_I32X4_S -> narrow(shape, true);
+            case I8X16_NARROW_I16X8_U, I16X8_NARROW_I32X4_U -> narrow(shape, false);
+            case I32X4_DOT_I16X8_S -> lanes(Shape.I32X4, i -> lane(0, shape, 2 * i, true) * lane(2, shape, 2 * i, true)
+                    + lane(0, shape, 2 * i + 1, true) * lane(2, shape, 2 * i + 1, true));
+            case I8X16_AVGR_U, I16X8_AVGR_U -> lanes(shape, i -> (lane(0, shape, i, false) + lane(2, shape, i, false) + 1) >>> 1);
+            case I16X8_Q15MULR_SAT_S -> lanes(shape, i ->
+                    Math.clamp((lane(0, shape, i, true) * lane(2, shape, i, true) + 0x4000) >> 15, Short.MIN_VALUE, Short.MAX_VALUE));
+            case F32X4_CEIL -> mapF32(Math::ceil);
+            case F32X4_FLOOR -> mapF32(Math::floor);
+            case F32X4_TRUNC -> mapF32(VectorOps::trunc);
+            case F32X4_NEAREST -> mapF32(Math::rint);
+            case F64X2_CEIL -> mapF64(Math::ceil);
+            case F64X2_FLOOR -> mapF64(Math::floor);
+            case F64X2_TRUNC -> mapF64(VectorOps::trunc);
+            case F64X2_NEAREST -> mapF64(Math::rint);
+            // pmin and pmax return one of the operands unchanged, unlike min and max which propagate NaN
+            case F32X4_PMIN, F64X2_PMIN -> lanes(shape, i -> fLane(2, shape, i) < fLane(0, shape, i) ? lane(2, shape, i, false) : lane(0, shape, i, false));
+            case F32X4_PMAX, F64X2_PMAX -> lanes(shape, i -> fLane(0, shape, i) < fLane(2, shape, i) ? lane(2, shape, i, false) : lane(0, shape, i, false));
+            case F32X4_DEMOTE_F64X2_ZERO -> lanes(Shape.F32X4, i -> i < 2 ? Float.floatToRawIntBits((float) fLane(0, shape, i)) : 0);
+            case F64X2_PROMOTE_LOW_F32X4 -> lanes(Shape.F64X2, i -> Double.doubleToRawLongBits(fLane(0, shape, i)));
+            case I32X4_TRUNC_SAT_F32X4_U -> lanes(Shape.I32X4, i -> truncSatU(fLane(0, shape, i)));
+            case I32X4_TRUNC_SAT_F64X2_S_ZERO -> lanes(Shape.I32X4, i -> i < 2 ? (int) fLane(0, shape, i) : 0);
+            case I32X4_TRUNC_SAT_F64X2_U_ZERO -> lanes(Shape.I32X4, i -> i < 2 ? truncSatU(fLane(0, shape, i)) : 0);
+            // long to float and int to double conversions round to nearest, as WASM does
+            case F32X4_CONVERT_I32X4_U -> lanes(Shape.F32X4, i -> Float.floatToRawIntBits((float) lane(0, shape, i, false)));
+            case F64X2_CONVERT_LOW_I32X4_S -> lanes(Shape.F64X2, i -> Double.doubleToRawLongBits(lane(0, shape, i, true)));
+            case F64X2_CONVERT_LOW_I32X4_U -> lanes(Shape.F64X2, i -> Double.doubleToRawLongBits(lane(0, shape, i, false)));
+            default -> throw new IllegalStateException("Unexpected value: " + op.opCode());
+        }
+        return load(Shape.I64X2, 0);
+    }
+
+    // Extends the low or high half of the lanes of the first operand to twice their width
+    private void extend(Shape shape, boolean high, boolean signed) {
+        Shape wide = widened(shape);
+        int first = high ? wide.lanes() : 0;
+        lanes(wide, i -> lane(0, shape, first + i, signed));
+    }
+
+    private void extmul(Shape shape, boolean high, boolean signed) {
+        Shape wide = widened(shape);
+        int first = high ? wide.lanes() : 0;
+        lanes(wide, i -> lane(0, shape, first + i, signed) * lane(2, shape, first + i, signed));
+    }
+
+    // Lanes of both operands are read as signed and saturated to half their width, first operand in the low lanes
+    private void narrow(Shape shape, boolean signed) {
+        Shape half = Shape.values()[shape.ordinal() - 1];
+        int bits = half.laneBits(), n = shape.lanes();
+        long min = signed ? -(1L << (bits - 1)) : 0, max = signed ? (1L << (bits - 1)) - 1 : (1L << bits) - 1;
+        lanes(half, i -> Math.clamp(i < n ? lane(0, shape, i, true) : lane(2, shape, i - n, true), min, max));
+    }
+
+    private void mapF32(DoubleUnaryOperator f) {
+        lanes(Shape.F32X4, i -> Float.floatToRawIntBits((float) f.applyAsDouble(fLane(0, Shape.F32X4, i))));
+    }
+
+    private void mapF64(DoubleUnaryOperator f) {
+        lanes(Shape.F64X2, i -> Double.doubleToRawLongBits(f.applyAsDouble(fLane(0, Shape.F64X2, i))));
+    }
+
+    private static double trunc(double d) {
+        return d < 0 ? Math.ceil(d) : Math.floor(d);
+    }
+
+    // NaN and negative values become 0 and values above the range become the largest u32
+    private static long truncSatU(double d) {
+        return Math.clamp((long) d, 0, 0xffffffffL);
+    }
+
+    private static Shape widened(Shape shape) {
+        return Shape.values()[shape.ordinal() + 1];
+    }
+
+    // Writes the lanes of the given shape computed by f to buf[0] and buf[1]. Bits above the lane width are dropped
+    private void lanes(Shape shape, IntToLongFunction f) {
+        int bits = shape.laneBits();
+        long mask = (bits == 64) ? -1L : (1L << bits) - 1;
+        long low = 0, high = 0;
+        for (int i = 0; i < shape.lanes(); i++) {
+            long v = f.applyAsLong(i) & mask;
+            int pos = i * bits;
+            if (pos < 64) {
+                low |= v << pos;
+            } else {
+                high |= v << (pos - 64);
+            }
+        }
+        buf[0] = low;
+        buf[1] = high;
+    }
+
+    private long lane(int operand, Shape shape, int lane, boolean signed) {
+        long v = extractLane(shape, lane, signed, buf[operand], buf[operand + 1]);
+        return (!signed && shape.laneBits() == 32) ? v & 0xffffffffL : v;
+    }
+
+    private double fLane(int operand, Shape shape, int lane) {
+        long bits = extractLane(shape, lane, false, buf[operand], buf[operand + 1]);
+        return (shape.laneBits() == 32) ? Float.intBitsToFloat((int) bits) : Double.longBitsToDouble(bits);
+    }
+
+    private long byteAt(int operand, int lane) {
+        return (buf[operand + (lane >> 3)] >>> ((lane & 7) * 8)) & 0xff;
+    }
+
+    private void splat(Shape shape, long val) {
+        Vector v = switch (shape) {
+            case I8X16 -> ByteVector.broadcast(ByteVector.SPECIES_128, (byte) val);
+            case I16X8 -> ShortVector.broadcast(ShortVector.SPECIES_128, (short) val);
+            case I32X4, F32X4 -> IntVector.broadcast(INT_SPECIES, (int) val);
+            case I64X2, F64X2 -> LongVector.broadcast(SPECIES, val);
+        };
+        store(v);
+    }
+
+    private static void pushReplaced(MachineStack stack, Shape shape, int lane, long low, long high, long val) {
+        int bits = shape.laneBits();
+        int pos = lane * bits;
+        long mask = (bits == 64) ? -1L : ((1L << bits) - 1) << (pos & 63);
+        long shifted = val << (pos & 63);
+        if (pos < 64) {
+            low = (low & ~mask) | (shifted & mask);
+        } else {
+            high = (high & ~mask) | (shifted & mask);
+        }
+        stack.push(low);
+        stack.push(high);
+    }
+
+    static long extractLane(Shape shape, int lane, boolean signed, long low, long high) {
+        int bits = shape.laneBits();
+        int pos = lane * bits;
+        long word = (pos < 64) ? low : high;
+        if (bits == 64) {
+            return word;
+        }
+        long v = word >>> (pos & 63);
+        // i32 and f32 lanes are sign extended, as all 32-bit values on the stack
+        return (signed || bits == 32) ? (v << (64 - bits)) >> (64 - bits) : v & ((1L << bits) - 1);
+    }
+
+    private void popOperand(MachineStack stack, int idx) {
+        buf[idx + 1] = stack.pop();
+        buf[idx] = stack.pop();
+    }
+
+    private Vector load(Shape shape, int idx) {
+        LongVector v = LongVector.fromArray(SPECIES, buf, idx);
+        return switch (shape) {
+            case I8X16 -> v.reinterpretAsBytes();
+            case I16X8 -> v.reinterpretAsShorts();
+            case I32X4 -> v.reinterpretAsInts();
+            case I64X2 -> v;
+            case F32X4 -> v.reinterpretAsFloats();
+            case F64X2 -> v.reinterpretAsDoubles();
+        };
+    }
+
+    private void store(Vector v) {
+        v.reinterpretAsLongs().intoArray(buf, 0);
+    }
+
+    private void pushResult(MachineStack stack) {
+        stack.push(buf[0]);
+        stack.push(buf[1]);
+    }
+}
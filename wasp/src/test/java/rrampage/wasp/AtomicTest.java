@@ -0,0 +1,178 @@
+package rrampage.wasp;
+
+import org.junit.jupiter.api.Test;
+import rrampage.wasp.data.*;
+import rrampage.wasp.data.Module;
+import rrampage.wasp.instructions.*;
+import rrampage.wasp.instructions.AtomicInstruction.*;
+import rrampage.wasp.parser.WasmParser;
+import rrampage.wasp.parser.types.ImportDescriptor;
+import rrampage.wasp.validator.Validator;
+import rrampage.wasp.vm.Machine;
+import rrampage.wasp.vm.MachineConfig;
+import rrampage.wasp.vm.MachineVisitors;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static rrampage.wasp.data.ValueType.NumType.*;
+
+public class AtomicTest {
+    private static final int THREADS = 4;
+    private static final int ITERATIONS = 10000;
+
+    @Test
+    public void shouldShareMemoryBetweenMachinesOnThreads() throws Exception {
+        // (import "env" "memory" (memory 1 1 shared))
+        // (func (result i32) (local i32)
+        //   (loop (i32.atomic.rmw.add (i32.const 0) (i32.const 1)) drop
+        //     (br_if 0 (i32.lt_s (local.tee 0 (i32.add (local.get 0) (i32.const 1))) (i32.const 10000))))
+        //   (i32.atomic.load (i32.const 0)))
+        byte[] body = {0x01, 0x01, 0x7f, 0x03, 0x40, 0x41, 0x00, 0x41, 0x01, (byte) 0xfe, 0x1e, 0x02, 0x00, 0x1a,
+                0x20, 0x00, 0x41, 0x01, 0x6a, 0x22, 0x00, 0x41, (byte) 0x90, (byte) 0xce, 0x00, 0x48, 0x0d, 0x00, 0x0b,
+                0x41, 0x00, (byte) 0xfe, 0x10, 0x02, 0x00, 0x0b};
+        Module module = new WasmParser(module(body), WasmParser.CodeParsing.EAGER).parseModule();
+        assertEquals(new ImportDescriptor.MemoryDescriptor(1, 1, true), module.imports()[0].importDescriptor());
+        assertEquals(new AtomicRmw(RmwOp.ADD, I32, 4, 2, 0), module.functions()[0].code()[0] instanceof ControlFlowInstruction.Loop l ? l.code()[2] : null);
+        assertEquals("i32.atomic.rmw.add", new AtomicRmw(RmwOp.ADD, I32, 4, 2, 0).opCode());
+        for (MachineConfig config : new MachineConfig[]{MachineConfig.DEFAULT, MachineConfig.ConfigBuilder.of().jit(true).build()}) {
+            Memory shared = new SegmentMemory(1, 1, true);
+            Map<String, Map<String, Object>> imports = Map.of("env", Map.of("memory", shared));
+            try (ExecutorService executor = Executors.newFixedThreadPool(THREADS)) {
+                List<Future<Integer>> results = new ArrayList<>();
+                for (int i = 0; i < THREADS; i++) {
+                    Machine machine = module.instantiate(imports, MachineVisitors.NULL_VISITOR, config);
+                    results.add(executor.submit(() -> machine.exportedFunction("run").invokeInt()));
+                }
+                for (Future<Integer> result : results) {
+                    assertTrue(result.get() >= ITERATIONS);
+                }
+            }
+            assertEquals(THREADS * ITERATIONS, shared.loadInt(0));
+            // Atomics run in flat code
+            assertFalse(module.functions()[0].cache().hasFlatCodeError());
+        }
+        // An unshared memory does not match a shared import
+        assertThrows(RuntimeException.class, () -> module.instantiate(Map.of("env", Map.of("memory", new SegmentMemory(1, 1))),
+                MachineVisitors.NULL_VISITOR, MachineConfig.DEFAULT));
+    }
+
+    @Test
+    public void shouldWaitUntilNotified() throws Exception {
+        Memory shared = new SegmentMemory(1, 1, true);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            Future<Long> waiter = executor.submit(() -> run(shared, new ConstInstruction.IntConst(8), new ConstInstruction.IntConst(0),
+                    new ConstInstruction.LongConst(-1), new AtomicWait(4, 2, 0)));
+            // The waiter may not be parked yet
+            int woken = 0;
+            while (woken == 0) {
+                woken = (int) run(shared, new ConstInstruction.IntConst(8), new ConstInstruction.IntConst(1), new AtomicNotify(2, 0));
+                Thread.yield();
+            }
+            assertEquals(1, woken);
+            assertEquals(0L, waiter.get());
+        }
+        // Not equal and timed out
+        assertEquals(1L, run(shared, new ConstInstruction.IntConst(0), new ConstInstruction.LongConst(1),
+                new ConstInstruction.LongConst(-1), new AtomicWait(8, 3, 0)));
+        assertEquals(2L, run(shared, new ConstInstruction.IntConst(0), new ConstInstruction.LongConst(0),
+                new ConstInstruction.LongConst(1_000_000), new AtomicWait(8, 3, 0)));
+        assertEquals(0, shared.atomicNotify(8, -1));
+        // Waiting on an unshared memory traps and notify wakes no one
+        Memory unshared = new Memory(1);
+        assertThrows(RuntimeException.class, () -> unshared.atomicWait(0, 4, 0, 0));
+        assertEquals(0, unshared.atomicNotify(0, 1));
+    }
+
+    @Test
+    public void shouldRunNarrowAndWideAtomics() {
+        for (Memory memory : new Memory[]{new Memory(1), new SegmentMemory(1), new SegmentMemory(1, 1, true)}) {
+            memory.store(8, 0x11223344_55667788L);
+            // Old value of a narrow access is zero-extended
+            assertEquals(0x88L, run(memory, new ConstInstruction.IntConst(8), new ConstInstruction.IntConst(0x7f),
+                    new AtomicRmw(RmwOp.ADD, I32, 1, 0, 0)));
+            assertEquals(0x11223344_55667707L, memory.loadLong(8));
+            assertEquals(0x5566L, run(memory, new ConstInstruction.IntConst(10), new ConstInstruction.LongConst(0x5567),
+                    new ConstInstruction.LongConst(1), new AtomicCmpxchg(I64, 2, 1, 0)));
+            assertEquals(0x11223344_55667707L, memory.loadLong(8));
+            assertEquals(0x5566L, run(memory, new ConstInstruction.IntConst(10), new ConstInstruction.LongConst(0x15566),
+                    new ConstInstruction.LongConst(-1), new AtomicCmpxchg(I64, 2, 1, 0)));
+            assertEquals(0x11223344_ffff7707L, memory.loadLong(8));
+            // i32 results are sign-extended on the stack and i64.rmw32 results are zero-extended
+            assertEquals(0xffff7707L, run(memory, new ConstInstruction.IntConst(8), new ConstInstruction.LongConst(-1),
+                    new AtomicRmw(RmwOp.XCHG, I64, 4, 2, 0)));
+            assertEquals(-1L, run(memory, new ConstInstruction.IntConst(0), new AtomicLoad(I32, 4, 2, 8)));
+            assertEquals(0xffL, run(memory, new ConstInstruction.IntConst(0), new ConstInstruction.IntConst(-1),
+                    new AtomicStore(I32, 1, 0, 16), new ConstInstruction.IntConst(16), new AtomicLoad(I32, 1, 0, 0)));
+            assertEquals(0x11223344_fffffff0L, run(memory, new ConstInstruction.IntConst(8), new ConstInstruction.LongConst(0x0f),
+                    new AtomicRmw(RmwOp.SUB, I64, 8, 3, 0), new AtomicFence(), UnaryInstruction.DROP,
+                    new ConstInstruction.IntConst(8), new ConstInstruction.LongConst(0x0f), new AtomicRmw(RmwOp.ADD, I64, 8, 3, 0)));
+            assertEquals(0xf0L, run(memory, new ConstInstruction.IntConst(20), new ConstInstruction.IntConst(0x0f0),
+                    new AtomicRmw(RmwOp.OR, I32, 2, 1, 0), UnaryInstruction.DROP, new ConstInstruction.IntConst(20),
+                    new AtomicLoad(I32, 2, 1, 0)));
+            assertEquals(0xf0, memory.loadInt(20));
+            // Unaligned atomics trap
+            assertThrows(RuntimeException.class, () -> run(memory, new ConstInstruction.IntConst(2), new AtomicLoad(I32, 4, 2, 0)));
+        }
+    }
+
+    @Test
+    public void shouldShareSharedMemoryWithForks() {
+        Memory heap = new Memory(1), shared = new SegmentMemory(1, 2, true);
+        Machine machine = new Machine(new Function[]{Function.createStartFunction("start", new Instruction[0])}, null, null,
+                new Memory[]{heap, shared}, null, null, Map.of("heap", heap, "shared", shared), 0, MachineVisitors.NULL_VISITOR);
+        Machine fork = machine.snapshot().fork();
+        // Private memories are copied on write while the shared memory is the same for every fork
+        assertNotSame(heap, fork.exports().get("heap"));
+        assertSame(shared, fork.exports().get("shared"));
+        ((Memory) fork.exports().get("shared")).store(0, 42);
+        assertEquals(42, shared.loadInt(0));
+        assertEquals(1, shared.grow(1));
+        assertSame(shared, machine.snapshot().fork().exports().get("shared"));
+        assertThrows(RuntimeException.class, () -> MemorySnapshot.of(shared));
+        // A heap memory can not be shared, as it could not grow while other threads use it
+        assertThrows(RuntimeException.class, () -> new Memory(1, 1, true));
+    }
+
+    @Test
+    public void shouldValidateAtomics() {
+        Validator validator = Validator.of(new Function[0], new Variable[0]);
+        Function f = new Function("f", FunctionType.I32_RETURN, new ValueType[0], new Instruction[]{
+                new ConstInstruction.IntConst(0), new ConstInstruction.LongConst(1), new ConstInstruction.LongConst(2),
+                new AtomicCmpxchg(I64, 8, 3, 0), UnaryInstruction.DROP, new ConstInstruction.IntConst(0),
+                new ConstInstruction.IntConst(1), new AtomicNotify(2, 0)});
+        assertEquals(3, validator.validate(f));
+        Function mismatch = new Function("f", FunctionType.I32_RETURN, new ValueType[0], new Instruction[]{
+                new ConstInstruction.IntConst(0), new ConstInstruction.IntConst(1), new AtomicRmw(RmwOp.ADD, I64, 8, 3, 0)});
+        assertEquals(-1, validator.validate(mismatch));
+        Function misaligned = new Function("f", FunctionType.I32_RETURN, new ValueType[0], new Instruction[]{
+                new ConstInstruction.IntConst(0), new AtomicLoad(I32, 4, 0, 0)});
+        assertEquals(-1, validator.validate(misaligned));
+        assertTrue(misaligned.cache().validationError().contains("alignment"), misaligned.cache().validationError());
+    }
+
+    private static long run(Memory memory, Instruction... code) {
+        Machine m = new Machine(new Function[]{Function.createStartFunction("atomic", code)}, null, null, new Memory[]{memory},
+                null, null, null, 0, MachineVisitors.NULL_VISITOR);
+        return m.pop();
+    }
+
+    // Module importing a shared memory with one exported function "run" of type [] -> [i32] and the given body
+    private static byte[] module(byte[] body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(new byte[]{0x00, 0x61, 0x73, 0x6d, 0x01, 0x00, 0x00, 0x00});
+        out.writeBytes(new byte[]{0x01, 0x05, 0x01, 0x60, 0x00, 0x01, 0x7f}); // type section
+        out.writeBytes(new byte[]{0x02, 0x10, 0x01, 0x03, 'e', 'n', 'v', 0x06, 'm', 'e', 'm', 'o', 'r', 'y', 0x02, 0x03, 0x01, 0x01}); // import section
+        out.writeBytes(new byte[]{0x03, 0x02, 0x01, 0x00}); // function section
+        out.writeBytes(new byte[]{0x07, 0x07, 0x01, 0x03, 'r', 'u', 'n', 0x00, 0x00}); // export section
+        out.writeBytes(new byte[]{0x0a, (byte) (body.length + 2), 0x01, (byte) body.length}); // code section
+        out.writeBytes(body);
+        return out.toByteArray();
+    }
+}
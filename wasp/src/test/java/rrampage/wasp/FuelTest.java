@@ -0,0 +1,82 @@
+package rrampage.wasp;
+
+import org.junit.jupiter.api.Test;
+import rrampage.wasp.data.*;
+import rrampage.wasp.instructions.*;
+import rrampage.wasp.vm.Invocation;
+import rrampage.wasp.vm.Machine;
+import rrampage.wasp.vm.MachineConfig;
+import rrampage.wasp.vm.MachineVisitors;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FuelTest {
+    private static final MachineConfig.ConfigBuilder[] TIERS = {
+            MachineConfig.ConfigBuilder.of().interpreter(MachineConfig.Interpreter.TREE),
+            MachineConfig.ConfigBuilder.of().interpreter(MachineConfig.Interpreter.FLAT),
+            MachineConfig.ConfigBuilder.of().interpreter(MachineConfig.Interpreter.STACKLESS),
+            MachineConfig.ConfigBuilder.of().interpreter(MachineConfig.Interpreter.CLOSURE),
+            MachineConfig.ConfigBuilder.of().interpreter(MachineConfig.Interpreter.REGISTER),
+            MachineConfig.ConfigBuilder.of().jit(true),
+    };
+
+    @Test
+    public void shouldChargeSameFuelOnEveryTier() {
+        for (MachineConfig.ConfigBuilder tier : TIERS) {
+            Machine machine = machine(tier.fuel(1_000_000).build());
+            assertEquals(5050, machine.exportedFunction("sum").invokeInt(100));
+            // Entering sum costs 3 and each of the 100 iterations costs 10
+            assertEquals(1_000_000 - 1003, machine.fuel(), tier.build().interpreter().toString());
+        }
+        MachineConfig unmetered = MachineConfig.ConfigBuilder.of().build();
+        assertFalse(unmetered.isFuelMetered());
+        assertEquals(Long.MAX_VALUE, machine(unmetered).fuel());
+    }
+
+    @Test
+    public void shouldTrapWhenOutOfFuel() {
+        for (MachineConfig.ConfigBuilder tier : TIERS) {
+            Machine machine = machine(tier.fuel(1000).build());
+            RuntimeException e = assertThrows(RuntimeException.class, () -> machine.exportedFunction("spin").invoke());
+            assertTrue(e.getMessage().startsWith("OUT_OF_FUEL"), e.getMessage());
+            assertTrue(machine.fuel() < 0);
+        }
+    }
+
+    @Test
+    public void shouldYieldInvocationWhenOutOfFuel() {
+        Machine machine = machine(MachineConfig.ConfigBuilder.of().interpreter(MachineConfig.Interpreter.STACKLESS).fuel(0).build());
+        Invocation invocation = machine.exportedFunction("sum").start(1000);
+        int slices = 0;
+        while (!invocation.resume()) {
+            slices++;
+            machine.addFuel(100);
+        }
+        assertEquals(500500, invocation.result());
+        // 3 + 1000 * 10 fuel handed out 100 at a time
+        assertEquals(101, slices);
+        // Yielding never traps, so a guest which never finishes can be time sliced indefinitely
+        Invocation spin = machine.exportedFunction("spin").start();
+        for (int i = 0; i < 10; i++) {
+            machine.addFuel(1000);
+            assertFalse(spin.resume());
+        }
+    }
+
+    // sum(n) adds n, n - 1, ..., 1 in a loop. spin() loops forever
+    private static Machine machine(MachineConfig config) {
+        FunctionType i32ToI32 = new FunctionType(new ValueType[]{ValueType.NumType.I32}, new ValueType[]{ValueType.NumType.I32});
+        Function sum = new Function("sum", i32ToI32, new ValueType[]{ValueType.NumType.I32}, new Instruction[]{
+                new ControlFlowInstruction.Loop(1, null, new Instruction[]{
+                        new FunctionInstruction.LocalGet(1), new FunctionInstruction.LocalGet(0), IntBinaryInstruction.I32_ADD,
+                        new FunctionInstruction.LocalSet(1), new FunctionInstruction.LocalGet(0), new ConstInstruction.IntConst(1),
+                        IntBinaryInstruction.I32_SUB, new FunctionInstruction.LocalTee(0), new ControlFlowInstruction.BranchIf(1)}),
+                new FunctionInstruction.LocalGet(1)});
+        Function spin = new Function("spin", FunctionType.VOID, null, new Instruction[]{
+                new ControlFlowInstruction.Loop(1, null, new Instruction[]{new ControlFlowInstruction.Branch(1)})});
+        return new Machine(new Function[]{sum, spin}, null, null, new Memory[]{new Memory(1)}, null, null,
+                Map.of("sum", sum, "spin", spin), -1, MachineVisitors.NULL_VISITOR, config);
+    }
+}
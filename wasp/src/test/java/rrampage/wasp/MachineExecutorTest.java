@@ -0,0 +1,136 @@
+package rrampage.wasp;
+
+import org.junit.jupiter.api.Test;
+import rrampage.wasp.data.*;
+import rrampage.wasp.instructions.*;
+import rrampage.wasp.vm.Machine;
+import rrampage.wasp.vm.MachineExecutor;
+import rrampage.wasp.vm.MachineVisitors;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MachineExecutorTest {
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger maxActive = new AtomicInteger();
+    private final CountDownLatch interrupted = new CountDownLatch(1);
+    private final CountDownLatch held = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Test
+    public void shouldCapParallelismAcrossMachines() throws Exception {
+        try (MachineExecutor executor = MachineExecutor.ExecutorBuilder.of().parallelism(8).build()) {
+            List<CompletableFuture<Long>> results = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                results.add(executor.submit(machine("sleep").exportedFunction("run"), i));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals(i + 1, results.get(i).get());
+            }
+            assertEquals(0, executor.running());
+        }
+        assertTrue(maxActive.get() <= 8, STR."\{maxActive.get()}");
+        assertTrue(maxActive.get() > 1, STR."\{maxActive.get()}");
+    }
+
+    @Test
+    public void shouldRunInvocationsOfOneMachineOneAtATime() throws Exception {
+        Machine machine = machine("sleep");
+        try (MachineExecutor executor = MachineExecutor.ExecutorBuilder.of().parallelism(8).build()) {
+            List<CompletableFuture<Long>> results = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                results.add(executor.submit(machine.exportedFunction("run"), i));
+            }
+            // Tasks can run several calls without other invocations in between
+            CompletableFuture<Integer> sum = executor.submit(machine,
+                    m -> m.exportedFunction("run").invokeInt(1) + m.exportedFunction("run").invokeInt(2), null);
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals(i + 1, results.get(i).get());
+            }
+            assertEquals(5, sum.get());
+        }
+        assertEquals(1, maxActive.get());
+    }
+
+    @Test
+    public void shouldNotLetOneMachineTakeEveryPermit() throws Exception {
+        int parallelism = 2;
+        try (MachineExecutor executor = MachineExecutor.ExecutorBuilder.of().parallelism(parallelism).build()) {
+            Machine busy = machine("hold");
+            List<CompletableFuture<Long>> queued = new ArrayList<>();
+            for (int i = 0; i <= parallelism; i++) {
+                queued.add(executor.submit(busy.exportedFunction("run"), i));
+            }
+            try {
+                // Let the other invocations of the busy machine queue up behind the first one
+                assertTrue(held.await(10, TimeUnit.SECONDS));
+                Thread.sleep(100);
+                assertEquals(3, executor.submit(machine("sleep").exportedFunction("run"), 2).get(10, TimeUnit.SECONDS));
+                assertTrue(queued.stream().noneMatch(CompletableFuture::isDone));
+            } finally {
+                release.countDown();
+            }
+            for (int i = 0; i < queued.size(); i++) {
+                assertEquals(i + 1, queued.get(i).get());
+            }
+        }
+    }
+
+    @Test
+    public void shouldInterruptInvocationAfterDeadline() throws Exception {
+        try (MachineExecutor executor = MachineExecutor.ExecutorBuilder.of().deadline(Duration.ofMillis(50)).build()) {
+            CompletableFuture<Long> blocked = executor.submit(machine("block").exportedFunction("run"), 1);
+            ExecutionException e = assertThrows(ExecutionException.class, blocked::get);
+            assertInstanceOf(TimeoutException.class, e.getCause());
+            // The host function blocked on the guest's behalf sees the interrupt
+            assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+            // Other machines are unaffected
+            assertEquals(3, executor.submit(machine("sleep").exportedFunction("run"), Duration.ofSeconds(10), 2).get());
+        }
+    }
+
+    // (func (param i32) (result i32) (i32.add (local.get 0) (call $host)))
+    private Machine machine(String host) throws Exception {
+        FunctionType i32ToI32 = new FunctionType(new ValueType[]{ValueType.NumType.I32}, new ValueType[]{ValueType.NumType.I32});
+        Function hostFunction = Function.createImportFunction(host, FunctionType.I32_RETURN,
+                MethodHandles.lookup().bind(this, host, MethodType.methodType(int.class)));
+        Function run = new Function("run", i32ToI32, null, new Instruction[]{
+                new FunctionInstruction.LocalGet(0), new FunctionInstruction.Call(0), IntBinaryInstruction.I32_ADD});
+        return new Machine(new Function[]{hostFunction, run}, null, null, new Memory[]{new Memory(1)}, null, null,
+                Map.of("run", run), -1, MachineVisitors.NULL_VISITOR);
+    }
+
+    private int sleep() throws InterruptedException {
+        maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+        Thread.sleep(2);
+        active.decrementAndGet();
+        return 1;
+    }
+
+    private int hold() throws InterruptedException {
+        held.countDown();
+        release.await();
+        return 1;
+    }
+
+    private int block() {
+        try {
+            new CountDownLatch(1).await();
+        } catch (InterruptedException e) {
+            interrupted.countDown();
+        }
+        return 0;
+    }
+}
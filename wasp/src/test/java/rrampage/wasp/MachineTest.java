@@ -3,8 +3,14 @@ package rrampage.wasp;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import rrampage.wasp.data.*;
+import rrampage.wasp.data.Module;
 import rrampage.wasp.instructions.*;
+import rrampage.wasp.parser.types.ExportDescriptor;
+import rrampage.wasp.parser.types.ExportMetadata;
+import rrampage.wasp.parser.types.ImportMetadata;
 import rrampage.wasp.vm.Machine;
+import rrampage.wasp.vm.MachineConfig;
+import rrampage.wasp.vm.MachineVisitors;
 
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
@@ -294,6 +300,40 @@ public class MachineTest {
         assertEquals(callRes, res, 0.0);
     }
 
+    static long refOffset(long ref, int offset) {
+        return ref + offset;
+    }
+
+    static long[] swapHalves(long[] v128) {
+        return new long[]{v128[1], v128[0]};
+    }
+
+    @Test
+    public void shouldCallJavaMethodWithReferenceAndVectorTypes() throws Exception {
+        var lookup = MethodHandles.lookup();
+        FunctionType refType = new FunctionType(new ValueType[]{ValueType.RefType.FUNCREF, ValueType.NumType.I32}, new ValueType[]{ValueType.RefType.FUNCREF});
+        FunctionType vecType = new FunctionType(new ValueType[]{ValueType.VecType.VEC_TYPE}, new ValueType[]{ValueType.VecType.VEC_TYPE});
+        // The stack adapter can not express these types, so the imports are called with boxed arguments
+        var callRef = new FunctionInstruction.CallJava(refType, lookup.findStatic(MachineTest.class, "refOffset", MethodType.methodType(long.class, long.class, int.class)));
+        var callVec = new FunctionInstruction.CallJava(vecType, lookup.findStatic(MachineTest.class, "swapHalves", MethodType.methodType(long[].class, long[].class)));
+        assertNull(callRef.adapter());
+        assertNull(callVec.adapter());
+        Instruction[] ins = new Instruction[]{
+                new RefTypeInstruction.RefFunc(1),
+                new ConstInstruction.IntConst(41),
+                new FunctionInstruction.Call(0),
+                new VectorInstruction.V128Const(1, 2),
+                new FunctionInstruction.Call(1),
+        };
+        Function[] functions = {new Function("refOffset", refType, null, new Instruction[]{callRef}),
+                new Function("swapHalves", vecType, null, new Instruction[]{callVec}),
+                Function.createStartFunction("shouldCallJavaWithBoxedArgs", ins)};
+        Machine m = Machine.createAndStart(functions, null, null, MEM_PAGES, null, null, 2);
+        assertEquals(1L, m.pop());
+        assertEquals(2L, m.pop());
+        assertEquals(42L, m.pop());
+    }
+
     @Test
     public void shouldCallJavaMethodWithHomogenousMultipleReturn() {
         double a = 4.0, b = 2.0;
@@ -365,6 +405,44 @@ public class MachineTest {
         assertEquals(m.popInt(), 1);
     }
 
+    @Test
+    public void shouldInternFunctionTypes() {
+        FunctionType binary = new FunctionType(new ValueType[]{ValueType.NumType.I32, ValueType.NumType.I32}, new ValueType[]{ValueType.NumType.I32});
+        assertEquals(FunctionType.I32_BINARY.id(), binary.id());
+        assertEquals(FunctionType.I32_BINARY.hashCode(), binary.hashCode());
+        assertEquals(FunctionType.VOID.id(), new FunctionType(new ValueType[0], new ValueType[0]).id());
+        assertNotEquals(FunctionType.I32_BINARY.id(), FunctionType.I32_UNARY.id());
+        assertNotEquals(FunctionType.I32_BINARY.id(), FunctionType.I64_BINARY.id());
+    }
+
+    @Test
+    public void shouldTrapOnIndirectCallTypeMismatch() {
+        Function neg = new Function("neg", FunctionType.I32_UNARY, null, new Instruction[]{
+                new ConstInstruction.IntConst(0), new FunctionInstruction.LocalGet(0), IntBinaryInstruction.I32_SUB});
+        // Calls the (i32, i32) -> i32 function at table offset x with args 2 and 3
+        Function callBinary = new Function("callBinary", FunctionType.I32_UNARY, null, new Instruction[]{
+                new ConstInstruction.IntConst(2), new ConstInstruction.IntConst(3), new FunctionInstruction.LocalGet(0),
+                new FunctionInstruction.CallIndirect(0, 0, FunctionType.I32_BINARY)});
+        ElementSegment elements = new ElementSegment.ActiveElementSegment(0, new ConstInstruction.IntConst(0),
+                ValueType.RefType.FUNCREF, false, new int[]{0, 1}, null);
+        Module module = new Module(1, new FunctionType[]{FunctionType.I32_BINARY, FunctionType.I32_UNARY},
+                new Function[]{addFunction, neg, callBinary}, new Table[]{new Table(3)},
+                new ExportMetadata[]{new ExportMetadata("callBinary", new ExportDescriptor.FunctionDescriptor(2))},
+                new ImportMetadata[0], new Memory[0], new DataSegment[0], new ElementSegment[]{elements}, new Variable[0], -1);
+        for (MachineConfig config : new MachineConfig[]{MachineConfig.DEFAULT,
+                MachineConfig.ConfigBuilder.of().interpreter(MachineConfig.Interpreter.TREE).build(),
+                MachineConfig.ConfigBuilder.of().interpreter(MachineConfig.Interpreter.CLOSURE).build(),
+                MachineConfig.ConfigBuilder.of().interpreter(MachineConfig.Interpreter.REGISTER).build(),
+                MachineConfig.ConfigBuilder.of().jit(true).build()}) {
+            Machine m = module.instantiate(null, MachineVisitors.NULL_VISITOR, config);
+            assertEquals(5, m.exportedFunction("callBinary").invokeInt(0));
+            RuntimeException e = assertThrows(RuntimeException.class, () -> m.exportedFunction("callBinary").invokeInt(1));
+            assertTrue(e.getMessage().contains("Function Type mismatch"), e.getMessage());
+            e = assertThrows(RuntimeException.class, () -> m.exportedFunction("callBinary").invokeInt(2));
+            assertTrue(e.getMessage().contains("Function Type mismatch"), e.getMessage());
+        }
+    }
+
     @Test
     public void shouldSignExtend8I32() {
         // From https://bugzilla.mozilla.org/attachment.cgi?id=8960898&action=diff#a/js/src/jit-test/tests/wasm/spec/src/extend32.wast_sec2
@@ -417,6 +495,31 @@ public class MachineTest {
         assertEquals(Short.MAX_VALUE, m.popInt());
     }
 
+    @Test
+    public void shouldPassMixedArgumentsToJavaMethod() throws Exception {
+        FunctionType type = new FunctionType(new ValueType.NumType[]{ValueType.NumType.I32, ValueType.NumType.I64, ValueType.NumType.F32, ValueType.NumType.F64},
+                new ValueType.NumType[]{ValueType.NumType.F64});
+        MethodHandle mh = MethodHandles.lookup().findStatic(MachineTest.class, "mixed", FunctionType.getMethodTypeFromFunctionType(type));
+        Function fun = Function.createImportFunction("mixed", type, mh);
+        Instruction[] ins = new Instruction[]{
+                new ConstInstruction.IntConst(-3),
+                new ConstInstruction.LongConst(1L << 40),
+                new ConstInstruction.FloatConst(0.5f),
+                new ConstInstruction.DoubleConst(0.25),
+                new FunctionInstruction.Call(0)
+        };
+        for (var interpreter : MachineConfig.Interpreter.values()) {
+            MachineConfig config = MachineConfig.ConfigBuilder.of().interpreter(interpreter).build();
+            Machine m = new Machine(new Function[]{fun, Function.createStartFunction("shouldCallJava", ins)}, null, null,
+                    new Memory[]{new Memory(MEM_PAGES)}, null, null, null, 1, MachineVisitors.NULL_VISITOR, config);
+            assertEquals(mixed(-3, 1L << 40, 0.5f, 0.25), m.popDouble(), 0.0, interpreter.name());
+        }
+    }
+
+    private static double mixed(int a, long b, float c, double d) {
+        return a * 1e15 + b + c * 10 + d;
+    }
+
     private static Object[] objArr() {
         return TEST_OBJ_ARR;
     }
@@ -0,0 +1,133 @@
+package rrampage.wasp;
+
+import org.junit.jupiter.api.Test;
+import rrampage.wasp.data.*;
+import rrampage.wasp.instructions.*;
+import rrampage.wasp.vm.Machine;
+import rrampage.wasp.vm.MachineConfig;
+import rrampage.wasp.vm.MachineVisitors;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TieredExecutionTest {
+    private static final FunctionType I32_TO_I32 = new FunctionType(new ValueType[]{ValueType.NumType.I32}, new ValueType[]{ValueType.NumType.I32});
+
+    @Test
+    public void shouldCompileFunctionsOnceHot() throws Exception {
+        for (MachineConfig.Interpreter interpreter : new MachineConfig.Interpreter[]{MachineConfig.Interpreter.FLAT, MachineConfig.Interpreter.STACKLESS}) {
+            MachineConfig config = MachineConfig.ConfigBuilder.of().interpreter(interpreter).tiered(true).tierUpThresholds(10, 1000).build();
+            assertTrue(config.isJitEnabled());
+            Function inc = new Function("inc", I32_TO_I32, null, new Instruction[]{
+                    new FunctionInstruction.LocalGet(0), new ConstInstruction.IntConst(1), IntBinaryInstruction.I32_ADD});
+            Function sum = sum();
+            Function cold = new Function("cold", FunctionType.I32_RETURN, null, new Instruction[]{new ConstInstruction.IntConst(7)});
+            Machine machine = new Machine(new Function[]{inc, sum, cold}, null, null, new Memory[]{new Memory(1)}, null, null,
+                    Map.of("inc", inc, "sum", sum, "cold", cold), -1, MachineVisitors.NULL_VISITOR, config);
+            assertEquals(7, machine.exportedFunction("cold").invokeInt());
+            // Below the call threshold functions stay in the interpreter
+            for (int i = 0; i < 9; i++) {
+                assertEquals(i + 1, machine.exportedFunction("inc").invokeInt(i));
+            }
+            assertFalse(inc.cache().isCompiled());
+            assertEquals(9, inc.cache().calls());
+            assertEquals(10, machine.exportedFunction("inc").invokeInt(9));
+            // A single call looping past the loop threshold tiers up
+            assertEquals(5000 * 5001 / 2, machine.exportedFunction("sum").invokeInt(5000));
+            assertEquals(1, sum.cache().calls());
+            awaitCompiled(inc);
+            awaitCompiled(sum);
+            assertEquals(11, machine.exportedFunction("inc").invokeInt(10));
+            assertEquals(5050, machine.exportedFunction("sum").invokeInt(100));
+            assertFalse(cold.cache().isCompiled());
+            assertFalse(cold.cache().hasCompileError());
+        }
+    }
+
+    @Test
+    public void shouldMoveRunningLoopToCompiledCode() throws Exception {
+        for (MachineConfig.Interpreter interpreter : new MachineConfig.Interpreter[]{MachineConfig.Interpreter.FLAT, MachineConfig.Interpreter.STACKLESS}) {
+            MachineConfig config = MachineConfig.ConfigBuilder.of().interpreter(interpreter).tiered(true)
+                    .tierUpThresholds(Integer.MAX_VALUE, 1000).build();
+            deadline = System.nanoTime() + 10_000_000_000L;
+            Function compiled = Function.createImportFunction("compiled", FunctionType.I32_RETURN,
+                    MethodHandles.lookup().bind(this, "isCompiledCaller", MethodType.methodType(int.class)));
+            // (func (param i32) (result i32) (local i32)
+            //   (i32.const 1000) (loop (local.set 1 (i32.add (local.get 1) (i32.const 1))) (br_if 0 (i32.eqz (call $compiled))))
+            //   (i32.add (local.get 0)) (i32.add (local.get 1)))
+            Function run = new Function("run", I32_TO_I32, new ValueType[]{ValueType.NumType.I32}, new Instruction[]{
+                    new ConstInstruction.IntConst(1000),
+                    new ControlFlowInstruction.Loop(1, null, new Instruction[]{
+                            new FunctionInstruction.LocalGet(1), new ConstInstruction.IntConst(1), IntBinaryInstruction.I32_ADD,
+                            new FunctionInstruction.LocalSet(1), new FunctionInstruction.Call(0), UnaryInstruction.I32_EQZ,
+                            new ControlFlowInstruction.BranchIf(1)}),
+                    new FunctionInstruction.LocalGet(0), IntBinaryInstruction.I32_ADD,
+                    new FunctionInstruction.LocalGet(1), IntBinaryInstruction.I32_ADD});
+            Machine machine = new Machine(new Function[]{compiled, run}, null, null, new Memory[]{new Memory(1)}, null, null,
+                    Map.of("run", run), -1, MachineVisitors.NULL_VISITOR, config);
+            // The loop only ends once it runs as compiled code, so the call returns after on-stack replacement
+            int result = machine.exportedFunction("run").invokeInt(5);
+            assertTrue(System.nanoTime() < deadline, "Loop was not replaced");
+            // The operand stack below the loop, the param and the iteration count survive the move
+            int iterations = result - 1005;
+            assertTrue(iterations > 1000, STR."\{iterations}");
+            assertEquals(1, run.cache().calls());
+            assertTrue(machine.isStackEmpty());
+        }
+    }
+
+    @Test
+    public void shouldRecordFailedLoopCompilation() throws Exception {
+        MachineConfig config = MachineConfig.ConfigBuilder.of().interpreter(MachineConfig.Interpreter.FLAT).tiered(true)
+                .tierUpThresholds(Integer.MAX_VALUE, 1000).build();
+        // sum with an atomic.fence in the loop, which the JIT does not compile. The loop is the first ref of the flat code
+        Function sum = sum();
+        ControlFlowInstruction.Loop loop = (ControlFlowInstruction.Loop) sum.code()[0];
+        Instruction[] body = new Instruction[loop.code().length + 1];
+        body[0] = new AtomicInstruction.AtomicFence();
+        System.arraycopy(loop.code(), 0, body, 1, loop.code().length);
+        Function fenced = new Function("fenced", I32_TO_I32, new ValueType[]{ValueType.NumType.I32}, new Instruction[]{
+                new ControlFlowInstruction.Loop(loop.label(), loop.type(), body), sum.code()[1]});
+        Machine machine = new Machine(new Function[]{fenced}, null, null, new Memory[]{new Memory(1)}, null, null,
+                Map.of("fenced", fenced), -1, MachineVisitors.NULL_VISITOR, config);
+        assertEquals(5000 * 5001 / 2, machine.exportedFunction("fenced").invokeInt(5000));
+        for (int i = 0; i < 1000 && fenced.cache().osrError(0) == null; i++) {
+            Thread.sleep(10);
+        }
+        String error = fenced.cache().osrError(0);
+        assertNotNull(error);
+        assertTrue(error.startsWith("JIT_ERROR: Unable to compile fenced with an entry at loop 1"), error);
+        assertNull(fenced.cache().osrCode(0));
+        // The loop keeps running in the interpreter
+        assertEquals(5050, machine.exportedFunction("fenced").invokeInt(100));
+    }
+
+    private long deadline;
+
+    // Returns 1 when called from JIT compiled code or after the deadline
+    private int isCompiledCaller() {
+        boolean compiled = StackWalker.getInstance(StackWalker.Option.SHOW_HIDDEN_FRAMES)
+                .walk(frames -> frames.anyMatch(f -> f.getClassName().contains("JitFunction")));
+        return (compiled || System.nanoTime() > deadline) ? 1 : 0;
+    }
+
+    private static void awaitCompiled(Function f) throws InterruptedException {
+        for (int i = 0; i < 1000 && !f.cache().isCompiled(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(f.cache().isCompiled(), f.cache().compileError());
+    }
+
+    // sum(n) adds n, n - 1, ..., 1 in a loop
+    private static Function sum() {
+        return new Function("sum", I32_TO_I32, new ValueType[]{ValueType.NumType.I32}, new Instruction[]{
+                new ControlFlowInstruction.Loop(1, null, new Instruction[]{
+                        new FunctionInstruction.LocalGet(1), new FunctionInstruction.LocalGet(0), IntBinaryInstruction.I32_ADD,
+                        new FunctionInstruction.LocalSet(1), new FunctionInstruction.LocalGet(0), new ConstInstruction.IntConst(1),
+                        IntBinaryInstruction.I32_SUB, new FunctionInstruction.LocalTee(0), new ControlFlowInstruction.BranchIf(1)}),
+                new FunctionInstruction.LocalGet(1)});
+    }
+}
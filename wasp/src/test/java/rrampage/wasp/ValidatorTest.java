@@ -0,0 +1,157 @@
+package rrampage.wasp;
+
+import org.junit.jupiter.api.Test;
+import rrampage.wasp.data.Function;
+import rrampage.wasp.data.FunctionType;
+import rrampage.wasp.data.Memory;
+import rrampage.wasp.data.Module;
+import rrampage.wasp.data.ValueType;
+import rrampage.wasp.data.Variable;
+import rrampage.wasp.instructions.*;
+import rrampage.wasp.parser.WasmParser;
+import rrampage.wasp.validator.Validator;
+import rrampage.wasp.vm.Machine;
+import rrampage.wasp.vm.MachineConfig;
+import rrampage.wasp.vm.MachineVisitors;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static rrampage.wasp.TestUtils.*;
+import static rrampage.wasp.data.ValueType.NumType.*;
+import static rrampage.wasp.utils.ConversionUtils.constOf;
+
+public class ValidatorTest {
+    private static final FunctionType I32_TO_I32 = FunctionType.I32_UNARY;
+
+    @Test
+    public void shouldValidateParsedModules() {
+        for (String file : new String[]{"rocket.wasm", "walloc.wasm", "gol/game_of_life.wasm", "testsuite/fac.0.wasm"}) {
+            Module module = new WasmParser(readBinaryFile(getFilePath(file)), WasmParser.CodeParsing.EAGER).parseModule();
+            assertTrue(Arrays.stream(module.functions()).allMatch(f -> f.cache().isValidated()), file);
+            assertTrue(Arrays.stream(module.functions()).anyMatch(f -> f.cache().maxStackHeight() > 1), file);
+        }
+    }
+
+    @Test
+    public void shouldValidateLazilyDecodedFunctionsOnFirstCall() {
+        Module module = new WasmParser(readBinaryFile(getFilePath("testsuite/fac.0.wasm")), WasmParser.CodeParsing.LAZY).parseModule();
+        Machine machine = module.instantiate(null);
+        Function fac = (Function) machine.exports().get("fac-iter");
+        assertFalse(fac.cache().isValidated());
+        machine.invoke("fac-iter", constOf(5L));
+        assertTrue(machine.compareStack(constOf(120L)));
+        assertTrue(fac.cache().isValidated());
+        assertFalse(((Function) machine.exports().get("fac-rec")).cache().isValidated());
+    }
+
+    @Test
+    public void shouldTrapOnInvalidLazilyDecodedFunction() {
+        // (func (export "run") (i32.const 1)) leaves a value on the stack of a [] -> [] function
+        byte[] data = {0x00, 0x61, 0x73, 0x6d, 0x01, 0x00, 0x00, 0x00,
+                0x01, 0x04, 0x01, 0x60, 0x00, 0x00, // type section
+                0x03, 0x02, 0x01, 0x00, // function section
+                0x07, 0x07, 0x01, 0x03, 'r', 'u', 'n', 0x00, 0x00, // export section
+                0x0a, 0x06, 0x01, 0x04, 0x00, 0x41, 0x01, 0x0b}; // code section
+        assertThrows(RuntimeException.class, () -> new WasmParser(data, WasmParser.CodeParsing.EAGER).parseModule());
+        Module module = new WasmParser(data, WasmParser.CodeParsing.LAZY).parseModule();
+        for (MachineConfig config : new MachineConfig[]{MachineConfig.DEFAULT, MachineConfig.ConfigBuilder.of().jit(true).build()}) {
+            Machine machine = module.instantiate(null, MachineVisitors.NULL_VISITOR, config);
+            RuntimeException e = assertThrows(RuntimeException.class, () -> machine.invoke("run"));
+            assertTrue(e.getMessage().contains("VALIDATION_ERROR"), e.getMessage());
+        }
+        // Optimized copies are not lazy, so the bodies are validated before they are copied
+        MachineConfig optimized = MachineConfig.ConfigBuilder.of().optimize(true).build();
+        RuntimeException e = assertThrows(RuntimeException.class,
+                () -> new WasmParser(data, WasmParser.CodeParsing.LAZY).parseModule().instantiate(null, MachineVisitors.NULL_VISITOR, optimized));
+        assertTrue(e.getMessage().contains("VALIDATION_ERROR"), e.getMessage());
+    }
+
+    @Test
+    public void shouldComputeMaxStackHeight() {
+        // (a + 1) * (a + 2) needs 3 stack slots
+        Function f = function(I32_TO_I32, new FunctionInstruction.LocalGet(0), new ConstInstruction.IntConst(1), IntBinaryInstruction.I32_ADD,
+                new FunctionInstruction.LocalGet(0), new ConstInstruction.IntConst(2), IntBinaryInstruction.I32_ADD, IntBinaryInstruction.I32_MUL);
+        assertEquals(3, validate(f));
+        Function nested = function(I32_TO_I32, new ConstInstruction.IntConst(1),
+                new ControlFlowInstruction.Block(0, FunctionType.I32_RETURN, Instruction.of(new FunctionInstruction.LocalGet(0),
+                        new ConstInstruction.IntConst(2), IntBinaryInstruction.I32_ADD)),
+                IntBinaryInstruction.I32_ADD);
+        assertEquals(3, validate(nested));
+    }
+
+    @Test
+    public void shouldAcceptAnyTypeInUnreachableCode() {
+        assertEquals(1, validate(function(I32_TO_I32, NullaryInstruction.UNREACHABLE, IntBinaryInstruction.I32_ADD)));
+        assertTrue(validate(function(I32_TO_I32, new FunctionInstruction.LocalGet(0), new ControlFlowInstruction.Branch(-1),
+                IntBinaryInstruction.I32_ADD)) > 0);
+        // Values pushed after a branch are still type checked
+        assertInvalid(function(I32_TO_I32, NullaryInstruction.UNREACHABLE, LongBinaryInstruction.I64_ADD), "Type mismatch");
+    }
+
+    @Test
+    public void shouldRejectInvalidFunctions() {
+        assertInvalid(function(I32_TO_I32, new FunctionInstruction.LocalGet(0), new ConstInstruction.LongConst(1), IntBinaryInstruction.I32_ADD), "Type mismatch");
+        assertInvalid(function(I32_TO_I32, IntBinaryInstruction.I32_ADD), "Stack underflow");
+        assertInvalid(function(I32_TO_I32, new FunctionInstruction.LocalGet(0), new FunctionInstruction.LocalGet(0)), "left on stack");
+        assertInvalid(function(I32_TO_I32, new ControlFlowInstruction.Block(0, FunctionType.VOID, Instruction.of(new FunctionInstruction.LocalGet(0))),
+                new FunctionInstruction.LocalGet(0)), "left on stack");
+        assertInvalid(function(I32_TO_I32, new FunctionInstruction.LocalGet(1)), "Unknown local");
+        assertInvalid(function(I32_TO_I32, new FunctionInstruction.LocalGet(0), new ControlFlowInstruction.Branch(3)), "Unknown label");
+        assertInvalid(function(FunctionType.I32_CONSUME, new FunctionInstruction.LocalGet(0), new GlobalInstruction.GlobalSet(0)), "immutable");
+        assertInvalid(function(FunctionType.VOID, new ConstInstruction.IntConst(0), new ConstInstruction.FloatConst(1),
+                new ConstInstruction.FloatConst(2), new Select.SelectUntyped(), UnaryInstruction.DROP,
+                new ConstInstruction.IntConst(0), new ConstInstruction.DoubleConst(1), new Select.SelectUntyped(), UnaryInstruction.DROP), "Type mismatch");
+    }
+
+    @Test
+    public void shouldRepairStackExactlyInValidatedFrames() {
+        // (block (i32.const 1) (i32.const 2) (br 0)) (i32.const 7)
+        Function branch = new Function("branch", FunctionType.I32_RETURN, null, Instruction.of(
+                new ControlFlowInstruction.Block(0, FunctionType.VOID, Instruction.of(new ConstInstruction.IntConst(1),
+                        new ConstInstruction.IntConst(2), new ControlFlowInstruction.Branch(0))),
+                new ConstInstruction.IntConst(7)));
+        // (block (i32.const 1) (i32.const 2) (return)) (i32.const 0)
+        Function ret = new Function("return", FunctionType.I32_RETURN, null, Instruction.of(
+                new ControlFlowInstruction.Block(0, FunctionType.VOID, Instruction.of(new ConstInstruction.IntConst(1),
+                        new ConstInstruction.IntConst(2), new FunctionInstruction.Return())),
+                new ConstInstruction.IntConst(0)));
+        // (loop (i32.const 5) (br_if 0 (local.tee 0 (i32.sub (local.get 0) (i32.const 1)))) (drop)) (local.get 0)
+        Function loop = new Function("loop", I32_TO_I32, null, Instruction.of(
+                new ControlFlowInstruction.Loop(0, FunctionType.VOID, Instruction.of(new ConstInstruction.IntConst(5),
+                        new FunctionInstruction.LocalGet(0), new ConstInstruction.IntConst(1), IntBinaryInstruction.I32_SUB,
+                        new FunctionInstruction.LocalTee(0), new ControlFlowInstruction.BranchIf(0), UnaryInstruction.DROP)),
+                new FunctionInstruction.LocalGet(0)));
+        for (MachineConfig.Interpreter interpreter : new MachineConfig.Interpreter[]{MachineConfig.Interpreter.TREE, MachineConfig.Interpreter.FLAT}) {
+            Machine machine = new Machine(new Function[]{branch, ret, loop}, null, null, new Memory[]{new Memory(1)}, null, null,
+                    Map.of("branch", branch, "return", ret, "loop", loop), -1, MachineVisitors.NULL_VISITOR,
+                    MachineConfig.ConfigBuilder.of().interpreter(interpreter).build());
+            // Values left below a branch or return are dropped, also on every restart of the loop
+            assertEquals(7, machine.exportedFunction("branch").invokeInt());
+            assertTrue(machine.isStackEmpty(), machine.stackView());
+            assertEquals(2, machine.exportedFunction("return").invokeInt());
+            assertTrue(machine.isStackEmpty(), machine.stackView());
+            assertEquals(0, machine.exportedFunction("loop").invokeInt(100));
+            assertTrue(machine.isStackEmpty(), machine.stackView());
+            assertArrayEquals(new ValueType[]{I32}, loop.cache().localTypes());
+        }
+    }
+
+    private static Function function(FunctionType type, Instruction... code) {
+        return new Function("f", type, new ValueType[0], code);
+    }
+
+    private static int validate(Function f) {
+        Validator validator = Validator.of(new Function[]{f}, new Variable[]{Variable.newVariable(I32, 0, false)});
+        int height = validator.validate(f);
+        assertFalse(f.cache().hasValidationError(), f.cache().validationError());
+        return height;
+    }
+
+    private static void assertInvalid(Function f, String reason) {
+        Validator validator = Validator.of(new Function[]{f}, new Variable[]{Variable.newVariable(I32, 0, false)});
+        assertEquals(-1, validator.validate(f));
+        assertTrue(f.cache().validationError().contains(reason), f.cache().validationError());
+    }
+}
@@ -0,0 +1,379 @@
+package rrampage.wasp;
+
+import org.junit.jupiter.api.Test;
+import rrampage.wasp.data.*;
+import rrampage.wasp.data.Module;
+import rrampage.wasp.instructions.*;
+import rrampage.wasp.instructions.VectorInstruction.*;
+import rrampage.wasp.parser.WasmParser;
+import rrampage.wasp.validator.Validator;
+import rrampage.wasp.vm.Machine;
+import rrampage.wasp.vm.MachineConfig;
+import rrampage.wasp.vm.MachineVisitors;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static rrampage.wasp.data.ValueType.NumType.*;
+import static rrampage.wasp.data.ValueType.VecType.VEC_TYPE;
+
+public class VectorTest {
+    private static final int MEM_PAGES = 1;
+
+    @Test
+    public void shouldParseAndRunSimdModule() {
+        // (func (result i32) (local v128)
+        //   v128.const i32x4 1 2 3 4  v128.const i32x4 10 20 30 40  i32x4.add  local.tee 0
+        //   local.get 0  i32x4.mul  i32x4.extract_lane 3)
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.writeBytes(new byte[]{1, 1, 0x7b}); // one v128 local
+        body.writeBytes(v128Const(1, 2, 3, 4));
+        body.writeBytes(v128Const(10, 20, 30, 40));
+        body.writeBytes(new byte[]{(byte) 0xfd, (byte) 0xae, 0x01, 0x22, 0x00, 0x20, 0x00, (byte) 0xfd, (byte) 0xb5, 0x01, (byte) 0xfd, 0x1b, 0x03, 0x0b});
+        Module module = new WasmParser(module(body.toByteArray()), WasmParser.CodeParsing.EAGER).parseModule();
+        Function f = module.functions()[0];
+        assertInstanceOf(VectorInstruction.V128Const.class, f.code()[0]);
+        assertEquals(VectorOp.I32X4_ADD, f.code()[2]);
+        assertEquals(new ExtractLane(Shape.I32X4, 3, false), f.code()[6]);
+        // Two v128 operands need 4 stack slots
+        assertEquals(4, f.cache().maxStackHeight());
+        for (MachineConfig config : new MachineConfig[]{MachineConfig.DEFAULT, MachineConfig.ConfigBuilder.of().jit(true).build()}) {
+            Machine machine = module.instantiate(null, MachineVisitors.NULL_VISITOR, config);
+            assertEquals(44 * 44, machine.exportedFunction("simd").invokeInt());
+            // SIMD code runs on the tree interpreter
+            assertTrue(f.cache().hasFlatCodeError());
+        }
+    }
+
+    @Test
+    public void shouldRunIntegerLaneOperations() {
+        assertV128(i32x4(11, 22, 33, 44), i32x4Const(1, 2, 3, 4), i32x4Const(10, 20, 30, 40), VectorOp.I32X4_ADD);
+        assertV128(i32x4(-9, -18, -27, -36), i32x4Const(1, 2, 3, 4), i32x4Const(10, 20, 30, 40), VectorOp.I32X4_SUB);
+        assertV128(i32x4(-1, 0, -1, 0), i32x4Const(1, 2, 3, 4), i32x4Const(1, 0, 3, 0), VectorOp.I32X4_EQ);
+        assertV128(i32x4(-1, 0, 0, 0), i32x4Const(-1, 2, 3, 4), i32x4Const(0, 2, 3, 4), VectorOp.I32X4_LT_S);
+        assertV128(i32x4(0, 0, 0, 0), i32x4Const(-1, 2, 3, 4), i32x4Const(0, 2, 3, 4), VectorOp.I32X4_LT_U);
+        assertV128(i32x4(0, 2, 3, 4), i32x4Const(-1, 2, 3, 4), i32x4Const(0, 2, 3, 4), VectorOp.I32X4_MIN_U);
+        assertV128(i32x4(Integer.MIN_VALUE, 1, 1, 0), i32x4Const(Integer.MIN_VALUE, -1, 1, 0), VectorOp.I32X4_ABS);
+        assertV128(i32x4(4, 8, -4, 0), i32x4Const(1, 2, -1, 0), new ConstInstruction.IntConst(34), VectorOp.I32X4_SHL);
+        assertV128(i32x4(-4, 4, 0, -1), i32x4Const(-8, 8, 1, -1), new ConstInstruction.IntConst(1), VectorOp.I32X4_SHR_S);
+        assertV128(i32x4(-1, 0x7fffffff, 0, 0), i32x4Const(-1, -1, 0, 0), new ConstInstruction.IntConst(1), VectorOp.I32X4_SHR_U,
+                new ConstInstruction.IntConst(-1), new ReplaceLane(Shape.I32X4, 0), new ConstInstruction.IntConst(1),
+                new Splat(Shape.I32X4), new ConstInstruction.IntConst(1), new Splat(Shape.I32X4), VectorOp.V128_XOR, VectorOp.V128_OR);
+        assertV128(new long[]{0x0101010101010101L * 0x7f, 0x0101010101010101L * 0x80},
+                new V128Const(0x0101010101010101L * 100, 0x0101010101010101L * 0x90), new V128Const(0x0101010101010101L * 100, 0x0101010101010101L * 0x90),
+                VectorOp.I8X16_ADD_SAT_S, new V128Const(0x0101010101010101L * 0x7f, 0x0101010101010101L * 0x80), VectorOp.V128_AND);
+        assertV128(new long[]{-1, 0x0101010101010101L * 200}, new V128Const(0x0101010101010101L * 100, 0x0101010101010101L * 100),
+                new V128Const(0x0101010101010101L * 200, 0x0101010101010101L * 100), VectorOp.I8X16_ADD_SAT_U);
+        assertV128(new long[]{0x00ff00ff00ff00ffL, 0}, new V128Const(0x00ff00ff00ff00ffL, 0x0f0f), VectorOp.I8X16_POPCNT,
+                new ConstInstruction.IntConst(4), new Splat(Shape.I8X16), VectorOp.I8X16_GT_U);
+        assertV128(new long[]{0xf0, 0xffffffffffffff00L}, new V128Const(0xff, -1), new V128Const(0x0f, 0xff), VectorOp.V128_ANDNOT);
+        assertV128(new long[]{0xf00f, 0xffff}, new V128Const(0xf0f0, 0xffff), new V128Const(0x0f0f, 0), new V128Const(0xff00, -1), VectorOp.V128_BITSELECT);
+        assertV128(new long[]{3L, -7L}, new V128Const(1, -2), new V128Const(2, -5), VectorOp.I64X2_ADD);
+    }
+
+    @Test
+    public void shouldRunFloatLaneOperations() {
+        assertV128(f32x4(1.5f, 4f, -2f, 0.25f), f32x4Const(1f, 2f, -4f, 0.5f), f32x4Const(1.5f, 2f, 0.5f, 0.5f), VectorOp.F32X4_MUL);
+        assertV128(f32x4(Float.NaN, -0f, 1f, 4f), f32x4Const(Float.NaN, -0f, 1f, 4f), f32x4Const(1f, 0f, 1f, 4f), VectorOp.F32X4_MIN,
+                f32x4Const(1f, 1f, 1f, 4f), VectorOp.F32X4_SQRT, VectorOp.F32X4_MUL, f32x4Const(1f, 1f, 1f, 2f), VectorOp.F32X4_DIV);
+        assertV128(i32x4(0, -1, -1, 0), f32x4Const(Float.NaN, 1f, -1f, 3f), f32x4Const(1f, 2f, 0f, 3f), VectorOp.F32X4_LT, VectorOp.V128_NOT,
+                new ConstInstruction.IntConst(-1), new Splat(Shape.I32X4), VectorOp.V128_XOR);
+        assertV128(i32x4(Integer.MAX_VALUE, 0, -2, 3), f32x4Const(1e20f, Float.NaN, -2.7f, 3.9f), VectorOp.I32X4_TRUNC_SAT_F32X4_S);
+        assertV128(f64x2(0.5, -3.0), new ConstInstruction.DoubleConst(1.0), new Splat(Shape.F64X2), new ConstInstruction.DoubleConst(-1.5),
+                new ReplaceLane(Shape.F64X2, 1), new ConstInstruction.DoubleConst(2.0), new Splat(Shape.F64X2), VectorOp.F64X2_DIV,
+                new ConstInstruction.DoubleConst(4.0), new Splat(Shape.F64X2), VectorOp.F64X2_MUL,
+                new V128Const(Double.doubleToRawLongBits(-1.5), Double.doubleToRawLongBits(0.0)), VectorOp.F64X2_ADD);
+    }
+
+    @Test
+    public void shouldExtractLanesAndTestVectors() {
+        V128Const v = new V128Const(0x80ff_7f01_0000_fffeL, 0x0000_0001_8000_0000L);
+        assertScalar(-2, v, new ExtractLane(Shape.I8X16, 0, true));
+        assertScalar(0xfe, v, new ExtractLane(Shape.I8X16, 0, false));
+        assertScalar(-128, v, new ExtractLane(Shape.I8X16, 7, true));
+        assertScalar(0x7f01, v, new ExtractLane(Shape.I16X8, 2, false));
+        assertScalar(Integer.MIN_VALUE, v, new ExtractLane(Shape.I32X4, 2, false));
+        assertScalar(0x0000_0001_8000_0000L, v, new ExtractLane(Shape.I64X2, 1, false));
+        assertScalar(1, v, VectorOp.V128_ANY_TRUE);
+        assertScalar(0, new V128Const(0, 0), VectorOp.V128_ANY_TRUE);
+        assertScalar(1, v, VectorOp.I32X4_ALL_TRUE);
+        assertScalar(0, v, VectorOp.I16X8_ALL_TRUE);
+        assertScalar(1, v, VectorOp.I64X2_ALL_TRUE);
+        assertScalar(0b1000_1100_0011, v, VectorOp.I8X16_BITMASK);
+        assertScalar(0b0110, v, VectorOp.I32X4_BITMASK);
+        // Lanes 16..31 come from the second operand
+        byte[] lanes = {16, 0, 17, 1, 18, 2, 19, 3, 20, 4, 21, 5, 22, 6, 23, 7};
+        assertV128(new long[]{0x0c_04_0d_05_0e_06_0f_07L, 0x08_00_09_01_0a_02_0b_03L},
+                new V128Const(0x08_09_0a_0b_0c_0d_0e_0fL, 0), new V128Const(0x00_01_02_03_04_05_06_07L, 0), new Shuffle(lanes));
+        // Out of range indices select zero
+        assertV128(new long[]{0x00_01_02_03_00_00_00_0fL, 0}, new V128Const(0x0706050403020100L, 0x0f0e0d0c0b0a0908L),
+                new V128Const(0x00_01_02_03_ff_20_10_0fL, 0), VectorOp.I8X16_SWIZZLE);
+    }
+
+    @Test
+    public void shouldLoadAndStoreVectors() {
+        assertV128(new long[]{0x1112131415161718L, 0x0102030405060708L},
+                new ConstInstruction.IntConst(8), new V128Const(0x0102030405060708L, 0x1112131415161718L), new VectorInstruction.V128Store(0, 8),
+                new ConstInstruction.IntConst(16), new VectorInstruction.V128Load(0, 0),
+                new ConstInstruction.IntConst(0), new VectorInstruction.V128LoadSplat(Shape.I64X2, 0, 16), VectorOp.V128_AND,
+                new ConstInstruction.IntConst(24), new VectorInstruction.V128LoadZero(Shape.I64X2, 0, 0), VectorOp.V128_OR);
+        assertV128(i32x4(0x15161718, 0x15161718, 0x15161718, 0x15161718), new ConstInstruction.IntConst(0),
+                new V128Const(0x0102030405060708L, 0x1112131415161718L), new VectorInstruction.V128Store(0, 0),
+                new ConstInstruction.IntConst(8), new VectorInstruction.V128LoadSplat(Shape.I32X4, 0, 0));
+        assertThrows(RuntimeException.class, () -> run(new ConstInstruction.IntConst(MEM_PAGES * 65536 - 8),
+                new VectorInstruction.V128Load(0, 0)));
+    }
+
+    @Test
+    public void shouldPassVectorsInLocalsAndCalls() {
+        FunctionType type = new FunctionType(new ValueType[]{VEC_TYPE, I32, VEC_TYPE}, new ValueType[]{VEC_TYPE});
+        // Selects a or b, keeps it in a v128 local and doubles it
+        Function select = new Function("select", type, new ValueType[]{VEC_TYPE}, new Instruction[]{
+                new FunctionInstruction.LocalGet(0), new FunctionInstruction.LocalGet(2), new FunctionInstruction.LocalGet(1),
+                new Select.SelectTyped(new ValueType[]{VEC_TYPE}), new FunctionInstruction.LocalTee(3),
+                new FunctionInstruction.LocalGet(3), VectorOp.I64X2_ADD});
+        Function start = Function.createStartFunction("start", new Instruction[]{
+                new V128Const(1, 2), new ConstInstruction.IntConst(0), new V128Const(3, 4), new FunctionInstruction.Call(1),
+                new ControlFlowInstruction.Block(0, FunctionType.V128_RETURN, Instruction.of(
+                        new V128Const(5, 6), new ConstInstruction.IntConst(1), new V128Const(7, 8), new FunctionInstruction.Call(1),
+                        new ControlFlowInstruction.Branch(0))),
+                VectorOp.I64X2_SUB});
+        Machine m = Machine.createAndStart(new Function[]{start, select}, null, null, MEM_PAGES, null, null, 0);
+        assertEquals(-4, m.pop());
+        assertEquals(-4, m.pop());
+        assertTrue(m.stackView().isEmpty());
+    }
+
+    @Test
+    public void shouldValidateVectorTypes() {
+        Validator validator = Validator.of(new Function[0], new Variable[0]);
+        Function f = new Function("f", FunctionType.I32_RETURN, new ValueType[0], new Instruction[]{
+                new V128Const(1, 2), new ConstInstruction.FloatConst(1f), new ReplaceLane(Shape.F32X4, 3), new ConstInstruction.IntConst(1),
+                VectorOp.I32X4_SHL, new ExtractLane(Shape.I16X8, 7, true)});
+        assertEquals(3, validator.validate(f));
+        Function mismatch = new Function("f", FunctionType.I32_RETURN, new ValueType[0], new Instruction[]{
+                new V128Const(1, 2), new ConstInstruction.LongConst(1), new ReplaceLane(Shape.F32X4, 3), VectorOp.I32X4_ALL_TRUE});
+        assertEquals(-1, validator.validate(mismatch));
+        assertTrue(mismatch.cache().validationError().contains("Type mismatch"), mismatch.cache().validationError());
+        // Untyped select on v128 is valid and is rewritten to a typed select, so the interpreter moves both slots
+        Function untyped = new Function("f", FunctionType.VOID, new ValueType[0], new Instruction[]{
+                new V128Const(1, 2), new V128Const(3, 4), new ConstInstruction.IntConst(0), new Select.SelectUntyped(), UnaryInstruction.DROP});
+        assertEquals(5, validator.validate(untyped));
+        assertArrayEquals(new ValueType[]{VEC_TYPE}, ((Select.SelectTyped) untyped.code()[3]).types());
+    }
+
+    @Test
+    public void shouldRunUntypedSelectOnVectors() {
+        // (func (param i32) (result i64) (i64x2.extract_lane 1 (select (v128.const i64x2 1 2) (v128.const i64x2 3 4) (local.get 0))))
+        byte[] body = new byte[]{0x00, (byte) 0xfd, 0x0c, 1, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 0,
+                (byte) 0xfd, 0x0c, 3, 0, 0, 0, 0, 0, 0, 0, 4, 0, 0, 0, 0, 0, 0, 0, 0x20, 0x00, 0x1b, (byte) 0xfd, 0x1d, 0x01, 0x0b};
+        for (WasmParser.CodeParsing parsing : WasmParser.CodeParsing.values()) {
+            Module module = new WasmParser(module(new byte[]{0x60, 0x01, 0x7f, 0x01, 0x7e}, body), parsing).parseModule();
+            Machine machine = module.instantiate(null);
+            assertEquals(2L, machine.exportedFunction("simd").invoke(1));
+            assertEquals(4L, machine.exportedFunction("simd").invoke(0));
+        }
+    }
+
+    @Test
+    public void shouldRejectExportedFunctionsWithVectorSignatures() {
+        // (func (param v128) (result i32) (i32x4.extract_lane 0 (local.get 0)))
+        Machine params = new WasmParser(module(new byte[]{0x60, 0x01, 0x7b, 0x01, 0x7f},
+                new byte[]{0x00, 0x20, 0x00, (byte) 0xfd, 0x1b, 0x00, 0x0b}), WasmParser.CodeParsing.EAGER).parseModule().instantiate(null);
+        RuntimeException e = assertThrows(RuntimeException.class, () -> params.exportedFunction("simd"));
+        assertTrue(e.getMessage().startsWith("INVOKE: simd has type"), e.getMessage());
+        // (func (result v128) (v128.const i32x4 1 2 3 4))
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(0);
+        body.writeBytes(v128Const(1, 2, 3, 4));
+        body.write(0x0b);
+        Machine results = new WasmParser(module(new byte[]{0x60, 0x00, 0x01, 0x7b}, body.toByteArray()), WasmParser.CodeParsing.EAGER)
+                .parseModule().instantiate(null);
+        assertThrows(RuntimeException.class, () -> results.exportedFunction("simd"));
+    }
+
+    @Test
+    public void shouldRunWideningAndNarrowingOperations() {
+        V128Const bytes = new V128Const(0x0706050403020180L, 0xfffefdfc_7f000000L);
+        assertV128(new long[]{0x0003_0002_0001_ff80L, 0x0007_0006_0005_0004L}, bytes, VectorOp.I16X8_EXTEND_LOW_I8X16_S);
+        assertV128(new long[]{0x0003_0002_0001_0080L, 0x0007_0006_0005_0004L}, bytes, VectorOp.I16X8_EXTEND_LOW_I8X16_U);
+        assertV128(new long[]{0x007f_0000_0000_0000L, 0xffff_fffe_fffd_fffcL}, bytes, VectorOp.I16X8_EXTEND_HIGH_I8X16_S);
+        assertV128(new long[]{0x007f_0000_0000_0000L, 0x00ff_00fe_00fd_00fcL}, bytes, VectorOp.I16X8_EXTEND_HIGH_I8X16_U);
+        assertV128(new long[]{-1L, 3L}, i32x4Const(-1, 3, 5, 7), VectorOp.I64X2_EXTEND_LOW_I32X4_S);
+        assertV128(new long[]{0xffffffffL, 3L}, i32x4Const(-1, 3, 5, 7), VectorOp.I64X2_EXTEND_LOW_I32X4_U);
+        V128Const shorts = new V128Const(0x0004_0001_0001_8000L, 0x0005_0004_0001_ffffL);
+        assertV128(i32x4(0x8001, 5, 0x10000, 9), shorts, VectorOp.I32X4_EXTADD_PAIRWISE_I16X8_U);
+        assertV128(i32x4(-0x7fff, 5, 0, 9), shorts, VectorOp.I32X4_EXTADD_PAIRWISE_I16X8_S);
+        // Narrowing saturates each signed input lane to the narrower signed or unsigned range
+        assertV128(new long[]{0x0000_ffff_7fff_8000L, 0x0001_8000_0000_7fffL}, i32x4Const(-40000, 40000, -1, 0),
+                i32x4Const(0x1ffff, 0, -32768, 1), VectorOp.I16X8_NARROW_I32X4_S);
+        assertV128(new long[]{0x0000_ffff_0000_0000L, 0x0001_0000_0000_ffffL}, i32x4Const(-40000, 0, 0x1ffff, 0),
+                i32x4Const(0x1ffff, -5, 0, 1), VectorOp.I16X8_NARROW_I32X4_U);
+        V128Const wide = new V128Const(0x0001_ff80_007f_00ffL, 0x0000_ffff_0100_ff00L);
+        assertV128(new long[]{0x00_ff_7f_80_01_80_7f_7fL, 0}, wide, new V128Const(0, 0), VectorOp.I8X16_NARROW_I16X8_S);
+        assertV128(new long[]{0x00_00_ff_00_01_00_7f_ffL, 0}, wide, new V128Const(0, 0), VectorOp.I8X16_NARROW_I16X8_U);
+        assertV128(new long[]{-6L, 56L}, i32x4Const(2, 7, -2, 9), i32x4Const(-3, 8, 3, 10), VectorOp.I64X2_EXTMUL_LOW_I32X4_S);
+        assertV128(new long[]{0xfffffffeL * 3, 90L}, i32x4Const(2, 7, -2, 9), i32x4Const(-3, 8, 3, 10), VectorOp.I64X2_EXTMUL_HIGH_I32X4_U);
+        assertV128(new long[]{0xffff_0000_ffff_fffdL, 0}, new V128Const(0x0100_ff01L, 0), new V128Const(0xff01_01fdL, 0),
+                VectorOp.I16X8_EXTMUL_LOW_I8X16_S);
+        // Products of 0x8000 lanes wrap when added
+        assertV128(i32x4(50, Integer.MIN_VALUE, 1, 0), new V128Const(0x0007_0002L | (0x8000_8000L << 32), 0x0001_0000L),
+                new V128Const(0x0008_fffdL | (0x8000_8000L << 32), 0x0001_0000L), VectorOp.I32X4_DOT_I16X8_S);
+        assertV128(new long[]{0x01_80_ff_02L, 0}, new V128Const(0x00_ff_ff_01L, 0), new V128Const(0x01_00_ff_02L, 0), VectorOp.I8X16_AVGR_U);
+        // (0x4000 * 0x4000 + 0x4000) >> 15 and the saturated -1 * -1
+        assertV128(new long[]{0x7fff_2000L, 0}, new V128Const(0x8000_4000L, 0), new V128Const(0x8000_4000L, 0), VectorOp.I16X8_Q15MULR_SAT_S);
+    }
+
+    @Test
+    public void shouldRoundAndConvertFloatLanes() {
+        assertV128(f32x4(2f, -1f, -0f, Float.NaN), f32x4Const(1.5f, -1.5f, -0.5f, Float.NaN), VectorOp.F32X4_CEIL);
+        assertV128(f32x4(1f, -2f, -1f, Float.NEGATIVE_INFINITY), f32x4Const(1.5f, -1.5f, -0.5f, Float.NEGATIVE_INFINITY), VectorOp.F32X4_FLOOR);
+        assertV128(f32x4(1f, -1f, -0f, 3f), f32x4Const(1.5f, -1.5f, -0.5f, 3f), VectorOp.F32X4_TRUNC);
+        assertV128(f32x4(2f, -2f, -0f, 2f), f32x4Const(1.5f, -1.5f, -0.5f, 2.5f), VectorOp.F32X4_NEAREST);
+        assertV128(f64x2(-0.0, 3.0), f64x2Const(-0.4, 2.5), VectorOp.F64X2_CEIL);
+        assertV128(f64x2(-1.0, 2.0), f64x2Const(-0.4, 2.5), VectorOp.F64X2_FLOOR);
+        assertV128(f64x2(-0.0, 2.0), f64x2Const(-0.4, 2.5), VectorOp.F64X2_TRUNC);
+        assertV128(f64x2(-0.0, 2.0), f64x2Const(-0.4, 2.5), VectorOp.F64X2_NEAREST);
+        // pmin and pmax return the first operand unless the second is ordered below or above it
+        assertV128(f32x4(Float.NaN, 1f, 0f, -1f), f32x4Const(Float.NaN, 1f, 0f, 2f), f32x4Const(0f, Float.NaN, -0f, -1f), VectorOp.F32X4_PMIN);
+        assertV128(f64x2(Double.NaN, 2.0), f64x2Const(Double.NaN, 1.0), f64x2Const(3.0, 2.0), VectorOp.F64X2_PMAX);
+        assertV128(f32x4(1.5f, Float.POSITIVE_INFINITY, 0f, 0f), f64x2Const(1.5, 1e300), VectorOp.F32X4_DEMOTE_F64X2_ZERO);
+        assertV128(f64x2(0.25, -3.0), f32x4Const(0.25f, -3f, 7f, 9f), VectorOp.F64X2_PROMOTE_LOW_F32X4);
+        assertV128(i32x4(0, -1, 3, 0), f32x4Const(-2.5f, 5e9f, 3.9f, Float.NaN), VectorOp.I32X4_TRUNC_SAT_F32X4_U);
+        assertV128(i32x4(Integer.MIN_VALUE, -3, 0, 0), f64x2Const(-1e10, -3.7), VectorOp.I32X4_TRUNC_SAT_F64X2_S_ZERO);
+        assertV128(i32x4(-1, 0, 0, 0), f64x2Const(1e10, Double.NaN), VectorOp.I32X4_TRUNC_SAT_F64X2_U_ZERO);
+        assertV128(f32x4(4294967296f, 1f, 0f, 2147483648f), i32x4Const(-1, 1, 0, Integer.MIN_VALUE), VectorOp.F32X4_CONVERT_I32X4_U);
+        assertV128(f64x2(-1.0, 2.0), i32x4Const(-1, 2, 3, 4), VectorOp.F64X2_CONVERT_LOW_I32X4_S);
+        assertV128(f64x2(4294967295.0, 2.0), i32x4Const(-1, 2, 3, 4), VectorOp.F64X2_CONVERT_LOW_I32X4_U);
+    }
+
+    @Test
+    public void shouldLoadAndStoreLanes() {
+        // Memory 0..15 holds bytes 0x80, 0x81, ... 0x8f
+        Instruction[] init = {new ConstInstruction.IntConst(0), new V128Const(0x8786858483828180L, 0x8f8e8d8c8b8a8988L), new VectorInstruction.V128Store(0, 0)};
+        assertV128(new long[]{0x0083_0082_0081_0080L, 0x0087_0086_0085_0084L}, concat(init, new ConstInstruction.IntConst(0),
+                new VectorInstruction.V128LoadExtend(Shape.I8X16, false, 0, 0)));
+        assertV128(new long[]{0xffff8685_ffff8483L, 0xffff8a89_ffff8887L}, concat(init, new ConstInstruction.IntConst(2),
+                new VectorInstruction.V128LoadExtend(Shape.I16X8, true, 0, 1)));
+        assertV128(new long[]{0x8b8a8988L, 0x8f8e8d8cL}, concat(init, new ConstInstruction.IntConst(0),
+                new VectorInstruction.V128LoadExtend(Shape.I32X4, false, 0, 8)));
+        assertV128(new long[]{0xffffffff_8b8a8988L, 0xffffffff_8f8e8d8cL}, concat(init, new ConstInstruction.IntConst(0),
+                new VectorInstruction.V128LoadExtend(Shape.I32X4, true, 0, 8)));
+        assertV128(new long[]{0x1111_1111_1111_8311L, 0x8f8e8d8c_11111111L}, concat(init, new ConstInstruction.IntConst(12),
+                new ConstInstruction.IntConst(3), new ConstInstruction.IntConst(0x11), new Splat(Shape.I8X16),
+                new VectorInstruction.V128LoadLane(Shape.I8X16, 0, 0, 1), new VectorInstruction.V128LoadLane(Shape.I32X4, 0, 0, 3)));
+        // Stored lanes are read back from memory
+        assertScalar(0x8d8c_0000_0000_8584L, concat(init, new ConstInstruction.IntConst(0), new V128Const(0, 0), new VectorInstruction.V128Store(0, 0),
+                new ConstInstruction.IntConst(0), new V128Const(0x8786858483828180L, 0x8f8e8d8c8b8a8988L), new VectorInstruction.V128StoreLane(Shape.I16X8, 0, 0, 2),
+                new ConstInstruction.IntConst(0), new V128Const(0x8786858483828180L, 0x8f8e8d8c8b8a8988L), new VectorInstruction.V128StoreLane(Shape.I16X8, 0, 6, 6),
+                new ConstInstruction.IntConst(0), new VectorInstruction.V128Load(0, 0), new ExtractLane(Shape.I64X2, 0, false)));
+        assertThrows(RuntimeException.class, () -> run(new ConstInstruction.IntConst(MEM_PAGES * 65536 - 4), new V128Const(0, 0),
+                new VectorInstruction.V128StoreLane(Shape.I64X2, 0, 0, 1)));
+    }
+
+    @Test
+    public void shouldParseLaneAndExtendingLoads() {
+        // (func (param i32) (result i64) (i64x2.extract_lane 1 (v128.load64_lane 1 (local.get 0) (v128.load32x2_u (local.get 0)))))
+        byte[] body = {0x00, 0x20, 0x00, 0x20, 0x00, (byte) 0xfd, 0x06, 0x02, 0x00, (byte) 0xfd, 0x57, 0x03, 0x00, 0x01,
+                (byte) 0xfd, 0x1d, 0x01, 0x0b};
+        Module module = new WasmParser(module(new byte[]{0x60, 0x01, 0x7f, 0x01, 0x7e}, body), WasmParser.CodeParsing.EAGER).parseModule();
+        assertEquals(new VectorInstruction.V128LoadExtend(Shape.I32X4, false, 2, 0), module.functions()[0].code()[2]);
+        assertEquals(new VectorInstruction.V128LoadLane(Shape.I64X2, 3, 0, 1), module.functions()[0].code()[3]);
+        assertEquals("v128.load32x2_u", module.functions()[0].code()[2].opCode());
+        assertEquals(VectorOp.I32X4_DOT_I16X8_S, VectorOp.from(0xba));
+        // Opcodes which are reserved in the final SIMD proposal are rejected when parsed
+        assertThrows(RuntimeException.class, () -> VectorOp.from(0x9a));
+    }
+
+    @Test
+    public void shouldCopyVectorGlobalsToForks() {
+        Variable.V128Variable global = (Variable.V128Variable) Variable.newVariable(VEC_TYPE, 0, true);
+        global.setVal(0x1111L, 0x2222L);
+        Machine machine = new Machine(new Function[]{Function.createStartFunction("start", new Instruction[0])}, null,
+                new Variable[]{global}, new Memory[]{new Memory(MEM_PAGES)}, null, null, Map.of("g", global), 0, MachineVisitors.NULL_VISITOR);
+        Machine fork = machine.snapshot().fork();
+        Variable.V128Variable copy = (Variable.V128Variable) fork.exports().get("g");
+        assertNotSame(global, copy);
+        assertEquals(0x1111L, copy.low());
+        assertEquals(0x2222L, copy.high());
+    }
+
+    private static long[] run(Instruction... code) {
+        Machine m = Machine.createAndStart(new Function[]{Function.createStartFunction("simd", code)}, null, null, MEM_PAGES, null, null, 0);
+        long high = m.pop();
+        return new long[]{m.pop(), high};
+    }
+
+    private static void assertV128(long[] expected, Instruction... code) {
+        long[] actual = run(code);
+        assertEquals(String.format("0x%016x%016x", expected[1], expected[0]), String.format("0x%016x%016x", actual[1], actual[0]));
+    }
+
+    private static void assertScalar(long expected, Instruction... code) {
+        Machine m = Machine.createAndStart(new Function[]{Function.createStartFunction("simd", code)}, null, null, MEM_PAGES, null, null, 0);
+        assertEquals(expected, m.pop());
+    }
+
+    private static long[] i32x4(int a, int b, int c, int d) {
+        return new long[]{Integer.toUnsignedLong(a) | ((long) b << 32), Integer.toUnsignedLong(c) | ((long) d << 32)};
+    }
+
+    private static long[] f32x4(float a, float b, float c, float d) {
+        return i32x4(Float.floatToRawIntBits(a), Float.floatToRawIntBits(b), Float.floatToRawIntBits(c), Float.floatToRawIntBits(d));
+    }
+
+    private static long[] f64x2(double a, double b) {
+        return new long[]{Double.doubleToRawLongBits(a), Double.doubleToRawLongBits(b)};
+    }
+
+    private static V128Const i32x4Const(int a, int b, int c, int d) {
+        long[] v = i32x4(a, b, c, d);
+        return new V128Const(v[0], v[1]);
+    }
+
+    private static V128Const f32x4Const(float a, float b, float c, float d) {
+        long[] v = f32x4(a, b, c, d);
+        return new V128Const(v[0], v[1]);
+    }
+
+    private static byte[] v128Const(int a, int b, int c, int d) {
+        byte[] bytes = new byte[18];
+        bytes[0] = (byte) 0xfd;
+        bytes[1] = 0x0c;
+        int[] lanes = {a, b, c, d};
+        for (int i = 0; i < 16; i++) {
+            bytes[i + 2] = (byte) (lanes[i / 4] >>> ((i % 4) * 8));
+        }
+        return bytes;
+    }
+
+    private static V128Const f64x2Const(double a, double b) {
+        return new V128Const(Double.doubleToRawLongBits(a), Double.doubleToRawLongBits(b));
+    }
+
+    private static Instruction[] concat(Instruction[] first, Instruction... rest) {
+        Instruction[] code = Arrays.copyOf(first, first.length + rest.length);
+        System.arraycopy(rest, 0, code, first.length, rest.length);
+        return code;
+    }
+
+    // Module with one exported function "simd" of type [] -> [i32] and the given body
+    private static byte[] module(byte[] body) {
+        return module(new byte[]{0x60, 0x00, 0x01, 0x7f}, body);
+    }
+
+    // Module with one exported function "simd" of the given encoded type and body
+    private static byte[] module(byte[] type, byte[] body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(new byte[]{0x00, 0x61, 0x73, 0x6d, 0x01, 0x00, 0x00, 0x00});
+        out.writeBytes(new byte[]{0x01, (byte) (type.length + 1), 0x01}); // type section
+        out.writeBytes(type);
+        out.writeBytes(new byte[]{0x03, 0x02, 0x01, 0x00}); // function section
+        out.writeBytes(new byte[]{0x07, 0x08, 0x01, 0x04, 's', 'i', 'm', 'd', 0x00, 0x00}); // export section
+        out.writeBytes(new byte[]{0x0a, (byte) (body.length + 2), 0x01, (byte) body.length}); // code section
+        out.writeBytes(body);
+        return out.toByteArray();
+    }
+}
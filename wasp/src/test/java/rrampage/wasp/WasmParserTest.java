@@ -1,14 +1,20 @@
 package rrampage.wasp;
 
 import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestFactory;
+import rrampage.wasp.data.Function;
 import rrampage.wasp.data.Module;
+import rrampage.wasp.instructions.Instruction;
 import rrampage.wasp.parser.WasmParser;
+import rrampage.wasp.vm.Machine;
 
+import java.util.Arrays;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static rrampage.wasp.TestUtils.*;
+import static rrampage.wasp.utils.ConversionUtils.constOf;
 public class WasmParserTest {
     private static final WasmParserTestCase[] testCases = new WasmParserTestCase[] {
             new WasmParserTestCase("empty_module.wasm", 8, 0, 0,0, 0, 0, 0, 0),
@@ -48,4 +54,43 @@ public class WasmParserTest {
     public Stream<DynamicTest> testWasmParser() {
         return DynamicTest.stream(Stream.of(testCases), WasmParserTestCase::fileName, WasmParserTestCase::check);
     }
+
+    @Test
+    public void shouldDecodeFunctionBodiesOnFirstCall() {
+        Module module = new WasmParser(readBinaryFile(getFilePath("testsuite/fac.0.wasm")), WasmParser.CodeParsing.LAZY).parseModule();
+        assertTrue(Arrays.stream(module.functions()).noneMatch(f -> f.cache().isCodeDecoded()));
+        Machine machine = module.instantiate(null);
+        machine.invoke("fac-iter", constOf(5L));
+        assertTrue(machine.compareStack(constOf(120L)));
+        assertTrue(((Function) machine.exports().get("fac-iter")).cache().isCodeDecoded());
+        assertFalse(((Function) machine.exports().get("fac-rec")).cache().isCodeDecoded());
+    }
+
+    @Test
+    public void shouldRejectBodyWithoutEndByteInEveryMode() {
+        // (func) whose body is nop; nop instead of nop; end
+        byte[] data = {0x00, 0x61, 0x73, 0x6d, 0x01, 0x00, 0x00, 0x00, 0x01, 0x04, 0x01, 0x60, 0x00, 0x00,
+                0x03, 0x02, 0x01, 0x00, 0x0a, 0x05, 0x01, 0x03, 0x00, 0x01, 0x01};
+        assertThrows(RuntimeException.class, () -> new WasmParser(data, WasmParser.CodeParsing.EAGER).parseModule());
+        assertThrows(RuntimeException.class, () -> new WasmParser(data, WasmParser.CodeParsing.PARALLEL).parseModule());
+        Module module = new WasmParser(data, WasmParser.CodeParsing.LAZY).parseModule();
+        RuntimeException e = assertThrows(RuntimeException.class, () -> module.functions()[0].code());
+        assertTrue(e.getMessage().contains("PARSE_FUNCTION"), e.getMessage());
+        data[data.length - 1] = 0x0b;
+        assertEquals(1, new WasmParser(data, WasmParser.CodeParsing.LAZY).parseModule().functions()[0].code().length);
+    }
+
+    @Test
+    public void shouldDecodeSameCodeInEveryMode() {
+        byte[] data = readBinaryFile(getFilePath("rocket.wasm"));
+        Function[] eager = new WasmParser(data, WasmParser.CodeParsing.EAGER).parseModule().functions();
+        Function[] parallel = new WasmParser(data, WasmParser.CodeParsing.PARALLEL).parseModule().functions();
+        Function[] lazy = new WasmParser(data, WasmParser.CodeParsing.LAZY).parseModule().functions();
+        for (int i = 0; i < eager.length; i++) {
+            assertTrue(parallel[i].cache().isCodeDecoded() || parallel[i].code().length == 0);
+            String[] expected = Arrays.stream(eager[i].code()).map(Instruction::opCode).toArray(String[]::new);
+            assertArrayEquals(expected, Arrays.stream(parallel[i].code()).map(Instruction::opCode).toArray(String[]::new));
+            assertArrayEquals(expected, Arrays.stream(lazy[i].code()).map(Instruction::opCode).toArray(String[]::new));
+        }
+    }
 }
@@ -3,10 +3,22 @@ package rrampage.wasp.programs;
 import org.junit.jupiter.api.*;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.MethodSource;
+import rrampage.wasp.data.CompiledModule;
+import rrampage.wasp.data.Memory;
 import rrampage.wasp.data.Module;
+import rrampage.wasp.vm.ExportedFunction;
 import rrampage.wasp.vm.Machine;
+import rrampage.wasp.vm.MachineConfig;
+import rrampage.wasp.vm.MachineSnapshot;
 import rrampage.wasp.vm.MachineVisitors;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static rrampage.wasp.TestUtils.*;
 import static rrampage.wasp.utils.ConversionUtils.constOf;
@@ -48,7 +60,81 @@ public class GameOfLifeUnOptTest {
         }
     }
 
+    @Test
+    public void shouldForkIndependentMachinesFromSnapshot() {
+        Machine original = machine;
+        MachineSnapshot snapshot = machine.snapshot();
+        machine = snapshot.fork();
+        for (int i = 0; i < 2; i++) {
+            machine.invoke("tick");
+            GameOfLifeUtils.calculateGameOfLife(referenceArray);
+        }
+        assertTrue(compareWithReferenceArray(referenceArray));
+        // Neither a new fork nor the original machine see the writes of the first fork
+        machine = snapshot.fork();
+        assertTrue(compareWithReferenceArray(GameOfLifeUtils.pulsar()));
+        machine = original;
+        assertTrue(compareWithReferenceArray(GameOfLifeUtils.pulsar()));
+        // Forks of forks work as well
+        machine = original.fork().fork();
+        machine.invoke("tick");
+        byte[][] board = GameOfLifeUtils.pulsar();
+        GameOfLifeUtils.calculateGameOfLife(board);
+        assertTrue(compareWithReferenceArray(board));
+    }
+
     public static int[] javaPulsarIterations() {return new int[]{500, 1000, 1500};}
+    @Test
+    public void shouldRunCompiledModuleOnManyThreads() throws Exception {
+        CompiledModule compiled = module.compile();
+        MachineConfig[] configs = {MachineConfig.DEFAULT, MachineConfig.ConfigBuilder.of().jit(true).build(),
+                MachineConfig.ConfigBuilder.of().interpreter(MachineConfig.Interpreter.TREE).build(),
+                MachineConfig.ConfigBuilder.of().fuseInstructions(true).build(),
+                MachineConfig.ConfigBuilder.of().interpreter(MachineConfig.Interpreter.CLOSURE).build(),
+                MachineConfig.ConfigBuilder.of().interpreter(MachineConfig.Interpreter.CLOSURE).fuseInstructions(true).build(),
+                MachineConfig.ConfigBuilder.of().interpreter(MachineConfig.Interpreter.REGISTER).build()};
+        try (var executor = Executors.newFixedThreadPool(8)) {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < 16; t++) {
+                // Every thread runs a different number of generations on its own instance
+                int ticks = t % 5;
+                MachineConfig config = configs[t % configs.length];
+                results.add(executor.submit(() -> {
+                    Machine m = compiled.instantiate(null, MachineVisitors.NULL_VISITOR, config);
+                    byte[][] board = GameOfLifeUtils.pulsar();
+                    int height = board.length, width = board[0].length;
+                    m.invoke("initializeBoard", constOf(width), constOf(height));
+                    ExportedFunction setValue = m.exportedFunction("setValueAtPosition");
+                    ExportedFunction getValue = m.exportedFunction("getValueAtPosition");
+                    for (int row = 0; row < height; row++) {
+                        for (int column = 0; column < width; column++) {
+                            setValue.invoke(row, column, board[row][column]);
+                        }
+                    }
+                    for (int i = 0; i < ticks; i++) {
+                        m.invoke("tick");
+                        GameOfLifeUtils.calculateGameOfLife(board);
+                    }
+                    for (int row = 0; row < height; row++) {
+                        for (int column = 0; column < width; column++) {
+                            if ((byte) getValue.invokeInt(row, column) != board[row][column]) {
+                                return false;
+                            }
+                        }
+                    }
+                    return true;
+                }));
+            }
+            for (var result : results) {
+                assertTrue(result.get());
+            }
+        }
+        // Instances of the same module do not share memory
+        Object memory = compiled.instantiate(null).exports().get("shared_memory");
+        assertInstanceOf(Memory.class, memory);
+        assertNotSame(memory, compiled.instantiate(null).exports().get("shared_memory"));
+    }
+
     @ParameterizedTest
     @MethodSource(value =  "javaPulsarIterations")
     public void shouldIterateGameOfLifeJavaNTimes(int n) {
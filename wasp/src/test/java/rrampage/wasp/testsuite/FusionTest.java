@@ -0,0 +1,92 @@
+package rrampage.wasp.testsuite;
+
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestFactory;
+import rrampage.wasp.data.Module;
+import rrampage.wasp.instructions.FusedInstruction;
+import rrampage.wasp.instructions.Instruction;
+import rrampage.wasp.instructions.IntBinaryInstruction;
+import rrampage.wasp.optimizer.FusionReport;
+import rrampage.wasp.optimizer.InstructionFuser;
+import rrampage.wasp.programs.GameOfLifeUtils;
+import rrampage.wasp.vm.ExportedFunction;
+import rrampage.wasp.vm.Machine;
+import rrampage.wasp.vm.MachineConfig;
+import rrampage.wasp.vm.MachineVisitors;
+
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static rrampage.wasp.TestUtils.parseModule;
+import static rrampage.wasp.testsuite.TestSuiteRunner.wastTest;
+import static rrampage.wasp.utils.ConversionUtils.constOf;
+
+public class FusionTest {
+    private static final MachineConfig FLAT = MachineConfig.ConfigBuilder.of().fuseInstructions(true).build();
+    private static final MachineConfig TREE = MachineConfig.ConfigBuilder.of().fuseInstructions(true)
+            .interpreter(MachineConfig.Interpreter.TREE).build();
+    private static final MachineConfig JIT = MachineConfig.ConfigBuilder.of().fuseInstructions(true).jit(true).build();
+
+    @TestFactory public Stream<DynamicTest> testI32() { return wastTest("i32.json", FLAT);}
+    @TestFactory public Stream<DynamicTest> testIntExpressions() { return wastTest("int_exprs.json", FLAT);}
+    @TestFactory public Stream<DynamicTest> testLoop() {return wastTest("loop.json", FLAT);}
+    @TestFactory public Stream<DynamicTest> testBrIf() {return wastTest("br_if.json", FLAT);}
+    @TestFactory public Stream<DynamicTest> testLocalTee() {return wastTest("local_tee.json", FLAT);}
+    @TestFactory public Stream<DynamicTest> testFac() {return wastTest("fac.json", FLAT);}
+    @TestFactory public Stream<DynamicTest> testLoopTree() {return wastTest("loop.json", TREE);}
+    @TestFactory public Stream<DynamicTest> testBrIfTree() {return wastTest("br_if.json", TREE);}
+    @TestFactory public Stream<DynamicTest> testLoopJit() {return wastTest("loop.json", JIT);}
+    @TestFactory public Stream<DynamicTest> testBrIfJit() {return wastTest("br_if.json", JIT);}
+
+    @Test
+    public void shouldFuseCommonSequences() {
+        for (String file : new String[]{"./gol/game_of_life.wasm", "./gol/game_of_life_unopt.wasm"}) {
+            Module module = parseModule(file);
+            FusionReport report = InstructionFuser.fuse(module);
+            System.out.println(STR."\{file} \{report}");
+            assertTrue(report.total() > 0);
+            long fused = Arrays.stream(module.functions()).filter(f -> f.code() != null)
+                    .flatMap(f -> Arrays.stream(f.code())).filter(i -> i instanceof FusedInstruction).count();
+            assertTrue(fused > 0);
+            // Fusing again finds nothing new
+            assertEquals(0, InstructionFuser.fuse(module).total());
+        }
+    }
+
+    @Test
+    public void shouldExpandToOriginalSequence() {
+        var fused = new FusedInstruction.LocalConstI32Set(0, 1, IntBinaryInstruction.I32_ADD, 2);
+        Instruction[] expanded = fused.expand();
+        assertEquals(4, expanded.length);
+        assertEquals("local.get+i32.const+i32.add+local.set", fused.opCode());
+    }
+
+    @Test
+    public void shouldRunGameOfLifeWithFusedInstructions() {
+        for (MachineConfig config : new MachineConfig[]{FLAT, TREE, JIT}) {
+            Machine machine = parseModule("./gol/game_of_life_unopt.wasm").instantiate(null, MachineVisitors.NULL_VISITOR, config);
+            byte[][] board = GameOfLifeUtils.pulsar();
+            int height = board.length, width = board[0].length;
+            machine.invoke("initializeBoard", constOf(width), constOf(height));
+            ExportedFunction setValue = machine.exportedFunction("setValueAtPosition");
+            ExportedFunction getValue = machine.exportedFunction("getValueAtPosition");
+            ExportedFunction tick = machine.exportedFunction("tick");
+            for (int row = 0; row < height; row++) {
+                for (int column = 0; column < width; column++) {
+                    setValue.invoke(row, column, board[row][column]);
+                }
+            }
+            for (int i = 0; i < 3; i++) {
+                tick.invoke();
+                GameOfLifeUtils.calculateGameOfLife(board);
+            }
+            for (int row = 0; row < height; row++) {
+                for (int column = 0; column < width; column++) {
+                    assertEquals(board[row][column], (byte) getValue.invokeInt(row, column));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package rrampage.wasp.testsuite;
+
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestFactory;
+import rrampage.wasp.data.Function;
+import rrampage.wasp.data.FunctionType;
+import rrampage.wasp.data.Memory;
+import rrampage.wasp.data.ValueType;
+import rrampage.wasp.instructions.ConstInstruction;
+import rrampage.wasp.instructions.FunctionInstruction;
+import rrampage.wasp.instructions.Instruction;
+import rrampage.wasp.instructions.IntBinaryInstruction;
+import rrampage.wasp.vm.ExportedFunction;
+import rrampage.wasp.vm.FlatCode;
+import rrampage.wasp.vm.FlatCodeCompiler;
+import rrampage.wasp.vm.Invocation;
+import rrampage.wasp.vm.Machine;
+import rrampage.wasp.vm.MachineConfig;
+import rrampage.wasp.vm.MachineVisitor;
+import rrampage.wasp.vm.MachineVisitors;
+import rrampage.wasp.vm.RegisterCode;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static rrampage.wasp.testsuite.TestSuiteRunner.wastTest;
+import static rrampage.wasp.utils.ConversionUtils.constOf;
+
+public class InterpreterTest {
+    // The flat interpreter is the default, so other tests cover it. Keep the tree interpreter covered as well
+    private static final MachineConfig TREE = MachineConfig.ConfigBuilder.of().interpreter(MachineConfig.Interpreter.TREE).build();
+    private static final MachineConfig STACKLESS = MachineConfig.ConfigBuilder.of().interpreter(MachineConfig.Interpreter.STACKLESS).build();
+    private static final MachineConfig CLOSURE = MachineConfig.ConfigBuilder.of().interpreter(MachineConfig.Interpreter.CLOSURE).build();
+    private static final MachineConfig REGISTER = MachineConfig.ConfigBuilder.of().interpreter(MachineConfig.Interpreter.REGISTER).build();
+    private Machine machine;
+    private int ticks;
+
+    @TestFactory public Stream<DynamicTest> testI32() { return wastTest("i32.json", TREE);}
+    @TestFactory public Stream<DynamicTest> testI64() { return wastTest("i64.json", TREE);}
+    @TestFactory public Stream<DynamicTest> testConversions() { return wastTest("conversions.json", TREE);}
+    @TestFactory public Stream<DynamicTest> testBlock() {return wastTest("block.json", TREE);}
+    @TestFactory public Stream<DynamicTest> testLoop() {return wastTest("loop.json", TREE);}
+    @TestFactory public Stream<DynamicTest> testIf() {return wastTest("if.json", TREE);}
+    @TestFactory public Stream<DynamicTest> testBr() {return wastTest("br.json", TREE);}
+    @TestFactory public Stream<DynamicTest> testBrIf() {return wastTest("br_if.json", TREE);}
+    @TestFactory public Stream<DynamicTest> testBrTable() {return wastTest("br_table.json", TREE);}
+    @TestFactory public Stream<DynamicTest> testLabels() {return wastTest("labels.json", TREE);}
+    @TestFactory public Stream<DynamicTest> testCall() {return wastTest("call.json", TREE);}
+    @TestFactory public Stream<DynamicTest> testCallIndirect() {return wastTest("call_indirect.json", TREE);}
+    @TestFactory public Stream<DynamicTest> testUnwind() {return wastTest("unwind.json", TREE);}
+    @TestFactory public Stream<DynamicTest> testReturn() {return wastTest("return.json", TREE);}
+    @TestFactory public Stream<DynamicTest> testMemory() {return wastTest("memory.json", TREE);}
+    @TestFactory public Stream<DynamicTest> testCallStackless() {return wastTest("call.json", STACKLESS);}
+    @TestFactory public Stream<DynamicTest> testCallIndirectStackless() {return wastTest("call_indirect.json", STACKLESS);}
+    @TestFactory public Stream<DynamicTest> testFacStackless() {return wastTest("fac.json", STACKLESS);}
+    @TestFactory public Stream<DynamicTest> testReturnStackless() {return wastTest("return.json", STACKLESS);}
+    @TestFactory public Stream<DynamicTest> testUnwindStackless() {return wastTest("unwind.json", STACKLESS);}
+    @TestFactory public Stream<DynamicTest> testI32Closure() {return wastTest("i32.json", CLOSURE);}
+    @TestFactory public Stream<DynamicTest> testI64Closure() {return wastTest("i64.json", CLOSURE);}
+    @TestFactory public Stream<DynamicTest> testF32Closure() {return wastTest("f32.json", CLOSURE);}
+    @TestFactory public Stream<DynamicTest> testF64Closure() {return wastTest("f64.json", CLOSURE);}
+    @TestFactory public Stream<DynamicTest> testConversionsClosure() {return wastTest("conversions.json", CLOSURE);}
+    @TestFactory public Stream<DynamicTest> testBlockClosure() {return wastTest("block.json", CLOSURE);}
+    @TestFactory public Stream<DynamicTest> testLoopClosure() {return wastTest("loop.json", CLOSURE);}
+    @TestFactory public Stream<DynamicTest> testIfClosure() {return wastTest("if.json", CLOSURE);}
+    @TestFactory public Stream<DynamicTest> testBrClosure() {return wastTest("br.json", CLOSURE);}
+    @TestFactory public Stream<DynamicTest> testBrIfClosure() {return wastTest("br_if.json", CLOSURE);}
+    @TestFactory public Stream<DynamicTest> testBrTableClosure() {return wastTest("br_table.json", CLOSURE);}
+    @TestFactory public Stream<DynamicTest> testLabelsClosure() {return wastTest("labels.json", CLOSURE);}
+    @TestFactory public Stream<DynamicTest> testCallClosure() {return wastTest("call.json", CLOSURE);}
+    @TestFactory public Stream<DynamicTest> testCallIndirectClosure() {return wastTest("call_indirect.json", CLOSURE);}
+    @TestFactory public Stream<DynamicTest> testUnwindClosure() {return wastTest("unwind.json", CLOSURE);}
+    @TestFactory public Stream<DynamicTest> testReturnClosure() {return wastTest("return.json", CLOSURE);}
+    @TestFactory public Stream<DynamicTest> testMemoryClosure() {return wastTest("memory.json", CLOSURE);}
+    @TestFactory public Stream<DynamicTest> testAddressClosure() {return wastTest("address.json", CLOSURE);}
+    @TestFactory public Stream<DynamicTest> testLeftToRightClosure() {return wastTest("left-to-right.json", CLOSURE);}
+    @TestFactory public Stream<DynamicTest> testLocalTeeClosure() {return wastTest("local_tee.json", CLOSURE);}
+    @TestFactory public Stream<DynamicTest> testStackClosure() {return wastTest("stack.json", CLOSURE);}
+    @TestFactory public Stream<DynamicTest> testSwitchClosure() {return wastTest("switch.json", CLOSURE);}
+    @TestFactory public Stream<DynamicTest> testIntExprsClosure() {return wastTest("int_exprs.json", CLOSURE);}
+    @TestFactory public Stream<DynamicTest> testFloatExprsClosure() {return wastTest("float_exprs.json", CLOSURE);}
+    @TestFactory public Stream<DynamicTest> testMemoryRedundancyClosure() {return wastTest("memory_redundancy.json", CLOSURE);}
+    @TestFactory public Stream<DynamicTest> testMemorySizeClosure() {return wastTest("memory_size.json", CLOSURE);}
+    @TestFactory public Stream<DynamicTest> testFacClosure() {return wastTest("fac.json", CLOSURE);}
+
+    @TestFactory public Stream<DynamicTest> testI32Register() {return wastTest("i32.json", REGISTER);}
+    @TestFactory public Stream<DynamicTest> testI64Register() {return wastTest("i64.json", REGISTER);}
+    @TestFactory public Stream<DynamicTest> testF32Register() {return wastTest("f32.json", REGISTER);}
+    @TestFactory public Stream<DynamicTest> testF64Register() {return wastTest("f64.json", REGISTER);}
+    @TestFactory public Stream<DynamicTest> testConversionsRegister() {return wastTest("conversions.json", REGISTER);}
+    @TestFactory public Stream<DynamicTest> testBlockRegister() {return wastTest("block.json", REGISTER);}
+    @TestFactory public Stream<DynamicTest> testLoopRegister() {return wastTest("loop.json", REGISTER);}
+    @TestFactory public Stream<DynamicTest> testIfRegister() {return wastTest("if.json", REGISTER);}
+    @TestFactory public Stream<DynamicTest> testBrRegister() {return wastTest("br.json", REGISTER);}
+    @TestFactory public Stream<DynamicTest> testBrIfRegister() {return wastTest("br_if.json", REGISTER);}
+    @TestFactory public Stream<DynamicTest> testBrTableRegister() {return wastTest("br_table.json", REGISTER);}
+    @TestFactory public Stream<DynamicTest> testLabelsRegister() {return wastTest("labels.json", REGISTER);}
+    @TestFactory public Stream<DynamicTest> testCallRegister() {return wastTest("call.json", REGISTER);}
+    @TestFactory public Stream<DynamicTest> testCallIndirectRegister() {return wastTest("call_indirect.json", REGISTER);}
+    @TestFactory public Stream<DynamicTest> testUnwindRegister() {return wastTest("unwind.json", REGISTER);}
+    @TestFactory public Stream<DynamicTest> testReturnRegister() {return wastTest("return.json", REGISTER);}
+    @TestFactory public Stream<DynamicTest> testMemoryRegister() {return wastTest("memory.json", REGISTER);}
+    @TestFactory public Stream<DynamicTest> testAddressRegister() {return wastTest("address.json", REGISTER);}
+    @TestFactory public Stream<DynamicTest> testLeftToRightRegister() {return wastTest("left-to-right.json", REGISTER);}
+    @TestFactory public Stream<DynamicTest> testLocalTeeRegister() {return wastTest("local_tee.json", REGISTER);}
+    @TestFactory public Stream<DynamicTest> testStackRegister() {return wastTest("stack.json", REGISTER);}
+    @TestFactory public Stream<DynamicTest> testSwitchRegister() {return wastTest("switch.json", REGISTER);}
+    @TestFactory public Stream<DynamicTest> testIntExprsRegister() {return wastTest("int_exprs.json", REGISTER);}
+    @TestFactory public Stream<DynamicTest> testFloatExprsRegister() {return wastTest("float_exprs.json", REGISTER);}
+    @TestFactory public Stream<DynamicTest> testMemoryRedundancyRegister() {return wastTest("memory_redundancy.json", REGISTER);}
+    @TestFactory public Stream<DynamicTest> testMemorySizeRegister() {return wastTest("memory_size.json", REGISTER);}
+    @TestFactory public Stream<DynamicTest> testFacRegister() {return wastTest("fac.json", REGISTER);}
+
+    @Test
+    public void shouldLowerFunctionsToFlatCode() {
+        TestSuiteRunner runner = new TestSuiteRunner("./testsuite/fac.0.wasm", null, MachineVisitors.NULL_VISITOR, MachineConfig.DEFAULT);
+        Machine machine = runner.getMachine();
+        machine.invoke("fac-iter", ConstInstruction.of(constOf(25L)));
+        assertTrue(machine.compareStack(constOf(7034535277573963776L)));
+        Function f = (Function) machine.exports().get("fac-iter");
+        assertTrue(f.cache().hasFlatCode(), f.cache().flatCodeError());
+    }
+
+    @Test
+    public void shouldCompileFunctionsToClosures() {
+        TestSuiteRunner runner = new TestSuiteRunner("./testsuite/fac.0.wasm", null, MachineVisitors.NULL_VISITOR, CLOSURE);
+        Machine machine = runner.getMachine();
+        assertEquals(7034535277573963776L, machine.exportedFunction("fac-iter").invoke(25L));
+        assertEquals(7034535277573963776L, machine.exportedFunction("fac-rec").invoke(25L));
+        Function f = (Function) machine.exports().get("fac-iter");
+        assertTrue(f.cache().hasClosureCode(), f.cache().closureCodeError());
+        // Closure code replaces flat code
+        assertFalse(f.cache().hasFlatCode());
+    }
+
+    @Test
+    public void shouldTranslateFunctionsToRegisterCode() {
+        TestSuiteRunner runner = new TestSuiteRunner("./testsuite/fac.0.wasm", null, MachineVisitors.NULL_VISITOR, REGISTER);
+        Machine machine = runner.getMachine();
+        assertEquals(7034535277573963776L, machine.exportedFunction("fac-iter").invoke(25L));
+        assertEquals(7034535277573963776L, machine.exportedFunction("fac-rec").invoke(25L));
+        Function f = (Function) machine.exports().get("fac-iter");
+        assertTrue(f.cache().hasRegisterCode(), f.cache().registerCodeError());
+        assertFalse(f.cache().hasFlatCode());
+        // Locals are read in place, so the loop needs fewer ops than flat code
+        RegisterCode code = f.cache().registerCode();
+        FlatCode flat = FlatCodeCompiler.compile(f, new Function[0]);
+        assertTrue(code.code().length < flat.code().length);
+    }
+
+    @Test
+    public void shouldNotLowerWithTreeInterpreter() {
+        TestSuiteRunner runner = new TestSuiteRunner("./testsuite/fac.0.wasm", null, MachineVisitors.NULL_VISITOR, TREE);
+        Machine machine = runner.getMachine();
+        machine.invoke("fac-rec", ConstInstruction.of(constOf(5L)));
+        assertTrue(machine.compareStack(constOf(120L)));
+        Function f = (Function) machine.exports().get("fac-rec");
+        assertFalse(f.cache().hasFlatCode());
+    }
+
+    @Test
+    public void shouldNotLowerWithInstructionVisitor() {
+        TestSuiteRunner runner = new TestSuiteRunner("./testsuite/fac.0.wasm", null, MachineVisitors.logVisitor(), MachineConfig.DEFAULT);
+        Machine machine = runner.getMachine();
+        machine.invoke("fac-rec", ConstInstruction.of(constOf(5L)));
+        assertTrue(machine.compareStack(constOf(120L)));
+        Function f = (Function) machine.exports().get("fac-rec");
+        assertFalse(f.cache().hasFlatCode());
+    }
+
+    @Test
+    public void shouldVisitEveryInstructionOnce() {
+        AtomicInteger pre = new AtomicInteger(), post = new AtomicInteger();
+        MachineVisitor visitor = MachineVisitor.VisitorBuilder.of()
+                .preInstruction(_ -> pre.incrementAndGet())
+                .postInstruction(_ -> post.incrementAndGet())
+                .build();
+        TestSuiteRunner runner = new TestSuiteRunner("./testsuite/fac.0.wasm", null, visitor, MachineConfig.DEFAULT);
+        Machine machine = runner.getMachine();
+        machine.invoke("fac-iter", ConstInstruction.of(constOf(5L)));
+        assertTrue(machine.compareStack(constOf(120L)));
+        assertTrue(pre.get() > 0);
+        // Blocks, loops and branches leaving early are visited after execution as well
+        assertEquals(pre.get(), post.get());
+    }
+
+    @Test
+    public void shouldNotAllocateOnCalls() {
+        TestSuiteRunner runner = new TestSuiteRunner("./testsuite/fac.0.wasm", null, MachineVisitors.NULL_VISITOR, MachineConfig.DEFAULT);
+        Machine machine = runner.getMachine();
+        ConstInstruction[] args = ConstInstruction.of(constOf(20L));
+        var threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        // Warm up so that allocations from class loading and lowering are not counted
+        for (int i = 0; i < 20000; i++) {
+            machine.invoke("fac-rec", args);
+            machine.pop();
+        }
+        long allocated = threadBean.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < 1000; i++) {
+            machine.invoke("fac-rec", args);
+            machine.pop();
+        }
+        allocated = threadBean.getCurrentThreadAllocatedBytes() - allocated;
+        // fac-rec(20) makes 21 calls. Allow some slack for allocations outside the interpreter
+        assertTrue(allocated < 64 * 1000, STR."Allocated \{allocated} bytes");
+    }
+
+    @Test
+    public void shouldInvokeExportedFunctionWithoutAllocating() {
+        TestSuiteRunner runner = new TestSuiteRunner("./testsuite/fac.0.wasm", null, MachineVisitors.NULL_VISITOR, MachineConfig.DEFAULT);
+        Machine machine = runner.getMachine();
+        ExportedFunction fac = machine.exportedFunction("fac-iter");
+        assertEquals(7034535277573963776L, fac.invoke(25L));
+        assertEquals(120, fac.invokeInt(5L));
+        assertThrows(RuntimeException.class, () -> fac.invoke(1L, 2L));
+        assertThrows(RuntimeException.class, () -> machine.exportedFunction("missing"));
+        var threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        for (int i = 0; i < 20000; i++) {
+            fac.invoke(20L);
+        }
+        long allocated = threadBean.getCurrentThreadAllocatedBytes();
+        long sum = 0;
+        for (int i = 0; i < 1000; i++) {
+            sum += fac.invoke(20L);
+        }
+        allocated = threadBean.getCurrentThreadAllocatedBytes() - allocated;
+        assertEquals(1000 * 2432902008176640000L, sum);
+        // Only allocations outside the call itself, e.g. from the bean, remain
+        assertTrue(allocated < 1024, STR."Allocated \{allocated} bytes");
+    }
+
+    @Test
+    public void shouldInvokeExportedFunctionWithFloatTypes() {
+        for (String file : new String[]{"./testsuite/f32.0.wasm", "./testsuite/f64.0.wasm"}) {
+            Machine machine = new TestSuiteRunner(file, null, MachineVisitors.NULL_VISITOR, MachineConfig.DEFAULT).getMachine();
+            ExportedFunction add = machine.exportedFunction("add");
+            if (file.contains("f32")) {
+                assertEquals(3.75f, machine.exportedFunction("add", FunctionType.F32_BINARY).invokeFloat(1.5f, 2.25f));
+                assertEquals(1.5f, machine.exportedFunction("sqrt").invokeFloat(2.25f));
+                assertThrows(RuntimeException.class, () -> add.invokeDouble(1.5, 2.25));
+                assertThrows(RuntimeException.class, () -> machine.exportedFunction("add", FunctionType.F64_BINARY));
+            } else {
+                assertEquals(3.75, machine.exportedFunction("add", FunctionType.F64_BINARY).invokeDouble(1.5, 2.25));
+                assertThrows(RuntimeException.class, () -> add.invokeFloat(1.5f, 2.25f));
+                assertThrows(RuntimeException.class, () -> machine.exportedFunction("add", FunctionType.F32_BINARY));
+            }
+            assertThrows(RuntimeException.class, () -> add.invokeFloat(1.5f));
+            assertThrows(RuntimeException.class, () -> add.invokeDouble(1.5));
+        }
+    }
+
+    @Test
+    public void shouldRecurseWithoutUsingJavaStack() throws Exception {
+        TestSuiteRunner runner = new TestSuiteRunner("./testsuite/fac.0.wasm", null, MachineVisitors.NULL_VISITOR, STACKLESS);
+        ExportedFunction fac = runner.getMachine().exportedFunction("fac-rec");
+        AtomicReference<Long> result = new AtomicReference<>();
+        // 100000 nested calls on a thread with a 256 KiB stack
+        Thread thread = new Thread(null, () -> result.set(fac.invoke(100000L)), "stackless", 256 * 1024);
+        thread.start();
+        thread.join();
+        // 100000! has more than 64 factors of two
+        assertEquals(0L, result.get());
+        assertEquals(7034535277573963776L, fac.invoke(25L));
+    }
+
+    @Test
+    public void shouldSuspendAndResumeInvocation() throws Exception {
+        FunctionType i32ToI32 = new FunctionType(new ValueType[]{ValueType.NumType.I32}, new ValueType[]{ValueType.NumType.I32});
+        Function tick = Function.createImportFunction("tick", FunctionType.I32_RETURN,
+                MethodHandles.lookup().bind(this, "tick", MethodType.methodType(int.class)));
+        // tick() * 1 + tick() * 10 + tick() * 100 with tick called from a nested function
+        Function tickTimes = new Function("tickTimes", i32ToI32, null, new Instruction[]{
+                new FunctionInstruction.Call(0), new FunctionInstruction.LocalGet(0), IntBinaryInstruction.I32_MUL});
+        Function run = new Function("run", FunctionType.I32_RETURN, null, new Instruction[]{
+                new ConstInstruction.IntConst(1), new FunctionInstruction.Call(1),
+                new ConstInstruction.IntConst(10), new FunctionInstruction.Call(1), IntBinaryInstruction.I32_ADD,
+                new ConstInstruction.IntConst(100), new FunctionInstruction.Call(1), IntBinaryInstruction.I32_ADD});
+        Function two = new Function("two", FunctionType.I32_RETURN, null, new Instruction[]{new ConstInstruction.IntConst(2)});
+        machine = new Machine(new Function[]{tick, tickTimes, run, two}, null, null, new Memory[]{new Memory(1)}, null, null,
+                Map.of("run", run, "two", two), -1, MachineVisitors.NULL_VISITOR, STACKLESS);
+        Invocation invocation = machine.exportedFunction("run").start();
+        for (int i = 1; i <= 3; i++) {
+            assertFalse(invocation.resume());
+            assertTrue(invocation.isSuspended());
+            assertEquals(i, ticks);
+            // Other calls can run while suspended
+            assertEquals(2, machine.exportedFunction("two").invokeInt());
+        }
+        assertTrue(invocation.resume());
+        assertEquals(1 + 2 * 10 + 3 * 100, invocation.result());
+        // Only invocations can be suspended
+        assertThrows(RuntimeException.class, () -> machine.exportedFunction("run").invoke());
+    }
+
+    // Host function which suspends the running invocation
+    private int tick() {
+        machine.suspend();
+        return ++ticks;
+    }
+}
@@ -0,0 +1,67 @@
+package rrampage.wasp.testsuite;
+
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestFactory;
+import rrampage.wasp.data.Function;
+import rrampage.wasp.instructions.ConstInstruction;
+import rrampage.wasp.vm.Machine;
+import rrampage.wasp.vm.MachineConfig;
+import rrampage.wasp.vm.MachineVisitors;
+
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static rrampage.wasp.testsuite.TestSuiteRunner.wastTest;
+import static rrampage.wasp.utils.ConversionUtils.constOf;
+
+public class JitTest {
+    private static final MachineConfig JIT = MachineConfig.ConfigBuilder.of().jit(true).build();
+
+    @TestFactory public Stream<DynamicTest> testI32() { return wastTest("i32.json", JIT);}
+    @TestFactory public Stream<DynamicTest> testI64() { return wastTest("i64.json", JIT);}
+    @TestFactory public Stream<DynamicTest> testF32() {return wastTest("f32.json", JIT);}
+    @TestFactory public Stream<DynamicTest> testF64() { return wastTest("f64.json", JIT);}
+    @TestFactory public Stream<DynamicTest> testConversions() { return wastTest("conversions.json", JIT);}
+    @TestFactory public Stream<DynamicTest> testIntExpressions() { return wastTest("int_exprs.json", JIT);}
+    @TestFactory public Stream<DynamicTest> testFloatExpressions() { return wastTest("float_exprs.json", JIT);}
+    @TestFactory public Stream<DynamicTest> testFloatMisc() {return wastTest("float_misc.json", JIT);}
+    @TestFactory public Stream<DynamicTest> testBlock() {return wastTest("block.json", JIT);}
+    @TestFactory public Stream<DynamicTest> testLoop() {return wastTest("loop.json", JIT);}
+    @TestFactory public Stream<DynamicTest> testIf() {return wastTest("if.json", JIT);}
+    @TestFactory public Stream<DynamicTest> testBr() {return wastTest("br.json", JIT);}
+    @TestFactory public Stream<DynamicTest> testBrIf() {return wastTest("br_if.json", JIT);}
+    @TestFactory public Stream<DynamicTest> testBrTable() {return wastTest("br_table.json", JIT);}
+    @TestFactory public Stream<DynamicTest> testLabels() {return wastTest("labels.json", JIT);}
+    @TestFactory public Stream<DynamicTest> testSwitch() {return wastTest("switch.json", JIT);}
+    @TestFactory public Stream<DynamicTest> testCall() {return wastTest("call.json", JIT);}
+    @TestFactory public Stream<DynamicTest> testCallIndirect() {return wastTest("call_indirect.json", JIT);}
+    @TestFactory public Stream<DynamicTest> testUnwind() {return wastTest("unwind.json", JIT);}
+    @TestFactory public Stream<DynamicTest> testReturn() {return wastTest("return.json", JIT);}
+    @TestFactory public Stream<DynamicTest> testLocalTee() {return wastTest("local_tee.json", JIT);}
+    @TestFactory public Stream<DynamicTest> testMemory() {return wastTest("memory.json", JIT);}
+    @TestFactory public Stream<DynamicTest> testEndianness() {return wastTest("endianness.json", JIT);}
+    @TestFactory public Stream<DynamicTest> testAddress() {return wastTest("address.json", JIT);}
+    @TestFactory public Stream<DynamicTest> testLeftToRight() {return wastTest("left-to-right.json", JIT);}
+    @TestFactory public Stream<DynamicTest> testStack() { return wastTest("stack.json", JIT);}
+
+    @Test
+    public void shouldCompileFunctions() {
+        TestSuiteRunner runner = new TestSuiteRunner("./testsuite/fac.0.wasm", null, MachineVisitors.NULL_VISITOR, JIT);
+        Machine machine = runner.getMachine();
+        machine.invoke("fac-iter", ConstInstruction.of(constOf(25L)));
+        assertTrue(machine.compareStack(constOf(7034535277573963776L)));
+        Function f = (Function) machine.exports().get("fac-iter");
+        assertTrue(f.cache().isCompiled(), f.cache().compileError());
+    }
+
+    @Test
+    public void shouldNotCompileWithInstructionVisitor() {
+        TestSuiteRunner runner = new TestSuiteRunner("./testsuite/fac.0.wasm", null, MachineVisitors.logVisitor(), JIT);
+        Machine machine = runner.getMachine();
+        machine.invoke("fac-rec", ConstInstruction.of(constOf(5L)));
+        assertTrue(machine.compareStack(constOf(120L)));
+        Function f = (Function) machine.exports().get("fac-rec");
+        assertFalse(f.cache().isCompiled());
+    }
+}
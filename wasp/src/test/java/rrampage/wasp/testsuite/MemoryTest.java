@@ -1,12 +1,30 @@
 package rrampage.wasp.testsuite;
 
 import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestFactory;
+import rrampage.wasp.data.Memory;
+import rrampage.wasp.data.MemorySnapshot;
+import rrampage.wasp.data.SegmentMemory;
+import rrampage.wasp.parser.WasmParser;
+import rrampage.wasp.vm.Machine;
+import rrampage.wasp.vm.MachineConfig;
+import rrampage.wasp.vm.MachineVisitors;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
+import static org.junit.jupiter.api.Assertions.*;
 import static rrampage.wasp.testsuite.TestSuiteRunner.wastTest;
 
 public class MemoryTest {
+    private static final MachineConfig OFF_HEAP = MachineConfig.ConfigBuilder.of().offHeapMemory(true).build();
+
     @TestFactory public Stream<DynamicTest> testMemory() {return wastTest("memory.json");}
     @TestFactory public Stream<DynamicTest> testMemoryInit() {return wastTest("memory_init.json");}
     @TestFactory public Stream<DynamicTest> testMemorySize() {return wastTest("memory_size.json");}
@@ -14,4 +32,152 @@ public class MemoryTest {
     @TestFactory public Stream<DynamicTest> testEndianness() {return wastTest("endianness.json");}
     @TestFactory public Stream<DynamicTest> testAddress() {return wastTest("address.json");}
     @TestFactory public Stream<DynamicTest> testAlign() {return wastTest("align.json");}
+
+    @TestFactory public Stream<DynamicTest> testMemoryOffHeap() {return wastTest("memory.json", OFF_HEAP);}
+    @TestFactory public Stream<DynamicTest> testMemoryInitOffHeap() {return wastTest("memory_init.json", OFF_HEAP);}
+    @TestFactory public Stream<DynamicTest> testMemorySizeOffHeap() {return wastTest("memory_size.json", OFF_HEAP);}
+    @TestFactory public Stream<DynamicTest> testEndiannessOffHeap() {return wastTest("endianness.json", OFF_HEAP);}
+    @TestFactory public Stream<DynamicTest> testAddressOffHeap() {return wastTest("address.json", OFF_HEAP);}
+    @TestFactory public Stream<DynamicTest> testLoadOffHeap() {return wastTest("load.json", OFF_HEAP);}
+    @TestFactory public Stream<DynamicTest> testStoreOffHeap() {return wastTest("store.json", OFF_HEAP);}
+
+    @Test
+    public void shouldGrowSegmentMemoryWithoutCopying() {
+        Memory memory = new SegmentMemory(1);
+        memory.store(8, 0x0102030405060708L);
+        assertEquals(1, memory.grow(3));
+        assertEquals(4, memory.getMemorySize());
+        assertEquals(0x0102030405060708L, memory.loadLong(8));
+        assertEquals(0x08, memory.loadByte(8));
+        assertThrows(IndexOutOfBoundsException.class, () -> memory.loadInt(4 * 65536 - 2));
+        assertEquals(-1, memory.grow(Memory.MAX_WASM_PAGES));
+    }
+
+    @Test
+    public void shouldAddressFullFourGiB() {
+        Memory memory = new SegmentMemory(0);
+        assertEquals(0, memory.grow(Memory.MAX_WASM_PAGES));
+        // Addresses are unsigned so the last bytes are at negative ints. Only touched pages use RAM
+        memory.store(-4, 42);
+        assertEquals(42, memory.loadInt(-4));
+        assertEquals(0, memory.loadInt(Integer.MAX_VALUE - 3));
+        assertThrows(IndexOutOfBoundsException.class, () -> memory.loadInt(-2));
+    }
+
+    @Test
+    public void shouldImportExportedMemoryWithoutMax() {
+        ByteArrayOutputStream exporter = new ByteArrayOutputStream(), importer = new ByteArrayOutputStream();
+        byte[] header = {0x00, 0x61, 0x73, 0x6d, 0x01, 0x00, 0x00, 0x00};
+        // (memory (export "memory") 1)
+        exporter.writeBytes(header);
+        exporter.writeBytes(new byte[]{0x05, 0x03, 0x01, 0x00, 0x01});
+        exporter.writeBytes(new byte[]{0x07, 0x0a, 0x01, 0x06, 'm', 'e', 'm', 'o', 'r', 'y', 0x02, 0x00});
+        // (import "env" "memory" (memory 1))
+        importer.writeBytes(header);
+        importer.writeBytes(new byte[]{0x02, 0x0f, 0x01, 0x03, 'e', 'n', 'v', 0x06, 'm', 'e', 'm', 'o', 'r', 'y', 0x02, 0x00, 0x01});
+        for (MachineConfig config : new MachineConfig[]{MachineConfig.DEFAULT, OFF_HEAP}) {
+            Machine machine = new WasmParser(exporter.toByteArray()).parseModule().instantiate(null, MachineVisitors.NULL_VISITOR, config);
+            Object memory = machine.exports().get("memory");
+            assertInstanceOf(Memory.class, memory);
+            assertDoesNotThrow(() -> new WasmParser(importer.toByteArray()).parseModule()
+                    .instantiate(Map.of("env", Map.of("memory", memory)), MachineVisitors.NULL_VISITOR, config));
+        }
+    }
+
+    @Test
+    public void shouldCopyHeapMemoryOffHeap() {
+        Memory heap = new Memory(1, 10);
+        heap.store(100, 3.5);
+        Memory copy = SegmentMemory.copyOf(heap);
+        assertEquals(3.5, copy.loadDouble(100));
+        assertEquals(10, copy.maxPages());
+    }
+
+    @Test
+    @Tag("high-resource")
+    public void shouldCopyMemoryLargerThanTwoGiBOffHeap() {
+        Memory memory = new SegmentMemory(0);
+        assertEquals(0, memory.grow(32769));
+        // Address 2 GiB + 8 is a negative int
+        int addr = (int) (32768L * 65536 + 8);
+        memory.store(addr, 0x0102030405060708L);
+        memory.store(8, 42);
+        Memory copy = SegmentMemory.copyOf(memory);
+        assertEquals(32769, copy.getMemorySize());
+        assertEquals(0x0102030405060708L, copy.loadLong(addr));
+        assertEquals(42, copy.loadInt(8));
+    }
+
+    @Test
+    public void shouldCopyPagesOnWrite() {
+        Memory heap = new Memory(2);
+        heap.store(65534, 0x11223344);
+        MemorySnapshot snapshot = MemorySnapshot.of(heap);
+        Memory first = snapshot.fork(), second = snapshot.fork();
+        // Accesses crossing a page boundary
+        assertEquals(0x11223344, first.loadInt(65534));
+        first.store(65532, 0x0102030405060708L);
+        assertEquals(0x0102030405060708L, first.loadLong(65532));
+        assertEquals(0x11223344, second.loadInt(65534));
+        assertEquals(0x11223344, heap.loadInt(65534));
+        assertEquals(2, first.grow(1));
+        first.fill(65530, (byte) 7, 65540);
+        assertArrayEquals(new byte[]{7, 7, 0, 0}, first.load(131068, 4));
+        assertThrows(IndexOutOfBoundsException.class, () -> first.loadInt(3 * 65536 - 2));
+        assertThrows(IndexOutOfBoundsException.class, () -> second.store(2 * 65536 - 2, 1));
+        assertEquals(0, second.loadShort(2 * 65536 - 2));
+        // Writes through a copy of the pages would be lost
+        assertThrows(UnsupportedOperationException.class, first::buffer);
+    }
+
+    private static final int PAGE = 65536;
+
+    private static List<Supplier<Memory>> memoryKinds(byte[] contents) {
+        Supplier<Memory> heap = () -> {
+            Memory m = new Memory(contents.length / PAGE);
+            m.store(0, contents);
+            return m;
+        };
+        return List.of(heap, () -> SegmentMemory.copyOf(heap.get()), () -> MemorySnapshot.of(heap.get()).fork());
+    }
+
+    @Test
+    public void shouldCopyOverlappingRangesWithinMemory() {
+        byte[] contents = new byte[3 * PAGE];
+        new Random(42).nextBytes(contents);
+        int[][] copies = {{100, 0, 2 * PAGE}, {0, 100, 2 * PAGE}, {PAGE - 3, PAGE + 5, PAGE + 7}, {PAGE + 5, PAGE - 3, PAGE + 7}, {10, 10, 50}, {7, 9, 0}};
+        for (Supplier<Memory> kind : memoryKinds(contents)) {
+            for (int[] c : copies) {
+                Memory m = kind.get();
+                byte[] expected = contents.clone();
+                System.arraycopy(expected, c[1], expected, c[0], c[2]);
+                m.copyWithin(c[0], c[1], c[2]);
+                assertArrayEquals(expected, m.load(0, contents.length), m.toString());
+            }
+            Memory m = kind.get();
+            assertThrows(IndexOutOfBoundsException.class, () -> m.copyWithin(2 * PAGE, 0, PAGE + 1));
+            assertThrows(IndexOutOfBoundsException.class, () -> m.copyWithin(0, 2 * PAGE, PAGE + 1));
+            // Nothing is written when the copy is out of bounds
+            assertArrayEquals(contents, m.load(0, contents.length));
+        }
+    }
+
+    @Test
+    public void shouldCopyBetweenMemories() {
+        byte[] src = new byte[2 * PAGE], dst = new byte[2 * PAGE];
+        new Random(7).nextBytes(src);
+        new Random(8).nextBytes(dst);
+        for (Supplier<Memory> srcKind : memoryKinds(src)) {
+            for (Supplier<Memory> dstKind : memoryKinds(dst)) {
+                Memory from = srcKind.get(), to = dstKind.get();
+                from.copyTo(PAGE - 10, to, 3, PAGE + 5);
+                byte[] expected = dst.clone();
+                System.arraycopy(src, PAGE - 10, expected, 3, PAGE + 5);
+                assertArrayEquals(expected, to.load(0, dst.length), STR."\{from} -> \{to}");
+                assertArrayEquals(src, from.load(0, src.length));
+                assertThrows(RuntimeException.class, () -> from.copyTo(0, to, PAGE + 1, PAGE));
+                assertThrows(RuntimeException.class, () -> from.copyTo(PAGE + 1, to, 0, PAGE));
+            }
+        }
+    }
 }
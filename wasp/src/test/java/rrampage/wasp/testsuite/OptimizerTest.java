@@ -0,0 +1,159 @@
+package rrampage.wasp.testsuite;
+
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestFactory;
+import rrampage.wasp.data.*;
+import rrampage.wasp.data.Module;
+import rrampage.wasp.instructions.*;
+import rrampage.wasp.optimizer.ModuleOptimizer;
+import rrampage.wasp.optimizer.OptimizerReport;
+import rrampage.wasp.parser.types.ExportDescriptor;
+import rrampage.wasp.parser.types.ExportMetadata;
+import rrampage.wasp.parser.types.ImportMetadata;
+import rrampage.wasp.programs.GameOfLifeUtils;
+import rrampage.wasp.vm.ExportedFunction;
+import rrampage.wasp.vm.Machine;
+import rrampage.wasp.vm.MachineConfig;
+import rrampage.wasp.vm.MachineVisitors;
+
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static rrampage.wasp.TestUtils.parseModule;
+import static rrampage.wasp.testsuite.TestSuiteRunner.wastTest;
+import static rrampage.wasp.utils.ConversionUtils.constOf;
+
+public class OptimizerTest {
+    private static final MachineConfig FLAT = MachineConfig.ConfigBuilder.of().optimize(true).build();
+    private static final MachineConfig TREE = MachineConfig.ConfigBuilder.of().optimize(true)
+            .interpreter(MachineConfig.Interpreter.TREE).build();
+    private static final MachineConfig JIT = MachineConfig.ConfigBuilder.of().optimize(true).jit(true).build();
+    private static final MachineConfig FUSED = MachineConfig.ConfigBuilder.of().optimize(true).fuseInstructions(true).build();
+
+    @TestFactory public Stream<DynamicTest> testI32() {return wastTest("i32.json", FLAT);}
+    @TestFactory public Stream<DynamicTest> testI64() {return wastTest("i64.json", FLAT);}
+    @TestFactory public Stream<DynamicTest> testF32() {return wastTest("f32.json", FLAT);}
+    @TestFactory public Stream<DynamicTest> testF64() {return wastTest("f64.json", FLAT);}
+    @TestFactory public Stream<DynamicTest> testConversions() {return wastTest("conversions.json", FLAT);}
+    @TestFactory public Stream<DynamicTest> testIntExprs() {return wastTest("int_exprs.json", FLAT);}
+    @TestFactory public Stream<DynamicTest> testFloatExprs() {return wastTest("float_exprs.json", FLAT);}
+    @TestFactory public Stream<DynamicTest> testBlock() {return wastTest("block.json", FLAT);}
+    @TestFactory public Stream<DynamicTest> testLoop() {return wastTest("loop.json", FLAT);}
+    @TestFactory public Stream<DynamicTest> testIf() {return wastTest("if.json", FLAT);}
+    @TestFactory public Stream<DynamicTest> testBr() {return wastTest("br.json", FLAT);}
+    @TestFactory public Stream<DynamicTest> testBrIf() {return wastTest("br_if.json", FLAT);}
+    @TestFactory public Stream<DynamicTest> testBrTable() {return wastTest("br_table.json", FLAT);}
+    @TestFactory public Stream<DynamicTest> testLabels() {return wastTest("labels.json", FLAT);}
+    @TestFactory public Stream<DynamicTest> testCall() {return wastTest("call.json", FLAT);}
+    @TestFactory public Stream<DynamicTest> testCallIndirect() {return wastTest("call_indirect.json", FLAT);}
+    @TestFactory public Stream<DynamicTest> testReturn() {return wastTest("return.json", FLAT);}
+    @TestFactory public Stream<DynamicTest> testUnwind() {return wastTest("unwind.json", FLAT);}
+    @TestFactory public Stream<DynamicTest> testLeftToRight() {return wastTest("left-to-right.json", FLAT);}
+    @TestFactory public Stream<DynamicTest> testFac() {return wastTest("fac.json", FLAT);}
+    @TestFactory public Stream<DynamicTest> testCallTree() {return wastTest("call.json", TREE);}
+    @TestFactory public Stream<DynamicTest> testUnwindTree() {return wastTest("unwind.json", TREE);}
+    @TestFactory public Stream<DynamicTest> testCallJit() {return wastTest("call.json", JIT);}
+    @TestFactory public Stream<DynamicTest> testLabelsJit() {return wastTest("labels.json", JIT);}
+    @TestFactory public Stream<DynamicTest> testBrIfFused() {return wastTest("br_if.json", FUSED);}
+
+    // main(x) = double(x) * (2 + 3), abs(x) calls no one and returns early from an if
+    private static Module module() {
+        FunctionType unary = FunctionType.I32_UNARY;
+        Function main = new Function("main", unary, null, new Instruction[]{
+                new FunctionInstruction.LocalGet(0), new FunctionInstruction.Call(1),
+                new ConstInstruction.IntConst(2), new ConstInstruction.IntConst(3), IntBinaryInstruction.I32_ADD,
+                IntBinaryInstruction.I32_MUL, new FunctionInstruction.Return(), NullaryInstruction.NOP});
+        Function twice = new Function("twice", unary, null, new Instruction[]{
+                new FunctionInstruction.LocalGet(0), new FunctionInstruction.LocalGet(0), IntBinaryInstruction.I32_ADD});
+        Function unused = new Function("unused", unary, null, new Instruction[]{new FunctionInstruction.LocalGet(0)});
+        Function abs = new Function("abs", unary, new ValueType[]{ValueType.NumType.I32}, new Instruction[]{
+                new FunctionInstruction.LocalGet(0), new ConstInstruction.IntConst(0), IntBinaryInstruction.I32_LT_S,
+                new ControlFlowInstruction.If(0, FunctionType.VOID, new Instruction[]{
+                        new ConstInstruction.IntConst(0), new FunctionInstruction.LocalGet(0), IntBinaryInstruction.I32_SUB,
+                        new FunctionInstruction.LocalTee(1), new FunctionInstruction.Return()}),
+                new FunctionInstruction.LocalGet(1), new FunctionInstruction.LocalGet(0), IntBinaryInstruction.I32_ADD});
+        // sumAbs(n) adds abs(i) for i from -n to n - 1 in a loop inside a block
+        Function sumAbs = new Function("sumAbs", unary, new ValueType[]{ValueType.NumType.I32, ValueType.NumType.I32}, new Instruction[]{
+                new ConstInstruction.IntConst(0), new FunctionInstruction.LocalGet(0), IntBinaryInstruction.I32_SUB,
+                new FunctionInstruction.LocalSet(1),
+                new ControlFlowInstruction.Block(0, FunctionType.VOID, new Instruction[]{
+                        new ControlFlowInstruction.Loop(1, FunctionType.VOID, new Instruction[]{
+                                new FunctionInstruction.LocalGet(1), new FunctionInstruction.LocalGet(0), IntBinaryInstruction.I32_GE_S,
+                                new ControlFlowInstruction.BranchIf(0),
+                                new FunctionInstruction.LocalGet(2), new FunctionInstruction.LocalGet(1), new FunctionInstruction.Call(3),
+                                IntBinaryInstruction.I32_ADD, new FunctionInstruction.LocalSet(2),
+                                new FunctionInstruction.LocalGet(1), new ConstInstruction.IntConst(1), IntBinaryInstruction.I32_ADD,
+                                new FunctionInstruction.LocalSet(1), new ControlFlowInstruction.Branch(1)})}),
+                new FunctionInstruction.LocalGet(2)});
+        ExportMetadata[] exports = {new ExportMetadata("main", new ExportDescriptor.FunctionDescriptor(0)),
+                new ExportMetadata("sumAbs", new ExportDescriptor.FunctionDescriptor(4))};
+        return new Module(1, new FunctionType[]{unary}, new Function[]{main, twice, unused, abs, sumAbs}, new Table[0],
+                exports, new ImportMetadata[0], new Memory[0], new DataSegment[0], new ElementSegment[0], new Variable[0], -1);
+    }
+
+    @Test
+    public void shouldReportEveryPass() {
+        Module module = module();
+        OptimizerReport report = ModuleOptimizer.optimize(module);
+        assertEquals(1, report.get(OptimizerReport.Pass.DEAD_FUNCTIONS));
+        assertEquals(1, report.get(OptimizerReport.Pass.CONSTANT_FOLDING));
+        assertEquals(1, report.get(OptimizerReport.Pass.DEAD_CODE));
+        assertEquals(2, report.get(OptimizerReport.Pass.INLINING));
+        assertArrayEquals(new Instruction[]{NullaryInstruction.UNREACHABLE}, module.functions()[2].code());
+        // Calls were replaced by the callee bodies
+        assertFalse(module.functions()[0].code()[1] instanceof FunctionInstruction.Call);
+    }
+
+    @Test
+    public void shouldRunOptimizedModuleOnEveryTier() {
+        for (MachineConfig config : new MachineConfig[]{MachineConfig.DEFAULT, FLAT, TREE, JIT, FUSED}) {
+            Machine machine = module().instantiate(null, MachineVisitors.NULL_VISITOR, config);
+            assertEquals(50, machine.exportedFunction("main").invokeInt(5));
+            assertEquals(-20, machine.exportedFunction("main").invokeInt(-2));
+            // Sum of |i| for i in [-4, 3]
+            assertEquals(16, machine.exportedFunction("sumAbs").invokeInt(4));
+        }
+    }
+
+    @Test
+    public void shouldNotOptimizeWhenDisabled() {
+        CompiledModule compiled = module().compile();
+        Machine machine = compiled.instantiate(null, MachineVisitors.NULL_VISITOR, MachineConfig.DEFAULT);
+        assertInstanceOf(FunctionInstruction.Call.class, ((Function) machine.exports().get("main")).code()[1]);
+        machine = compiled.instantiate(null, MachineVisitors.NULL_VISITOR, FLAT);
+        assertFalse(((Function) machine.exports().get("main")).code()[1] instanceof FunctionInstruction.Call);
+        assertEquals(2, compiled.optimizerReport().get(OptimizerReport.Pass.INLINING));
+    }
+
+    @Test
+    public void shouldRunGameOfLifeOptimized() {
+        for (String file : new String[]{"./gol/game_of_life.wasm", "./gol/game_of_life_unopt.wasm"}) {
+            Module module = parseModule(file);
+            System.out.println(STR."\{file} \{module.compile().optimizerReport()}");
+            for (MachineConfig config : new MachineConfig[]{FLAT, JIT, FUSED}) {
+                Machine machine = module.instantiate(null, MachineVisitors.NULL_VISITOR, config);
+                byte[][] board = GameOfLifeUtils.pulsar();
+                int height = board.length, width = board[0].length;
+                machine.invoke("initializeBoard", constOf(width), constOf(height));
+                ExportedFunction setValue = machine.exportedFunction("setValueAtPosition");
+                ExportedFunction getValue = machine.exportedFunction("getValueAtPosition");
+                ExportedFunction tick = machine.exportedFunction("tick");
+                for (int row = 0; row < height; row++) {
+                    for (int column = 0; column < width; column++) {
+                        setValue.invoke(row, column, board[row][column]);
+                    }
+                }
+                for (int i = 0; i < 3; i++) {
+                    tick.invoke();
+                    GameOfLifeUtils.calculateGameOfLife(board);
+                }
+                for (int row = 0; row < height; row++) {
+                    for (int column = 0; column < width; column++) {
+                        assertEquals(board[row][column], (byte) getValue.invokeInt(row, column));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -24,8 +24,12 @@ public class TestSuiteRunner {
     }
 
     public TestSuiteRunner(String modulePath, Map<String, Map<String, Object>> importMap, MachineVisitor visitor) {
+        this(modulePath, importMap, visitor, MachineConfig.DEFAULT);
+    }
+
+    public TestSuiteRunner(String modulePath, Map<String, Map<String, Object>> importMap, MachineVisitor visitor, MachineConfig config) {
         module = parseModule(modulePath);
-        machine = module.instantiate(importMap, visitor);
+        machine = module.instantiate(importMap, visitor, config);
     }
 
     public void instantiateMachine(Map<String, Map<String, Object>> importMap, MachineVisitor visitor) {
@@ -55,11 +59,15 @@ public class TestSuiteRunner {
     }
 
     public static Stream<DynamicTest> wastTest(String wastJsonFile) {
+        return wastTest(wastJsonFile, MachineConfig.DEFAULT);
+    }
+
+    public static Stream<DynamicTest> wastTest(String wastJsonFile, MachineConfig config) {
         var map = TestSuiteParser.parseTestCases(wastJsonFile);
         var testMap = new HashMap<String, Stream<DynamicTest>>(map.size());
         for (var e : map.entrySet()) {
             try {
-                TestSuiteRunner runner = new TestSuiteRunner(testSuitePath + e.getKey());
+                TestSuiteRunner runner = new TestSuiteRunner(testSuitePath + e.getKey(), null, MachineVisitors.NULL_VISITOR, config);
                 testMap.put(e.getKey(), DynamicTest.stream(e.getValue().stream(), AssertReturn::toString, runner::check));
             } catch (RuntimeException ex) {
                 System.out.println(ex.getMessage());